@@ -59,6 +59,7 @@ import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.SecurityContextEx;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.util.*;
 import jetbrains.buildServer.web.CorsOrigins;
 import jetbrains.buildServer.web.impl.RestApiFacade;
@@ -473,7 +474,8 @@ public class APIController extends BaseController implements ServletContextAware
         // workaround for http://jetbrains.net/tracker/issue2/TW-7656
         doUnderContextClassLoader(getClass().getClassLoader(), new FuncThrow<Void, Throwable>() {
           public Void apply() throws Throwable {
-            return new RestContext(name -> request.getAttribute(CONTEXT_REQUEST_ARGUMENTS_PREFIX + name))
+            final SUser user = SessionUser.getUser(request);
+            return new RestContext(name -> request.getAttribute(CONTEXT_REQUEST_ARGUMENTS_PREFIX + name), user == null ? null : user.getId())
               .run(() -> {
               // patching request
               final HttpServletRequest actualRequest =
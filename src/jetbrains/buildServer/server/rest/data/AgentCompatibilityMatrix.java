@@ -0,0 +1,189 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.serverSide.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Remembers the results of {@link AgentFinder#canActuallyRun(SBuildAgent, SBuildType)} as a build type x agent matrix of bits,
+ * so that the filters checking many agents against many build types (e.g. "compatible" agents dimension, "compatibleAgent" and "compatibleAgentsCount"
+ * build types dimensions) do not calculate the compatibility of the same pair repeatedly.
+ * The matrix is filled on demand: a cell is calculated on the first request and is reset on the related agent and build type events.
+ * As not all the changes affecting the compatibility produce the events (e.g. agent pools changes), a build type row is dropped
+ * after "rest.request.agents.compatibilityMatrix.ttlSeconds" internal property (60 by default). Set "rest.request.agents.compatibilityMatrix.enabled" to false
+ * to always calculate the compatibility.
+ * The column of a removed agent is cleared in all the rows and is reused for the next new agent, so the rows do not grow with the agents ever seen.
+ */
+public class AgentCompatibilityMatrix extends BuildServerAdapter {
+  public static final String ENABLED_PROPERTY = "rest.request.agents.compatibilityMatrix.enabled";
+
+  @NotNull private final ConcurrentHashMap<Integer, Integer> myAgentColumns = new ConcurrentHashMap<>();
+  @NotNull private final Object myColumnsLock = new Object();
+  @NotNull private final BitSet myFreeColumns = new BitSet(); //guarded by myColumnsLock
+  private int myColumnsCount = 0; //guarded by myColumnsLock
+  @NotNull private final ConcurrentHashMap<String, Row> myRows = new ConcurrentHashMap<>();
+
+  public AgentCompatibilityMatrix(@NotNull final SBuildServer server) {
+    server.addListener(this);
+  }
+
+  public boolean isCompatible(@NotNull final SBuildAgent agent, @NotNull final SBuildType buildType) {
+    if (!TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY)) {
+      return AgentFinder.canActuallyRun(agent, buildType);
+    }
+    final int column = getColumn(agent.getId());
+    final long ttl = TeamCityProperties.getInteger("rest.request.agents.compatibilityMatrix.ttlSeconds", 60) * 1000L;
+    final Row row = myRows.compute(buildType.getInternalId(), (id, existing) -> existing == null || existing.isExpired(ttl) ? new Row() : existing);
+    final Boolean cached = row.get(column);
+    if (cached != null) return cached;
+    final boolean result = AgentFinder.canActuallyRun(agent, buildType);
+    final Integer currentColumn = myAgentColumns.get(agent.getId());
+    if (currentColumn != null && currentColumn == column) { //do not remember the result if the agent was removed and the column is reused meanwhile
+      row.set(column, result);
+    }
+    return result;
+  }
+
+  private int getColumn(final int agentId) {
+    final Integer column = myAgentColumns.get(agentId);
+    if (column != null) return column;
+    synchronized (myColumnsLock) {
+      final Integer existing = myAgentColumns.get(agentId);
+      if (existing != null) return existing;
+      int result = myFreeColumns.nextSetBit(0);
+      if (result >= 0) {
+        myFreeColumns.clear(result);
+        resetColumn(result);
+      } else {
+        result = myColumnsCount++;
+      }
+      myAgentColumns.put(agentId, result);
+      return result;
+    }
+  }
+
+  int getColumnsCount() {
+    synchronized (myColumnsLock) {
+      return myColumnsCount;
+    }
+  }
+
+  private void resetAgent(@NotNull final SBuildAgent agent) {
+    final Integer column = myAgentColumns.get(agent.getId());
+    if (column == null) return;
+    resetColumn(column);
+  }
+
+  private void removeAgent(@NotNull final SBuildAgent agent) {
+    synchronized (myColumnsLock) {
+      final Integer column = myAgentColumns.remove(agent.getId());
+      if (column == null) return;
+      resetColumn(column);
+      myFreeColumns.set(column);
+    }
+  }
+
+  private void resetColumn(final int column) {
+    for (Row row : myRows.values()) {
+      row.reset(column);
+    }
+  }
+
+  private void resetBuildType(@NotNull final SBuildType buildType) {
+    myRows.remove(buildType.getInternalId());
+  }
+
+  @Override
+  public void agentRegistered(@NotNull final SBuildAgent agent, final long currentlyRunningBuildId) {
+    resetAgent(agent);
+  }
+
+  @Override
+  public void agentDescriptionUpdated(@NotNull final SBuildAgent agent) {
+    resetAgent(agent);
+  }
+
+  @Override
+  public void agentStatusChanged(@NotNull final SBuildAgent agent, final boolean wasEnabled, final boolean wasAuthorized) {
+    resetAgent(agent);
+  }
+
+  @Override
+  public void agentUnregistered(@NotNull final SBuildAgent agent) {
+    resetAgent(agent);
+  }
+
+  @Override
+  public void agentRemoved(@NotNull final SBuildAgent agent) {
+    removeAgent(agent);
+  }
+
+  @Override
+  public void buildTypeRegistered(@NotNull final SBuildType buildType) {
+    resetBuildType(buildType);
+  }
+
+  @Override
+  public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+    resetBuildType(buildType);
+  }
+
+  @Override
+  public void buildTypePersisted(@NotNull final SBuildType buildType) {
+    resetBuildType(buildType);
+  }
+
+  @Override
+  public void projectPersisted(@NotNull final String projectId) {
+    //parameters and requirements inherited from the project can affect any build type in the subtree
+    myRows.clear();
+  }
+
+  @Override
+  public void serverConfigurationReloaded() {
+    myRows.clear();
+  }
+
+  private static class Row {
+    private final long myCreated = System.currentTimeMillis();
+    @NotNull private final BitSet myKnown = new BitSet();
+    @NotNull private final BitSet myCompatible = new BitSet();
+
+    boolean isExpired(final long ttl) {
+      return System.currentTimeMillis() - myCreated > ttl;
+    }
+
+    @Nullable
+    synchronized Boolean get(final int column) {
+      return myKnown.get(column) ? myCompatible.get(column) : null;
+    }
+
+    synchronized void set(final int column, final boolean compatible) {
+      myKnown.set(column);
+      myCompatible.set(column, compatible);
+    }
+
+    synchronized void reset(final int column) {
+      myKnown.clear(column);
+      myCompatible.clear(column);
+    }
+  }
+}
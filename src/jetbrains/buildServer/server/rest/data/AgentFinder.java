@@ -373,14 +373,14 @@ public class AgentFinder extends AbstractFinder<SBuildAgent> {
 
   private boolean isCompatibleWithAny(@NotNull final SBuildAgent agent, @NotNull final List<SBuildType> buildTypes) {
     for (final SBuildType buildType : buildTypes) {
-      if (canActuallyRun(agent, buildType)) return true;
+      if (isCompatible(agent, buildType)) return true;
     }
     return false;
   }
 
   private boolean isCompatibleWithAll(@NotNull final SBuildAgent agent, @NotNull final List<SBuildType> buildTypes) {
     for (final SBuildType buildType : buildTypes) {
-      if (!canActuallyRun(agent, buildType)) return false;
+      if (!isCompatible(agent, buildType)) return false;
     }
     return true;
   }
@@ -403,6 +403,14 @@ public class AgentFinder extends AbstractFinder<SBuildAgent> {
     return getCompatibilityData(agent, buildType).isCompatible();
   }
 
+  /**
+   * The same as {@link #canActuallyRun(SBuildAgent, SBuildType)}, but uses the results remembered in {@link AgentCompatibilityMatrix} when available
+   */
+  public boolean isCompatible(@NotNull final SBuildAgent agent, @NotNull final SBuildType buildType) {
+    final AgentCompatibilityMatrix compatibilityMatrix = myServiceLocator.findSingletonService(AgentCompatibilityMatrix.class);
+    return compatibilityMatrix != null ? compatibilityMatrix.isCompatible(agent, buildType) : canActuallyRun(agent, buildType);
+  }
+
   @NotNull
   public static List<Compatibility.AgentCompatibilityData> getIncompatible(final @NotNull SBuildAgent agent,
                                                                            final @Nullable List<SBuildType> buildTypes,
@@ -456,8 +464,8 @@ public class AgentFinder extends AbstractFinder<SBuildAgent> {
     }
 
     SBuildType buildType = build.getBuildType();
-    if (buildType != null && !getCompatibilityData(agent, buildType).isCompatible()) {
-      return false;  //todo: optimize, as this calculates compatibility second time
+    if (buildType != null && !isCompatible(agent, buildType)) {
+      return false;
     }
     return true;
   }
@@ -486,7 +494,7 @@ public class AgentFinder extends AbstractFinder<SBuildAgent> {
         if (buildType != null) {
           final List<BuildAgentEx> agents = serviceLocator.getSingletonService(BuildAgentManagerEx.class).getAllAgents();
           result.addAll(
-            agents.stream().filter(a -> a.isAuthorized() && a.isRegistered() && getCompatibilityData(a, buildType).isCompatible()).collect(Collectors.toList()));
+            agents.stream().filter(a -> a.isAuthorized() && a.isRegistered() && isCompatible(a, buildType)).collect(Collectors.toList()));
         }
       }
     }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Owns the threads compressing the entries of {@link ArchiveElement} in parallel. The pool is created on first use with the number of threads
+ * set by "rest.files.archive.parallelThreads" internal property and is shut down with the server.
+ */
+public class ArchiveCompressionExecutor extends BuildServerAdapter {
+  @Nullable private ExecutorService myExecutor;
+  private boolean myShutdown = false;
+
+  public ArchiveCompressionExecutor(@NotNull final SBuildServer server) {
+    server.addListener(this);
+  }
+
+  /**
+   * @return null if parallel compression is not enabled
+   */
+  @Nullable
+  public synchronized ExecutorService getExecutor() {
+    final int threads = TeamCityProperties.getInteger(ArchiveElement.PARALLEL_THREADS_PROPERTY, 0);
+    if (threads <= 0 || myShutdown) return null;
+    if (myExecutor == null) {
+      myExecutor = Executors.newFixedThreadPool(threads, new NamedDaemonThreadFactory("REST API archive compression"));
+    }
+    return myExecutor;
+  }
+
+  @Override
+  public synchronized void serverShutdown() {
+    myShutdown = true;
+    if (myExecutor != null) {
+      myExecutor.shutdownNow();
+      myExecutor = null;
+    }
+  }
+}
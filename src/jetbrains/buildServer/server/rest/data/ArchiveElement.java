@@ -17,14 +17,26 @@
 package jetbrains.buildServer.server.rest.data;
 
 import com.intellij.openapi.diagnostic.Logger;
-import java.io.BufferedOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.List;
+import java.io.*;
+import java.util.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.StreamingOutput;
+import jetbrains.buildServer.server.rest.errors.OperationException;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.crypt.EncryptUtil;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.browser.Browser;
 import jetbrains.buildServer.util.browser.BrowserException;
@@ -36,18 +48,59 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
+ * The archive is produced in a deterministic way: the same artifacts with the same settings always result in the same bytes, so that a download
+ * can be resumed with a ranged request. The archive size is not known until it is generated: ranged requests are served by generating the archive
+ * into a temporary file once (see {@link #spool(Supplier, SpooledArchivesCache)}) and sending the ranges from it, otherwise the archive is streamed as it is generated and has no size.
+ * The generated file can be reused by the following ranged requests of the same archive, see {@link SpooledArchivesCache}.
+ *
  * @author Yegor.Yarko
  *         Date: 19.09.2014
  */
 public class ArchiveElement implements Element {
   private static final Logger LOG = Logger.getInstance(ArchiveElement.class.getName());
 
+  public static final String COMPRESSION_PROPERTY = "rest.files.archive.compression";
+  public static final String COMPRESSION_DEFAULT = "default";
+  public static final String COMPRESSION_AUTO = "auto"; //store files with the already compressed content (detected by extension), compress others
+  public static final String COMPRESSION_STORE = "store";
+  public static final String[] COMPRESSION_VALUES = {COMPRESSION_DEFAULT, COMPRESSION_AUTO, COMPRESSION_STORE};
+
+  static final String STORED_EXTENSIONS_PROPERTY = "rest.files.archive.storedExtensions";
+  static final String PARALLEL_THREADS_PROPERTY = "rest.files.archive.parallelThreads";
+  static final String PARALLEL_MAX_ENTRY_SIZE_PROPERTY = "rest.files.archive.parallelMaxEntrySize";
+  static final String STORED_MAX_BUFFERED_SIZE_PROPERTY = "rest.files.archive.storedMaxBufferedSize";
+  private static final String DEFAULT_STORED_EXTENSIONS = "zip,jar,war,ear,apk,aar,nupkg,whl,gz,tgz,bz2,xz,7z,rar,png,jpg,jpeg,gif,webp,mp3,mp4,avi,docx,xlsx,pptx";
+
   private final List<ArtifactTreeElement> myArtifacts;
   private final String myName;
+  @NotNull private final String myCompression;
+  @NotNull private final Set<String> myStoredExtensions;
+  private final long myParallelMaxEntrySize;
+  private final long myStoredMaxBufferedSize;
+  @Nullable private final ExecutorService myCompressionExecutor;
+  @Nullable private volatile String myLayoutKey;
+  @Nullable private volatile File mySpooledArchive;
+  @Nullable private SpooledArchivesCache.SpooledArchive mySharedArchive;
 
   public ArchiveElement(final List<ArtifactTreeElement> artifacts, final String name) {
+    this(artifacts, name, COMPRESSION_DEFAULT, null);
+  }
+
+  /**
+   * @param compression one of {@link #COMPRESSION_VALUES}
+   * @param compressionExecutor executor to compress the entries in parallel, null to compress all the entries on the writing thread
+   */
+  public ArchiveElement(final List<ArtifactTreeElement> artifacts, final String name, @NotNull final String compression, @Nullable final ExecutorService compressionExecutor) {
     myArtifacts = artifacts;
     myName = name;
+    myCompression = compression;
+    myStoredExtensions = new HashSet<>();
+    for (String extension : TeamCityProperties.getProperty(STORED_EXTENSIONS_PROPERTY, DEFAULT_STORED_EXTENSIONS).split(",")) {
+      if (!extension.trim().isEmpty()) myStoredExtensions.add(extension.trim().toLowerCase(Locale.ENGLISH));
+    }
+    myCompressionExecutor = compressionExecutor;
+    myParallelMaxEntrySize = compressionExecutor == null ? -1 : TeamCityProperties.getLong(PARALLEL_MAX_ENTRY_SIZE_PROPERTY, 16 * 1024 * 1024);
+    myStoredMaxBufferedSize = TeamCityProperties.getLong(STORED_MAX_BUFFERED_SIZE_PROPERTY, 16 * 1024 * 1024);
   }
 
   @NotNull
@@ -73,84 +126,336 @@ public class ArchiveElement implements Element {
     return true;
   }
 
+  /**
+   * Ranges can only be requested after the archive is spooled
+   */
   public StreamingOutput getStreamingOutput(@Nullable final Long startOffset, @Nullable final Long length, final Supplier<String> detailsForLog) {
-    if (startOffset != null || length != null){
-      throw new IllegalStateException("Partial streaming is not yet supported");
-    }
-
     return new StreamingOutput() {
       public void write(final OutputStream out) throws WebApplicationException {
-        final ZipArchiveOutputStream resultOutput = new ZipArchiveOutputStream(new BufferedOutputStream(out));
-        resultOutput.setEncoding(null); // TW-12815
-        int errorsCount = 0;
-        try {
-          for (ArtifactTreeElement artifact : myArtifacts) { //todo: need to read-lock artifacts???
-            if (!artifact.isLeaf()){
-              //process a directory
-              String directoryFullName = artifact.getFullName();
-              if (!directoryFullName.endsWith("/")){
-                directoryFullName += "/";
-              }
-              ZipArchiveEntry entry = new ZipArchiveEntry(directoryFullName);
-              final Long lastModified = artifact.getLastModified();
-              if (lastModified != null) entry.setTime(lastModified);
-              try {
-                resultOutput.putArchiveEntry(entry);
-                resultOutput.closeArchiveEntry();
-              } catch (IOException e) {
-                errorsCount++;
-                LOG.warnAndDebugDetails("Error packing directory, ignoring. Directory: '" + artifact.getFullName() + "'", e);
-              }
+        final File spooledArchive = mySpooledArchive;
+        if (spooledArchive != null) {
+          final long start = startOffset != null ? startOffset : 0;
+          try {
+            transferFromFile(spooledArchive, start, length != null ? length : spooledArchive.length() - start, out);
+          } catch (IOException e) {
+            throw new OperationException("Error while sending archive '" + myName + "': " + e.toString(), e);
+          }
+          return;
+        }
+        if (startOffset != null || length != null) {
+          throw new IllegalStateException("Partial streaming is only supported for the spooled archive");
+        }
+        final int errorsCount = writeArchive(new BufferedOutputStream(out));
+        if (errorsCount > 0) {
+          LOG.warn("Encountered " + errorsCount + " errors while processing " + detailsForLog.get());
+        }
+      }
+    };
+  }
+
+  /**
+   * Generates the archive into a temporary file: the archive size becomes known and all the ranges are then served from the same generated bytes.
+   * {@link #dispose()} should be called once the content is sent.
+   * @param cache if not null, the file generated for the same archive layout by another request is reused, otherwise the file is generated for this element only
+   * @return the archive size
+   */
+  public synchronized long spool(@NotNull final Supplier<String> detailsForLog, @Nullable final SpooledArchivesCache cache) throws IOException {
+    File result = mySpooledArchive;
+    if (result != null) return result.length();
+    if (cache != null) {
+      final SpooledArchivesCache.SpooledArchive archive = cache.acquire(getLayoutKey(), file -> writeArchive(file, detailsForLog));
+      mySharedArchive = archive;
+      result = archive.getFile();
+    } else {
+      result = File.createTempFile("rest_archive_", ".zip");
+      boolean written = false;
+      try {
+        writeArchive(result, detailsForLog);
+        written = true;
+      } finally {
+        if (!written) FileUtil.delete(result);
+      }
+    }
+    mySpooledArchive = result;
+    return result.length();
+  }
+
+  private void writeArchive(@NotNull final File file, @NotNull final Supplier<String> detailsForLog) throws IOException {
+    final int errorsCount = writeArchive(new BufferedOutputStream(new FileOutputStream(file)));
+    if (errorsCount > 0) {
+      LOG.warn("Encountered " + errorsCount + " errors while processing " + detailsForLog.get());
+    }
+  }
+
+  /**
+   * Deletes the spooled archive or releases the shared one, if any
+   */
+  public synchronized void dispose() {
+    final File spooledArchive = mySpooledArchive;
+    final SpooledArchivesCache.SpooledArchive sharedArchive = mySharedArchive;
+    mySpooledArchive = null;
+    mySharedArchive = null;
+    if (sharedArchive != null) {
+      sharedArchive.release();
+    } else if (spooledArchive != null) {
+      FileUtil.delete(spooledArchive);
+    }
+  }
+
+  private static void transferFromFile(@NotNull final File file, final long startOffset, final long length, @NotNull final OutputStream output) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final WritableByteChannel target = Channels.newChannel(output); //not closing as that would close the output
+      long position = startOffset;
+      long remaining = length;
+      while (remaining > 0) {
+        final long transferred = channel.transferTo(position, remaining, target);
+        if (transferred <= 0) throw new IOException("Unexpected end of file '" + file.getAbsolutePath() + "' at position " + position);
+        position += transferred;
+        remaining -= transferred;
+      }
+    }
+  }
+
+  /**
+   * @return identifier of the archive content: it is the same for the archives with the same bytes, provided the artifacts are not modified preserving size and modification time
+   */
+  @NotNull
+  public String getLayoutKey() {
+    String result = myLayoutKey;
+    if (result == null) {
+      final StringBuilder key = new StringBuilder();
+      key.append(myCompression).append('|').append(myParallelMaxEntrySize).append('|');
+      if (COMPRESSION_AUTO.equals(myCompression)) key.append(new TreeSet<>(myStoredExtensions)).append('|');
+      for (ArtifactTreeElement artifact : myArtifacts) {
+        key.append(artifact.getFullName()).append('|').append(artifact.isLeaf()).append('|').append(artifact.isContentAvailable()).append('|')
+           .append(artifact.getSize()).append('|').append(artifact.getLastModified()).append('\n');
+      }
+      result = EncryptUtil.md5(key.toString());
+      myLayoutKey = result;
+    }
+    return result;
+  }
+
+  /**
+   * @return errors count
+   */
+  private int writeArchive(@NotNull final OutputStream out) {
+    final ZipArchiveOutputStream resultOutput = new ZipArchiveOutputStream(out);
+    resultOutput.setEncoding(null); // TW-12815
+    final ExecutorService executor = myCompressionExecutor;
+    final Deque<PendingEntry> pendingEntries = new ArrayDeque<>();
+    final int maxPendingEntries = Math.max(1, 2 * TeamCityProperties.getInteger(PARALLEL_THREADS_PROPERTY, 0));
+    int errorsCount = 0;
+    try {
+      for (ArtifactTreeElement artifact : myArtifacts) { //todo: need to read-lock artifacts???
+        if (executor != null && isPrecompressed(artifact)) {
+          // compressing in parallel while writing in the original order
+          Future<PrecompressedContent> result = null;
+          try {
+            result = executor.submit(() -> precompress(artifact));
+          } catch (RejectedExecutionException e) {
+            //the server is shutting down, compressing on the writing thread
+          }
+          if (result != null) {
+            pendingEntries.add(new PendingEntry(artifact, result));
+            if (pendingEntries.size() >= maxPendingEntries) {
+              errorsCount += writePendingEntry(pendingEntries.poll(), resultOutput);
             }
+            continue;
+          }
+        }
+        while (!pendingEntries.isEmpty()) {
+          errorsCount += writePendingEntry(pendingEntries.poll(), resultOutput);
+        }
 
-            if (!artifact.isContentAvailable()) continue;
+        if (!artifact.isLeaf()){
+          //process a directory
+          String directoryFullName = artifact.getFullName();
+          if (!directoryFullName.endsWith("/")){
+            directoryFullName += "/";
+          }
+          ZipArchiveEntry entry = new ZipArchiveEntry(directoryFullName);
+          final Long lastModified = artifact.getLastModified();
+          if (lastModified != null) entry.setTime(lastModified);
+          try {
+            resultOutput.putArchiveEntry(entry);
+            resultOutput.closeArchiveEntry();
+          } catch (IOException e) {
+            errorsCount++;
+            LOG.warnAndDebugDetails("Error packing directory, ignoring. Directory: '" + artifact.getFullName() + "'", e);
+          }
+        }
 
-            try {
-              InputStream stream = artifact.getInputStream();
+        if (!artifact.isContentAvailable()) continue;
+
+        try {
+          ZipArchiveEntry entry = new ZipArchiveEntry(artifact.getFullName());
+          final Long lastModified = artifact.getLastModified();
+          if (lastModified != null) entry.setTime(lastModified); //might need to add more, see com.intellij.util.io.ZipUtil.addFileToZip()
+          if (isStored(artifact)) {
+            //stored entries require size and CRC to be known before the content: reading the content once into memory when it is not too large
+            final CRC32 crc = new CRC32();
+            final long size = artifact.getSize();
+            final ByteArrayOutputStream content = size >= 0 && size <= myStoredMaxBufferedSize ? new ByteArrayOutputStream((int)size) : null;
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(readContent(artifact, crc, content));
+            entry.setCrc(crc.getValue());
+            if (content != null) {
+              resultOutput.putArchiveEntry(entry);
               try {
-                ZipArchiveEntry entry = new ZipArchiveEntry(artifact.getFullName());
-                final Long lastModified = artifact.getLastModified();
-                if (lastModified != null) entry.setTime(lastModified); //might need to add more, see com.intellij.util.io.ZipUtil.addFileToZip()
-                resultOutput.putArchiveEntry(entry);
-                try {
-                  FileUtil.copyStreams(stream, resultOutput);
-                } finally {
-                  resultOutput.closeArchiveEntry();
-                }
+                content.writeTo(resultOutput);
               } finally {
-                FileUtil.close(stream);
+                resultOutput.closeArchiveEntry();
               }
-            } catch (IOException e) {
-              errorsCount++;
-              LOG.warnAndDebugDetails("Error packing artifact, ignoring. File: '" + artifact.getFullName() + "'", e);
+              continue;
             }
           }
-        } finally {
-          if (errorsCount > 0) {
-            LOG.warn("Encountered " + errorsCount + " errors while processing " + detailsForLog.get());
-          }
+          InputStream stream = artifact.getInputStream();
           try {
-            resultOutput.close();
-          } catch (Exception e) {
-            LOG.warnAndDebugDetails("Error closing archived stream", e);
+            resultOutput.putArchiveEntry(entry);
+            try {
+              FileUtil.copyStreams(stream, resultOutput);
+            } finally {
+              resultOutput.closeArchiveEntry();
+            }
+          } finally {
+            FileUtil.close(stream);
           }
+        } catch (IOException e) {
+          errorsCount++;
+          LOG.warnAndDebugDetails("Error packing artifact, ignoring. File: '" + artifact.getFullName() + "'", e);
         }
       }
-    };
+      while (!pendingEntries.isEmpty()) {
+        errorsCount += writePendingEntry(pendingEntries.poll(), resultOutput);
+      }
+    } finally {
+      for (PendingEntry pendingEntry : pendingEntries) {
+        pendingEntry.myResult.cancel(true);
+      }
+      try {
+        resultOutput.close();
+      } catch (Exception e) {
+        LOG.warnAndDebugDetails("Error closing archived stream", e);
+      }
+    }
+    return errorsCount;
+  }
+
+  private boolean isStored(@NotNull final ArtifactTreeElement artifact) {
+    if (COMPRESSION_STORE.equals(myCompression)) return true;
+    if (!COMPRESSION_AUTO.equals(myCompression)) return false;
+    final String name = artifact.getName();
+    final int dotIndex = name.lastIndexOf('.');
+    return dotIndex >= 0 && myStoredExtensions.contains(name.substring(dotIndex + 1).toLowerCase(Locale.ENGLISH));
   }
 
+  private boolean isPrecompressed(@NotNull final ArtifactTreeElement artifact) {
+    if (!artifact.isLeaf() || !artifact.isContentAvailable() || isStored(artifact)) return false;
+    final long size = artifact.getSize();
+    return size >= 0 && size <= myParallelMaxEntrySize;
+  }
+
+  /**
+   * @return errors count
+   */
+  private static int writePendingEntry(@NotNull final PendingEntry pendingEntry, @NotNull final ZipArchiveOutputStream resultOutput) {
+    final ArtifactTreeElement artifact = pendingEntry.myArtifact;
+    try {
+      final PrecompressedContent content = pendingEntry.myResult.get();
+      ZipArchiveEntry entry = new ZipArchiveEntry(artifact.getFullName());
+      final Long lastModified = artifact.getLastModified();
+      if (lastModified != null) entry.setTime(lastModified);
+      entry.setMethod(ZipEntry.DEFLATED);
+      entry.setSize(content.mySize);
+      entry.setCompressedSize(content.myCompressed.length);
+      entry.setCrc(content.myCrc);
+      resultOutput.addRawArchiveEntry(entry, new ByteArrayInputStream(content.myCompressed));
+      return 0;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warnAndDebugDetails("Interrupted while packing artifact, ignoring. File: '" + artifact.getFullName() + "'", e);
+      return 1;
+    } catch (ExecutionException | IOException e) {
+      final Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+      LOG.warnAndDebugDetails("Error packing artifact, ignoring. File: '" + artifact.getFullName() + "'", cause);
+      return 1;
+    }
+  }
+
+  @NotNull
+  private static PrecompressedContent precompress(@NotNull final ArtifactTreeElement artifact) throws IOException {
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream((int)Math.min(artifact.getSize() / 2 + 1024, Integer.MAX_VALUE));
+    final CRC32 crc = new CRC32();
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true); //the same settings as in ZipArchiveOutputStream
+    final long size;
+    try {
+      try (DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(compressed, deflater, 64 * 1024)) {
+        size = readContent(artifact, crc, deflaterOutput);
+      }
+    } finally {
+      deflater.end();
+    }
+    return new PrecompressedContent(compressed.toByteArray(), size, crc.getValue());
+  }
+
+  /**
+   * @return content size
+   */
+  private static long readContent(@NotNull final ArtifactTreeElement artifact, @NotNull final CRC32 crc, @Nullable final OutputStream output) throws IOException {
+    final byte[] buffer = new byte[64 * 1024];
+    long size = 0;
+    InputStream stream = artifact.getInputStream();
+    try {
+      int read;
+      while ((read = stream.read(buffer)) >= 0) {
+        crc.update(buffer, 0, read);
+        if (output != null) output.write(buffer, 0, read);
+        size += read;
+      }
+    } finally {
+      FileUtil.close(stream);
+    }
+    return size;
+  }
 
   @NotNull
   public InputStream getInputStream() throws IllegalStateException, IOException, BrowserException {
     throw new IllegalStateException("Operation is not supported");
   }
 
+  /**
+   * @return the archive size if the archive is spooled, -1 otherwise
+   */
   public long getSize() throws IllegalStateException {
-    return -1;
+    final File spooledArchive = mySpooledArchive;
+    return spooledArchive != null ? spooledArchive.length() : -1;
   }
 
   @NotNull
   public Browser getBrowser() {
     throw new IllegalStateException("Operation is not supported");
   }
+
+  private static class PendingEntry {
+    @NotNull private final ArtifactTreeElement myArtifact;
+    @NotNull private final Future<PrecompressedContent> myResult;
+
+    PendingEntry(@NotNull final ArtifactTreeElement artifact, @NotNull final Future<PrecompressedContent> result) {
+      myArtifact = artifact;
+      myResult = result;
+    }
+  }
+
+  private static class PrecompressedContent {
+    @NotNull private final byte[] myCompressed;
+    private final long mySize;
+    private final long myCrc;
+
+    PrecompressedContent(@NotNull final byte[] compressed, final long size, final long crc) {
+      myCompressed = compressed;
+      mySize = size;
+      myCrc = crc;
+    }
+  }
 }
@@ -25,6 +25,7 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.ArtifactsConstants;
 import jetbrains.buildServer.ServiceLocator;
+import jetbrains.buildServer.server.rest.data.build.BuildArtifactsListingCache;
 import jetbrains.buildServer.server.rest.errors.*;
 import jetbrains.buildServer.server.rest.model.PagerData;
 import jetbrains.buildServer.server.rest.model.files.FileApiUrlBuilder;
@@ -71,11 +72,17 @@ public class BuildArtifactsFinder extends AbstractFinder<ArtifactTreeElement> {
 
   @NotNull private final Element myBaseElement;
   @NotNull private final TimeCondition myTimeCondition;
+  @Nullable private final BuildArtifactsListingCache myListingCache;
 
   public BuildArtifactsFinder(@NotNull final Element baseElement, @NotNull final TimeCondition timeCondition) {
+    this(baseElement, timeCondition, null);
+  }
+
+  public BuildArtifactsFinder(@NotNull final Element baseElement, @NotNull final TimeCondition timeCondition, @Nullable final BuildArtifactsListingCache listingCache) {
     super(HIDDEN_DIMENSION_NAME, ARCHIVES_DIMENSION_NAME, DIRECTORY_DIMENSION_NAME, DIMENSION_RECURSIVE, DIMENSION_PATTERNS, DIMENSION_MODIFIED, DIMENSION_SIZE);
     myBaseElement = baseElement;
     myTimeCondition = timeCondition;
+    myListingCache = listingCache;
   }
 
   @NotNull
@@ -199,7 +206,8 @@ public class BuildArtifactsFinder extends AbstractFinder<ArtifactTreeElement> {
       throw new BadRequestException("Cannot provide children list for file '" + initialElement.getFullName() + "'." + additionalMessage);
     }
 
-    return new BuildArtifactsFinder(initialElement, serviceLocator.getSingletonService(TimeCondition.class)).getItems(filesLocator).myEntries;
+    return new BuildArtifactsFinder(initialElement, serviceLocator.getSingletonService(TimeCondition.class), serviceLocator.findSingletonService(BuildArtifactsListingCache.class))
+      .getItems(filesLocator).myEntries;
   }
 
   @NotNull
@@ -263,8 +271,28 @@ public class BuildArtifactsFinder extends AbstractFinder<ArtifactTreeElement> {
       }
     }
 
-    Boolean includeDirectories = locator.getSingleDimensionValueAsBoolean(DIRECTORY_DIMENSION_NAME);
+    final Boolean includeDirectories = locator.getSingleDimensionValueAsBoolean(DIRECTORY_DIMENSION_NAME);
 
+    if (myListingCache != null && myBaseElement instanceof BuildHoldingElement) {
+      final String listingKey = myBaseElement.getFullName() + "|" + rules + "|" + childrenNestingLevel + "|" + archiveChildrenNestingLevel + "|" + includeHidden + "|" + includeDirectories;
+      final long finalChildrenNestingLevel = childrenNestingLevel;
+      final long finalArchiveChildrenNestingLevel = archiveChildrenNestingLevel;
+      final Boolean finalIncludeHidden = includeHidden;
+      return getItemHolder(myListingCache.getListing(((BuildHoldingElement)myBaseElement).getBuildPromotion(), listingKey,
+                                                     () -> getArtifacts(rules, finalChildrenNestingLevel, finalArchiveChildrenNestingLevel, finalIncludeHidden, includeDirectories)));
+    }
+    return getItemHolder(getArtifacts(rules, childrenNestingLevel, archiveChildrenNestingLevel, includeHidden, includeDirectories));
+  }
+
+  /**
+   * @return sorted elements under the base element matching the rules
+   */
+  @NotNull
+  private List<ArtifactTreeElement> getArtifacts(@NotNull final List<String> rules,
+                                                 final long childrenNestingLevel,
+                                                 final long archiveChildrenNestingLevel,
+                                                 @Nullable final Boolean includeHidden,
+                                                 @Nullable final Boolean includeDirectories) {
     final List<ArtifactTreeElement> result = new ArrayList<ArtifactTreeElement>();
     AntPatternTreeMatcher.ScanOption[] options = {};
     if (includeDirectories != null && !includeDirectories) {
@@ -296,7 +324,7 @@ public class BuildArtifactsFinder extends AbstractFinder<ArtifactTreeElement> {
     } catch (Exception e) {
       LOG.error("Error sorting results: " + result.stream().map(Element::getFullName).collect(Collectors.joining(", ", "{", "}")), e);
     }
-    return getItemHolder(result);
+    return result;
   }
 
   @NotNull
@@ -499,6 +527,8 @@ public class BuildArtifactsFinder extends AbstractFinder<ArtifactTreeElement> {
       }
       if (myElement instanceof FileSystemBrowser.FileElement) {
         myFile = ((FileSystemBrowser.FileElement)myElement).getFile();
+      } else if (myElement instanceof ArtifactTreeElementWrapper) {
+        myFile = ((ArtifactTreeElementWrapper)myElement).getFile();
       }  else{
         myFile = null;
       }
@@ -561,6 +591,14 @@ public class BuildArtifactsFinder extends AbstractFinder<ArtifactTreeElement> {
       return null;
     }
 
+    /**
+     * @return the file in the local file system if the element is backed by one
+     */
+    @Nullable
+    public File getFile() {
+      return myFile;
+    }
+
     @Override
     public String toString() {
       return myElement.toString() + " unified";
@@ -19,6 +19,7 @@ package jetbrains.buildServer.server.rest.data;
 import com.google.common.collect.ComparisonChain;
 import com.intellij.openapi.diagnostic.Logger;
 import java.util.*;
+import java.util.function.ToLongFunction;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
@@ -27,6 +28,9 @@ import jetbrains.buildServer.ServiceLocator;
 import jetbrains.buildServer.messages.ErrorData;
 import jetbrains.buildServer.parameters.ParametersProvider;
 import jetbrains.buildServer.parameters.impl.AbstractMapParametersProvider;
+import jetbrains.buildServer.requirements.RequirementType;
+import jetbrains.buildServer.server.rest.data.build.AgentsBuildHistoryMerger;
+import jetbrains.buildServer.server.rest.data.build.FinishedBuildsIndex;
 import jetbrains.buildServer.server.rest.data.build.TagFinder;
 import jetbrains.buildServer.server.rest.data.problem.TestFinder;
 import jetbrains.buildServer.server.rest.data.problem.TestOccurrenceFinder;
@@ -39,7 +43,6 @@ import jetbrains.buildServer.server.rest.model.Util;
 import jetbrains.buildServer.server.rest.model.agent.Agent;
 import jetbrains.buildServer.server.rest.model.build.Build;
 import jetbrains.buildServer.server.rest.request.Constants;
-import jetbrains.buildServer.server.rest.util.StreamUtil;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.auth.AccessDeniedException;
 import jetbrains.buildServer.serverSide.auth.Permission;
@@ -202,6 +205,50 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
     myTriggerByFinder = getTriggeredByFinder(myTimeCondition, myServiceLocator);
     mySnapshotDepProblemsTraverser = new SnapshotDepProblemsTraverser(myBuildPromotionManager);
+    setParallelFilteringSupported(myServiceLocator.getSingletonService(SecurityContextEx.class), myServiceLocator.findSingletonService(ParallelFilteringExecutor.class));
+    setCursorSupport(new BuildsCursor());
+    final ServerListener serverListener = myServiceLocator.findSingletonService(ServerListener.class);
+    if (serverListener != null) {
+      setResultCache(createResultCache(serverListener));
+    }
+  }
+
+  @NotNull
+  FinderResultCache<BuildPromotion> createResultCache(@NotNull final ServerListener serverListener) {
+    final FinderResultCache<BuildPromotion> result = new FinderResultCache<>(getName(), new FinderResultCache.ItemIdResolver<BuildPromotion>() {
+      @Override
+      public long getId(@NotNull final BuildPromotion item) {
+        return item.getId();
+      }
+
+      @Nullable
+      @Override
+      public BuildPromotion findById(final long id) {
+        return myBuildPromotionManager.findPromotionById(id);
+      }
+    }, this::getResultBuildTypeIds, myServiceLocator.getSingletonService(SecurityContextEx.class));
+    serverListener.addBuildTypeBuildsChangeListener(buildType -> result.invalidate(buildType == null ? null : buildType.getInternalId()));
+    return result;
+  }
+
+  /**
+   * @return internal ids of the build types the builds found by the locator belong to or null if the result can depend on the builds of other build types
+   */
+  @Nullable
+  private Collection<String> getResultBuildTypeIds(@NotNull final String locatorText) {
+    try {
+      final Locator locator = new Locator(locatorText);
+      if (locator.isSingleValue()) return null;
+      //these dimensions match the builds by the builds of other build types
+      if (locator.isAnyPresent(SNAPSHOT_DEP, ARTIFACT_DEP, SNAPSHOT_PROBLEM, STROB, EQUIVALENT, ORDERED, SINCE_BUILD, UNTIL_BUILD, QUEUED_TIME, STARTED_TIME, FINISHED_TIME)) {
+        return null;
+      }
+      final String buildTypeLocator = locator.lookupSingleDimensionValue(BUILD_TYPE);
+      if (buildTypeLocator == null) return null;
+      return myBuildTypeFinder.getBuildTypes(null, buildTypeLocator).stream().map(SBuildType::getInternalId).collect(Collectors.toSet());
+    } catch (LocatorProcessException | BadRequestException | NotFoundException e) {
+      return null; //the error will be reported when finding the builds
+    }
   }
 
   @NotNull
@@ -293,7 +340,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     final MultiCheckerFilter<BuildPromotion> result = new MultiCheckerFilter<BuildPromotion>();
 
     //checking permissions to view - workaround for TW-45544
-    result.add(item -> {
+    result.addGuard("permissions", item -> {
       try {
         ensureCanView(item);
         return true;
@@ -348,13 +395,13 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     }
     final Long buildId = locator.getSingleDimensionValueAsLong(BUILD_ID);
     if (buildId != null) {
-      result.add(item -> buildId.equals(item.getAssociatedBuildId()));
+      result.add(BUILD_ID, MultiCheckerFilter.COST_CHEAP, item -> buildId.equals(item.getAssociatedBuildId()));
     }
 
     Locator stateLocator = getStateLocator(locator);
 
     if (!isStateIncluded(stateLocator, STATE_QUEUED)) {
-      result.add(new FilterConditionChecker<BuildPromotion>() {
+      result.add(STATE, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<BuildPromotion>() {
         public boolean isIncluded(@NotNull final BuildPromotion item) {
           return item.getQueuedBuild() == null;
         }
@@ -362,7 +409,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     }
 
     if (!isStateIncluded(stateLocator, STATE_RUNNING)) {
-      result.add(new FilterConditionChecker<BuildPromotion>() {
+      result.add(STATE, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<BuildPromotion>() {
         public boolean isIncluded(@NotNull final BuildPromotion item) {
           final SBuild associatedBuild = item.getAssociatedBuild();
           return associatedBuild == null || associatedBuild.isFinished();
@@ -371,7 +418,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     }
 
     if (!isStateIncluded(stateLocator, STATE_FINISHED)) {
-      result.add(new FilterConditionChecker<BuildPromotion>() {
+      result.add(STATE, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<BuildPromotion>() {
         public boolean isIncluded(@NotNull final BuildPromotion item) {
           final SBuild associatedBuild = item.getAssociatedBuild();
           return associatedBuild == null || !associatedBuild.isFinished();
@@ -381,7 +428,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
     final Boolean composite = locator.getSingleDimensionValueAsBoolean(COMPOSITE);
     if (composite != null) {
-      result.add(item -> FilterUtil.isIncludedByBooleanFilter(composite, item.isCompositeBuild()));
+      result.add(COMPOSITE, MultiCheckerFilter.COST_CHEAP, item -> FilterUtil.isIncludedByBooleanFilter(composite, item.isCompositeBuild()));
     }
 
     if (locator.isUnused(PROJECT)) {
@@ -411,7 +458,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
         if (buildTypes.isEmpty()) {
           throw new NotFoundException("No build types found for locator '" + buildTypeLocator + "'");
         }
-        result.add(new FilterConditionChecker<BuildPromotion>() {
+        result.add(BUILD_TYPE, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<BuildPromotion>() {
           public boolean isIncluded(@NotNull final BuildPromotion item) {
             return buildTypes.contains(item.getParentBuildType());
           }  //todo: use build types Filter instead
@@ -462,7 +509,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
     final Boolean branched = locator.getSingleDimensionValueAsBoolean(BRANCHED);
     if (branched != null) {
-      result.add(item -> FilterUtil.isIncludedByBooleanFilter(branched, item.getBranch() != null));
+      result.add(BRANCHED, MultiCheckerFilter.COST_CHEAP, item -> FilterUtil.isIncludedByBooleanFilter(branched, item.getBranch() != null));
     }
 
     if (locator.isUnused(AGENT)) {
@@ -524,12 +571,12 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     final String compatibleAgentLocator = locator.getSingleDimensionValue(COMPATIBLE_AGENT);
     if (compatibleAgentLocator != null) {
       List<SBuildAgent> agents = myAgentFinder.getItems(compatibleAgentLocator).myEntries;
-      result.add(build -> agents.stream().anyMatch(agent -> myAgentFinder.canActuallyRun(agent, build)));
+      result.add(COMPATIBLE_AGENT, MultiCheckerFilter.COST_EXPENSIVE, build -> agents.stream().anyMatch(agent -> myAgentFinder.canActuallyRun(agent, build)));
     }
 
     final Long compatibleAgentsCount = locator.getSingleDimensionValueAsLong(COMPATIBLE_AGENTS_COUNT); //experimental, only for queued builds
     if (compatibleAgentsCount != null) {
-      result.add(new FilterConditionChecker<BuildPromotion>() {
+      result.add(COMPATIBLE_AGENTS_COUNT, MultiCheckerFilter.COST_EXPENSIVE, new FilterConditionChecker<BuildPromotion>() {
         public boolean isIncluded(@NotNull final BuildPromotion item) {
           long count = 0;
           for (SBuildAgent agent : myAgentFinder.getItems(null).myEntries) { //or should process unauthorized as well?
@@ -543,7 +590,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
     final Boolean personal = locator.getSingleDimensionValueAsBoolean(PERSONAL);
     if (personal != null) {
-      result.add(new FilterConditionChecker<BuildPromotion>() {
+      result.add(PERSONAL, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<BuildPromotion>() {
         public boolean isIncluded(@NotNull final BuildPromotion item) {
           return FilterUtil.isIncludedByBooleanFilter(personal, item.isPersonal());
         }
@@ -552,7 +599,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
     final Boolean history = locator.getSingleDimensionValueAsBoolean(HISTORY);
     if (history != null) {
-      result.add(new FilterConditionChecker<BuildPromotion>() {
+      result.add(HISTORY, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<BuildPromotion>() {
         public boolean isIncluded(@NotNull final BuildPromotion item) {
           return FilterUtil.isIncludedByBooleanFilter(history, item.isOutOfChangesSequence());
         }
@@ -584,7 +631,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     final List<String> properties = locator.getDimensionValue(PROPERTY);
     if (!properties.isEmpty()) {
       final Matcher<ParametersProvider> parameterCondition = ParameterCondition.create(properties);
-      result.add(new FilterConditionChecker<BuildPromotion>() {
+      result.add(PROPERTY, MultiCheckerFilter.COST_EXPENSIVE, new FilterConditionChecker<BuildPromotion>() {
         public boolean isIncluded(@NotNull final BuildPromotion item) {
           if (!Build.canViewRuntimeData(myPermissionChecker, item)) return false;
           //does not correspond to Build.getProperties() which includes less parameters
@@ -769,7 +816,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
       final Locator revisionLocator = new Locator(revisionLocatorText, "version", "internalVersion", "vcsRoot", Locator.LOCATOR_SINGLE_VALUE_UNUSED_NAME);
       final String revision = revisionLocator.getSingleValue();
       if (revision != null) {
-        result.add(new FilterConditionChecker<BuildPromotion>() {
+        result.add(REVISION, MultiCheckerFilter.COST_EXPENSIVE, new FilterConditionChecker<BuildPromotion>() {
           public boolean isIncluded(@NotNull final BuildPromotion item) {
             final List<BuildRevision> buildRevisions = item.getRevisions();
             for (BuildRevision rev : buildRevisions) {
@@ -787,7 +834,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
         final ValueCondition internalVersionCondition = ParameterCondition.createValueCondition(revisionLocator.getSingleDimensionValue("internalVersion"));
         revisionLocator.checkLocatorFullyProcessed();
         if (vcsRoot != null || versionCondition != null || internalVersionCondition != null) {
-          result.add(new FilterConditionChecker<BuildPromotion>() {
+          result.add(REVISION, MultiCheckerFilter.COST_EXPENSIVE, new FilterConditionChecker<BuildPromotion>() {
             public boolean isIncluded(@NotNull final BuildPromotion item) {
               final List<BuildRevision> revisions = item.getRevisions();
               for (BuildRevision rev : revisions) {
@@ -821,7 +868,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
     final Boolean canceled = locator.getSingleDimensionValueAsBoolean(CANCELED);
     if (canceled != null) {
-      result.add(new FilterConditionChecker<BuildPromotion>() {
+      result.add(CANCELED, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<BuildPromotion>() {
         public boolean isIncluded(@NotNull final BuildPromotion item) {
           final SBuild build = item.getAssociatedBuild();
           return FilterUtil.isIncludedByBooleanFilter(canceled, build != null && build.getCanceledInfo() != null);
@@ -831,7 +878,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
     final Boolean failedToStart = locator.getSingleDimensionValueAsBoolean(FAILED_TO_START);
     if (failedToStart != null) {
-      result.add(new FilterConditionChecker<BuildPromotion>() {
+      result.add(FAILED_TO_START, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<BuildPromotion>() {
         public boolean isIncluded(@NotNull final BuildPromotion item) {
           final SBuild build = item.getAssociatedBuild();
           return FilterUtil.isIncludedByBooleanFilter(failedToStart, build != null && build.isInternalError());
@@ -839,6 +886,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
       });
     }
 
+    result.reorderable(); //all the conditions are independent
     return getFilterWithProcessingCutOff(result, locator.getSingleDimensionValueAsLong(SINCE_BUILD_ID_LOOK_AHEAD_COUNT), sinceBuildPromotion, sinceBuildId, sinceStartDate);
   }
 
@@ -965,7 +1013,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
     final String buildNumber = locator.getSingleDimensionValue(NUMBER);
     if (buildNumber != null) {
-      result.add(new FilterConditionChecker<SBuild>() {
+      result.add(NUMBER, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<SBuild>() {
         public boolean isIncluded(@NotNull final SBuild item) {
           return buildNumber.equals(item.getBuildNumber());
         }
@@ -974,7 +1022,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
     final String status = locator.getSingleDimensionValue(STATUS);
     if (status != null) {
-      result.add(new FilterConditionChecker<SBuild>() {
+      result.add(STATUS, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<SBuild>() {
         public boolean isIncluded(@NotNull final SBuild item) {
           return status.equalsIgnoreCase(item.getStatusDescriptor().getStatus().getText());
         }
@@ -983,7 +1031,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
     final Boolean pinned = locator.getSingleDimensionValueAsBoolean(PINNED);
     if (pinned != null) {
-      result.add(new FilterConditionChecker<SBuild>() {
+      result.add(PINNED, MultiCheckerFilter.COST_CHEAP, new FilterConditionChecker<SBuild>() {
         public boolean isIncluded(@NotNull final SBuild item) {
           return FilterUtil.isIncludedByBooleanFilter(pinned, item.isPinned());
         }
@@ -1036,7 +1084,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     final List<String> statisticValues = locator.getDimensionValue(STATISTIC_VALUE);
     if (!statisticValues.isEmpty()) {
       final Matcher<ParametersProvider> parameterCondition = ParameterCondition.create(statisticValues);
-      result.add(new FilterConditionChecker<SBuild>() {
+      result.add(STATISTIC_VALUE, MultiCheckerFilter.COST_EXPENSIVE, new FilterConditionChecker<SBuild>() {
         public boolean isIncluded(@NotNull final SBuild item) {
           return parameterCondition.matches(new AbstractMapParametersProvider(Build.getBuildStatisticsValues(item)));
         }
@@ -1060,7 +1108,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     final String test = locator.getSingleDimensionValue(TEST);
     if (test != null) {
       TestFinder testFinder = myServiceLocator.getSingletonService(TestFinder.class);
-      result.add(new FilterConditionChecker<SBuild>() {
+      result.add(TEST, MultiCheckerFilter.COST_EXPENSIVE, new FilterConditionChecker<SBuild>() {
         public boolean isIncluded(@NotNull final SBuild item) {
           String locator = new Locator(test).setDimension(TestFinder.BUILD, getLocator(item.getBuildPromotion())).setDimension(PagerData.COUNT, "1").getStringRepresentation();
           return !testFinder.getItems(locator).myEntries.isEmpty();
@@ -1068,7 +1116,117 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
       });
     }
 
-    return result;
+    return result.reorderable(); //all the conditions are independent
+  }
+
+  private static final Set<RequirementType> PRESENCE_REQUIRING_MATCH_TYPES = new HashSet<>(Arrays.asList(
+    RequirementType.EXISTS, RequirementType.EQUALS, RequirementType.CONTAINS, RequirementType.STARTS_WITH, RequirementType.ENDS_WITH, RequirementType.MATCHES,
+    RequirementType.MORE_THAN, RequirementType.NO_MORE_THAN, RequirementType.LESS_THAN, RequirementType.NO_LESS_THAN));
+
+  /**
+   * Uses {@link FinishedBuildsIndex} to get the finished builds candidates when the locator filters by public tag, pinned state or indexed statistic value.
+   * The dimensions are not marked as used so that the exact conditions are still checked by the filter.
+   * When the locator also has dimensions which are used to narrow the builds history scanned (e.g. build type or agent), the index is only used if
+   * the indexed builds set is smaller than "rest.request.builds.index.maxSizeWithOtherPrefilter" internal property (1000 by default).
+   * @return null if the index is not available or cannot be used for the locator
+   */
+  @Nullable
+  private ItemHolder<BuildPromotion> getIndexedFinishedBuilds(@NotNull final Locator locator) {
+    final FinishedBuildsIndex index = myServiceLocator.findSingletonService(FinishedBuildsIndex.class);
+    if (index == null || !index.isReady()) return null;
+
+    Locator stateLocator = getStateLocator(new Locator(locator)); //using locator copy so that no dimensions are marked as used
+    if (!isStateIncluded(stateLocator, STATE_FINISHED)) return null;
+
+    final List<FinishedBuildsIndex.EntrySet> candidates = new ArrayList<>();
+
+    final List<String> tagLocators = locator.lookupDimensionValue(TAG);
+    if (!tagLocators.isEmpty()) {
+      final TagFinder.FilterOptions filterOptions = TagFinder.getFilterOptions(tagLocators, myServiceLocator);
+      if (filterOptions != null && filterOptions.getTagOwner() == null) {
+        candidates.add(index.getByTag(filterOptions.getTagName()));
+      }
+    }
+
+    if (Boolean.TRUE.equals(locator.lookupSingleDimensionValueAsBoolean(PINNED))) {
+      candidates.add(index.getPinned());
+    }
+
+    for (String statisticValue : locator.lookupDimensionValue(STATISTIC_VALUE)) {
+      final String key = getStatisticKeyRequiredToBePresent(statisticValue);
+      if (key == null) continue;
+      final FinishedBuildsIndex.EntrySet builds = index.getByStatisticKey(key);
+      if (builds != null) candidates.add(builds);
+    }
+
+    if (candidates.isEmpty()) return null;
+
+    candidates.sort(Comparator.comparingInt(FinishedBuildsIndex.EntrySet::size)); //iterating the smallest set, the sizes can be slightly off while the index is updated concurrently
+    final FinishedBuildsIndex.EntrySet smallest = candidates.get(0);
+    if (hasHistoryPrefilter(locator) && smallest.size() > TeamCityProperties.getInteger("rest.request.builds.index.maxSizeWithOtherPrefilter", 1000)) {
+      return null;
+    }
+    final List<FinishedBuildsIndex.EntrySet> others = candidates.subList(1, candidates.size());
+    final Stream<BuildPromotion> finishedBuilds = smallest.stream()
+                                                          .filter(entry -> others.stream().allMatch(set -> set.contains(entry)))
+                                                          .map(entry -> myBuildPromotionManager.findPromotionById(entry.promotionId))
+                                                          .filter(Objects::nonNull);
+
+    // all queued - to be filtered by the filter
+    Stream<BuildPromotion> queuedBuilds =
+      isStateIncluded(stateLocator, STATE_QUEUED) ? myBuildQueue.getItems().stream().map(sQueuedBuild -> sQueuedBuild.getBuildPromotion()) : null;
+
+    // all running - to be filtered by the filter
+    Stream<BuildPromotion> runningBuilds =
+      isStateIncluded(stateLocator, STATE_RUNNING) ? myBuildsManager.getRunningBuilds().stream().map(sQueuedBuild -> sQueuedBuild.getBuildPromotion()) : null;
+
+    return processor -> {
+      if (queuedBuilds != null && !processItems(queuedBuilds, processor)) return;
+      if (runningBuilds != null && !processItems(runningBuilds, processor)) return;
+      processItems(finishedBuilds, processor);
+    };
+  }
+
+  /**
+   * Passes the items to the processor until it returns false, the rest of the stream is not evaluated then
+   * @return false if the processing was stopped by the processor
+   */
+  private static boolean processItems(@NotNull final Stream<BuildPromotion> items, @NotNull final ItemProcessor<BuildPromotion> processor) {
+    final Iterator<BuildPromotion> iterator = items.iterator();
+    while (iterator.hasNext()) {
+      if (!processor.processItem(iterator.next())) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the locator has the dimensions used by {@link #getPrefilteredItems(Locator)} to narrow the finished builds history scanned
+   */
+  private static boolean hasHistoryPrefilter(@NotNull final Locator locator) {
+    for (String dimension : Arrays.asList(BUILD_TYPE, PROJECT, AFFECTED_PROJECT, AGENT, AGENT_NAME, AGENT_TYPE_ID, TEST_OCCURRENCE)) {
+      if (!locator.lookupDimensionValue(dimension).isEmpty()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the statistic value name if the condition can only match builds which have the value, null otherwise
+   */
+  @Nullable
+  private static String getStatisticKeyRequiredToBePresent(@NotNull final String statisticValueLocator) {
+    try {
+      final Locator conditionLocator = new Locator(statisticValueLocator);
+      final String name = conditionLocator.isSingleValue() ? conditionLocator.lookupSingleValue() : conditionLocator.lookupSingleDimensionValue(ParameterCondition.NAME);
+      if (name == null) return null;
+      final String type = conditionLocator.lookupSingleDimensionValue(ParameterCondition.TYPE);
+      if (type != null) {
+        final RequirementType requirementType = RequirementType.findByName(type);
+        if (requirementType == null || !PRESENCE_REQUIRING_MATCH_TYPES.contains(requirementType)) return null;
+      }
+      return ParameterCondition.createValueCondition(name).getConstantValueIfSimpleEqualsCondition();
+    } catch (LocatorProcessException | BadRequestException e) {
+      return null; //the error will be reported by the filter
+    }
   }
 
   @NotNull
@@ -1088,6 +1246,30 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     throw new NotFoundException("No build found by id '" + id + "'.");
   }
 
+  /**
+   * Bulk version of {@link #getBuildPromotionById(Long, BuildPromotionManager, BuildsManager)}: resolves the builds in batches and falls back to
+   * resolving one by one only for the ids which are not build ids of the builds with the same promotion id (e.g. queued builds).
+   * @return map of the build promotions by the passed ids
+   * @throws NotFoundException if any of the builds is not found
+   */
+  @NotNull
+  public Map<Long, BuildPromotion> getBuildPromotionsByIds(@NotNull final Collection<Long> ids) {
+    final Map<Long, SBuild> builds = IdsBatchResolver.forBuilds(myBuildsManager).resolve(ids);
+    final Map<Long, BuildPromotion> result = new HashMap<>();
+    for (Long id : ids) {
+      if (result.containsKey(id)) continue;
+      final SBuild build = builds.get(id);
+      if (build != null && build.getBuildPromotion().getId() == id) {
+        //the same result as getBuildPromotionById would return
+        ensureCanView(build.getBuildPromotion());
+        result.put(id, build.getBuildPromotion());
+      } else {
+        result.put(id, getBuildPromotionById(id, myBuildPromotionManager, myBuildsManager));
+      }
+    }
+    return result;
+  }
+
   public static void ensureCanView(@NotNull final BuildPromotion buildPromotion) {
     //checking permissions to view - workaround for TW-45544
     try {
@@ -1219,11 +1401,22 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
       return new ItemHolder<BuildPromotion>() {
         @Override
         public void process(@NotNull final ItemProcessor<BuildPromotion> processor) {
-          while (metadataEntries.hasNext()) {
-            BuildMetadataEntry metadataEntry = metadataEntries.next();
-            SBuild build = myBuildsManager.findBuildInstanceById(metadataEntry.getBuildId());
-            if (build != null && Build.canViewRuntimeData(myPermissionChecker, build.getBuildPromotion())) {
-              processor.processItem(build.getBuildPromotion());
+          final Iterator<Long> buildIds = new Iterator<Long>() {
+            @Override
+            public boolean hasNext() {
+              return metadataEntries.hasNext();
+            }
+
+            @Override
+            public Long next() {
+              return metadataEntries.next().getBuildId();
+            }
+          };
+          final Iterator<SBuild> builds = IdsBatchResolver.forBuilds(myBuildsManager).resolveLazily(buildIds);
+          while (builds.hasNext()) {
+            final BuildPromotion buildPromotion = builds.next().getBuildPromotion();
+            if (Build.canViewRuntimeData(myPermissionChecker, buildPromotion)) {
+              if (!processor.processItem(buildPromotion)) return;
             }
           }
         }
@@ -1268,6 +1461,11 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
       }
     }
 
+    final ItemHolder<BuildPromotion> indexedBuilds = getIndexedFinishedBuilds(locator);
+    if (indexedBuilds != null) {
+      return indexedBuilds;
+    }
+
     if (TeamCityProperties.getBoolean("rest.request.builds.prefilterByTag")) { //this is temporary logic, can be dropped
       Locator stateLocator = getStateLocator(new Locator(locator)); //using locator copy so that no dimensions are marked as used
       if (isStateIncluded(stateLocator, STATE_FINISHED)) {//no sense in going further here if no finished builds are requested
@@ -1327,8 +1525,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
 
         if (isStateIncluded(stateLocator, STATE_FINISHED)) {
           //todo: optimize for user and canceled
-          Stream<BuildPromotion> finishedBuilds = StreamUtil.merge(
-            agents.stream().map(a -> a.getBuildHistory(null, true).stream().map(b -> b.getBuildPromotion())), BUILD_PROMOTIONS_COMPARATOR);
+          Stream<BuildPromotion> finishedBuilds = new AgentsBuildHistoryMerger(myBuildsManager, agents).stream();
           result = Stream.concat(result, finishedBuilds);
         }
         return FinderDataBinding.getItemHolder(result);
@@ -1355,7 +1552,15 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     Long agentTypeId = locator.getSingleDimensionValueAsLong(AGENT_TYPE_ID);
     Locator stateLocator = getStateLocator(locator);
 
-    if (isStateIncluded(stateLocator, STATE_QUEUED)) {
+    // resuming right after the cursor build: queued builds go first, then running and finished ones
+    final long[] cursorKey = lookupCursorKey(locator);
+    final int cursorStage = cursorKey == null ? BuildsCursor.STAGE_QUEUED - 1 : (int)cursorKey[1];
+    if (cursorKey != null) {
+      locator.markUsed(Collections.singleton(DIMENSION_AFTER));
+      includedPromotionIds.add(cursorKey[0]); //the cursor build could have changed its state since the previous page and should not be returned again
+    }
+
+    if (isStateIncluded(stateLocator, STATE_QUEUED) && cursorStage <= BuildsCursor.STAGE_QUEUED) {
       //todo: should sort backwards as currently the order does not seem right...
       Stream<SQueuedBuild> builds = myBuildQueue.getItems().stream();
       if (buildTypes != null) { //make sure buildTypes retrieved from the locator are used
@@ -1371,15 +1576,29 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
         builds = builds.filter(build -> build.getCanRunOnAgents().stream().anyMatch(a -> a.getName().equals(agentName)));
       }
 
-      builds.map(b -> b.getBuildPromotion()).forEach(p -> {
+      List<BuildPromotion> queued = builds.map(b -> b.getBuildPromotion()).collect(Collectors.toList());
+      if (cursorKey != null) {
+        // resuming after the cursor build if it is still in the queue, otherwise after its position by the queue order
+        int cursorIndex = 0;
+        while (cursorIndex < queued.size() && queued.get(cursorIndex).getId() != cursorKey[0]) cursorIndex++;
+        if (cursorIndex < queued.size()) {
+          queued = queued.subList(cursorIndex + 1, queued.size());
+        } else {
+          queued = queued.stream().filter(p -> BuildsCursor.isQueuedAfter(p, cursorKey)).collect(Collectors.toList());
+        }
+      }
+      queued.forEach(p -> {
         if (includedPromotionIds.add(p.getId())) {
           result.add(p);
         }
       });
     }
 
-    if (isStateIncluded(stateLocator, STATE_RUNNING)) {
+    if (isStateIncluded(stateLocator, STATE_RUNNING) && cursorStage <= BuildsCursor.STAGE_RUNNING) {
       Stream<SRunningBuild> builds = myBuildsManager.getRunningBuilds().stream();
+      if (cursorStage == BuildsCursor.STAGE_RUNNING) {
+        builds = builds.filter(b -> BuildsCursor.isAfter(b, cursorKey));
+      }
       if (buildTypes != null) { //make sure buildTypes retrieved from the locator are used
         builds = builds.filter(b -> buildTypes.contains(b.getBuildPromotion().getParentBuildType()));
       }
@@ -1476,6 +1695,7 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
         public void process(@NotNull final ItemProcessor<BuildPromotion> processor) {
           myBuildsManager.processBuilds(options, new ItemProcessor<SBuild>() {
             public boolean processItem(SBuild item) {
+              if (cursorStage == BuildsCursor.STAGE_FINISHED && !BuildsCursor.isAfter(item, cursorKey)) return true; // skipping without filtering
               if (includedPromotionIds.contains(item.getBuildPromotion().getId())) return true; // ignore already added builds
               return processor.processItem(item.getBuildPromotion());
             }
@@ -1727,6 +1947,60 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
     return buildPromotion.getAssociatedBuildId() != null && buildPromotion.getId() != buildPromotion.getAssociatedBuildId();
   }
 
+  /**
+   * Cursor key is (promotion id, stage, start time, build id). The position of the cursor build is determined by the stage and then
+   * by the start time and the build id in the same way as {@link BuildPromotionComparator} does, so it can be found after the build changed its state.
+   */
+  private static class BuildsCursor extends ItemCursor<BuildPromotion> {
+    static final int STAGE_QUEUED = 0;
+    static final int STAGE_RUNNING = 1;
+    static final int STAGE_FINISHED = 2;
+
+    BuildsCursor() {
+      super("builds", 4);
+    }
+
+    @NotNull
+    @Override
+    public long[] getKey(@NotNull final BuildPromotion item) {
+      final SBuild build = item.getQueuedBuild() != null ? null : item.getAssociatedBuild();
+      if (build == null) {
+        return new long[]{item.getId(), STAGE_QUEUED, -1, -1};
+      }
+      return new long[]{item.getId(), build.isFinished() ? STAGE_FINISHED : STAGE_RUNNING, build.getStartDate().getTime(), build.getBuildId()};
+    }
+
+    @Override
+    public boolean isCursorItem(@NotNull final BuildPromotion item, @NotNull final long[] key) {
+      return item.getId() == key[0];
+    }
+
+    @NotNull
+    @Override
+    public Boolean isAfter(@NotNull final BuildPromotion item, @NotNull final long[] key) {
+      final long[] itemKey = getKey(item);
+      if (itemKey[1] != key[1]) return itemKey[1] > key[1];
+      if (itemKey[1] == STAGE_QUEUED) return isQueuedAfter(item, key);
+      return itemKey[2] < key[2] || (itemKey[2] == key[2] && itemKey[3] < key[3]);
+    }
+
+    /**
+     * @return true if the queued build goes after the queued cursor build which is no longer in the queue.
+     * The builds are added to the queue in the order of their promotion ids, so the builds added after the cursor one have greater ids.
+     */
+    static boolean isQueuedAfter(@NotNull final BuildPromotion queuedBuild, @NotNull final long[] key) {
+      return queuedBuild.getId() > key[0];
+    }
+
+    /**
+     * @return true if the build of the same stage as the cursor build goes after the cursor build
+     */
+    static boolean isAfter(@NotNull final SBuild build, @NotNull final long[] key) {
+      final long startTime = build.getStartDate().getTime();
+      return startTime < key[2] || (startTime == key[2] && build.getBuildId() < key[3]);
+    }
+  }
+
   private static class BuildPromotionComparator implements Comparator<BuildPromotion> {
     private final Map<Long, SBuild> myResolvedBuildsMap;
 
@@ -1793,6 +2067,12 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
   }
 
   private static class SnapshotDepsTraverser implements GraphFinder.Traverser<BuildPromotion> {
+    @NotNull
+    @Override
+    public ToLongFunction<BuildPromotion> getIdFunction() {
+      return BuildPromotion::getId;
+    }
+
     @NotNull
     public GraphFinder.LinkRetriever<BuildPromotion> getChildren() {
       return new GraphFinder.LinkRetriever<BuildPromotion>() {
@@ -1829,6 +2109,12 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
       myBuildPromotionManager = buildPromotionManager;
     }
 
+    @NotNull
+    @Override
+    public ToLongFunction<BuildPromotion> getIdFunction() {
+      return BuildPromotion::getId;
+    }
+
     @NotNull
     public GraphFinder.LinkRetriever<BuildPromotion> getChildren() {
       return item -> getFailedDepsIdsStream(item).map(BuildPromotionFinder::getLong).filter(Objects::nonNull)
@@ -1872,6 +2158,12 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
       }
     }
 
+    @NotNull
+    @Override
+    public ToLongFunction<BuildPromotion> getIdFunction() {
+      return BuildPromotion::getId;
+    }
+
     @NotNull
     public GraphFinder.LinkRetriever<BuildPromotion> getChildren() {
       return new GraphFinder.LinkRetriever<BuildPromotion>() {
@@ -1916,30 +2208,35 @@ public class BuildPromotionFinder extends AbstractFinder<BuildPromotion> {
       super(finder, new BuildPromotionOrderSupportTraverser());
     }
 
+    @NotNull
     @Override
-    protected void collectLinked(@NotNull final Set<BuildPromotion> result,
-                                 @NotNull final Collection<BuildPromotion> toProcess,
-                                 @NotNull final Collection<BuildPromotion> stopItems,
-                                 final Long lookupLimit,
-                                 @NotNull final LinkRetriever<BuildPromotion> linkRetriever,
-                                 final boolean recursive) {
+    protected ItemHolder<BuildPromotion> getLinkedItems(@NotNull final List<BuildPromotion> initialItems,
+                                                        final boolean includeInitial,
+                                                        @NotNull final Collection<BuildPromotion> stopItems,
+                                                        @Nullable final Long lookupLimit,
+                                                        @NotNull final LinkRetriever<BuildPromotion> linkRetriever,
+                                                        final boolean recursive) {
       if (!recursive) {
         throw new BadRequestException("Builds traversal is only supported in 'recursive:true' mode");
       }
 
-      for (BuildPromotion item : toProcess) {
-        if (stopItems.contains(item)) {
-          result.add(item);
-        } else {
-          final List<BuildPromotion> linked = linkRetriever.getLinked(item);
-          for (BuildPromotion promotion : linked) {
-            result.add(promotion);
-            if (stopItems.contains(item)) {
-              break;
+      return processor -> {
+        final GraphFinder.LongHashSet processedIds = new GraphFinder.LongHashSet();
+        if (includeInitial) {
+          for (BuildPromotion item : initialItems) {
+            if (processedIds.add(item.getId()) && !processor.processItem(item)) return;
+          }
+        }
+        for (BuildPromotion item : initialItems) {
+          if (stopItems.contains(item)) {
+            if (processedIds.add(item.getId()) && !processor.processItem(item)) return;
+          } else {
+            for (BuildPromotion promotion : linkRetriever.getLinked(item)) {
+              if (processedIds.add(promotion.getId()) && !processor.processItem(promotion)) return;
             }
           }
         }
-      }
+      };
     }
   }
 
@@ -16,8 +16,11 @@
 
 package jetbrains.buildServer.server.rest.data;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.intellij.openapi.diagnostic.Logger;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.ServiceLocator;
 import jetbrains.buildServer.parameters.impl.MapParametersProviderImpl;
@@ -97,6 +100,7 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
     myAgentFinder = agentFinder;
     myPermissionChecker = permissionChecker;
     myServiceLocator = serviceLocator;
+    setParallelFilteringSupported(myServiceLocator.getSingletonService(SecurityContextEx.class), myServiceLocator.findSingletonService(ParallelFilteringExecutor.class));
   }
 
   @NotNull
@@ -269,9 +273,10 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
             }
           });
         } else {
+          final ItemsSet<SProject> projectsSet = new ItemsSet<>(projects, SProject::getProjectId);
           result.add(new FilterConditionChecker<BuildTypeOrTemplate>() {
             public boolean isIncluded(@NotNull final BuildTypeOrTemplate item) {
-              return projects.contains(item.getProject());
+              return projectsSet.contains(item.getProject());
             }
           });
         }
@@ -314,7 +319,7 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
         public boolean isIncluded(@NotNull final BuildTypeOrTemplate item) {
           if (item.getBuildType() == null) return false;
           for (SBuildAgent agent : agents) {
-            if (AgentFinder.canActuallyRun(agent, item.getBuildType())) return true;
+            if (myAgentFinder.isCompatible(agent, item.getBuildType())) return true;
           }
           return false;
         }
@@ -323,12 +328,16 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
 
     final Long compatibleAgentsCount = locator.getSingleDimensionValueAsLong(COMPATIBLE_AGENTS_COUNT); //experimental
     if (compatibleAgentsCount != null) {
+      //or should process unauthorized as well?
+      final List<SBuildAgent> agents = myAgentFinder.getItems(null).myEntries.stream()
+                                                    .filter(agent -> agent.isRegistered() && agent.isAuthorized() && agent.isEnabled())
+                                                    .collect(Collectors.toList());
       result.add(new FilterConditionChecker<BuildTypeOrTemplate>() {
         public boolean isIncluded(@NotNull final BuildTypeOrTemplate item) {
           if (item.getBuildType() == null) return false;
           long count = 0;
-          for (SBuildAgent agent : myAgentFinder.getItems(null).myEntries) { //or should process unauthorized as well?
-            if (AgentFinder.canActuallyRun(agent, item.getBuildType()) && agent.isRegistered() && agent.isAuthorized() && agent.isEnabled()) count++;
+          for (SBuildAgent agent : agents) {
+            if (myAgentFinder.isCompatible(agent, item.getBuildType())) count++;
             if (count > compatibleAgentsCount) return false;
           }
           return count == compatibleAgentsCount;
@@ -339,14 +348,14 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
     if (locator.isUnused(DIMENSION_SELECTED)) {
       final String selectedByUser = locator.getSingleDimensionValue(DIMENSION_SELECTED);
       if (selectedByUser != null) {
-        List<BuildTypeOrTemplate> filterSet = getSelectedByUser(locator, selectedByUser);
-        result.add(item -> filterSet.contains(item));
+        result.add(new ItemsSet<>(getSelectedByUser(locator, selectedByUser), BuildTypeOrTemplate::getInternalId));
       }
     }
 
     final String parameterDimension = locator.getSingleDimensionValue(PARAMETER);
     if (parameterDimension != null) {
       final ParameterCondition parameterCondition = ParameterCondition.create(parameterDimension);
+      final BuildTypeSettingsCache settingsCache = myServiceLocator.findSingletonService(BuildTypeSettingsCache.class);
       result.add(new FilterConditionChecker<BuildTypeOrTemplate>() {
         public boolean isIncluded(@NotNull final BuildTypeOrTemplate item) {
           final boolean canView = !BuildType.shouldRestrictSettingsViewing(item.get(), myPermissionChecker);
@@ -354,7 +363,9 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
             LOG.debug("While filtering build types by " + PARAMETER + " user does not have enough permissions to see settings. Excluding build type: " + item.describe(false));
             return false;
           }
-          return parameterCondition.matches(item.get());
+          if (settingsCache == null) return parameterCondition.matches(item.get());
+          return parameterCondition.matches(() -> settingsCache.getParameters(item, false, () -> item.get().getParameters()),
+                                            () -> settingsCache.getParameters(item, true, () -> item.get().getOwnParameters()));
         }
       });
     }
@@ -368,8 +379,8 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
           LOG.debug("While filtering build types by " + SETTING + " user does not have enough permissions to see settings. Excluding build type: " + item.describe(false));
           return false;
         }
-        return condition.matches(new MapParametersProviderImpl(BuildTypeUtil.getSettingsParameters(item, null, true, false)),
-                                 new MapParametersProviderImpl(BuildTypeUtil.getSettingsParameters(item, null, true, false)));
+        final MapParametersProviderImpl settings = new MapParametersProviderImpl(BuildTypeUtil.getSettingsParameters(item, null, true, false, myServiceLocator));
+        return condition.matches(settings, settings);
       });
     }
 
@@ -390,51 +401,30 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
 
     final String filterBuilds = locator.getSingleDimensionValue(FILTER_BUILDS); //experimental
     if (filterBuilds != null) {
-      BuildPromotionFinder promotionFinder = myServiceLocator.getSingletonService(BuildPromotionFinder.class);
-      FinderSearchMatcher<BuildPromotion> matcher = new FinderSearchMatcher<>(filterBuilds, promotionFinder);
-      result.add(new FilterConditionChecker<BuildTypeOrTemplate>() {
-        @Override
-        public boolean isIncluded(@NotNull final BuildTypeOrTemplate item) {
-          SBuildType buildType = item.getBuildType();
-          if (buildType == null) return false;
-          String defaults = Locator.getStringLocator(BuildPromotionFinder.BUILD_TYPE, BuildTypeFinder.getLocator(buildType), PagerData.COUNT, "1");
-          return matcher.matches(defaults);
-        }
-      });
+      result.add(getFilterBuildsChecker(filterBuilds));
     }
 
-    final String snapshotDependencies = locator.getSingleDimensionValue(SNAPSHOT_DEPENDENCY);
-    if (snapshotDependencies != null) {
-      final GraphFinder<BuildTypeOrTemplate> graphFinder = new GraphFinder<BuildTypeOrTemplate>(this, new SnapshotDepsTraverser(myPermissionChecker));
-      final List<BuildTypeOrTemplate> boundingList = graphFinder.getItems(snapshotDependencies).myEntries;
-      result.add(new FilterConditionChecker<BuildTypeOrTemplate>() {
-        public boolean isIncluded(@NotNull final BuildTypeOrTemplate item) {
-          return boundingList.contains(item);
-        }
-      });
+    if (locator.isUnused(SNAPSHOT_DEPENDENCY)) { //performance optimization: do not filter if already processed
+      final String snapshotDependencies = locator.getSingleDimensionValue(SNAPSHOT_DEPENDENCY);
+      if (snapshotDependencies != null) {
+        final GraphFinder<BuildTypeOrTemplate> graphFinder = new GraphFinder<BuildTypeOrTemplate>(this, new SnapshotDepsTraverser(myPermissionChecker));
+        result.add(graphFinder.getItemsSet(snapshotDependencies, BuildTypeOrTemplate::getInternalId));
+      }
     }
 
-    final String artifactDependencies = locator.getSingleDimensionValue(ARTIFACT_DEPENDENCY);
-    if (artifactDependencies != null) {
-      final GraphFinder<BuildTypeOrTemplate> graphFinder = new GraphFinder<BuildTypeOrTemplate>(this, new ArtifactDepsTraverser(myPermissionChecker));
-      final List<BuildTypeOrTemplate> boundingList = graphFinder.getItems(artifactDependencies).myEntries;
-      result.add(new FilterConditionChecker<BuildTypeOrTemplate>() {
-        public boolean isIncluded(@NotNull final BuildTypeOrTemplate item) {
-          return boundingList.contains(item);
-        }
-      });
+    if (locator.isUnused(ARTIFACT_DEPENDENCY)) { //performance optimization: do not filter if already processed
+      final String artifactDependencies = locator.getSingleDimensionValue(ARTIFACT_DEPENDENCY);
+      if (artifactDependencies != null) {
+        final GraphFinder<BuildTypeOrTemplate> graphFinder = new GraphFinder<BuildTypeOrTemplate>(this, new ArtifactDepsTraverser(myPermissionChecker));
+        result.add(graphFinder.getItemsSet(artifactDependencies, BuildTypeOrTemplate::getInternalId));
+      }
     }
 
     final String templateLocator = locator.getSingleDimensionValue(TEMPLATE_DIMENSION_NAME);
     if (templateLocator != null) {
       try {
         final BuildTypeTemplate buildTemplate = getBuildTemplate(null, templateLocator, true); //only this can throw exceptions caught later
-        final List<BuildTypeOrTemplate> boundingList = BuildTypes.fromBuildTypes(buildTemplate.getUsages());
-        result.add(new FilterConditionChecker<BuildTypeOrTemplate>() {
-          public boolean isIncluded(@NotNull final BuildTypeOrTemplate item) {
-            return boundingList.contains(item);
-          }
-        });
+        result.add(new ItemsSet<>(BuildTypes.fromBuildTypes(buildTemplate.getUsages()), BuildTypeOrTemplate::getInternalId));
       } catch (NotFoundException e) {
         //legacy support for boolean template
         Boolean legacyTemplateFlag = null;
@@ -492,13 +482,92 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
     return result;
   }
 
+  @NotNull
+  private FilterConditionChecker<BuildTypeOrTemplate> getFilterBuildsChecker(@NotNull final String filterBuilds) {
+    final BuildPromotionFinder promotionFinder = myServiceLocator.getSingletonService(BuildPromotionFinder.class);
+    final FinderSearchMatcher<BuildPromotion> matcher = new FinderSearchMatcher<>(filterBuilds, promotionFinder);
+
+    //"does any build found by the search exist" can be answered for all the build types by a single search without the build type, so after several
+    // build types are checked one by one, the builds found by the search are scanned once (up to the limit) and the build types met are remembered
+    final Supplier<FoundBuildTypes> batchResult;
+    if (matcher.getMatch() == null && isBatchableBuildsSearch(matcher.getSearch())) {
+      batchResult = Suppliers.memoize(() -> findBuildTypesWithBuilds(promotionFinder, matcher.getSearch()));
+    } else {
+      batchResult = null;
+    }
+    final int batchThreshold = TeamCityProperties.getInteger("rest.request.buildTypes.filterByBuilds.batchThreshold", 20);
+    final AtomicInteger checkedCount = new AtomicInteger();
+
+    return new FilterConditionChecker<BuildTypeOrTemplate>() {
+      @Override
+      public boolean isIncluded(@NotNull final BuildTypeOrTemplate item) {
+        SBuildType buildType = item.getBuildType();
+        if (buildType == null) return false;
+        if (batchResult != null && checkedCount.incrementAndGet() > batchThreshold) {
+          final FoundBuildTypes found = batchResult.get();
+          if (found.myBuildTypeIds.contains(buildType.getInternalId())) return true;
+          if (found.myComplete) return false;
+        }
+        String defaults = Locator.getStringLocator(BuildPromotionFinder.BUILD_TYPE, BuildTypeFinder.getLocator(buildType), PagerData.COUNT, "1");
+        return matcher.matches(defaults);
+      }
+    };
+  }
+
+  /**
+   * @return true if the builds found by the search locator with a build type added are the builds of the build type found by the search locator
+   */
+  private static boolean isBatchableBuildsSearch(@NotNull final String search) {
+    final Locator searchLocator = new Locator(search);
+    if (searchLocator.isSingleValue()) return false;
+    if (searchLocator.isAnyPresent(BuildPromotionFinder.BUILD_TYPE, PagerData.START, DIMENSION_LOOKUP_LIMIT, DIMENSION_ITEM, LOGIC_OP_OR, LOGIC_OP_AND, LOGIC_OP_NOT,
+                                   DIMENSION_ID, BuildPromotionFinder.PROMOTION_ID, BuildPromotionFinder.PROMOTION_ID_ALIAS, BuildPromotionFinder.BUILD_ID)) {
+      return false;
+    }
+    final String count = searchLocator.getSingleDimensionValue(PagerData.COUNT);
+    return count == null || !count.trim().startsWith("-") && !count.trim().equals("0");
+  }
+
+  @NotNull
+  private static FoundBuildTypes findBuildTypesWithBuilds(@NotNull final BuildPromotionFinder promotionFinder, @NotNull final String search) {
+    final long limit = TeamCityProperties.getLong("rest.request.buildTypes.filterByBuilds.batchLookupLimit", 100000);
+    final String scanLocator = new Locator(search).setDimension(PagerData.COUNT, String.valueOf(limit))
+                                                  .setDimension(DIMENSION_LOOKUP_LIMIT, String.valueOf(limit)).getStringRepresentation();
+    final Set<String> buildTypeIds = new HashSet<>();
+    final PagedSearchResult<BuildPromotion> result = promotionFinder.processItems(scanLocator, buildPromotion -> {
+      final SBuildType buildType = buildPromotion.getBuildType();
+      if (buildType != null) buildTypeIds.add(buildType.getInternalId());
+      return true;
+    });
+    return new FoundBuildTypes(buildTypeIds, !result.myLookupLimitReached && result.myActualCount < limit);
+  }
+
+  private static class FoundBuildTypes {
+    @NotNull private final Set<String> myBuildTypeIds;
+    private final boolean myComplete;
+
+    /**
+     * @param complete true if all the builds were scanned, false if the scan was stopped by the limit
+     */
+    FoundBuildTypes(@NotNull final Set<String> buildTypeIds, final boolean complete) {
+      myBuildTypeIds = buildTypeIds;
+      myComplete = complete;
+    }
+  }
+
   @NotNull
   @Override
   public ItemHolder<BuildTypeOrTemplate> getPrefilteredItems(@NotNull final Locator locator) {
     //this should be the first one as the order returned here is important!
+    final ItemsSet<BuildTypeOrTemplate> dependencies = getDependenciesItemsSet(locator);
     final String selectedForUser = locator.getSingleDimensionValue(DIMENSION_SELECTED);
     if (selectedForUser != null) {
-      return getItemHolder(getSelectedByUser(locator, selectedForUser));
+      final List<BuildTypeOrTemplate> selected = getSelectedByUser(locator, selectedForUser);
+      return getItemHolder(dependencies == null ? selected : dependencies.filter(selected));
+    }
+
+    if (dependencies != null) {
+      return getItemHolder(dependencies.getItems());
     }
 
     /*
@@ -512,18 +581,6 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
     }
     */
 
-    final String snapshotDependencies = locator.getSingleDimensionValue(SNAPSHOT_DEPENDENCY);
-    if (snapshotDependencies != null) {
-      final GraphFinder<BuildTypeOrTemplate> graphFinder = new GraphFinder<BuildTypeOrTemplate>(this, new SnapshotDepsTraverser(myPermissionChecker));
-      return getItemHolder(graphFinder.getItems(snapshotDependencies).myEntries);
-    }
-
-    final String artifactDependencies = locator.getSingleDimensionValue(ARTIFACT_DEPENDENCY);
-    if (artifactDependencies != null) {
-      final GraphFinder<BuildTypeOrTemplate> graphFinder = new GraphFinder<BuildTypeOrTemplate>(this, new ArtifactDepsTraverser(myPermissionChecker));
-      return getItemHolder(graphFinder.getItems(artifactDependencies).myEntries);
-    }
-
     final String vcsRoot = locator.getSingleDimensionValue(VCS_ROOT_DIMENSION);
     if (vcsRoot != null) {
       final Set<SVcsRoot> vcsRoots = new HashSet<SVcsRoot>(myServiceLocator.getSingletonService(VcsRootFinder.class).getItems(vcsRoot).myEntries);
@@ -600,6 +657,29 @@ public class BuildTypeFinder extends AbstractFinder<BuildTypeOrTemplate> {
     return getItemHolder(result);
   }
 
+  /**
+   * Finds the build types by the nested "snapshotDependency" and "artifactDependency" locators, so that the found build types are used as the prefiltered items
+   * instead of filtering all the build types by the sets.
+   * @return the build types found by both the dimensions (in the order of snapshot dependencies) or null if there are no such dimensions
+   */
+  @Nullable
+  private ItemsSet<BuildTypeOrTemplate> getDependenciesItemsSet(@NotNull final Locator locator) {
+    ItemsSet<BuildTypeOrTemplate> result = null;
+    final String snapshotDependencies = locator.getSingleDimensionValue(SNAPSHOT_DEPENDENCY);
+    if (snapshotDependencies != null) {
+      final GraphFinder<BuildTypeOrTemplate> graphFinder = new GraphFinder<BuildTypeOrTemplate>(this, new SnapshotDepsTraverser(myPermissionChecker));
+      result = graphFinder.getItemsSet(snapshotDependencies, BuildTypeOrTemplate::getInternalId);
+    }
+
+    final String artifactDependencies = locator.getSingleDimensionValue(ARTIFACT_DEPENDENCY);
+    if (artifactDependencies != null) {
+      final GraphFinder<BuildTypeOrTemplate> graphFinder = new GraphFinder<BuildTypeOrTemplate>(this, new ArtifactDepsTraverser(myPermissionChecker));
+      final ItemsSet<BuildTypeOrTemplate> artifactDependenciesSet = graphFinder.getItemsSet(artifactDependencies, BuildTypeOrTemplate::getInternalId);
+      result = result == null ? artifactDependenciesSet : new ItemsSet<>(artifactDependenciesSet.filter(result.getItems()), BuildTypeOrTemplate::getInternalId);
+    }
+    return result;
+  }
+
   @NotNull
   private List<BuildTypeOrTemplate> getSelectedByUser(final @NotNull Locator locator, @NotNull final String selectedForUserLocator) {
     Locator selectedByUserLocator = new Locator(selectedForUserLocator, "user", "mode");
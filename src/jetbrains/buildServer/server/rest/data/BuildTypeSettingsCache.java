@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import jetbrains.buildServer.server.rest.util.BuildTypeOrTemplate;
+import jetbrains.buildServer.serverSide.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Caches the snapshots of build types and templates settings (see BuildTypeUtil.getSettingsParameters) and parameters which do not change until the configuration is changed.
+ * Each snapshot remembers the configuration modification stamps it was calculated for: the global stamp is increased on the project and template changes
+ * which can affect the settings and parameters of any build type, the build type stamp is increased (and the snapshots of the build type are dropped) on its own changes.
+ * A snapshot calculated while any of the stamps changed is not stored.
+ * The snapshots also expire after "rest.request.buildTypes.settingsCache.ttlSeconds" internal property (60 by default) in case the settings are changed without
+ * persisting. "rest.request.buildTypes.settingsCache.maxSize" internal property limits the number of the snapshots, 0 disables the cache.
+ */
+public class BuildTypeSettingsCache extends BuildServerAdapter {
+  public static final String MAX_SIZE_PROPERTY = "rest.request.buildTypes.settingsCache.maxSize";
+
+  @NotNull private final AtomicLong myConfigurationStamp = new AtomicLong();
+  @NotNull private final ConcurrentHashMap<String, AtomicLong> myBuildTypeStamps = new ConcurrentHashMap<>();
+  @NotNull private final Cache<String, Snapshot> mySnapshots =
+    CacheBuilder.newBuilder()
+                .maximumSize(Math.max(0, TeamCityProperties.getInteger(MAX_SIZE_PROPERTY, 10000)))
+                .expireAfterWrite(TeamCityProperties.getInteger("rest.request.buildTypes.settingsCache.ttlSeconds", 60), TimeUnit.SECONDS)
+                .build();
+
+  public BuildTypeSettingsCache(@NotNull final SBuildServer server) {
+    server.addListener(this);
+  }
+
+  /**
+   * @param own        the same as "own" settings locator dimension
+   * @param defaults   the same as "defaults" settings locator dimension
+   * @param calculator calculates the settings if there is no actual snapshot
+   * @return unmodifiable settings map
+   */
+  @NotNull
+  public Map<String, String> getSettings(@NotNull final BuildTypeOrTemplate buildType,
+                                         @Nullable final Boolean own,
+                                         @Nullable final Boolean defaults,
+                                         @NotNull final Supplier<Map<String, String>> calculator) {
+    return getSnapshot(buildType, "settings|" + own + "|" + defaults, calculator);
+  }
+
+  /**
+   * @param own        true for the own (not inherited) parameters, false for all the parameters
+   * @param calculator calculates the parameters if there is no actual snapshot
+   * @return unmodifiable parameters map
+   */
+  @NotNull
+  public Map<String, String> getParameters(@NotNull final BuildTypeOrTemplate buildType, final boolean own, @NotNull final Supplier<Map<String, String>> calculator) {
+    return getSnapshot(buildType, "parameters|" + own, calculator);
+  }
+
+  @NotNull
+  private Map<String, String> getSnapshot(@NotNull final BuildTypeOrTemplate buildType, @NotNull final String kind, @NotNull final Supplier<Map<String, String>> calculator) {
+    if (TeamCityProperties.getInteger(MAX_SIZE_PROPERTY, 10000) <= 0) {
+      return calculator.get();
+    }
+    final String internalId = buildType.getInternalId();
+    final String key = getKeyPrefix(internalId) + kind;
+    //read before calculating so that the changes made meanwhile are not missed
+    final long stamp = myConfigurationStamp.get();
+    final long buildTypeStamp = getBuildTypeStamp(internalId);
+    final Snapshot cached = mySnapshots.getIfPresent(key);
+    if (cached != null && cached.myStamp == stamp && cached.myBuildTypeStamp == buildTypeStamp) return cached.myValues;
+
+    final Map<String, String> result = Collections.unmodifiableMap(new HashMap<>(calculator.get()));
+    if (stamp == myConfigurationStamp.get() && buildTypeStamp == getBuildTypeStamp(internalId)) {
+      mySnapshots.put(key, new Snapshot(stamp, buildTypeStamp, result));
+    }
+    return result;
+  }
+
+  private long getBuildTypeStamp(@NotNull final String internalId) {
+    final AtomicLong result = myBuildTypeStamps.get(internalId);
+    return result == null ? 0 : result.get();
+  }
+
+  private void resetBuildType(@NotNull final String internalId) {
+    myBuildTypeStamps.computeIfAbsent(internalId, id -> new AtomicLong()).incrementAndGet();
+    final String prefix = getKeyPrefix(internalId);
+    mySnapshots.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  private void resetAll() {
+    myConfigurationStamp.incrementAndGet();
+  }
+
+  @NotNull
+  private static String getKeyPrefix(@NotNull final String internalId) {
+    return internalId + "|";
+  }
+
+  @Override
+  public void buildTypePersisted(@NotNull final SBuildType buildType) {
+    resetBuildType(buildType.getInternalId());
+  }
+
+  @Override
+  public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+    resetBuildType(buildType.getInternalId());
+  }
+
+  @Override
+  public void buildTypeTemplatePersisted(@NotNull final BuildTypeTemplate buildTemplate) {
+    //template settings are inherited by the build types
+    resetAll();
+  }
+
+  @Override
+  public void projectPersisted(@NotNull final String projectId) {
+    resetAll();
+  }
+
+  @Override
+  public void serverConfigurationReloaded() {
+    resetAll();
+  }
+
+  private static class Snapshot {
+    private final long myStamp;
+    private final long myBuildTypeStamp;
+    @NotNull private final Map<String, String> myValues;
+
+    Snapshot(final long stamp, final long buildTypeStamp, @NotNull final Map<String, String> values) {
+      myStamp = stamp;
+      myBuildTypeStamp = buildTypeStamp;
+      myValues = values;
+    }
+  }
+}
@@ -18,9 +18,11 @@ package jetbrains.buildServer.server.rest.data;
 
 import java.util.*;
 import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import jetbrains.buildServer.ServiceLocator;
+import jetbrains.buildServer.server.rest.data.change.VcsRootChangesSource;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
 import jetbrains.buildServer.server.rest.errors.LocatorProcessException;
 import jetbrains.buildServer.server.rest.errors.NotFoundException;
@@ -30,8 +32,6 @@ import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.impl.RemoteBuildType;
 import jetbrains.buildServer.serverSide.userChanges.UserChangesFacade;
 import jetbrains.buildServer.users.SUser;
-import jetbrains.buildServer.util.CollectionsUtil;
-import jetbrains.buildServer.util.Converter;
 import jetbrains.buildServer.util.ItemProcessor;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.graph.BFSVisitorAdapter;
@@ -83,6 +83,7 @@ public class ChangeFinder extends AbstractFinder<SVcsModification> {
   @NotNull private final VcsModificationHistory myVcsModificationHistory;
   @NotNull private final ServiceLocator myServiceLocator;
   @NotNull private final BranchFinder myBranchFinder;
+  @NotNull private final VcsRootChangesSource myVcsRootChangesSource;
 
   public ChangeFinder(@NotNull final ProjectFinder projectFinder,
                       @NotNull final BuildFinder buildFinder,
@@ -112,6 +113,22 @@ public class ChangeFinder extends AbstractFinder<SVcsModification> {
     myVcsModificationHistory = vcsModificationHistory;
     myServiceLocator = serviceLocator;
     myBranchFinder = branchFinder;
+    myVcsRootChangesSource = new VcsRootChangesSource(vcsModificationHistory);
+    setCursorSupport(new ItemCursor<SVcsModification>("changes", 2) {
+      @NotNull
+      @Override
+      public long[] getKey(@NotNull final SVcsModification item) {
+        return new long[]{item.getId(), item.isPersonal() ? 1 : 0};
+      }
+
+      @Nullable
+      @Override
+      public Boolean isAfter(@NotNull final SVcsModification item, @NotNull final long[] key) {
+        //the changes go from the most recent, personal changes ids are from a different sequence
+        if (item.isPersonal() || key[1] != 0) return null;
+        return item.getId() < key[0];
+      }
+    });
   }
 
   @Nullable
@@ -261,12 +278,7 @@ public class ChangeFinder extends AbstractFinder<SVcsModification> {
     if (locator.getUnusedDimensions().contains(BUILD)) {
       final String buildLocator = locator.getSingleDimensionValue(BUILD);
       if (buildLocator != null) {
-        final Set<Long> buildChanges = getBuildChanges(myBuildFinder.getBuildPromotion(null, buildLocator), locator).map(change -> change.getId()).collect(Collectors.toSet());
-        result.add(new FilterConditionChecker<SVcsModification>() {
-          public boolean isIncluded(@NotNull final SVcsModification item) {
-            return buildChanges.contains(item.getId());
-          }
-        });
+        result.add(ItemsSet.byId(getBuildChanges(myBuildFinder.getBuildPromotion(null, buildLocator), locator).collect(Collectors.toList()), ChangeFinder::getUniqueId));
       }
     }
 
@@ -274,14 +286,10 @@ public class ChangeFinder extends AbstractFinder<SVcsModification> {
     if (locator.getUnusedDimensions().contains(PROMOTION)) {
       final Long promotionLocator = locator.getSingleDimensionValueAsLong(PROMOTION);
       if (promotionLocator != null) {
-        @SuppressWarnings("ConstantConditions") final Set<Long> buildChanges =
+        @SuppressWarnings("ConstantConditions") final List<SVcsModification> buildChanges =
           getBuildChanges(BuildFinder.getBuildPromotion(promotionLocator, myServiceLocator.findSingletonService(BuildPromotionManager.class)), null)
-            .map(change -> change.getId()).collect(Collectors.toSet());
-        result.add(new FilterConditionChecker<SVcsModification>() {
-          public boolean isIncluded(@NotNull final SVcsModification item) {
-            return buildChanges.contains(item.getId());
-          }
-        });
+            .collect(Collectors.toList());
+        result.add(ItemsSet.byId(buildChanges, ChangeFinder::getUniqueId));
       }
     }
 
@@ -481,6 +489,7 @@ public class ChangeFinder extends AbstractFinder<SVcsModification> {
 
     final String graphLocator = locator.getSingleDimensionValue(DAG_TRAVERSE);
     if (graphLocator != null) {
+      final IdsBatchResolver<SVcsModification> changesResolver = IdsBatchResolver.forChanges(myVcsManager);
       final GraphFinder<SVcsModification> graphFinder = new GraphFinder<SVcsModification>(this, new GraphFinder.Traverser<SVcsModification>() {
         @NotNull
         @Override
@@ -502,10 +511,16 @@ public class ChangeFinder extends AbstractFinder<SVcsModification> {
             @Override
             public List<SVcsModification> getLinked(@NotNull final SVcsModification item) {
               final List<Long> resultIds = ((VcsRootInstanceEx)item.getVcsRoot()).getDag().getChildren(item.getId());
-              return getModificationsByIds(resultIds, myVcsManager);
+              return changesResolver.getAll(resultIds);
             }
           };
         }
+
+        @NotNull
+        @Override
+        public ToLongFunction<SVcsModification> getIdFunction() {
+          return ChangeFinder::getUniqueId;
+        }
       });
       graphFinder.setDefaultLookupLimit(1000L);
       return getItemHolder(graphFinder.getItems(graphLocator).myEntries);
@@ -526,12 +541,7 @@ public class ChangeFinder extends AbstractFinder<SVcsModification> {
     final String vcsRootInstanceLocator = locator.getSingleDimensionValue(VCS_ROOT_INSTANCE);
     if (vcsRootInstanceLocator != null) {
       final VcsRootInstance vcsRootInstance = myVcsRootInstanceFinder.getItem(vcsRootInstanceLocator);
-      if (sinceChangeId != null) {
-        return getItemHolder(myVcsModificationHistory.getModificationsInRange(vcsRootInstance, sinceChangeId, null)); //todo: use lookupLimit here or otherwise limit processing
-      } else {
-        //todo: highly inefficient!
-        return getItemHolder(myVcsModificationHistory.getAllModifications(vcsRootInstance));
-      }
+      return myVcsRootChangesSource.getChanges(vcsRootInstance, sinceChangeId);
     }
 
     SBuildType buildType = null;
@@ -591,15 +601,6 @@ public class ChangeFinder extends AbstractFinder<SVcsModification> {
     return null;
   }
 
-  private static List<SVcsModification> getModificationsByIds(final List<Long> ids, final VcsManager vcsManager) {
-    return CollectionsUtil.convertAndFilterNulls(ids, new Converter<SVcsModification, Long>() {
-      @Override
-      public SVcsModification createFrom(@NotNull final Long source) {
-        return vcsManager.findModificationById(source, false);
-      }
-    });
-  }
-
   @NotNull
   private Stream<SVcsModification> getPendingChanges(@Nullable final SBuildType buildType, @NotNull final Locator locator) {
     if (buildType == null) {
@@ -681,6 +682,15 @@ public class ChangeFinder extends AbstractFinder<SVcsModification> {
     return cd -> FilterUtil.isIncludedByBooleanFilter(changesFromSettings, "true".equals(cd.getAssociatedData().get(ChangeDescriptorConstants.SETTINGS_ROOT_CHANGE)));
   }
 
+  /**
+   * Personal changes have ids of their own sequence, so the same id can belong to a personal and a non-personal change.
+   * Personal changes get negative ids here so that they are never taken for the non-personal ones, e.g. while traversing the changes DAG
+   * which is not expected to contain personal changes.
+   */
+  static long getUniqueId(@NotNull final SVcsModification change) {
+    return change.isPersonal() ? ~change.getId() : change.getId();
+  }
+
   private Stream<SVcsModification> getBuildChanges(@NotNull final BuildPromotion buildPromotion, @Nullable final Locator locator) {
     //todo: use fillDetectedChanges instead
     Predicate<ChangeDescriptor> changeDescriptorFilter = getChangeDescriptorFilter(locator); //getting this before filtering is important: othrwise it can never be called and dimension reported as ignored
@@ -18,6 +18,7 @@ package jetbrains.buildServer.server.rest.data;
 
 import java.util.ArrayList;
 import jetbrains.buildServer.util.ItemProcessor;
+import org.jetbrains.annotations.Nullable;
 
 /**
 * @author Yegor.Yarko
@@ -28,9 +29,20 @@ public class FilterItemProcessor<T> implements ItemProcessor<T> {
   private long myTotalItemsProcessed = 0;
   private final PagingItemFilter<T> myFilter;
   private final ArrayList<T> myList = new ArrayList<T>();
+  @Nullable private final ItemProcessor<T> myMatchedItemsProcessor;
+  private int myResultCount = 0;
 
   public FilterItemProcessor(final PagingItemFilter<T> filter) {
+    this(filter, null);
+  }
+
+  /**
+   * @param matchedItemsProcessor if not null, the items within the requested page are passed to it instead of collecting them into {@link #getResult()}.
+   *                              The processing stops if it returns false.
+   */
+  public FilterItemProcessor(final PagingItemFilter<T> filter, @Nullable final ItemProcessor<T> matchedItemsProcessor) {
     myFilter = filter;
+    myMatchedItemsProcessor = matchedItemsProcessor;
   }
 
   public boolean processItem(final T item) {
@@ -46,15 +58,58 @@ public class FilterItemProcessor<T> implements ItemProcessor<T> {
       return true;
     }
     if (myFilter.isIncludedByRange(myCurrentIndex++)) {
-      myList.add(item);
+      return addToResult(item);
+    }
+    return true;
+  }
+
+  /**
+   * Same as {@link #processItem(Object)}, but uses already calculated results of the filter for the item.
+   * Is used when the filter is evaluated for several items at once, e.g. in parallel.
+   */
+  boolean processItem(final T item, final boolean shouldStop, final boolean included) {
+    final boolean withinRange = myFilter.isBelowUpperRangeLimit(myCurrentIndex, myTotalItemsProcessed++);
+    if (!withinRange){
+      return false;
+    }
+
+    if (shouldStop){
+      return false;
+    }
+    myFilter.setLastProcessedItem(item);
+    if (!included) {
+      return true;
+    }
+    if (myFilter.isIncludedByRange(myCurrentIndex++)) {
+      return addToResult(item);
+    }
+    return true;
+  }
+
+  private boolean addToResult(final T item) {
+    myResultCount++;
+    if (myMatchedItemsProcessor != null) {
+      return myMatchedItemsProcessor.processItem(item);
     }
+    myList.add(item);
     return true;
   }
 
+  PagingItemFilter<T> getFilter() {
+    return myFilter;
+  }
+
   public ArrayList<T> getResult() {
     return myList;
   }
 
+  /**
+   * @return number of the items within the requested page, the same as size of {@link #getResult()} if no matchedItemsProcessor is used
+   */
+  public int getResultCount() {
+    return myResultCount;
+  }
+
   public long getProcessedItemsCount() {
     return myCurrentIndex;
   }
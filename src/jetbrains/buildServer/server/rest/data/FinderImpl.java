@@ -18,14 +18,19 @@ package jetbrains.buildServer.server.rest.data;
 
 import com.intellij.openapi.diagnostic.Logger;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
 import jetbrains.buildServer.server.rest.errors.LocatorProcessException;
 import jetbrains.buildServer.server.rest.errors.NotFoundException;
 import jetbrains.buildServer.server.rest.errors.OperationException;
 import jetbrains.buildServer.server.rest.model.PagerData;
+import jetbrains.buildServer.serverSide.SecurityContextEx;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
 import jetbrains.buildServer.serverSide.impl.LogUtil;
 import jetbrains.buildServer.util.ItemProcessor;
 import jetbrains.buildServer.util.NamedThreadFactory;
@@ -44,6 +49,10 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
 
   public static final String DIMENSION_ID = "id";
   public static final String DIMENSION_LOOKUP_LIMIT = "lookupLimit";
+  /**
+   * Experimental. Cursor for keyset pagination, see {@link ItemCursor}. Is supported only by the finders which enabled it via {@link #setCursorSupport(ItemCursor)}.
+   */
+  public static final String DIMENSION_AFTER = "after";
 
   public static final String LOGIC_OP_OR = "or";
   public static final String LOGIC_OP_AND = "and";
@@ -51,14 +60,27 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
   public static final String DIMENSION_ITEM = "item";
   public static final String DIMENSION_UNIQUE = "unique";
   protected static final String OPTIONS_REPORT_ERROR_ON_NOTHING_FOUND = "$reportErrorOnNothingFound";
+  /**
+   * Experimental. When set to "true", the items are checked by the filter in parallel, see ParallelFilterItemProcessor.
+   * Is supported only by the finders which enabled it via {@link #setParallelFilteringSupported(SecurityContextEx, ParallelFilteringExecutor)}.
+   */
+  protected static final String OPTIONS_PARALLEL = "$parallel";
+  public static final String PARALLEL_FILTERING_DEFAULT_PROPERTY = "rest.finder.parallelFiltering.default";
+  /**
+   * Experimental. When set to "true", the details on the processing of the locator (including the nested finders invocations) are collected, see {@link FinderProfile}.
+   */
+  public static final String OPTIONS_PROFILE = "$profile";
 
   protected static final String CONTEXT_ITEM_DIMENSION_NAME = "$contextItem";
 
   public static final Long NO_COUNT = -1L;
   @Nullable protected String myName;
 
-  //todo: add set-filtering (filter by collection of items in prefiltering and in filter), e.g. see handling of ProjectFinder.DIMENSION_PROJECT
   private FinderDataBinding<ITEM> myDataBinding;
+  @Nullable private SecurityContextEx mySecurityContext;
+  @Nullable private ParallelFilteringExecutor myParallelFilteringExecutor;
+  @Nullable private FinderResultCache<ITEM> myResultCache;
+  @Nullable private ItemCursor<ITEM> myCursor;
 
   public FinderImpl(@NotNull final FinderDataBinding<ITEM> dataBinding) {
     myDataBinding = dataBinding;
@@ -77,6 +99,46 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
     myName = finderName;
   }
 
+  /**
+   * Enables support for {@link #OPTIONS_PARALLEL} locator option. Should be called only for finders whose filters can be invoked from several threads at once.
+   * @param securityContext is used to check the filters on other threads with the permissions of the current user
+   * @param executor        provides the threads to check the filters on, the items are processed sequentially if it is null
+   */
+  protected void setParallelFilteringSupported(@NotNull final SecurityContextEx securityContext, @Nullable final ParallelFilteringExecutor executor) {
+    mySecurityContext = securityContext;
+    myParallelFilteringExecutor = executor;
+  }
+
+  /**
+   * Enables caching of {@link #getItems(String)} results, see {@link FinderResultCache}
+   */
+  protected void setResultCache(@Nullable final FinderResultCache<ITEM> resultCache) {
+    myResultCache = resultCache;
+  }
+
+  @Nullable
+  public FinderResultCache<ITEM> getResultCache() {
+    return myResultCache;
+  }
+
+  /**
+   * Enables support for {@link #DIMENSION_AFTER} locator dimension and cursor-based "nextHref" in the responses
+   */
+  protected void setCursorSupport(@NotNull final ItemCursor<ITEM> cursor) {
+    myCursor = cursor;
+  }
+
+  /**
+   * Can be used by the finder to resume the prefiltered items sequence right after the cursor item. Does not mark the dimension as used.
+   * @return key of the item referenced by {@link #DIMENSION_AFTER} dimension or null if the dimension is not specified
+   */
+  @Nullable
+  protected long[] lookupCursorKey(@NotNull final Locator locator) {
+    if (myCursor == null) return null;
+    final String cursor = locator.lookupSingleDimensionValue(DIMENSION_AFTER);
+    return cursor == null ? null : myCursor.parseCursor(cursor);
+  }
+
   @NotNull
   @Override
   public String getName() {
@@ -103,8 +165,43 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
   @Override
   @NotNull
   public PagedSearchResult<ITEM> getItems(@Nullable final String locatorText) {
-    return NamedThreadFactory.executeWithNewThreadNameFuncThrow("Using " + getName() + " to get items for locator \"" + locatorText + "\"",
-                                                                () -> getItemsByLocator(getLocatorOrNull(locatorText), true));
+    return NamedThreadFactory.executeWithNewThreadNameFuncThrow("Using " + getName() + " to get items for locator \"" + locatorText + "\"", () -> {
+      final FinderResultCache<ITEM> resultCache = myResultCache;
+      if (resultCache != null && locatorText != null && !locatorText.contains(OPTIONS_PROFILE)) {
+        return resultCache.get(locatorText, () -> getItemsByLocator(getLocatorOrNull(locatorText), true, null));
+      }
+      return getItemsByLocator(getLocatorOrNull(locatorText), true, null);
+    });
+  }
+
+  /**
+   * Set-filtering support: finds the items by the locator (usually a nested locator of another finder's dimension) and collects them into a set keyed by the item ids.
+   * The result can be used as the filter condition and as the prefiltered items.
+   * @param keyFunction returns the id of the item, e.g. internal id
+   */
+  @NotNull
+  public ItemsSet<ITEM> getItemsSet(@Nullable final String locatorText, @NotNull final Function<? super ITEM, ?> keyFunction) {
+    return new ItemsSet<>(getItems(locatorText).myEntries, keyFunction);
+  }
+
+  /**
+   * Same as {@link #getItemsSet(String, Function)}, but the items are keyed by primitive numeric ids.
+   * @param idFunction returns the id of the item, e.g. build promotion id
+   */
+  @NotNull
+  public ItemsSet<ITEM> getItemsIdSet(@Nullable final String locatorText, @NotNull final ToLongFunction<? super ITEM> idFunction) {
+    return ItemsSet.byId(getItems(locatorText).myEntries, idFunction);
+  }
+
+  /**
+   * Same as {@link #getItems(String)}, but the found items are passed to the processor as soon as they are matched instead of being collected.
+   * The processing stops if the processor returns false.
+   * @return result with no entries, but with the details on the processing, e.g. for calculating paging data
+   */
+  @NotNull
+  public PagedSearchResult<ITEM> processItems(@Nullable final String locatorText, @NotNull final ItemProcessor<ITEM> matchedItemsProcessor) {
+    return NamedThreadFactory.executeWithNewThreadNameFuncThrow("Using " + getName() + " to process items for locator \"" + locatorText + "\"",
+                                                                () -> getItemsByLocator(getLocatorOrNull(locatorText), true, matchedItemsProcessor));
   }
 
   @NotNull
@@ -132,7 +229,7 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
    */
   @NotNull
   public PagedSearchResult<ITEM> getItems(@Nullable final String locatorText, @Nullable final Locator locatorDefaults) {
-    return getItemsByLocator(getLocatorOrNull(locatorText, locatorDefaults), true);
+    return getItemsByLocator(getLocatorOrNull(locatorText, locatorDefaults), true, null);
   }
 
 
@@ -141,10 +238,18 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
     final Locator result = Locator.createLocator(locatorText, locatorDefaults, getSupportedDimensions());
     result.addIgnoreUnusedDimensions(PagerData.COUNT);
     result.addIgnoreUnusedDimensions(OPTIONS_REPORT_ERROR_ON_NOTHING_FOUND);
+    result.addIgnoreUnusedDimensions(OPTIONS_PROFILE);
     result.addHiddenDimensions(LOGIC_OP_OR, LOGIC_OP_AND, LOGIC_OP_NOT, AbstractFinder.DIMENSION_ITEM);  //experimental
     result.addHiddenDimensions(AbstractFinder.DIMENSION_UNIQUE);  //experimental, should actually depend on FinderDataBinding.getContainerSet returning not null
     result.addHiddenDimensions(OPTIONS_REPORT_ERROR_ON_NOTHING_FOUND); //experimental
     result.addHiddenDimensions(CONTEXT_ITEM_DIMENSION_NAME); //experimental, internal
+    result.addHiddenDimensions(OPTIONS_PROFILE); //experimental
+    if (myCursor != null) {
+      result.addHiddenDimensions(DIMENSION_AFTER); //experimental
+    }
+    if (mySecurityContext != null) {
+      result.addHiddenDimensions(OPTIONS_PARALLEL); //experimental
+    }
     for (String hiddenDimension : myDataBinding.getHiddenDimensions()) {
       result.addHiddenDimensions(hiddenDimension);
     }
@@ -163,6 +268,13 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
     knownDimensions.add(DIMENSION_LOOKUP_LIMIT);
     knownDimensions.add(OPTIONS_REPORT_ERROR_ON_NOTHING_FOUND);
     knownDimensions.add(CONTEXT_ITEM_DIMENSION_NAME); //experimental, internal
+    knownDimensions.add(OPTIONS_PROFILE); //experimental
+    if (myCursor != null) {
+      knownDimensions.add(DIMENSION_AFTER);
+    }
+    if (mySecurityContext != null) {
+      knownDimensions.add(OPTIONS_PARALLEL);
+    }
     return knownDimensions.toArray(new String[knownDimensions.size()]);
   }
 
@@ -189,7 +301,7 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
       locator.setDimension(PagerData.COUNT, "1"); //get only the first one that matches
       locator.addHiddenDimensions(PagerData.COUNT);
     }
-    final PagedSearchResult<ITEM> items = getItemsByLocator(locator, false);
+    final PagedSearchResult<ITEM> items = getItemsByLocator(locator, false, null);
     final int entriesSize = items.myEntries.size();
     if (entriesSize == 0) {
       if (!items.myLookupLimitReached) {
@@ -206,7 +318,16 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
   }
 
   @NotNull
-  private PagedSearchResult<ITEM> getItemsByLocator(@Nullable final Locator originalLocator, final boolean multipleItemsQuery) {
+  private PagedSearchResult<ITEM> getItemsByLocator(@Nullable final Locator originalLocator, final boolean multipleItemsQuery,
+                                                    @Nullable final ItemProcessor<ITEM> matchedItemsProcessor) {
+    final boolean startProfile = originalLocator != null && originalLocator.getSingleDimensionValueAsStrictBoolean(OPTIONS_PROFILE, false);
+    return FinderProfile.profile(getName(), originalLocator == null ? null : originalLocator.getStringRepresentation(), startProfile,
+                                 () -> getItemsByLocatorInternal(originalLocator, multipleItemsQuery, matchedItemsProcessor));
+  }
+
+  @NotNull
+  private PagedSearchResult<ITEM> getItemsByLocatorInternal(@Nullable final Locator originalLocator, final boolean multipleItemsQuery,
+                                                            @Nullable final ItemProcessor<ITEM> matchedItemsProcessor) {
     long startTime = System.nanoTime();
     Locator locator;
     if (originalLocator == null) {
@@ -226,7 +347,7 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
 
       //so far do not support additional filtering or other dimensions if context item is used
       locator.checkLocatorFullyProcessed();
-      return new PagedSearchResult<ITEM>(contextObjects, null, null);
+      return createResult(contextObjects, matchedItemsProcessor);
     }
 
     if (!locator.isEmpty()) {
@@ -243,11 +364,16 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
       }
       if (singleItem != null) {
         final Set<String> singleItemUsedDimensions = locator.getUsedDimensions();
+        final FinderProfile.Invocation invocation = FinderProfile.getCurrentInvocation();
+        if (invocation != null) invocation.singleItemFound(singleItemUsedDimensions);
         // ignore start:0 dimension
         final Long startDimension = locator.getSingleDimensionValueAsLong(PagerData.START);
         if (startDimension == null || startDimension != 0) {
           locator.markUnused(PagerData.START);
         }
+        if (myCursor != null) {
+          locator.getSingleDimensionValue(DIMENSION_AFTER); //mark as used as it has no influence on single item
+        }
 
         ItemFilter<ITEM> filter = null;
         try {
@@ -272,15 +398,24 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
           }
         }
 
-        return new PagedSearchResult<ITEM>(Collections.singletonList(singleItem), null, null);
+        return createResult(Collections.singletonList(singleItem), matchedItemsProcessor);
       }
       locator.markAllUnused(); // nothing found - no dimensions should be marked as used then
     }
     FinderDataBinding.ItemHolder<ITEM> unfilteredItems;
     PagingItemFilter<ITEM> pagingFilter;
+    boolean parallel;
     try {
       FinderDataBinding.LocatorDataBinding<ITEM> locatorDataBinding = getDataBindingWithLogicOpsSupport(locator, myDataBinding);
       unfilteredItems = locatorDataBinding.getPrefilteredItems();
+      final Set<String> prefilterUsedDimensions = new HashSet<>(locator.getUsedDimensions());
+      if (myCursor != null && locator.isUnused(DIMENSION_AFTER)) {
+        //the finder has not resumed the items after the cursor itself
+        final String cursor = locator.getSingleDimensionValue(DIMENSION_AFTER);
+        if (cursor != null) {
+          unfilteredItems = myCursor.getItemsAfter(unfilteredItems, myCursor.parseCursor(cursor));
+        }
+      }
       Set<ITEM> containerSet = myDataBinding.createContainerSet();
       if (containerSet != null) {
         boolean deduplicate = locator.getSingleDimensionValueAsStrictBoolean(DIMENSION_UNIQUE, locator.isAnyPresent(DIMENSION_ITEM));
@@ -295,6 +430,9 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
       final Long lookupLimit = getLookupLimit(locator);
 
       pagingFilter = new PagingItemFilter<ITEM>(locatorDataBinding.getFilter(), start, count == null ? null : count.intValue(), lookupLimit);
+      parallel = isParallelFiltering(locator);
+      final FinderProfile.Invocation invocation = FinderProfile.getCurrentInvocation();
+      if (invocation != null) invocation.prefiltered(prefilterUsedDimensions, unfilteredItems, parallel);
     } catch (LocatorProcessException | BadRequestException | IllegalArgumentException e) {
       if (!locator.isHelpRequested()) {
         throw e;
@@ -304,7 +442,22 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
     }
     locator.checkLocatorFullyProcessed();
     final FinderDataBinding.ItemHolder<ITEM> finalUnfilteredItems = unfilteredItems;
-    return NamedThreadFactory.executeWithNewThreadNameFuncThrow("Retrieving and filtering items", () -> getItems(pagingFilter, finalUnfilteredItems, locator, startTime));
+    final boolean finalParallel = parallel;
+    return NamedThreadFactory.executeWithNewThreadNameFuncThrow("Retrieving and filtering items", () -> getItems(pagingFilter, finalUnfilteredItems, locator, startTime, finalParallel,
+                                                                                                                                matchedItemsProcessor));
+  }
+
+  @NotNull
+  private PagedSearchResult<ITEM> createResult(@NotNull final List<ITEM> items, @Nullable final ItemProcessor<ITEM> matchedItemsProcessor) {
+    if (matchedItemsProcessor == null) {
+      return new PagedSearchResult<ITEM>(items, null, null);
+    }
+    int processedCount = 0;
+    for (ITEM item : items) {
+      processedCount++;
+      if (!matchedItemsProcessor.processItem(item)) break;
+    }
+    return new PagedSearchResult<ITEM>(processedCount, null, null, null, null, false, null);
   }
 
   @Nullable
@@ -333,12 +486,47 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
   }
 
   @Nullable
-  Long getCountNotMarkingAsUsed(final @NotNull Locator locator) {
+  protected Long getCountNotMarkingAsUsed(final @NotNull Locator locator) {
     Long result = locator.lookupSingleDimensionValueAsLong(PagerData.COUNT, myDataBinding.getDefaultPageItemsCount());
     if (NO_COUNT.equals(result)) return null;
     return result;
   }
 
+  private boolean isParallelFiltering(final @NotNull Locator locator) {
+    if (mySecurityContext == null) return false;
+    final Boolean parallel = locator.getSingleDimensionValueAsStrictBoolean(OPTIONS_PARALLEL, TeamCityProperties.getBoolean(PARALLEL_FILTERING_DEFAULT_PROPERTY));
+    //do not wait for the pool tasks from within the pool thread: the nested finder is processed sequentially then
+    return parallel && myParallelFilteringExecutor != null && !myParallelFilteringExecutor.isPoolThread();
+  }
+
+  /**
+   * Creates wrapper which runs tasks on other threads with the same user and REST context as the current thread has
+   */
+  @NotNull
+  private ParallelFilterItemProcessor.TaskWrapper getParallelTaskWrapper(@NotNull final SecurityContextEx securityContext) {
+    final AuthorityHolder authorityHolder = securityContext.getAuthorityHolder();
+    final RestContext restContext = RestContext.getThreadLocal();
+    final FinderProfile.Invocation invocation = FinderProfile.getCurrentInvocation();
+    return task -> () -> {
+      try {
+        securityContext.runAs(authorityHolder, () -> {
+          if (restContext != null && RestContext.getThreadLocal() == null) {
+            restContext.run(() -> {
+              FinderProfile.runWithInvocation(invocation, task);
+              return null;
+            });
+          } else {
+            FinderProfile.runWithInvocation(invocation, task);
+          }
+        });
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new OperationException("Error while filtering items: " + e.toString(), e instanceof Exception ? (Exception)e : null);
+      }
+    };
+  }
+
   private static boolean isReportErrorOnNothingFound(final @NotNull Locator locator) {
     return locator.getSingleDimensionValueAsStrictBoolean(OPTIONS_REPORT_ERROR_ON_NOTHING_FOUND, false) || locator.isHelpRequested();
   }
@@ -346,36 +534,61 @@ public class FinderImpl<ITEM> implements Finder<ITEM> {
   @NotNull
   private PagedSearchResult<ITEM> getItems(final @NotNull PagingItemFilter<ITEM> filter,
                                            final @NotNull FinderDataBinding.ItemHolder<ITEM> unfilteredItems,
-                                           @NotNull final Locator locator, final long startTime) {
+                                           @NotNull final Locator locator, final long startTime, final boolean parallel,
+                                           @Nullable final ItemProcessor<ITEM> matchedItemsProcessor) {
     final long filteringStartTime = System.nanoTime();
-    final FilterItemProcessor<ITEM> filterItemProcessor = new FilterItemProcessor<ITEM>(filter);
-    unfilteredItems.process(filterItemProcessor);
+    final FilterItemProcessor<ITEM> filterItemProcessor = new FilterItemProcessor<ITEM>(filter, matchedItemsProcessor);
+    final ForkJoinPool pool = parallel && mySecurityContext != null && myParallelFilteringExecutor != null ? myParallelFilteringExecutor.getPool() : null;
+    if (pool != null) {
+      final ParallelFilterItemProcessor<ITEM> parallelProcessor = new ParallelFilterItemProcessor<>(filterItemProcessor, getParallelTaskWrapper(mySecurityContext), pool);
+      unfilteredItems.process(parallelProcessor);
+      parallelProcessor.finish();
+    } else {
+      unfilteredItems.process(filterItemProcessor);
+    }
     final ArrayList<ITEM> result = filterItemProcessor.getResult();
+    final int resultCount = filterItemProcessor.getResultCount();
     final long finishTime = System.nanoTime();
     final long totalItemsProcessed = filterItemProcessor.getTotalItemsProcessed();
     final long processingTimeMs = TimeUnit.MILLISECONDS.convert(finishTime - startTime, TimeUnit.NANOSECONDS);
+    final FinderProfile.Invocation invocation = FinderProfile.getCurrentInvocation();
+    if (invocation != null) {
+      invocation.filtered(finishTime - filteringStartTime, totalItemsProcessed, resultCount, filter.getLookupLimit(), filter.isLookupLimitReached());
+    }
     if (totalItemsProcessed >= TeamCityProperties.getLong("rest.finder.processedItemsLogLimit", 1)) {
       final String lookupLimitMessage =
         filter.isLookupLimitReached() ? " (lookupLimit of " + filter.getLookupLimit() + " reached). Last processed item: " + LogUtil.describe(filter.getLastProcessedItem()) : "";
       if (LOG.isDebugEnabled()) {
-        LOG.debug("While processing locator '" + locator + "' by finder " + getName() + ", " + result.size() + " items were matched by the filter from " +
+        LOG.debug("While processing locator '" + locator + "' by finder " + getName() + ", " + resultCount + " items were matched by the filter from " +
                   totalItemsProcessed + " processed in total" + lookupLimitMessage + ", took " + processingTimeMs + " ms (filtering " +
                   TimeUnit.MILLISECONDS.convert(finishTime - filteringStartTime, TimeUnit.NANOSECONDS) + " ms)");
       }
     }
     if (processingTimeMs > TeamCityProperties.getLong("rest.finder.timeWarnLimit", 10000)
         || (processingTimeMs > TeamCityProperties.getLong("rest.finder.minimumTimeWarnLimit", 1000)
-            && ((totalItemsProcessed - result.size()) > TeamCityProperties.getLong("rest.finder.processedAndFilteredItemsWarnLimit", 10000)
+            && ((totalItemsProcessed - resultCount) > TeamCityProperties.getLong("rest.finder.processedAndFilteredItemsWarnLimit", 10000)
                 || totalItemsProcessed > TeamCityProperties.getLong("rest.finder.processedItemsWarnLimit", 100000)))) {
       LOG.info("Server performance can be affected by REST request and finder " + getName() + " with locator '" + locator + "': " +
-               totalItemsProcessed + " items were processed and " + result.size() + " items were returned, took " + TimePrinter
+               totalItemsProcessed + " items were processed and " + resultCount + " items were returned, took " + TimePrinter
                  .createMillisecondsFormatter().formatTime(processingTimeMs));
     }
-    if (result.isEmpty() && isReportErrorOnNothingFound(locator)){
+    if (resultCount == 0 && isReportErrorOnNothingFound(locator)){
       throw new NotFoundException("Nothing is found by " + getLocatorDetailsForMessage(locator) + ".");
     }
-    return new PagedSearchResult<ITEM>(result, filter.getStart(), filter.getCount(), totalItemsProcessed,
-                                       filter.getLookupLimit(), filter.isLookupLimitReached(), filter.getLastProcessedItem());
+    final PagedSearchResult<ITEM> pagedResult;
+    if (matchedItemsProcessor != null) {
+      pagedResult = new PagedSearchResult<ITEM>(resultCount, filter.getStart(), filter.getCount(), totalItemsProcessed,
+                                                filter.getLookupLimit(), filter.isLookupLimitReached(), filter.getLastProcessedItem());
+    } else {
+      pagedResult = new PagedSearchResult<ITEM>(result, filter.getStart(), filter.getCount(), totalItemsProcessed,
+                                                filter.getLookupLimit(), filter.isLookupLimitReached(), filter.getLastProcessedItem());
+    }
+    final ITEM lastProcessedItem = filter.getLastProcessedItem();
+    if (myCursor != null && lastProcessedItem != null && (filter.isLookupLimitReached() || (filter.getCount() != null && resultCount >= filter.getCount()))) {
+      //there can be more items: the next page starts right after the last processed item
+      pagedResult.setNextCursor(myCursor.getCursor(lastProcessedItem));
+    }
+    return pagedResult;
   }
 
   @NotNull
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Details on the finder invocations made while processing a locator with "$profile:true" option, including the invocations of the nested finders
+ * (e.g. from the filters). Is intended for tuning locators: stored for the user who sent the request and can be retrieved via debug/finderProfiles requests.
+ */
+public class FinderProfile {
+  private static final Logger LOG = Logger.getInstance(FinderProfile.class.getName());
+
+  private static final ThreadLocal<Invocation> ourCurrentInvocation = new ThreadLocal<>();
+  private static final AtomicLong ourIdCounter = new AtomicLong();
+  private static final Cache<String, FinderProfile> ourProfiles = CacheBuilder.newBuilder()
+                                                                              .maximumSize(TeamCityProperties.getInteger("rest.finder.profile.storedCount", 100))
+                                                                              .expireAfterWrite(TeamCityProperties.getInteger("rest.finder.profile.storeMinutes", 30), TimeUnit.MINUTES)
+                                                                              .build();
+
+  @NotNull private final String myId;
+  private final long myUserId;
+  @NotNull private final Date myTime;
+  @NotNull private final Invocation myRootInvocation;
+
+  private FinderProfile(@NotNull final String id, final long userId, @NotNull final Invocation rootInvocation) {
+    myId = id;
+    myUserId = userId;
+    myTime = new Date();
+    myRootInvocation = rootInvocation;
+  }
+
+  @NotNull
+  public String getId() {
+    return myId;
+  }
+
+  /**
+   * @return the invocation being profiled in the current thread, null if profiling is not active
+   */
+  @Nullable
+  public static Invocation getCurrentInvocation() {
+    return ourCurrentInvocation.get();
+  }
+
+  /**
+   * Runs the action profiling it as a finder invocation if profiling is already active in the thread or if a new profile should be started
+   */
+  public static <T> T profile(@NotNull final String finderName, @Nullable final String locator, final boolean startNew, @NotNull final Supplier<T> action) {
+    final Invocation parent = ourCurrentInvocation.get();
+    if (parent == null && !startNew) return action.get();
+
+    final Invocation invocation = new Invocation(finderName, locator);
+    if (parent != null) parent.myNested.add(invocation);
+    ourCurrentInvocation.set(invocation);
+    try {
+      return action.get();
+    } catch (RuntimeException | Error e) {
+      invocation.myError = e.toString();
+      throw e;
+    } finally {
+      invocation.myTimeNanos = System.nanoTime() - invocation.myStartNanos;
+      if (parent != null) {
+        ourCurrentInvocation.set(parent);
+      } else {
+        ourCurrentInvocation.remove();
+        store(invocation);
+      }
+    }
+  }
+
+  /**
+   * Runs the task with the passed invocation as the current one, e.g. for profiling the work done by the current invocation in other threads
+   */
+  public static void runWithInvocation(@Nullable final Invocation invocation, @NotNull final Runnable task) {
+    if (invocation == null) {
+      task.run();
+      return;
+    }
+    final Invocation previous = ourCurrentInvocation.get();
+    ourCurrentInvocation.set(invocation);
+    try {
+      task.run();
+    } finally {
+      if (previous != null) {
+        ourCurrentInvocation.set(previous);
+      } else {
+        ourCurrentInvocation.remove();
+      }
+    }
+  }
+
+  private static void store(@NotNull final Invocation rootInvocation) {
+    final RestContext restContext = RestContext.getThreadLocal();
+    final Long userId = restContext == null ? null : restContext.getUserId();
+    if (userId == null) {
+      LOG.debug("Not storing finder profile as there is no user in the context: " + rootInvocation.myFinderName + " for locator '" + rootInvocation.myLocator + "'");
+      return;
+    }
+    final FinderProfile profile = new FinderProfile(String.valueOf(ourIdCounter.incrementAndGet()), userId, rootInvocation);
+    ourProfiles.put(profile.myId, profile);
+  }
+
+  /**
+   * @return profiles stored for the user, the most recent first
+   */
+  @NotNull
+  public static List<FinderProfile> getProfiles(final long userId) {
+    return ourProfiles.asMap().values().stream()
+                      .filter(profile -> profile.myUserId == userId)
+                      .sorted(Comparator.comparingLong((FinderProfile profile) -> Long.parseLong(profile.myId)).reversed())
+                      .collect(Collectors.toList());
+  }
+
+  @Nullable
+  public static FinderProfile getProfile(@NotNull final String id, final long userId) {
+    final FinderProfile result = ourProfiles.getIfPresent(id);
+    return result == null || result.myUserId != userId ? null : result;
+  }
+
+  @NotNull
+  public Map<String, Object> toMap() {
+    final Map<String, Object> result = new LinkedHashMap<>();
+    result.put("id", myId);
+    result.put("time", myTime.toString());
+    result.put("invocation", myRootInvocation.toMap());
+    return result;
+  }
+
+  public static class Invocation {
+    @NotNull private final String myFinderName;
+    @Nullable private final String myLocator;
+    private final long myStartNanos = System.nanoTime();
+    private volatile long myTimeNanos = -1;
+    private volatile long myFilteringTimeNanos = -1;
+    @Nullable private volatile String mySingleItemDimensions;
+    @Nullable private volatile String myPrefilterDimensions;
+    @Nullable private volatile String myPrefilterSource;
+    private volatile long myItemsProcessed = -1;
+    private volatile long myItemsMatched = -1;
+    @Nullable private volatile Long myLookupLimit;
+    private volatile boolean myLookupLimitReached;
+    private volatile boolean myParallel;
+    @Nullable private volatile String myError;
+    @NotNull private final ConcurrentHashMap<String, ConditionStatistics> myConditions = new ConcurrentHashMap<>();
+    @NotNull private final List<Invocation> myNested = new CopyOnWriteArrayList<>();
+
+    private Invocation(@NotNull final String finderName, @Nullable final String locator) {
+      myFinderName = finderName;
+      myLocator = locator;
+    }
+
+    public void singleItemFound(@NotNull final Set<String> usedDimensions) {
+      mySingleItemDimensions = String.join(",", new TreeSet<>(usedDimensions));
+    }
+
+    public void prefiltered(@NotNull final Set<String> usedDimensions, @NotNull final Object itemHolder, final boolean parallel) {
+      myPrefilterDimensions = String.join(",", new TreeSet<>(usedDimensions));
+      final Class<?> holderClass = itemHolder.getClass();
+      myPrefilterSource = holderClass.isSynthetic() || holderClass.isAnonymousClass() ? holderClass.getName().replaceFirst("^.*\\.", "") : holderClass.getSimpleName();
+      myParallel = parallel;
+    }
+
+    public void filtered(final long filteringTimeNanos, final long itemsProcessed, final long itemsMatched, @Nullable final Long lookupLimit, final boolean lookupLimitReached) {
+      myFilteringTimeNanos = filteringTimeNanos;
+      myItemsProcessed = itemsProcessed;
+      myItemsMatched = itemsMatched;
+      myLookupLimit = lookupLimit;
+      myLookupLimitReached = lookupLimitReached;
+    }
+
+    /**
+     * Records single check of an item by a filter condition, can be called from several threads at once
+     */
+    public void conditionChecked(@NotNull final String conditionName, final long timeNanos, final boolean included) {
+      ConditionStatistics statistics = myConditions.get(conditionName);
+      if (statistics == null) {
+        statistics = myConditions.computeIfAbsent(conditionName, k -> new ConditionStatistics(myConditions.size()));
+      }
+      statistics.myTimeNanos.add(timeNanos);
+      statistics.myChecks.increment();
+      if (!included) statistics.myRejected.increment();
+    }
+
+    @NotNull
+    public Map<String, Object> toMap() {
+      final Map<String, Object> result = new LinkedHashMap<>();
+      result.put("finder", myFinderName);
+      if (myLocator != null) result.put("locator", myLocator);
+      result.put("timeMs", toMs(myTimeNanos));
+      if (myError != null) result.put("error", myError);
+      if (mySingleItemDimensions != null) result.put("singleItemFoundByDimensions", mySingleItemDimensions);
+      if (myPrefilterSource != null) {
+        result.put("prefilterDimensions", myPrefilterDimensions);
+        result.put("prefilterSource", myPrefilterSource);
+        result.put("parallelFiltering", myParallel);
+      }
+      if (myItemsProcessed >= 0) {
+        result.put("filteringTimeMs", toMs(myFilteringTimeNanos));
+        result.put("itemsProcessed", myItemsProcessed);
+        result.put("itemsMatched", myItemsMatched);
+        if (myLookupLimit != null) result.put("lookupLimit", myLookupLimit);
+        result.put("lookupLimitReached", myLookupLimitReached);
+      }
+      if (!myConditions.isEmpty()) {
+        final List<Map<String, Object>> conditions = new ArrayList<>();
+        final List<Map.Entry<String, ConditionStatistics>> entries = new ArrayList<>(myConditions.entrySet());
+        entries.sort(Comparator.comparingInt(entry -> entry.getValue().myOrder));
+        for (Map.Entry<String, ConditionStatistics> entry : entries) {
+          final Map<String, Object> condition = new LinkedHashMap<>();
+          condition.put("condition", entry.getKey());
+          condition.put("timeMs", toMs(entry.getValue().myTimeNanos.sum()));
+          condition.put("checks", entry.getValue().myChecks.sum());
+          condition.put("rejected", entry.getValue().myRejected.sum());
+          conditions.add(condition);
+        }
+        result.put("filterConditions", conditions);
+      }
+      if (!myNested.isEmpty()) {
+        result.put("nested", myNested.stream().map(Invocation::toMap).collect(Collectors.toList()));
+      }
+      return result;
+    }
+
+    private static double toMs(final long nanos) {
+      return nanos < 0 ? -1 : Math.round(nanos / 1000.0) / 1000.0;
+    }
+  }
+
+  private static class ConditionStatistics {
+    private final int myOrder;
+    @NotNull private final LongAdder myTimeNanos = new LongAdder();
+    @NotNull private final LongAdder myChecks = new LongAdder();
+    @NotNull private final LongAdder myRejected = new LongAdder();
+
+    ConditionStatistics(final int order) {
+      myOrder = order;
+    }
+  }
+}
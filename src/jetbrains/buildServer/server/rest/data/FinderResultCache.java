@@ -0,0 +1,270 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import jetbrains.buildServer.server.rest.errors.LocatorProcessException;
+import jetbrains.buildServer.serverSide.SecurityContextEx;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.users.User;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Optional cache of the finder results for the same locators requested repeatedly (e.g. by polling dashboards).
+ * Stores ids of the found items per normalized locator and user. The entries are dropped on the server events which can affect the result
+ * (see {@link ServerListener#addBuildTypeBuildsChangeListener}): only the entries limited to the build type of the changed builds are dropped,
+ * the entries not limited to known build types are dropped on any change. Other changes are accounted for only by the entry age limit.
+ * Is owned by the finder (see {@link FinderImpl#getResultCache()}). Is disabled by default, can be enabled via "rest.finder.resultCache.enabled" or "rest.finder.resultCache.&lt;finder name&gt;.enabled" internal properties.
+ */
+public class FinderResultCache<ITEM> {
+  public static final String PROPERTY_PREFIX = "rest.finder.resultCache.";
+
+  @NotNull private final String myFinderName;
+  @NotNull private final ItemIdResolver<ITEM> myIdResolver;
+  @NotNull private final BuildTypesResolver myBuildTypesResolver;
+  @NotNull private final SecurityContextEx mySecurityContext;
+  @NotNull private final Cache<Key, CachedResult> myCache;
+  private final long myMaxAgeMs;
+  //the stamps are used not to store the results computed while the data was changing
+  @NotNull private final AtomicLong myAllChangesStamp = new AtomicLong();
+  @NotNull private final AtomicLong myUnknownBuildTypeChangesStamp = new AtomicLong();
+  @NotNull private final ConcurrentHashMap<String, AtomicLong> myBuildTypeChangesStamps = new ConcurrentHashMap<>();
+  @NotNull private final AtomicLong myInvalidationsCount = new AtomicLong();
+  @NotNull private final AtomicLong myStaleEntriesCount = new AtomicLong();
+  private volatile long myLastInvalidationTime = 0;
+
+  public interface ItemIdResolver<ITEM> {
+    long getId(@NotNull ITEM item);
+
+    /**
+     * @return null if the item is not found anymore
+     */
+    @Nullable
+    ITEM findById(long id);
+  }
+
+  public interface BuildTypesResolver {
+    /**
+     * @return internal ids of the build types whose builds can be found or can affect the result for the locator,
+     * null if the builds of any build type can. Is invoked only when the result is not cached.
+     */
+    @Nullable
+    Collection<String> getBuildTypeIds(@NotNull String locatorText);
+  }
+
+  public FinderResultCache(@NotNull final String finderName,
+                           @NotNull final ItemIdResolver<ITEM> idResolver,
+                           @NotNull final BuildTypesResolver buildTypesResolver,
+                           @NotNull final SecurityContextEx securityContext) {
+    myFinderName = finderName;
+    myIdResolver = idResolver;
+    myBuildTypesResolver = buildTypesResolver;
+    mySecurityContext = securityContext;
+    myMaxAgeMs = getLong("maxAgeMs", 10 * 1000L);
+    myCache = CacheBuilder.newBuilder()
+                          .maximumSize(getLong("size", 200))
+                          .expireAfterWrite(myMaxAgeMs, TimeUnit.MILLISECONDS)
+                          .recordStats()
+                          .build();
+  }
+
+  public boolean isEnabled() {
+    final String finderValue = TeamCityProperties.getPropertyOrNull(PROPERTY_PREFIX + myFinderName + ".enabled");
+    return finderValue != null ? Boolean.parseBoolean(finderValue) : TeamCityProperties.getBoolean(PROPERTY_PREFIX + "enabled");
+  }
+
+  /**
+   * @param computation computes the result when there is no actual cached one
+   */
+  @NotNull
+  public PagedSearchResult<ITEM> get(@NotNull final String locatorText, @NotNull final Supplier<PagedSearchResult<ITEM>> computation) {
+    final Key key = getKey(locatorText);
+    if (key == null) return computation.get();
+
+    final CachedResult cached = myCache.getIfPresent(key);
+    if (cached != null) {
+      final PagedSearchResult<ITEM> result = cached.restore();
+      if (result != null) return result;
+      myStaleEntriesCount.incrementAndGet();
+      myCache.invalidate(key);
+    }
+
+    final Collection<String> buildTypeIds = myBuildTypesResolver.getBuildTypeIds(locatorText);
+    final long stamp = getChangesStamp(buildTypeIds);
+    final PagedSearchResult<ITEM> result = computation.get();
+    if (stamp == getChangesStamp(buildTypeIds)) {
+      myCache.put(key, new CachedResult(result, buildTypeIds));
+    }
+    return result;
+  }
+
+  public void invalidateAll() {
+    invalidate(null);
+  }
+
+  /**
+   * @param buildTypeId internal id of the build type of the changed builds, null if the builds of any build type could change
+   */
+  public void invalidate(@Nullable final String buildTypeId) {
+    myAllChangesStamp.incrementAndGet();
+    myInvalidationsCount.incrementAndGet();
+    myLastInvalidationTime = System.currentTimeMillis();
+    if (buildTypeId == null) {
+      myUnknownBuildTypeChangesStamp.incrementAndGet();
+      myCache.invalidateAll();
+      return;
+    }
+    myBuildTypeChangesStamps.computeIfAbsent(buildTypeId, id -> new AtomicLong()).incrementAndGet();
+    myCache.asMap().values().removeIf(entry -> entry.myBuildTypeIds == null || entry.myBuildTypeIds.contains(buildTypeId));
+  }
+
+  private long getChangesStamp(@Nullable final Collection<String> buildTypeIds) {
+    if (buildTypeIds == null) return myAllChangesStamp.get();
+    //the stamps only grow, so the sum changes whenever any of them changes
+    long result = myUnknownBuildTypeChangesStamp.get();
+    for (String buildTypeId : buildTypeIds) {
+      final AtomicLong buildTypeStamp = myBuildTypeChangesStamps.get(buildTypeId);
+      if (buildTypeStamp != null) result += buildTypeStamp.get();
+    }
+    return result;
+  }
+
+  @NotNull
+  public Map<String, String> getStats() {
+    CacheStats stats = myCache.stats();
+    Map<String, String> result = new LinkedHashMap<>();
+    result.put("enabled", String.valueOf(isEnabled()));
+    result.put("size", String.valueOf(myCache.size()));
+    result.put("maxAgeMs", String.valueOf(myMaxAgeMs));
+    result.put("hitCount", String.valueOf(stats.hitCount()));
+    result.put("missCount", String.valueOf(stats.missCount()));
+    result.put("hitRate", String.format(Locale.ENGLISH, "%.3f", stats.hitRate()));
+    result.put("evictionCount", String.valueOf(stats.evictionCount()));
+    result.put("staleEntriesCount", String.valueOf(myStaleEntriesCount.get()));
+    result.put("invalidationsCount", String.valueOf(myInvalidationsCount.get()));
+    final long lastInvalidationTime = myLastInvalidationTime;
+    result.put("msSinceLastInvalidation", lastInvalidationTime == 0 ? "" : String.valueOf(System.currentTimeMillis() - lastInvalidationTime));
+    return result;
+  }
+
+  /**
+   * @return null if the result should not be cached
+   */
+  @Nullable
+  private Key getKey(@NotNull final String locatorText) {
+    if (!isEnabled()) return null;
+    final User user = mySecurityContext.getAuthorityHolder().getAssociatedUser();
+    if (user == null) return null; //the results can differ for the same user with different authority holders, so only the usual user-based ones are cached
+
+    final Locator locator;
+    try {
+      locator = new Locator(locatorText);
+    } catch (LocatorProcessException e) {
+      return null; //the error will be reported by the computation
+    }
+    // dimensions order does not matter, values order can matter (e.g. for "item")
+    final TreeMap<String, List<String>> dimensions = new TreeMap<>();
+    for (String dimension : locator.getDefinedDimensions()) {
+      dimensions.put(dimension, locator.lookupDimensionValue(dimension));
+    }
+    return new Key(user.getId(), locator.lookupSingleValue(), dimensions);
+  }
+
+  private long getLong(@NotNull final String name, final long defaultValue) {
+    return TeamCityProperties.getLong(PROPERTY_PREFIX + myFinderName + "." + name, TeamCityProperties.getLong(PROPERTY_PREFIX + name, defaultValue));
+  }
+
+  private class CachedResult {
+    @NotNull private final long[] myIds;
+    @Nullable private final Long myStart;
+    @Nullable private final Integer myCount;
+    @Nullable private final Long myActuallyProcessedCount;
+    @Nullable private final Long myLookupLimit;
+    private final boolean myLookupLimitReached;
+    @Nullable private final Long myLastProcessedItemId;
+    @Nullable private final String myNextCursor;
+    @Nullable private final Collection<String> myBuildTypeIds;
+
+    CachedResult(@NotNull final PagedSearchResult<ITEM> result, @Nullable final Collection<String> buildTypeIds) {
+      myIds = new long[result.myEntries.size()];
+      int i = 0;
+      for (ITEM item : result.myEntries) {
+        myIds[i++] = myIdResolver.getId(item);
+      }
+      myStart = result.myStart;
+      myCount = result.myCount;
+      myActuallyProcessedCount = result.myActuallyProcessedCount;
+      myLookupLimit = result.myLookupLimit;
+      myLookupLimitReached = result.myLookupLimitReached;
+      myLastProcessedItemId = result.getLastProcessedItem() == null ? null : myIdResolver.getId(result.getLastProcessedItem());
+      myNextCursor = result.getNextCursor();
+      myBuildTypeIds = buildTypeIds;
+    }
+
+    /**
+     * @return null if any of the items cannot be found anymore
+     */
+    @Nullable
+    PagedSearchResult<ITEM> restore() {
+      final List<ITEM> items = new ArrayList<>(myIds.length);
+      for (long id : myIds) {
+        final ITEM item = myIdResolver.findById(id);
+        if (item == null) return null;
+        items.add(item);
+      }
+      final ITEM lastProcessedItem = myLastProcessedItemId == null ? null : myIdResolver.findById(myLastProcessedItemId);
+      final PagedSearchResult<ITEM> result = new PagedSearchResult<ITEM>(items, myStart, myCount, myActuallyProcessedCount, myLookupLimit, myLookupLimitReached, lastProcessedItem);
+      result.setNextCursor(myNextCursor);
+      return result;
+    }
+  }
+
+  private static class Key {
+    private final long myUserId;
+    @Nullable private final String mySingleValue;
+    @NotNull private final TreeMap<String, List<String>> myDimensions;
+    private final int myHashCode;
+
+    Key(final long userId, @Nullable final String singleValue, @NotNull final TreeMap<String, List<String>> dimensions) {
+      myUserId = userId;
+      mySingleValue = singleValue;
+      myDimensions = dimensions;
+      myHashCode = Objects.hash(myUserId, mySingleValue, myDimensions);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      final Key key = (Key)o;
+      return myUserId == key.myUserId && Objects.equals(mySingleValue, key.mySingleValue) && myDimensions.equals(key.myDimensions);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHashCode;
+    }
+  }
+}
@@ -46,6 +46,16 @@ public class FinderSearchMatcher<T> {
     locator.checkLocatorFullyProcessed();
   }
 
+  @NotNull
+  public String getSearch() {
+    return mySearch;
+  }
+
+  @Nullable
+  public String getMatch() {
+    return myMatch;
+  }
+
   public boolean matches(@Nullable final String searchDefaultLocatorText) {
     String mergedSearchLocatorText = Locator.merge(mySearch, searchDefaultLocatorText);
 
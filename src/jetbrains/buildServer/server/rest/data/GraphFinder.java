@@ -18,6 +18,7 @@ package jetbrains.buildServer.server.rest.data;
 
 import com.intellij.openapi.diagnostic.Logger;
 import java.util.*;
+import java.util.function.ToLongFunction;
 import jetbrains.buildServer.server.rest.errors.OperationException;
 import jetbrains.buildServer.server.rest.model.PagerData;
 import jetbrains.buildServer.util.CollectionsUtil;
@@ -86,29 +87,41 @@ public class GraphFinder<T> extends AbstractFinder<T> {
     final List<T> stopItems = getItemsFromDimension(locator, DIMENSION_STOP);
     Long lookupLimit = locator.getSingleDimensionValueAsLong(DIMENSION_LOOKUP_LIMIT, getDefaultLookupLimit());
 
-    Set<T> resultTo = new LinkedHashSet<T>();
-    if (!toItems.isEmpty()) {
-      if (includeOriginal) {
-        resultTo.addAll(toItems);
-      }
-      collectLinked(resultTo, toItems, CollectionsUtil.join(fromItems, stopItems), lookupLimit, myTraverser.getChildren(), recursive);
+    final ItemHolder<T> resultTo = toItems.isEmpty() ? null
+                                                     : getLinkedItems(toItems, includeOriginal, CollectionsUtil.join(fromItems, stopItems), lookupLimit, myTraverser.getChildren(), recursive);
+    final ItemHolder<T> resultFrom = fromItems.isEmpty() ? null
+                                                         : getLinkedItems(fromItems, includeOriginal, CollectionsUtil.join(toItems, stopItems), lookupLimit, myTraverser.getParents(), recursive);
+    if (resultTo == null) {
+      return resultFrom != null ? resultFrom : getItemHolder(Collections.<T>emptyList());
     }
-
-    Set<T> resultFrom = new LinkedHashSet<T>();
-    if (!fromItems.isEmpty()) {
-      if (includeOriginal) {
-        resultFrom.addAll(fromItems);
-      }
-      collectLinked(resultFrom, fromItems, CollectionsUtil.join(toItems, stopItems), lookupLimit, myTraverser.getParents(), recursive);
+    if (resultFrom == null) {
+      return resultTo;
     }
 
-    ArrayList<T> result;
-    if (!resultTo.isEmpty() && !resultFrom.isEmpty()) {
-      result = new ArrayList<T>(CollectionsUtil.intersect(resultTo, resultFrom));
-    } else {
-      result = new ArrayList<T>(!resultTo.isEmpty() ? resultTo : resultFrom);
-    }
-    return getItemHolder(result); //can improve performance by performing traversing in the holder, not retrieving all upfront, this will also add support for lookupLimit
+    //intersection: "from" items are collected completely, "to" items are still traversed lazily
+    return processor -> {
+      final List<T> fromList = new ArrayList<T>();
+      final VisitedSet<T> fromSet = createVisitedSet();
+      resultFrom.process(item -> {
+        if (fromSet.add(item)) fromList.add(item);
+        return true;
+      });
+      final boolean[] toFound = new boolean[1];
+      final boolean[] stopped = new boolean[1];
+      resultTo.process(item -> {
+        toFound[0] = true;
+        if (fromList.isEmpty() || fromSet.contains(item)) {
+          stopped[0] = !processor.processItem(item);
+          return !stopped[0];
+        }
+        return true;
+      });
+      if (!toFound[0] && !stopped[0]) {
+        for (T item : fromList) {
+          if (!processor.processItem(item)) return;
+        }
+      }
+    };
   }
 
   @NotNull
@@ -124,31 +137,61 @@ public class GraphFinder<T> extends AbstractFinder<T> {
     return Collections.emptyList();
   }
 
-  protected void collectLinked(@NotNull final Set<T> result,
-                             @NotNull Collection<T> toProcess,
-                             @NotNull Collection<T> stopItems,
-                             final Long lookupLimit,
-                             @NotNull LinkRetriever<T> linkRetriever,
-                             final boolean recursive) {
-    final int initialSize = result.size();
-    while (!toProcess.isEmpty()) {
-      Set<T> linkedItems = new LinkedHashSet<T>();
-      for (T item : toProcess) {
-        if (stopItems.contains(item)) {
-          result.add(item);
-        } else {
-          final List<T> linked = linkRetriever.getLinked(item);
-          result.addAll(linked);
-          linkedItems.addAll(linked);
+  /**
+   * Traverses the graph lazily (breadth-first) so that the traversal stops as soon as the items processor does not need more items.
+   * @param stopItems   the items which are included into the result, but their linked items are not
+   * @param lookupLimit if not null, the traversal stops after finding that number of linked items
+   * @return items linked to the initial ones, preceded by the initial items if includeInitial is true
+   */
+  @NotNull
+  protected ItemHolder<T> getLinkedItems(@NotNull final List<T> initialItems,
+                                         final boolean includeInitial,
+                                         @NotNull final Collection<T> stopItems,
+                                         @Nullable final Long lookupLimit,
+                                         @NotNull final LinkRetriever<T> linkRetriever,
+                                         final boolean recursive) {
+    return processor -> {
+      final VisitedSet<T> stopSet = createVisitedSet();
+      stopItems.forEach(stopSet::add);
+      final VisitedSet<T> processed = createVisitedSet();
+      final VisitedSet<T> expanded = createVisitedSet();
+      if (includeInitial) {
+        for (T item : initialItems) {
+          if (processed.add(item) && !processor.processItem(item)) return;
         }
       }
-      toProcess = linkedItems;
-      if (!recursive) break;
-      if (lookupLimit != null && (result.size() - initialSize >= lookupLimit)) {
-        LOG.debug("Hit lookupLimit " + lookupLimit + " while traversing graph, result is partial");
-        break;
+
+      long linkedCount = 0;
+      Collection<T> toProcess = initialItems;
+      while (!toProcess.isEmpty()) {
+        final List<T> linkedItems = new ArrayList<T>();
+        for (T item : toProcess) {
+          if (stopSet.contains(item)) {
+            if (processed.add(item) && !processor.processItem(item)) return;
+            continue;
+          }
+          if (!expanded.add(item)) continue;
+          for (T linked : linkRetriever.getLinked(item)) {
+            if (processed.add(linked)) {
+              if (!processor.processItem(linked)) return;
+              if (lookupLimit != null && ++linkedCount >= lookupLimit) {
+                LOG.debug("Hit lookupLimit " + lookupLimit + " while traversing graph, result is partial");
+                return;
+              }
+            }
+            if (!expanded.contains(linked)) linkedItems.add(linked);
+          }
+        }
+        if (!recursive) break;
+        toProcess = linkedItems;
       }
-    }
+    };
+  }
+
+  @NotNull
+  private VisitedSet<T> createVisitedSet() {
+    final ToLongFunction<T> idFunction = myTraverser.getIdFunction();
+    return idFunction != null ? new IdsVisitedSet<T>(idFunction) : new ObjectsVisitedSet<T>();
   }
 
   public interface Traverser<S> {
@@ -163,6 +206,14 @@ public class GraphFinder<T> extends AbstractFinder<T> {
      */
     @NotNull
     LinkRetriever<S> getParents();
+
+    /**
+     * @return function returning unique ids of the items, allows to track the visited items by primitive ids instead of the items themselves
+     */
+    @Nullable
+    default ToLongFunction<S> getIdFunction() {
+      return null;
+    }
   }
 
   public interface LinkRetriever<S> {
@@ -205,6 +256,98 @@ public class GraphFinder<T> extends AbstractFinder<T> {
     };
   }
 
+  private interface VisitedSet<S> {
+    boolean add(@NotNull S item);
+
+    boolean contains(@NotNull S item);
+  }
+
+  private static class ObjectsVisitedSet<S> implements VisitedSet<S> {
+    @NotNull private final Set<S> myItems = new HashSet<S>();
+
+    @Override
+    public boolean add(@NotNull final S item) {
+      return myItems.add(item);
+    }
+
+    @Override
+    public boolean contains(@NotNull final S item) {
+      return myItems.contains(item);
+    }
+  }
+
+  private static class IdsVisitedSet<S> implements VisitedSet<S> {
+    @NotNull private final ToLongFunction<S> myIdFunction;
+    @NotNull private final LongHashSet myIds = new LongHashSet();
+
+    IdsVisitedSet(@NotNull final ToLongFunction<S> idFunction) {
+      myIdFunction = idFunction;
+    }
+
+    @Override
+    public boolean add(@NotNull final S item) {
+      return myIds.add(myIdFunction.applyAsLong(item));
+    }
+
+    @Override
+    public boolean contains(@NotNull final S item) {
+      return myIds.contains(myIdFunction.applyAsLong(item));
+    }
+  }
+
+  /**
+   * Open addressing hash set of longs not boxing the values
+   */
+  static class LongHashSet {
+    private static final long FREE = 0;
+
+    private long[] myKeys = new long[16];
+    private int mySize;
+    private boolean myContainsFree;
+
+    boolean add(final long key) {
+      if (key == FREE) {
+        if (myContainsFree) return false;
+        myContainsFree = true;
+        return true;
+      }
+      if ((mySize + 1) * 2 > myKeys.length) {
+        final long[] keys = new long[myKeys.length * 2];
+        for (long k : myKeys) {
+          if (k != FREE) insert(keys, k);
+        }
+        myKeys = keys;
+      }
+      if (!insert(myKeys, key)) return false;
+      mySize++;
+      return true;
+    }
+
+    boolean contains(final long key) {
+      if (key == FREE) return myContainsFree;
+      final int mask = myKeys.length - 1;
+      for (int i = hash(key) & mask; myKeys[i] != FREE; i = (i + 1) & mask) {
+        if (myKeys[i] == key) return true;
+      }
+      return false;
+    }
+
+    private static boolean insert(@NotNull final long[] keys, final long key) {
+      final int mask = keys.length - 1;
+      int i = hash(key) & mask;
+      for (; keys[i] != FREE; i = (i + 1) & mask) {
+        if (keys[i] == key) return false;
+      }
+      keys[i] = key;
+      return true;
+    }
+
+    private static int hash(final long key) {
+      final long h = key * 0x9E3779B97F4A7C15L;
+      return (int)(h ^ (h >>> 32));
+    }
+  }
+
   public interface ParsedLocator<S> {
     @Nullable
     Integer getCount();
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.util.*;
+import java.util.function.Function;
+import jetbrains.buildServer.serverSide.BuildsManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.SVcsModification;
+import jetbrains.buildServer.vcs.VcsManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Resolves entities by ids in chunks ("rest.request.batchResolve.chunkSize" internal property) of sorted unique ids instead of one by one.
+ * Remembers the resolved entities (and the ids not found), so the instance is meant to be used within a single request.
+ */
+public class IdsBatchResolver<T> {
+  @NotNull private final Function<Collection<Long>, Map<Long, T>> myLoader;
+  @NotNull private final Map<Long, T> myResolved = new HashMap<>();
+  private final int myChunkSize;
+
+  /**
+   * @param loader returns the map of the found entities by their ids for the passed sorted unique ids
+   */
+  public IdsBatchResolver(@NotNull final Function<Collection<Long>, Map<Long, T>> loader) {
+    myLoader = loader;
+    myChunkSize = Math.max(1, TeamCityProperties.getInteger("rest.request.batchResolve.chunkSize", 1000));
+  }
+
+  @NotNull
+  public static IdsBatchResolver<SBuild> forBuilds(@NotNull final BuildsManager buildsManager) {
+    return new IdsBatchResolver<>(ids -> {
+      final Map<Long, SBuild> result = new HashMap<>();
+      for (SBuild build : buildsManager.findBuildInstances(ids)) {
+        result.put(build.getBuildId(), build);
+      }
+      return result;
+    });
+  }
+
+  @NotNull
+  public static IdsBatchResolver<SVcsModification> forChanges(@NotNull final VcsManager vcsManager) {
+    //there is no batch API for changes, so this only avoids repeated lookups of the same ids
+    return new IdsBatchResolver<>(ids -> {
+      final Map<Long, SVcsModification> result = new HashMap<>();
+      for (Long id : ids) {
+        final SVcsModification modification = vcsManager.findModificationById(id, false);
+        if (modification != null) result.put(id, modification);
+      }
+      return result;
+    });
+  }
+
+  @Nullable
+  public T get(final long id) {
+    return resolve(Collections.singletonList(id)).get(id);
+  }
+
+  /**
+   * @return found entities in the order of the ids, not found ids are skipped
+   */
+  @NotNull
+  public List<T> getAll(@NotNull final Collection<Long> ids) {
+    final Map<Long, T> resolved = resolve(ids);
+    final List<T> result = new ArrayList<>(ids.size());
+    for (Long id : ids) {
+      final T item = resolved.get(id);
+      if (item != null) result.add(item);
+    }
+    return result;
+  }
+
+  /**
+   * @return map of the found entities by ids
+   */
+  @NotNull
+  public Map<Long, T> resolve(@NotNull final Collection<Long> ids) {
+    final Map<Long, T> result = new HashMap<>();
+    final TreeSet<Long> toLoad = new TreeSet<>();
+    for (Long id : ids) {
+      if (myResolved.containsKey(id)) {
+        final T item = myResolved.get(id);
+        if (item != null) result.put(id, item);
+      } else {
+        toLoad.add(id);
+      }
+    }
+    final List<Long> chunk = new ArrayList<>(Math.min(toLoad.size(), myChunkSize));
+    for (Long id : toLoad) {
+      chunk.add(id);
+      if (chunk.size() >= myChunkSize) {
+        load(chunk, result);
+        chunk.clear();
+      }
+    }
+    if (!chunk.isEmpty()) load(chunk, result);
+    return result;
+  }
+
+  /**
+   * @return lazy iterator over the found entities in the order of the ids. The ids are read and resolved chunk by chunk.
+   */
+  @NotNull
+  public Iterator<T> resolveLazily(@NotNull final Iterator<Long> ids) {
+    return new Iterator<T>() {
+      @NotNull private Iterator<T> myCurrentChunk = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!myCurrentChunk.hasNext()) {
+          if (!ids.hasNext()) return false;
+          final List<Long> chunkIds = new ArrayList<>();
+          while (ids.hasNext() && chunkIds.size() < myChunkSize) {
+            chunkIds.add(ids.next());
+          }
+          myCurrentChunk = getAll(chunkIds).iterator();
+        }
+        return true;
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return myCurrentChunk.next();
+      }
+    };
+  }
+
+  private void load(@NotNull final List<Long> chunk, @NotNull final Map<Long, T> result) {
+    final Map<Long, T> loaded = myLoader.apply(Collections.unmodifiableList(chunk));
+    for (Long id : chunk) {
+      final T item = loaded.get(id);
+      myResolved.put(id, item);
+      if (item != null) result.put(id, item);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import jetbrains.buildServer.server.rest.errors.BadRequestException;
+import jetbrains.buildServer.util.ItemProcessor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Supports keyset pagination via "after:&lt;cursor&gt;" locator dimension: the next page is retrieved by resuming the items sequence right after the last
+ * processed item instead of re-processing all the items matched before the "start" one.
+ * The cursor is an opaque token which encodes the finder and the key of the item. The finder can resume its prefiltered items sequence directly
+ * (then it should mark the dimension as used), otherwise {@link FinderImpl} skips the items up to the one with the key without filtering them.
+ */
+public abstract class ItemCursor<ITEM> {
+  private static final String SEPARATOR = ":";
+  private static final String KEY_SEPARATOR = ",";
+
+  @NotNull private final String myFinderName;
+  private final int myKeyLength;
+
+  /**
+   * @param finderName is stored in the cursor so that cursors of different finders are not confused
+   * @param keyLength  number of elements in the keys returned by {@link #getKey(Object)}
+   */
+  protected ItemCursor(@NotNull final String finderName, final int keyLength) {
+    myFinderName = finderName;
+    myKeyLength = keyLength;
+  }
+
+  /**
+   * @return key of the item. Should identify the item and can contain additional elements to determine the item position when the item is no longer available.
+   */
+  @NotNull
+  public abstract long[] getKey(@NotNull ITEM item);
+
+  /**
+   * @param key the key of the cursor item
+   * @return true if the item is the one the key is created for
+   */
+  public boolean isCursorItem(@NotNull final ITEM item, @NotNull final long[] key) {
+    return Arrays.equals(getKey(item), key);
+  }
+
+  /**
+   * Allows to resume the items sequence when the cursor item is no longer among the items (e.g. it changed its state or was deleted).
+   * @param key the key of the cursor item
+   * @return true if the item goes after the cursor item in the items order, false if it goes before, null if the cursor cannot determine the order
+   */
+  @Nullable
+  public Boolean isAfter(@NotNull final ITEM item, @NotNull final long[] key) {
+    return null;
+  }
+
+  @NotNull
+  public String getCursor(@NotNull final ITEM item) {
+    final StringBuilder result = new StringBuilder(myFinderName).append(SEPARATOR);
+    final long[] key = getKey(item);
+    for (int i = 0; i < key.length; i++) {
+      if (i > 0) result.append(KEY_SEPARATOR);
+      result.append(key[i]);
+    }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(result.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  @NotNull
+  public long[] parseCursor(@NotNull final String cursor) {
+    final String text;
+    try {
+      text = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid '" + FinderImpl.DIMENSION_AFTER + "' cursor '" + cursor + "': " + e.getMessage());
+    }
+    final int separatorIndex = text.indexOf(SEPARATOR);
+    if (separatorIndex < 0 || !myFinderName.equals(text.substring(0, separatorIndex))) {
+      throw new BadRequestException("Invalid '" + FinderImpl.DIMENSION_AFTER + "' cursor '" + cursor + "': should be a value returned in 'nextHref' by the same request");
+    }
+    final long[] result;
+    try {
+      result = Arrays.stream(text.substring(separatorIndex + 1).split(KEY_SEPARATOR)).mapToLong(Long::parseLong).toArray();
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid '" + FinderImpl.DIMENSION_AFTER + "' cursor '" + cursor + "': " + e.getMessage());
+    }
+    if (result.length != myKeyLength) {
+      throw new BadRequestException("Invalid '" + FinderImpl.DIMENSION_AFTER + "' cursor '" + cursor + "': unexpected key length");
+    }
+    return result;
+  }
+
+  /**
+   * @return the items of the holder following the item with the key. If the item is not found, resumes from the first item going after the cursor item
+   * position (see {@link #isAfter(Object, long[])}), if the position cannot be determined, reports an error after processing all the items.
+   */
+  @NotNull
+  public FinderDataBinding.ItemHolder<ITEM> getItemsAfter(@NotNull final FinderDataBinding.ItemHolder<ITEM> items, @NotNull final long[] key) {
+    return processor -> {
+      final boolean[] cursorItemFound = new boolean[1];
+      items.process(new ItemProcessor<ITEM>() {
+        @Override
+        public boolean processItem(final ITEM item) {
+          if (isCursorItem(item, key)) {
+            cursorItemFound[0] = true;
+            return true; //also skipped if it goes later after changing its position
+          }
+          if (cursorItemFound[0]) return processor.processItem(item);
+          if (Boolean.TRUE.equals(isAfter(item, key))) {
+            cursorItemFound[0] = true; //the cursor item is gone, the item is the first one after its position
+            return processor.processItem(item);
+          }
+          return true;
+        }
+      });
+      if (!cursorItemFound[0]) {
+        throw new BadRequestException("The item of '" + FinderImpl.DIMENSION_AFTER + "' cursor is not found, it might be no longer available. Retrieve the items from the beginning.");
+      }
+    };
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Set of items (usually found by a nested locator) keyed by the item ids, for filtering by the set with a hash lookup instead of scanning the list of the items.
+ * Can be used both as a filter condition and as the prefiltered items (in the order the items were added) when the set is smaller than the collection to filter.
+ * The items with numeric ids can be keyed by the primitive ids (see {@link #byId(Iterable, ToLongFunction)}) not to box the ids.
+ * See {@link FinderImpl#getItemsSet(String, Function)} and {@link FinderImpl#getItemsIdSet(String, ToLongFunction)}.
+ */
+public class ItemsSet<T> implements FilterConditionChecker<T> {
+  @NotNull private final Keys<T> myKeys;
+  @NotNull private final List<T> myItems = new ArrayList<>();
+
+  /**
+   * @param keyFunction returns the id of the item, the items with equal ids are considered the same
+   */
+  public ItemsSet(@NotNull final Iterable<? extends T> items, @NotNull final Function<? super T, ?> keyFunction) {
+    this(items, new ObjectKeys<T>(keyFunction));
+  }
+
+  private ItemsSet(@NotNull final Iterable<? extends T> items, @NotNull final Keys<T> keys) {
+    myKeys = keys;
+    for (T item : items) {
+      if (keys.add(item)) myItems.add(item);
+    }
+  }
+
+  /**
+   * @param idFunction returns the id of the item, the items with equal ids are considered the same
+   */
+  @NotNull
+  public static <T> ItemsSet<T> byId(@NotNull final Iterable<? extends T> items, @NotNull final ToLongFunction<? super T> idFunction) {
+    return new ItemsSet<T>(items, new IdKeys<T>(idFunction));
+  }
+
+  public boolean contains(@NotNull final T item) {
+    return myKeys.contains(item);
+  }
+
+  @Override
+  public boolean isIncluded(@NotNull final T item) {
+    return contains(item);
+  }
+
+  public int size() {
+    return myItems.size();
+  }
+
+  /**
+   * @return the unique items in the order they were added
+   */
+  @NotNull
+  public List<T> getItems() {
+    return Collections.unmodifiableList(myItems);
+  }
+
+  /**
+   * @return the items of the collection which are in the set, preserving the order of the collection
+   */
+  @NotNull
+  public List<T> filter(@NotNull final Iterable<? extends T> items) {
+    final List<T> result = new ArrayList<>();
+    for (T item : items) {
+      if (contains(item)) result.add(item);
+    }
+    return result;
+  }
+
+  private interface Keys<S> {
+    boolean add(@NotNull S item);
+
+    boolean contains(@NotNull S item);
+  }
+
+  private static class ObjectKeys<S> implements Keys<S> {
+    @NotNull private final Function<? super S, ?> myKeyFunction;
+    @NotNull private final Set<Object> myKeys = new HashSet<>();
+
+    ObjectKeys(@NotNull final Function<? super S, ?> keyFunction) {
+      myKeyFunction = keyFunction;
+    }
+
+    @Override
+    public boolean add(@NotNull final S item) {
+      return myKeys.add(myKeyFunction.apply(item));
+    }
+
+    @Override
+    public boolean contains(@NotNull final S item) {
+      return myKeys.contains(myKeyFunction.apply(item));
+    }
+  }
+
+  private static class IdKeys<S> implements Keys<S> {
+    @NotNull private final ToLongFunction<? super S> myIdFunction;
+    @NotNull private final GraphFinder.LongHashSet myIds = new GraphFinder.LongHashSet();
+
+    IdKeys(@NotNull final ToLongFunction<? super S> idFunction) {
+      myIdFunction = idFunction;
+    }
+
+    @Override
+    public boolean add(@NotNull final S item) {
+      return myIds.add(myIdFunction.applyAsLong(item));
+    }
+
+    @Override
+    public boolean contains(@NotNull final S item) {
+      return myIds.contains(myIdFunction.applyAsLong(item));
+    }
+  }
+}
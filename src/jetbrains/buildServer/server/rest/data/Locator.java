@@ -127,29 +127,40 @@ public class Locator {
    * @throws LocatorProcessException
    */
   public Locator(@Nullable final String locator, final Metadata metadata, @Nullable final String... supportedDimensions) throws LocatorProcessException {
+    this(locator, metadata, supportedDimensions, parseData(locator, metadata, supportedDimensions));
+  }
+
+  /**
+   * Creates locator from the already parsed data. The data is not modified, so the same instance can be used for several locators.
+   */
+  Locator(@NotNull final String locator, final Metadata metadata, @Nullable final String[] supportedDimensions, @NotNull final ParsedData parsedData) {
     myRawValue = locator;
     myMetadata = new Metadata(metadata);
-    if (StringUtil.isEmpty(locator)) {
-      throw new LocatorProcessException("Invalid locator. Cannot be empty.");
-    }
     mySupportedDimensions = supportedDimensions;
     myUsedDimensions = new HashSet<String>(mySupportedDimensions == null ? 10 : Math.max(mySupportedDimensions.length, 10));
-    String escapedValue = getUnescapedSingleValue(locator, myMetadata);
-    
-    if (escapedValue != null) {
-      mySingleValue = escapedValue;
-      myDimensions = new LinkedHashMap<String, List<String>>();
-    } else if (!myMetadata.extendedMode && !hasDimensions(locator)) {
-      mySingleValue = locator;
-      myDimensions = new LinkedHashMap<String, List<String>>();
-    } else {
-      mySingleValue = null;
+    mySingleValue = parsedData.singleValue;
+    myDimensions = new LinkedHashMap<String, List<String>>(parsedData.dimensions); //value lists are never modified in place, so sharing them is safe
+    if (mySingleValue == null) {
       myHiddenSupportedDimensions.add(HELP_DIMENSION);
       myIgnoreUnusedDimensions.add(HELP_DIMENSION);
-      myDimensions = parse(locator, mySupportedDimensions, myHiddenSupportedDimensions, myMetadata.extendedMode);
     }
   }
 
+  @NotNull
+  static ParsedData parseData(@Nullable final String locator, @NotNull final Metadata metadata, @Nullable final String[] supportedDimensions) throws LocatorProcessException {
+    if (StringUtil.isEmpty(locator)) {
+      throw new LocatorProcessException("Invalid locator. Cannot be empty.");
+    }
+    String escapedValue = getUnescapedSingleValue(locator, metadata);
+
+    if (escapedValue != null) {
+      return new ParsedData(escapedValue, new LinkedHashMap<String, List<String>>());
+    } else if (!metadata.extendedMode && !hasDimensions(locator)) {
+      return new ParsedData(locator, new LinkedHashMap<String, List<String>>());
+    }
+    return new ParsedData(null, parse(locator, supportedDimensions, Collections.singleton(HELP_DIMENSION), metadata.extendedMode));
+  }
+
   /**
    * Creates an empty locator with dimensions.
    */
@@ -231,7 +242,7 @@ public class Locator {
                                                   DIMENSION_NAME_VALUE_DELIMITER +
                                                   DIMENSIONS_DELIMITER + "$";
 
-  private boolean hasDimensions(final @NotNull String locatorText) {
+  private static boolean hasDimensions(final @NotNull String locatorText) {
     if (locatorText.contains(DIMENSION_NAME_VALUE_DELIMITER)) {
       return true;
     }
@@ -255,7 +266,7 @@ public class Locator {
   public static Locator createLocator(@Nullable final String locator, @Nullable final Locator defaults, @Nullable final String[] supportedDimensions) {
     Locator result;
     if (locator != null || defaults == null) {
-      result = new Locator(locator, supportedDimensions);
+      result = ParsedLocatorCache.getInstance().createLocator(locator, supportedDimensions);
     } else {
       result = Locator.createEmptyLocator(supportedDimensions);
     }
@@ -1084,6 +1095,20 @@ public class Locator {
     return getStringRepresentation();
   }
 
+  /**
+   * Result of parsing locator text: either single value or dimensions with their values.
+   * Should not be modified after creation as it can be shared between several Locator instances.
+   */
+  static class ParsedData {
+    @Nullable final String singleValue;
+    @NotNull final LinkedHashMap<String, List<String>> dimensions;
+
+    ParsedData(@Nullable final String singleValue, @NotNull final LinkedHashMap<String, List<String>> dimensions) {
+      this.singleValue = singleValue;
+      this.dimensions = dimensions;
+    }
+  }
+
   public static class Metadata {
     final boolean extendedMode;
     final boolean surroundingBracesHaveSpecialMeaning;
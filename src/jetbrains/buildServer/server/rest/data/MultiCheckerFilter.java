@@ -17,39 +17,203 @@
 package jetbrains.buildServer.server.rest.data;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Yegor.Yarko
  *         Date: 09.09.2009
  */
 public class MultiCheckerFilter<T> implements ItemFilter<T> {
-  @NotNull private final List<FilterConditionChecker<T>> myCheckers;
+  /**
+   * Cost hints: approximate time of a single check in nanoseconds, used to order the conditions until the actual time is measured
+   */
+  public static final long COST_CHEAP = 100; // comparing fields of the item
+  public static final long COST_DEFAULT = 1000;
+  public static final long COST_EXPENSIVE = 100 * 1000; // loading item data e.g. revisions, parameters, statistic values
+
+  public static final String REORDER_ENABLED_PROPERTY = "rest.finder.filter.reorder.enabled";
+  private static final int SAMPLE_INTERVAL = Math.max(1, TeamCityProperties.getInteger("rest.finder.filter.reorder.sampleInterval", 8));
+  private static final int REORDER_INTERVAL = Math.max(1, TeamCityProperties.getInteger("rest.finder.filter.reorder.interval", 256)); // in samples
+  private static final int MIN_SAMPLES = 8;
+
+  @NotNull private final List<Condition<T>> myGuards;
+  @NotNull private final List<Condition<T>> myConditions;
+  @NotNull private volatile Condition<T>[] myOrder; // myConditions in the current checking order
+  private boolean myReorderable = false;
+  @NotNull private final AtomicLong myCheckedItemsCount = new AtomicLong();
+  @Nullable private final FinderProfile.Invocation myProfiledInvocation;
 
   public MultiCheckerFilter() {
-    myCheckers = new ArrayList<FilterConditionChecker<T>>();
+    this(true);
+  }
+
+  /**
+   * @param profiled false for the filters nested into other conditions so that the conditions time is not recorded twice while profiling
+   */
+  MultiCheckerFilter(final boolean profiled) {
+    myGuards = new ArrayList<Condition<T>>();
+    myConditions = new ArrayList<Condition<T>>();
+    myOrder = toArray(myConditions);
+    myProfiledInvocation = profiled ? FinderProfile.getCurrentInvocation() : null;
   }
 
   public MultiCheckerFilter<T> add(FilterConditionChecker<T> checker) {
-    myCheckers.add(checker);
+    return add(null, checker);
+  }
+
+  /**
+   * @param name description of the condition (e.g. the dimensions it checks) to report while profiling
+   */
+  public MultiCheckerFilter<T> add(@Nullable String name, FilterConditionChecker<T> checker) {
+    return add(name, COST_DEFAULT, checker);
+  }
+
+  /**
+   * @param costHint approximate time of the check in nanoseconds, see COST_* constants
+   */
+  public MultiCheckerFilter<T> add(@Nullable String name, long costHint, FilterConditionChecker<T> checker) {
+    myConditions.add(new Condition<T>(getName(name, "#" + myConditions.size(), checker), costHint, myConditions.size(), checker));
+    myOrder = sort(toArray(myConditions));
+    return this;
+  }
+
+  /**
+   * Adds a condition which is always checked before all the conditions added via add() methods, so that they are never invoked for the items
+   * not included by the guard (e.g. the items the current user cannot view)
+   */
+  public MultiCheckerFilter<T> addGuard(@Nullable String name, FilterConditionChecker<T> checker) {
+    myGuards.add(new Condition<T>(getName(name, "guard #" + myGuards.size(), checker), COST_DEFAULT, myGuards.size(), checker));
+    return this;
+  }
+
+  /**
+   * Allows to check the conditions in the order other than they were added: the conditions with lower cost and higher probability to reject an item
+   * are checked first. The cost and the probability are initially estimated from the cost hints and then adjusted from the statistics collected
+   * for a sample of the checked items.
+   * Should only be called when all the conditions are independent: the result of a condition does not depend on whether other conditions were checked
+   * and a condition does not fail for the items rejected by others. Can be disabled via "rest.finder.filter.reorder.enabled" internal property.
+   */
+  public MultiCheckerFilter<T> reorderable() {
+    myReorderable = TeamCityProperties.getBooleanOrTrue(REORDER_ENABLED_PROPERTY);
+    myOrder = sort(toArray(myConditions));
     return this;
   }
 
   public int getSubFiltersCount(){
-    return myCheckers.size();
+    return myGuards.size() + myConditions.size();
   }
 
   public boolean isIncluded(@NotNull T item) {
-    for (FilterConditionChecker<T> checker : myCheckers) {
-      if (!checker.isIncluded(item)) {
+    for (Condition<T> guard : myGuards) {
+      if (!check(guard, item, false)) {
         return false;
       }
     }
-    return true;
+    final Condition<T>[] order = myOrder;
+    final long sampleNumber = myReorderable && order.length > 1 ? getSampleNumber() : 0;
+    try {
+      for (Condition<T> condition : order) {
+        if (!check(condition, item, sampleNumber > 0)) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      // reordering more often while there are few samples
+      if (sampleNumber > 0 && ((sampleNumber & (sampleNumber - 1)) == 0 || sampleNumber % REORDER_INTERVAL == 0)) {
+        myOrder = sort(order);
+      }
+    }
+  }
+
+  /**
+   * @return number of the sample if the statistics should be collected while checking the current item, 0 otherwise
+   */
+  private long getSampleNumber() {
+    final long count = myCheckedItemsCount.incrementAndGet();
+    return count % SAMPLE_INTERVAL == 0 ? count / SAMPLE_INTERVAL : 0;
+  }
+
+  private boolean check(@NotNull final Condition<T> condition, @NotNull final T item, final boolean sample) {
+    if (myProfiledInvocation == null && !sample) {
+      return condition.myChecker.isIncluded(item);
+    }
+    final long startTime = System.nanoTime();
+    final boolean included = condition.myChecker.isIncluded(item);
+    final long time = System.nanoTime() - startTime;
+    if (myProfiledInvocation != null) {
+      myProfiledInvocation.conditionChecked(condition.myName, time, included);
+    }
+    if (sample) {
+      condition.sampled(time, included);
+    }
+    return included;
+  }
+
+  @NotNull
+  private Condition<T>[] sort(@NotNull final Condition<T>[] conditions) {
+    if (!myReorderable || conditions.length < 2) return conditions;
+    final Condition<T>[] result = Arrays.copyOf(conditions, conditions.length);
+    final double[] ranks = new double[result.length]; //computing ranks once as the statistics can change while sorting
+    for (Condition<T> condition : result) {
+      ranks[condition.myIndex] = condition.getRank();
+    }
+    Arrays.sort(result, Comparator.comparingDouble((Condition<T> c) -> ranks[c.myIndex]).thenComparingInt(c -> c.myIndex));
+    return result;
+  }
+
+  @NotNull
+  private static <T> String getName(@Nullable final String name, @NotNull final String defaultPrefix, @NotNull final FilterConditionChecker<T> checker) {
+    return name != null ? name : defaultPrefix + " " + checker.getClass().getName().replaceFirst("^.*\\.", "");
+  }
+
+  @SuppressWarnings("unchecked")
+  @NotNull
+  private static <T> Condition<T>[] toArray(@NotNull final List<Condition<T>> conditions) {
+    return conditions.toArray(new Condition[conditions.size()]);
   }
 
   public boolean shouldStop(@NotNull final T item) {
     return false;
   }
+
+  private static class Condition<T> {
+    @NotNull private final String myName;
+    private final long myCostHint;
+    private final int myIndex;
+    @NotNull private final FilterConditionChecker<T> myChecker;
+    @NotNull private final LongAdder mySamplesCount = new LongAdder();
+    @NotNull private final LongAdder mySamplesTimeNanos = new LongAdder();
+    @NotNull private final LongAdder mySamplesRejected = new LongAdder();
+
+    Condition(@NotNull final String name, final long costHint, final int index, @NotNull final FilterConditionChecker<T> checker) {
+      myName = name;
+      myCostHint = Math.max(1, costHint);
+      myIndex = index;
+      myChecker = checker;
+    }
+
+    void sampled(final long timeNanos, final boolean included) {
+      mySamplesTimeNanos.add(timeNanos);
+      if (!included) mySamplesRejected.increment();
+      mySamplesCount.increment(); //incremented last so that the count is never ahead of the other values
+    }
+
+    /**
+     * @return expected time spent on the condition per one rejected item, the conditions with lower rank are checked first
+     */
+    double getRank() {
+      final long samples = mySamplesCount.sum();
+      final double cost = samples < MIN_SAMPLES ? myCostHint : Math.max(1.0, (double)mySamplesTimeNanos.sum() / samples);
+      final double rejectProbability = (mySamplesRejected.sum() + 1.0) / (samples + 2.0); // 0.5 when nothing is known yet
+      return cost / rejectProbability;
+    }
+  }
 }
@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.server.rest.data;
 
+import java.util.Collections;
 import java.util.List;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -33,6 +34,7 @@ public class PagedSearchResult<T> {
   public final boolean myLookupLimitReached;
   @Nullable public final Long myLookupLimit;
   @Nullable private T myLastProcessedItem;
+  @Nullable private String myNextCursor;
 
   public PagedSearchResult(@NotNull final List<T> entries, @Nullable final Long requestedStart, @Nullable final Integer requestedCount) {
     myEntries = entries;
@@ -56,11 +58,39 @@ public class PagedSearchResult<T> {
     myLastProcessedItem = lastProcessedItem;
   }
 
+  /**
+   * Creates result for the case when the found items were passed for processing one by one instead of collecting them, see {@link FinderImpl#processItems(String, jetbrains.buildServer.util.ItemProcessor)}
+   * @param processedEntriesCount number of the items found and passed for processing
+   */
+  public PagedSearchResult(final int processedEntriesCount, @Nullable final Long requestedStart, @Nullable final Integer requestedCount,
+                           @Nullable final Long actuallyProcessedCount, @Nullable final Long lookupLimit, final boolean lookupLimitReached, @Nullable final T lastProcessedItem) {
+    myEntries = Collections.emptyList();
+    myActualCount = processedEntriesCount;
+    myStart = requestedStart;
+    myCount = requestedCount;
+    myActuallyProcessedCount = actuallyProcessedCount;
+    myLookupLimit = lookupLimit;
+    myLookupLimitReached = lookupLimitReached;
+    myLastProcessedItem = lastProcessedItem;
+  }
+
   @Nullable
   public T getLastProcessedItem() {
     return myLastProcessedItem;
   }
 
+  /**
+   * @return cursor to retrieve the next page via "after" locator dimension, null if cursors are not supported or there are no more items
+   */
+  @Nullable
+  public String getNextCursor() {
+    return myNextCursor;
+  }
+
+  void setNextCursor(@Nullable final String nextCursor) {
+    myNextCursor = nextCursor;
+  }
+
   public boolean isNextPageAvailable(){
     return myCount != null && myActualCount >= myCount || myLookupLimit != null && myLookupLimitReached;
   }
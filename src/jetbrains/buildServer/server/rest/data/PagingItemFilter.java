@@ -64,6 +64,35 @@ public class PagingItemFilter<T> implements ItemFilter<T> {
     return myFilter.shouldStop(item);
   }
 
+  /**
+   * Same as {@link #isIncluded(Object)}, but does not remember the item as the last processed one, so can be called from several threads
+   */
+  boolean isIncludedByFilter(@NotNull final T item) {
+    return myFilter.isIncluded(item);
+  }
+
+  void setLastProcessedItem(@Nullable final T item) {
+    myLastProcessedItem = item;
+  }
+
+  /**
+   * @return the number of items which can still be processed before reaching lookupLimit or null if there is no limit
+   */
+  @Nullable
+  Long getRemainingLookupLimit(final long processedItemsIndex) {
+    if (myLookupLimit == null) return null;
+    return Math.max(0, myLookupLimit - processedItemsIndex);
+  }
+
+  /**
+   * @return the number of matched items which are still necessary to fill the page or null if there is no count limit
+   */
+  @Nullable
+  Long getRemainingCount(final long matchedItemsIndex) {
+    if (myCount == null) return null;
+    return Math.max(0, myActualStart + myCount - matchedItemsIndex);
+  }
+
 
   @Nullable
   public Long getStart() {
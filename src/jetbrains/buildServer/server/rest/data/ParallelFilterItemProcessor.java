@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.server.rest.errors.OperationException;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.ItemProcessor;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Processes items of an ItemHolder in chunks: the items of a chunk are checked by the filter on a fork-join pool and then are passed
+ * to the {@link FilterItemProcessor} in the original order, so the result (including start, count and lookupLimit handling) is the same as with sequential processing.
+ * When the count is limited, the first chunk holds only the number of items still necessary to fill the page and each next chunk is twice as large
+ * up to "rest.finder.parallelFiltering.chunkSize" internal property (1000 by default), so that few items are checked in vain for small pages.
+ * Is used for the finders with expensive filters, see {@link FinderImpl#OPTIONS_PARALLEL}. The pool is owned by {@link ParallelFilteringExecutor}.
+ * {@link #finish()} should be called after the items are processed by the ItemHolder.
+ */
+class ParallelFilterItemProcessor<T> implements ItemProcessor<T> {
+  static final String CHUNK_SIZE_PROPERTY = "rest.finder.parallelFiltering.chunkSize";
+  static final String MIN_SLICE_SIZE_PROPERTY = "rest.finder.parallelFiltering.minSliceSize";
+
+  @NotNull private final FilterItemProcessor<T> myProcessor;
+  @NotNull private final PagingItemFilter<T> myFilter;
+  @NotNull private final TaskWrapper myTaskWrapper;
+  @NotNull private final ForkJoinPool myPool;
+  private final int myChunkSize;
+  private int myCurrentChunkSize;
+  @NotNull private final List<T> myChunk;
+  private boolean myStopped = false;
+
+  interface TaskWrapper {
+    /**
+     * @return task which runs the passed one in the context of the thread where the wrapper was created
+     */
+    @NotNull
+    Runnable wrap(@NotNull Runnable task);
+  }
+
+  ParallelFilterItemProcessor(@NotNull final FilterItemProcessor<T> processor, @NotNull final TaskWrapper taskWrapper, @NotNull final ForkJoinPool pool) {
+    myProcessor = processor;
+    myFilter = processor.getFilter();
+    myTaskWrapper = taskWrapper;
+    myPool = pool;
+    myChunkSize = Math.max(1, TeamCityProperties.getInteger(CHUNK_SIZE_PROPERTY, 1000));
+    myChunk = new ArrayList<>();
+    myCurrentChunkSize = getNextChunkSize(0);
+  }
+
+  @Override
+  public boolean processItem(final T item) {
+    if (myStopped) return false;
+    myChunk.add(item);
+    if (myChunk.size() >= myCurrentChunkSize) {
+      final boolean result = processChunk();
+      myCurrentChunkSize = getNextChunkSize(myCurrentChunkSize);
+      return result;
+    }
+    return true;
+  }
+
+  private int getNextChunkSize(final int previousChunkSize) {
+    final Long remainingCount = myFilter.getRemainingCount(myProcessor.getProcessedItemsCount());
+    if (remainingCount == null) return myChunkSize;
+    if (remainingCount == 0) return 1; //the page is already filled, the next item only stops the processing
+    return (int)Math.min(myChunkSize, Math.max(1, Math.max(remainingCount, 2L * previousChunkSize)));
+  }
+
+  public void finish() {
+    if (!myStopped) {
+      processChunk();
+    }
+  }
+
+  private boolean processChunk() {
+    final int size = myChunk.size();
+    if (size == 0) return true;
+    final Long remainingLookupLimit = myFilter.getRemainingLookupLimit(myProcessor.getTotalItemsProcessed());
+    final Long remainingCount = myFilter.getRemainingCount(myProcessor.getProcessedItemsCount());
+    //items after lookupLimit or after the filled page are never included by the processor, so there is no need to check them
+    final int checkedItemsCount = remainingCount != null && remainingCount == 0 ? 0
+                                  : remainingLookupLimit == null ? size : (int)Math.min(size, remainingLookupLimit);
+
+    final boolean[] shouldStop = new boolean[size];
+    final boolean[] included = new boolean[size];
+    evaluate(checkedItemsCount, shouldStop, included);
+
+    for (int i = 0; i < size; i++) {
+      if (!myProcessor.processItem(myChunk.get(i), shouldStop[i], included[i])) {
+        myStopped = true;
+        break;
+      }
+    }
+    myChunk.clear();
+    return !myStopped;
+  }
+
+  private void evaluate(final int itemsCount, @NotNull final boolean[] shouldStop, @NotNull final boolean[] included) {
+    final int minSliceSize = Math.max(1, TeamCityProperties.getInteger(MIN_SLICE_SIZE_PROPERTY, 10));
+    final int slicesCount = Math.max(1, Math.min(myPool.getParallelism(), itemsCount / minSliceSize));
+    final int sliceSize = (itemsCount + slicesCount - 1) / slicesCount;
+    final AtomicInteger firstStopIndex = new AtomicInteger(Integer.MAX_VALUE);
+
+    final List<Callable<Object>> tasks = new ArrayList<>(slicesCount);
+    for (int sliceStart = 0; sliceStart < itemsCount; sliceStart += sliceSize) {
+      final int from = sliceStart;
+      final int to = Math.min(sliceStart + sliceSize, itemsCount);
+      tasks.add(Executors.callable(myTaskWrapper.wrap(() -> {
+        for (int i = from; i < to; i++) {
+          if (i > firstStopIndex.get()) return; // items after the one stopping the processing are not necessary
+          final T item = myChunk.get(i);
+          if (myFilter.shouldStop(item)) {
+            shouldStop[i] = true;
+            firstStopIndex.accumulateAndGet(i, Math::min);
+            return;
+          }
+          included[i] = myFilter.isIncludedByFilter(item);
+        }
+      })));
+    }
+
+    final List<Future<Object>> futures;
+    try {
+      futures = myPool.invokeAll(tasks);
+      for (Future<Object> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new OperationException("Interrupted while filtering items", e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new OperationException("Error while filtering items: " + cause, e);
+    }
+  }
+}
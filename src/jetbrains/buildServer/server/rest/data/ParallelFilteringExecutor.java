@@ -0,0 +1,68 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Owns the fork-join pool used for the parallel filtering of finder items, see {@link FinderImpl#OPTIONS_PARALLEL}. The pool is created on first use
+ * with the parallelism set by "rest.finder.parallelFiltering.threads" internal property (the number of processors by default) and is shut down with the server.
+ */
+public class ParallelFilteringExecutor extends BuildServerAdapter {
+  public static final String PARALLELISM_PROPERTY = "rest.finder.parallelFiltering.threads";
+
+  @Nullable private ForkJoinPool myPool;
+  private boolean myShutdown = false;
+
+  public ParallelFilteringExecutor(@NotNull final SBuildServer server) {
+    server.addListener(this);
+  }
+
+  /**
+   * @return null if the server is shutting down
+   */
+  @Nullable
+  public synchronized ForkJoinPool getPool() {
+    if (myShutdown) return null;
+    if (myPool == null) {
+      myPool = new ForkJoinPool(Math.max(1, TeamCityProperties.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors())));
+    }
+    return myPool;
+  }
+
+  /**
+   * @return true if the current thread is a thread of the pool
+   */
+  public synchronized boolean isPoolThread() {
+    return myPool != null && ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == myPool;
+  }
+
+  @Override
+  public synchronized void serverShutdown() {
+    myShutdown = true;
+    if (myPool != null) {
+      myPool.shutdownNow();
+      myPool = null;
+    }
+  }
+}
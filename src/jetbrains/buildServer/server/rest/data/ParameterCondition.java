@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import jetbrains.buildServer.parameters.ParametersProvider;
 import jetbrains.buildServer.parameters.impl.MapParametersProviderImpl;
 import jetbrains.buildServer.requirements.RequirementType;
@@ -57,6 +58,7 @@ public class ParameterCondition {
   @NotNull private final ValueCondition myValueCondition;
   private final boolean myNameCheckShouldMatchAll;
   @Nullable private final Boolean myInheritedCondition;
+  @Nullable private final String myExactName; // not null if the name condition matches a single name: a lookup by name is enough then
 
   private ParameterCondition(@NotNull final ValueCondition nameCondition,
                              @NotNull final ValueCondition valueCondition,
@@ -66,6 +68,8 @@ public class ParameterCondition {
     myNameCondition = nameCondition;
     myNameCheckShouldMatchAll = nameCheckShouldMatchAll;
     myInheritedCondition = inherited;
+    final String exactName = nameCondition.getConstantValueIfSimpleEqualsCondition();
+    myExactName = StringUtil.isEmpty(exactName) ? null : exactName;
   }
 
   @NotNull
@@ -243,10 +247,8 @@ public class ParameterCondition {
   }
 
   private boolean matchesInternal(final @NotNull ParametersProvider parametersProvider) {
-    String constantValueIfSimpleEqualsCondition = myNameCondition.getConstantValueIfSimpleEqualsCondition();
-    if (!StringUtil.isEmpty(constantValueIfSimpleEqualsCondition)) {
-      final String value = parametersProvider.get(constantValueIfSimpleEqualsCondition);
-      return myValueCondition.matches(value);
+    if (myExactName != null) {
+      return myValueCondition.matches(parametersProvider.get(myExactName));
     }
     boolean matched = false;
     for (Map.Entry<String, String> parameter : parametersProvider.getAll().entrySet()) {
@@ -265,7 +267,19 @@ public class ParameterCondition {
   }
 
   public boolean matches(@NotNull final InheritableUserParametersHolder parametersHolder) {
-    return matches(new MapParametersProviderImpl(parametersHolder.getParameters()), new MapParametersProviderImpl(parametersHolder.getOwnParameters()));
+    return matches(parametersHolder::getParameters, parametersHolder::getOwnParameters);
+  }
+
+  /**
+   * @param parameters    all the parameters
+   * @param ownParameters not inherited parameters, are calculated only if the condition needs them
+   */
+  public boolean matches(@NotNull final Supplier<Map<String, String>> parameters, @NotNull final Supplier<Map<String, String>> ownParameters) {
+    if (myInheritedCondition == null) {
+      //own parameters are not used, do not calculate them
+      return matchesInternal(new MapParametersProviderImpl(parameters.get()));
+    }
+    return matches(new MapParametersProviderImpl(parameters.get()), new MapParametersProviderImpl(ownParameters.get()));
   }
 
   /**
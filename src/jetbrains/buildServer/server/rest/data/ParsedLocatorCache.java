@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.util.*;
+import jetbrains.buildServer.server.rest.errors.LocatorProcessException;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded cache of parsed locator texts.
+ * The same locator texts are sent by clients over and over, so the parsed structure is stored and each new {@link Locator} is created from it
+ * without re-parsing. Each created locator has its own used/unused dimensions tracking, so it can be used as usual.
+ * Parsing errors are not cached.
+ */
+public class ParsedLocatorCache {
+  public static final String CACHE_ENABLED_PROPERTY = "rest.locator.parseCache.enabled";
+  public static final String CACHE_SIZE_PROPERTY = "rest.locator.parseCache.size";
+  public static final String MAX_CACHED_LOCATOR_LENGTH_PROPERTY = "rest.locator.parseCache.maxLocatorLength";
+
+  private static final ParsedLocatorCache INSTANCE = new ParsedLocatorCache(TeamCityProperties.getInteger(CACHE_SIZE_PROPERTY, 1000));
+
+  @NotNull private final Cache<Key, Locator.ParsedData> myCache;
+
+  ParsedLocatorCache(final int maxSize) {
+    myCache = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+  }
+
+  @NotNull
+  public static ParsedLocatorCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Same as {@link Locator#Locator(String, String...)}, but uses the cached parsing result if available
+   */
+  @NotNull
+  public Locator createLocator(@Nullable final String locatorText, @Nullable final String[] supportedDimensions) throws LocatorProcessException {
+    final Locator.Metadata metadata = new Locator.Metadata(false, true);
+    if (locatorText == null || !isCacheable(locatorText)) {
+      return new Locator(locatorText, metadata, supportedDimensions);
+    }
+
+    //base64 unescaping depends on the property, so it is a part of the key
+    final Key key = new Key(locatorText, metadata, supportedDimensions, TeamCityProperties.getBooleanOrTrue("rest.locator.allowBase64"));
+    Locator.ParsedData parsedData = myCache.getIfPresent(key);
+    if (parsedData == null) {
+      parsedData = makeUnmodifiable(Locator.parseData(locatorText, metadata, supportedDimensions));
+      myCache.put(key, parsedData);
+    }
+    return new Locator(locatorText, metadata, supportedDimensions, parsedData);
+  }
+
+  private static boolean isCacheable(@NotNull final String locatorText) {
+    if (!TeamCityProperties.getBooleanOrTrue(CACHE_ENABLED_PROPERTY)) return false;
+    return locatorText.length() <= TeamCityProperties.getInteger(MAX_CACHED_LOCATOR_LENGTH_PROPERTY, 2000);
+  }
+
+  @NotNull
+  private static Locator.ParsedData makeUnmodifiable(@NotNull final Locator.ParsedData data) {
+    LinkedHashMap<String, List<String>> dimensions = new LinkedHashMap<>(data.dimensions.size());
+    for (Map.Entry<String, List<String>> entry : data.dimensions.entrySet()) {
+      dimensions.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+    }
+    return new Locator.ParsedData(data.singleValue, dimensions);
+  }
+
+  public void invalidateAll() {
+    myCache.invalidateAll();
+  }
+
+  @NotNull
+  public Map<String, String> getStats() {
+    CacheStats stats = myCache.stats();
+    Map<String, String> result = new LinkedHashMap<>();
+    result.put("enabled", String.valueOf(TeamCityProperties.getBooleanOrTrue(CACHE_ENABLED_PROPERTY)));
+    result.put("size", String.valueOf(myCache.size()));
+    result.put("hitCount", String.valueOf(stats.hitCount()));
+    result.put("missCount", String.valueOf(stats.missCount()));
+    result.put("hitRate", String.format(Locale.ENGLISH, "%.3f", stats.hitRate()));
+    result.put("evictionCount", String.valueOf(stats.evictionCount()));
+    return result;
+  }
+
+  private static class Key {
+    @NotNull private final String myText;
+    private final boolean myExtendedMode;
+    private final boolean mySurroundingBracesHaveSpecialMeaning;
+    @Nullable private final List<String> mySupportedDimensions;
+    private final boolean myAllowBase64;
+    private final int myHashCode;
+
+    Key(@NotNull final String text, @NotNull final Locator.Metadata metadata, @Nullable final String[] supportedDimensions, final boolean allowBase64) {
+      myText = text;
+      myExtendedMode = metadata.extendedMode;
+      mySurroundingBracesHaveSpecialMeaning = metadata.surroundingBracesHaveSpecialMeaning;
+      mySupportedDimensions = supportedDimensions == null ? null : Arrays.asList(supportedDimensions.clone());
+      myAllowBase64 = allowBase64;
+      myHashCode = Objects.hash(myText, myExtendedMode, mySurroundingBracesHaveSpecialMeaning, mySupportedDimensions, myAllowBase64);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      final Key key = (Key)o;
+      return myHashCode == key.myHashCode &&
+             myExtendedMode == key.myExtendedMode &&
+             mySurroundingBracesHaveSpecialMeaning == key.mySurroundingBracesHaveSpecialMeaning &&
+             myAllowBase64 == key.myAllowBase64 &&
+             myText.equals(key.myText) &&
+             Objects.equals(mySupportedDimensions, key.mySupportedDimensions);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHashCode;
+    }
+  }
+}
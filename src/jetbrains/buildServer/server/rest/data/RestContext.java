@@ -30,9 +30,18 @@ public class RestContext {
   private final static ThreadLocal<RestContext> ourThreadLocalInstance = new ThreadLocal<>();
 
   private final Function<String, Object> myFunction;
+  @Nullable private final Long myUserId;
 
   public RestContext(Function<String, Object> function) {
+    this(function, null);
+  }
+
+  /**
+   * @param userId id of the user who sent the request
+   */
+  public RestContext(Function<String, Object> function, @Nullable Long userId) {
     myFunction = function;
+    myUserId = userId;
   }
 
 
@@ -61,6 +70,11 @@ public class RestContext {
     }
   }
 
+  @Nullable
+  public Long getUserId() {
+    return myUserId;
+  }
+
   @Nullable
   public Object getVar(@NotNull final String name) {
     if (!isValidName(name)) {
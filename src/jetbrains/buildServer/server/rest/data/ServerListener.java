@@ -17,8 +17,13 @@
 package jetbrains.buildServer.server.rest.data;
 
 import java.util.Date;
-import jetbrains.buildServer.serverSide.BuildServerAdapter;
-import jetbrains.buildServer.serverSide.SBuildServer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.users.User;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Yegor.Yarko
@@ -26,6 +31,7 @@ import jetbrains.buildServer.serverSide.SBuildServer;
  */
 public class ServerListener extends BuildServerAdapter {
   protected Date myServerStartTime;
+  private final List<Consumer<SBuildType>> myBuildsChangeListeners = new CopyOnWriteArrayList<>();
 
   public ServerListener(final SBuildServer server) {
     server.addListener(this);
@@ -39,4 +45,70 @@ public class ServerListener extends BuildServerAdapter {
   public void serverStartup() {
     myServerStartTime = new Date();
   }
+
+  /**
+   * @param listener is invoked when the set of builds or the builds state changes: builds are queued, removed from the queue, started, finished, deleted, pinned
+   */
+  public void addBuildsChangeListener(@NotNull final Runnable listener) {
+    myBuildsChangeListeners.add(buildType -> listener.run());
+  }
+
+  /**
+   * The same as {@link #addBuildsChangeListener(Runnable)}, but the listener gets the build type of the changed builds
+   * or null if the change can affect the builds of any build type (e.g. the queue is reordered or the build type is not known)
+   */
+  public void addBuildTypeBuildsChangeListener(@NotNull final Consumer<SBuildType> listener) {
+    myBuildsChangeListeners.add(listener);
+  }
+
+  private void buildsChanged(@Nullable final SBuildType buildType) {
+    for (Consumer<SBuildType> listener : myBuildsChangeListeners) {
+      listener.accept(buildType);
+    }
+  }
+
+  @Override
+  public void buildTypeAddedToQueue(@NotNull final SQueuedBuild queuedBuild) {
+    buildsChanged(queuedBuild.getBuildType());
+  }
+
+  @Override
+  public void buildRemovedFromQueue(@NotNull final SQueuedBuild queued, final User user, final String comment) {
+    buildsChanged(queued.getBuildType());
+  }
+
+  @Override
+  public void buildQueueOrderChanged() {
+    buildsChanged(null);
+  }
+
+  @Override
+  public void buildStarted(@NotNull final SRunningBuild build) {
+    buildsChanged(build.getBuildType());
+  }
+
+  @Override
+  public void buildFinished(@NotNull final SRunningBuild build) {
+    buildsChanged(build.getBuildType());
+  }
+
+  @Override
+  public void buildInterrupted(@NotNull final SRunningBuild build) {
+    buildsChanged(build.getBuildType());
+  }
+
+  @Override
+  public void entryDeleted(@NotNull final SFinishedBuild entry) {
+    buildsChanged(entry.getBuildType());
+  }
+
+  @Override
+  public void buildPinned(@NotNull final SBuild build, @Nullable final User user, @Nullable final String comment) {
+    buildsChanged(build.getBuildType());
+  }
+
+  @Override
+  public void buildUnpinned(@NotNull final SBuild build, @Nullable final User user, @Nullable final String comment) {
+    buildsChanged(build.getBuildType());
+  }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the archives generated into temporary files for ranged requests (see {@link ArchiveElement#spool(java.util.function.Supplier, SpooledArchivesCache)}), so that
+ * resumed and concurrent ranged downloads of the same archive (with the same {@link ArchiveElement#getLayoutKey()}) do not generate it again.
+ * Concurrent requests of the same archive wait for the single generation.
+ * An archive not used for "rest.files.archive.spoolCache.ttlSeconds" internal property (600 by default, 0 disables the reuse) is deleted.
+ * The least recently used archives are deleted when the total size of the kept archives exceeds "rest.files.archive.spoolCache.maxSizeMb" (10240 by default).
+ * The archives being sent are never deleted. All the archives are deleted on the server shutdown.
+ */
+public class SpooledArchivesCache extends BuildServerAdapter {
+  public static final String TTL_PROPERTY = "rest.files.archive.spoolCache.ttlSeconds";
+  public static final String MAX_SIZE_PROPERTY = "rest.files.archive.spoolCache.maxSizeMb";
+
+  @NotNull private final Map<String, SpooledArchive> myArchives = new HashMap<>(); //guarded by this
+  @Nullable private ScheduledExecutorService myCleaner; //guarded by this
+  private boolean myShutdown = false; //guarded by this
+
+  public interface ArchiveWriter {
+    void write(@NotNull File file) throws IOException;
+  }
+
+  public SpooledArchivesCache(@NotNull final SBuildServer server) {
+    server.addListener(this);
+  }
+
+  /**
+   * @param key    identifies the archive content
+   * @param writer writes the archive into the passed file if the archive is not yet generated
+   * @return the generated archive, {@link SpooledArchive#release()} should be called once the archive is sent
+   */
+  @NotNull
+  public SpooledArchive acquire(@NotNull final String key, @NotNull final ArchiveWriter writer) throws IOException {
+    final SpooledArchive result;
+    synchronized (this) {
+      final SpooledArchive existing = myArchives.get(key);
+      if (existing != null) {
+        result = existing;
+      } else {
+        result = new SpooledArchive(key);
+        if (!myShutdown && getTtlMs() > 0) myArchives.put(key, result);
+      }
+      result.myUsages++;
+    }
+    boolean generated = false;
+    try {
+      result.generate(writer);
+      generated = true;
+    } finally {
+      if (!generated) result.release();
+    }
+    return result;
+  }
+
+  private void released(@NotNull final SpooledArchive archive) {
+    synchronized (this) {
+      archive.myUsages--;
+      archive.myLastUsed = System.currentTimeMillis();
+      if (myArchives.get(archive.myKey) != archive || !archive.isGenerated()) {
+        //not reused: already evicted, the reuse is disabled or the generation failed
+        if (archive.myUsages == 0) {
+          myArchives.remove(archive.myKey, archive);
+          archive.delete();
+        }
+        return;
+      }
+      if (myCleaner == null && !myShutdown) {
+        myCleaner = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("REST API spooled archives cleanup"));
+        myCleaner.scheduleWithFixedDelay(this::cleanup, 1, 1, TimeUnit.MINUTES);
+      }
+    }
+    cleanup();
+  }
+
+  synchronized void cleanup() {
+    final long now = System.currentTimeMillis();
+    final long ttl = getTtlMs();
+    final List<SpooledArchive> unused = new ArrayList<>();
+    long totalSize = 0;
+    for (Iterator<SpooledArchive> it = myArchives.values().iterator(); it.hasNext(); ) {
+      final SpooledArchive archive = it.next();
+      if (archive.myUsages > 0) {
+        totalSize += archive.getSize();
+      } else if (now - archive.myLastUsed > ttl) {
+        it.remove();
+        archive.delete();
+      } else {
+        totalSize += archive.getSize();
+        unused.add(archive);
+      }
+    }
+    final long maxSize = TeamCityProperties.getLong(MAX_SIZE_PROPERTY, 10240) * 1024 * 1024;
+    if (totalSize <= maxSize) return;
+    unused.sort(Comparator.comparingLong(archive -> archive.myLastUsed));
+    for (SpooledArchive archive : unused) {
+      if (totalSize <= maxSize) break;
+      totalSize -= archive.getSize();
+      myArchives.remove(archive.myKey);
+      archive.delete();
+    }
+  }
+
+  public synchronized int getArchivesCount() {
+    return myArchives.size();
+  }
+
+  private static long getTtlMs() {
+    return TeamCityProperties.getInteger(TTL_PROPERTY, 600) * 1000L;
+  }
+
+  @Override
+  public synchronized void serverShutdown() {
+    myShutdown = true;
+    if (myCleaner != null) {
+      myCleaner.shutdownNow();
+      myCleaner = null;
+    }
+    for (SpooledArchive archive : myArchives.values()) {
+      if (archive.myUsages == 0) archive.delete(); //the archives in use are deleted once released
+    }
+    myArchives.clear();
+  }
+
+  public class SpooledArchive {
+    @NotNull private final String myKey;
+    @Nullable private volatile File myFile;
+    private int myUsages = 0; //guarded by the cache
+    private long myLastUsed = System.currentTimeMillis(); //guarded by the cache
+
+    private SpooledArchive(@NotNull final String key) {
+      myKey = key;
+    }
+
+    private synchronized void generate(@NotNull final ArchiveWriter writer) throws IOException {
+      if (myFile != null) return;
+      final File result = File.createTempFile("rest_archive_", ".zip");
+      boolean written = false;
+      try {
+        writer.write(result);
+        written = true;
+      } finally {
+        if (!written) FileUtil.delete(result);
+      }
+      myFile = result;
+    }
+
+    private boolean isGenerated() {
+      return myFile != null;
+    }
+
+    @NotNull
+    public File getFile() {
+      final File result = myFile;
+      if (result == null) throw new IllegalStateException("The archive is not generated");
+      return result;
+    }
+
+    private long getSize() {
+      final File file = myFile;
+      return file == null ? 0 : file.length();
+    }
+
+    private void delete() {
+      final File file = myFile;
+      myFile = null;
+      if (file != null) FileUtil.delete(file);
+    }
+
+    public void release() {
+      released(this);
+    }
+  }
+}
@@ -64,6 +64,12 @@ public class TypedFinderBuilder<ITEM> {
     @NotNull
     TypedFinderDimension<ITEM, TYPE> hidden();
 
+    /**
+     * @param costHint approximate time of filtering a single item by the dimension, in nanoseconds. See MultiCheckerFilter.COST_* constants.
+     */
+    @NotNull
+    TypedFinderDimension<ITEM, TYPE> filterCost(long costHint);
+
     @NotNull
     TypedFinderDimension<ITEM, TYPE> withDefault(@NotNull String value);
 
@@ -94,6 +100,10 @@ public class TypedFinderBuilder<ITEM> {
     @Override
     TypedFinderDimensionWithDefaultChecker<ITEM, TYPE, TYPE_FOR_FILTER> hidden();
 
+    @NotNull
+    @Override
+    TypedFinderDimensionWithDefaultChecker<ITEM, TYPE, TYPE_FOR_FILTER> filterCost(long costHint);
+
     @NotNull
     @Override
     TypedFinderDimensionWithDefaultChecker<ITEM, TYPE, TYPE_FOR_FILTER> withDefault(@NotNull String value);
@@ -118,6 +128,7 @@ public class TypedFinderBuilder<ITEM> {
     protected Checker<TYPE> myChecker = null;
     protected String myDescription = null;
     protected Boolean myHidden = null;
+    protected Long myFilterCost = null;
 
     public TypedFinderDimensionImpl(@NotNull final Dimension<TYPE> dimension, @NotNull final Type<TYPE> type) {
       myDimension = dimension;
@@ -148,6 +159,10 @@ public class TypedFinderBuilder<ITEM> {
       return myHidden == null ? false : myHidden;
     }
 
+    public long getFilterCost() {
+      return myFilterCost == null ? MultiCheckerFilter.COST_DEFAULT : myFilterCost;
+    }
+
     @Override
     @NotNull
     public TypedFinderDimension<ITEM, TYPE> dimensionChecker(@NotNull final Checker<TYPE> checker) {
@@ -172,6 +187,14 @@ public class TypedFinderBuilder<ITEM> {
       return this;
     }
 
+    @Override
+    @NotNull
+    public TypedFinderDimension<ITEM, TYPE> filterCost(final long costHint) {
+      if (myFilterCost != null) throw new OperationException("Attempt to redefine filter cost: old: '" + getFilterCost() + "', new: '" + costHint + "'");
+      myFilterCost = costHint;
+      return this;
+    }
+
     @Override
     @NotNull
     public TypedFinderDimension<ITEM, TYPE> withDefault(@NotNull final String value) {
@@ -255,6 +278,13 @@ public class TypedFinderBuilder<ITEM> {
       return this;
     }
 
+    @NotNull
+    @Override
+    public TypedFinderDimensionWithDefaultChecker<ITEM, TYPE, TYPE_FOR_FILTER> filterCost(final long costHint) {
+      myOriginal.filterCost(costHint);
+      return this;
+    }
+
     @NotNull
     @Override
     public TypedFinderDimensionWithDefaultChecker<ITEM, TYPE, TYPE_FOR_FILTER> withDefault(@NotNull final String value) {
@@ -551,7 +581,7 @@ public class TypedFinderBuilder<ITEM> {
       public ItemFilter<ITEM> get(@NotNull final DimensionObjects dimensions) {
         final List<TYPE> values = dimensions.get(dimension);
         if (values == null || values.isEmpty()) return null;
-        MultiCheckerFilter<ITEM> result = new MultiCheckerFilter<ITEM>();
+        MultiCheckerFilter<ITEM> result = new MultiCheckerFilter<ITEM>(false);
         for (TYPE value : values) {
           result.add(new ItemFilter<ITEM>() {
             @Override
@@ -1050,10 +1080,19 @@ public class TypedFinderBuilder<ITEM> {
             if (alreadyUsedDimensions.containsAll(wrapper.getUsedDimensions())) continue; //all the dimensions were already used. Is this logic at all needed?
           }
           if (checker == null) continue;
-          result.add(checker); //also support shouldStop
+          result.add(wrapper.getUsedDimensions().isEmpty() ? null : String.join(",", wrapper.getUsedDimensions()), getFilterCost(wrapper.getUsedDimensions()), checker); //also support shouldStop
         }
       }
-      return result;
+      return result.reorderable(); //filters of different dimensions are independent
+    }
+
+    private long getFilterCost(@NotNull final Set<String> dimensionNames) {
+      long result = 0;
+      for (String dimensionName : dimensionNames) {
+        final TypedFinderDimensionImpl dimension = myDimensions.get(dimensionName);
+        if (dimension != null) result = Math.max(result, dimension.getFilterCost());
+      }
+      return result == 0 ? MultiCheckerFilter.COST_DEFAULT : result;
     }
 
     @NotNull
@@ -480,7 +480,7 @@ public class UserFinder extends DelegatingFinder<SUser> {
                                                 return convert(dimension.getAllUsers());
                                               });
 
-      dimensionParameterCondition(PROPERTY).description("user's property").valueForDefaultFilter(item -> getUserPropertiesProvider(item));
+      dimensionParameterCondition(PROPERTY).description("user's property").filterCost(MultiCheckerFilter.COST_EXPENSIVE).valueForDefaultFilter(item -> getUserPropertiesProvider(item));
       dimensionValueCondition(EMAIL).description("user's email").valueForDefaultFilter(item -> item.getEmail());
       dimensionValueCondition(NAME).description("user's display name").valueForDefaultFilter(item -> item.getName());
       dimensionBoolean(HAS_PASSWORD).description("user has not empty password").hidden().valueForDefaultFilter(item -> ((UserImpl)item).hasPassword());
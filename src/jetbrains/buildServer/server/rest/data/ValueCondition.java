@@ -16,6 +16,8 @@
 
 package jetbrains.buildServer.server.rest.data;
 
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import jetbrains.buildServer.requirements.RequirementType;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
 import org.jetbrains.annotations.Contract;
@@ -31,6 +33,10 @@ public class ValueCondition {
   @NotNull private final RequirementType myRequirementType;
   @Nullable private Boolean myIgnoreCase;
 
+  // prepared once as the condition is usually matched against many values
+  @Nullable private final Pattern myPattern;
+  @Nullable private String myLowerCaseParameterValue;
+
   public ValueCondition(@NotNull final RequirementType requirementType, @Nullable final String value, @Nullable final Boolean ignoreCase) {
     myParameterValue = value;
     myRequirementType = requirementType;
@@ -38,6 +44,8 @@ public class ValueCondition {
     if (myRequirementType.isParameterRequired() && myParameterValue == null) {
       throw new BadRequestException("Wrong parameter condition: requirement type '" + requirementType.getName() + "' requires specification of the value");
     }
+    myPattern = isRegexType() ? compile(myParameterValue) : null;
+    myLowerCaseParameterValue = getActualIgnoreCase() ? toLower(myParameterValue) : null;
   }
 
   public boolean getActualIgnoreCase() {
@@ -51,6 +59,7 @@ public class ValueCondition {
 
   public void setIgnoreCase(final boolean ignoreCase) {
     myIgnoreCase = ignoreCase;
+    myLowerCaseParameterValue = ignoreCase ? toLower(myParameterValue) : null;
   }
 
   public boolean matches(@Nullable final String value) {
@@ -64,12 +73,16 @@ public class ValueCondition {
       return false;
     }
     try {
+      if (myPattern != null && value != null) {
+        final boolean matched = myPattern.matcher(getActualIgnoreCase() ? toLower(value) : value).matches();
+        return RequirementType.MATCHES.equals(myRequirementType) == matched;
+      }
       if (getActualIgnoreCase()) {
-        if (myRequirementType.equals(RequirementType.MATCHES) || myRequirementType.equals(RequirementType.DOES_NOT_MATCH)) {
+        if (isRegexType()) {
           //special case as regexp cannot be lowercased
           return myRequirementType.matchValues(myParameterValue, toLower(value));
         }
-        return myRequirementType.matchValues(toLower(myParameterValue), toLower(value));
+        return myRequirementType.matchValues(myLowerCaseParameterValue, toLower(value));
       } else {
         return myRequirementType.matchValues(myParameterValue, value);
       }
@@ -79,9 +92,26 @@ public class ValueCondition {
     }
   }
 
+  private boolean isRegexType() {
+    return myRequirementType.equals(RequirementType.MATCHES) || myRequirementType.equals(RequirementType.DOES_NOT_MATCH);
+  }
+
+  /**
+   * @return null if the pattern cannot be compiled, the matching is then left to RequirementType
+   */
+  @Nullable
+  private static Pattern compile(@Nullable final String regex) {
+    if (regex == null) return null;
+    try {
+      return Pattern.compile(regex);
+    } catch (PatternSyntaxException e) {
+      return null;
+    }
+  }
+
   @Nullable
   @Contract("!null -> !null; null -> null")
-  private String toLower(@Nullable final String value) {
+  private static String toLower(@Nullable final String value) {
     return value == null ? null : value.toLowerCase();
   }
 
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data.build;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.ItemProcessor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Lazily merges the finished builds histories of several agents into a single sequence ordered in the same way as BuildPromotionFinder orders
+ * finished builds: by start date and then by build id, most recent first.
+ * The history of each agent is read in chunks of growing size only when the next build of the agent is needed for the merge,
+ * so retrieving first builds does not load the whole histories of all the agents.
+ * As each chunk is read by a new pass over the history from the most recent build, the chunk which reaches the maximum size reads the rest of the history
+ * in the same pass instead of re-reading the history for every next chunk.
+ */
+public class AgentsBuildHistoryMerger {
+  private static final Comparator<AgentHistory> HEADS_ORDER = (h1, h2) -> {
+    //most recent first
+    final int byStartTime = Long.compare(h2.myStartTime, h1.myStartTime);
+    return byStartTime != 0 ? byStartTime : Long.compare(h2.myBuildId, h1.myBuildId);
+  };
+
+  @NotNull private final BuildsManager myBuildsManager;
+  @NotNull private final List<SBuildAgent> myAgents;
+  private final int myInitialChunkSize;
+  private final int myMaxChunkSize;
+
+  public AgentsBuildHistoryMerger(@NotNull final BuildsManager buildsManager, @NotNull final Collection<SBuildAgent> agents) {
+    myBuildsManager = buildsManager;
+    final Map<Integer, SBuildAgent> uniqueAgents = new LinkedHashMap<>();
+    for (SBuildAgent agent : agents) {
+      uniqueAgents.putIfAbsent(agent.getId(), agent);
+    }
+    myAgents = new ArrayList<>(uniqueAgents.values());
+    myInitialChunkSize = Math.max(1, TeamCityProperties.getInteger("rest.request.builds.agentsHistory.initialChunkSize", 4));
+    myMaxChunkSize = Math.max(myInitialChunkSize, TeamCityProperties.getInteger("rest.request.builds.agentsHistory.maxChunkSize", 1000));
+  }
+
+  /**
+   * @return lazy stream of the finished builds of the agents. No history is read until the first item is requested.
+   */
+  @NotNull
+  public Stream<BuildPromotion> stream() {
+    return StreamSupport.stream(new Spliterators.AbstractSpliterator<BuildPromotion>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+      @Nullable private PriorityQueue<AgentHistory> myHeads;
+
+      @Override
+      public boolean tryAdvance(final Consumer<? super BuildPromotion> action) {
+        if (myHeads == null) {
+          myHeads = new PriorityQueue<>(Math.max(1, myAgents.size()), HEADS_ORDER);
+          for (SBuildAgent agent : myAgents) {
+            final AgentHistory history = new AgentHistory(agent);
+            if (history.advance()) myHeads.add(history);
+          }
+        }
+        final AgentHistory head = myHeads.poll();
+        if (head == null) return false;
+        action.accept(head.myCurrent.getBuildPromotion());
+        if (head.advance()) myHeads.add(head);
+        return true;
+      }
+    }, false);
+  }
+
+  private class AgentHistory {
+    @NotNull private final SBuildAgent myAgent;
+    @NotNull private List<SBuild> myChunk = Collections.emptyList();
+    private int myIndex = 0;
+    private int myNextChunkSize = myInitialChunkSize;
+    private boolean myExhausted = false;
+
+    private SBuild myCurrent;
+    private long myStartTime;
+    private long myBuildId;
+
+    AgentHistory(@NotNull final SBuildAgent agent) {
+      myAgent = agent;
+    }
+
+    /**
+     * Moves to the next build in the history
+     * @return false if there are no more builds
+     */
+    boolean advance() {
+      if (myIndex >= myChunk.size()) {
+        if (myExhausted) return false;
+        readNextChunk();
+        if (myChunk.isEmpty()) return false;
+      }
+      myCurrent = myChunk.get(myIndex++);
+      myStartTime = myCurrent.getStartDate().getTime();
+      myBuildId = myCurrent.getBuildId();
+      return true;
+    }
+
+    private void readNextChunk() {
+      final boolean hasCurrent = myCurrent != null;
+      final long lastStartTime = myStartTime;
+      final long lastBuildId = myBuildId;
+      final int chunkSize = myNextChunkSize;
+      final boolean readAll = chunkSize >= myMaxChunkSize;
+      final List<SBuild> chunk = new ArrayList<>(chunkSize);
+      myBuildsManager.processBuilds(getOptions(), new ItemProcessor<SBuild>() {
+        @Override
+        public boolean processItem(final SBuild build) {
+          if (hasCurrent) {
+            //there is no way to start from a position in the history, so skipping the already read builds. Comparing by the order instead of
+            //counting the builds as new builds could be added to the history meanwhile
+            final long startTime = build.getStartDate().getTime();
+            if (startTime > lastStartTime || (startTime == lastStartTime && build.getBuildId() >= lastBuildId)) return true;
+          }
+          chunk.add(build);
+          return readAll || chunk.size() < chunkSize;
+        }
+      });
+      myChunk = chunk;
+      myIndex = 0;
+      myExhausted = readAll || chunk.size() < chunkSize;
+      myNextChunkSize = Math.min(chunkSize * 2, myMaxChunkSize);
+    }
+
+    @NotNull
+    private BuildQueryOptions getOptions() {
+      //the same builds as returned by agent.getBuildHistory(null, true)
+      final BuildQueryOptions options = new BuildQueryOptions();
+      options.setAgent(myAgent);
+      options.setIncludeCanceled(true);
+      options.setIncludePersonal(false, null);
+      options.setMatchAllBranches(true);
+      options.setIncludeRunning(false);
+      options.setOrderByChanges(false);
+      return options;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data.build;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.web.artifacts.browser.ArtifactTreeElement;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Caches the artifacts listings (the elements found by recursive and pattern scans of the artifacts tree, including archives content when requested)
+ * of finished builds, so that repeated listings do not walk the artifacts and open the archives again.
+ * The least recently used listings are evicted when the total number of cached elements exceeds "rest.request.artifacts.listingCache.maxElements"
+ * internal property (0 disables the cache). The listings expire after "rest.request.artifacts.listingCache.ttlSeconds" as the artifacts of a finished build
+ * can still be changed (e.g. removed by the cleanup) and are dropped when the build is deleted.
+ */
+public class BuildArtifactsListingCache extends BuildServerAdapter {
+  public static final String MAX_ELEMENTS_PROPERTY = "rest.request.artifacts.listingCache.maxElements";
+
+  @NotNull private final Cache<String, List<ArtifactTreeElement>> myListings =
+    CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(0, TeamCityProperties.getInteger(MAX_ELEMENTS_PROPERTY, 100000)))
+                .weigher((String key, List<ArtifactTreeElement> value) -> value.size() + 1)
+                .expireAfterAccess(TeamCityProperties.getInteger("rest.request.artifacts.listingCache.ttlSeconds", 600), TimeUnit.SECONDS)
+                .build();
+
+  public BuildArtifactsListingCache(@NotNull final SBuildServer server) {
+    server.addListener(this);
+  }
+
+  /**
+   * @param buildPromotion the build the artifacts belong to. Listings are cached only for finished builds.
+   * @param listingKey     should include the listed element path and all the parameters affecting the listing
+   * @param calculator     calculates the listing if not cached
+   */
+  @NotNull
+  public List<ArtifactTreeElement> getListing(@NotNull final BuildPromotion buildPromotion,
+                                              @NotNull final String listingKey,
+                                              @NotNull final Supplier<List<ArtifactTreeElement>> calculator) {
+    final SBuild build = buildPromotion.getAssociatedBuild();
+    if (build == null || !build.isFinished() || TeamCityProperties.getInteger(MAX_ELEMENTS_PROPERTY, 100000) <= 0) {
+      return calculator.get();
+    }
+    try {
+      return myListings.get(getKeyPrefix(buildPromotion.getId()) + listingKey, () -> Collections.unmodifiableList(calculator.get()));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      ExceptionUtil.rethrowAsRuntimeException(e.getCause());
+      return null; //unreachable
+    }
+  }
+
+  @Override
+  public void entryDeleted(@NotNull final SFinishedBuild entry) {
+    final String prefix = getKeyPrefix(entry.getBuildPromotion().getId());
+    myListings.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  @NotNull
+  private static String getKeyPrefix(final long promotionId) {
+    return promotionId + "|";
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data.build;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.messages.DefaultMessagesInfo;
+import jetbrains.buildServer.server.rest.errors.NotFoundException;
+import jetbrains.buildServer.server.rest.errors.OperationException;
+import jetbrains.buildServer.serverSide.RunningBuildEx;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.impl.BuildAgentMessagesQueue;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Adds messages to the log of a running build. The lines read from a stream are sent to the build messages queue in batches.
+ * When the queue is full, can wait for it to free up (not reading the stream meanwhile, so the client is slowed down) instead of failing the request at once.
+ */
+public class BuildLogStreamProcessor {
+  private static final Logger LOG = Logger.getInstance(BuildLogStreamProcessor.class.getName());
+
+  /**
+   * How long the streamed log waits for the full messages queue, in seconds
+   */
+  public static final String STREAM_QUEUE_FULL_TIMEOUT_PROPERTY = "rest.buildRequest.log.queueFullTimeoutSeconds";
+  /**
+   * How long a single log message waits for the full messages queue, in milliseconds. Fails at once by default.
+   */
+  public static final String MESSAGE_QUEUE_FULL_TIMEOUT_PROPERTY = "rest.buildRequest.log.message.queueFullTimeoutMs";
+
+  @NotNull private final BuildAgentMessagesQueue myMessagesQueue;
+  @NotNull private final RunningBuildEx myBuild;
+  private final long myQueueFullTimeoutMs;
+
+  private long myLines;
+  private long myBatches;
+  private long myQueueFullWaitMs;
+
+  /**
+   * @param queueFullTimeoutMs how long to wait for the full messages queue to free up before failing, 0 to fail at once
+   */
+  public BuildLogStreamProcessor(@NotNull final BuildAgentMessagesQueue messagesQueue, @NotNull final RunningBuildEx build, final long queueFullTimeoutMs) {
+    myMessagesQueue = messagesQueue;
+    myBuild = build;
+    myQueueFullTimeoutMs = queueFullTimeoutMs;
+  }
+
+  @NotNull
+  public static BuildLogStreamProcessor forStream(@NotNull final BuildAgentMessagesQueue messagesQueue, @NotNull final RunningBuildEx build) {
+    return new BuildLogStreamProcessor(messagesQueue, build, TeamCityProperties.getInteger(STREAM_QUEUE_FULL_TIMEOUT_PROPERTY, 60) * 1000L);
+  }
+
+  @NotNull
+  public static BuildLogStreamProcessor forMessage(@NotNull final BuildAgentMessagesQueue messagesQueue, @NotNull final RunningBuildEx build) {
+    return new BuildLogStreamProcessor(messagesQueue, build, TeamCityProperties.getLong(MESSAGE_QUEUE_FULL_TIMEOUT_PROPERTY, 0));
+  }
+
+  /**
+   * Reads the lines from the stream till its end. The batch of lines is sent when it reaches "rest.buildRequest.log.batchSize" lines
+   * or when no more data is available in the stream without blocking.
+   * @return statistics on the processing
+   */
+  @NotNull
+  public String process(@NotNull final InputStream stream) {
+    final long startTime = System.currentTimeMillis();
+    final int batchSize = TeamCityProperties.getInteger("rest.buildRequest.log.batchSize", 100);
+    final List<BuildMessage1> batch = new ArrayList<>(batchSize);
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        batch.add(DefaultMessagesInfo.createTextMessage(line));
+        if (batch.size() >= batchSize || !reader.ready()) {
+          send(batch);
+          batch.clear();
+        }
+      }
+      send(batch);
+    } catch (IOException e) {
+      throw new OperationException("Error reading request body: " + e.toString(), e);
+    }
+    final long timeMs = System.currentTimeMillis() - startTime;
+    final String result = "Processed " + myLines + " lines in " + myBatches + " batches in " + timeMs + " ms" +
+                          (timeMs > 0 ? " (" + myLines * 1000 / timeMs + " lines/s)" : "") +
+                          (myQueueFullWaitMs > 0 ? ", waited for the full messages queue " + myQueueFullWaitMs + " ms" : "");
+    LOG.debug("Log stream for build id " + myBuild.getBuildId() + ": " + result);
+    return result;
+  }
+
+  public void send(@NotNull final List<BuildMessage1> messages) {
+    if (messages.isEmpty()) return;
+    if (myBuild.isFinished()) {
+      throw new NotFoundException("Build with id " + myBuild.getBuildId() + " is already finished");
+    }
+    final long startTime = System.currentTimeMillis();
+    long sleepMs = 10;
+    try {
+      while (!addToQueue(new ArrayList<>(messages))) {
+        final long waitedMs = System.currentTimeMillis() - startTime;
+        if (waitedMs >= myQueueFullTimeoutMs) {
+          throw new OperationException("Failed to add messages as the queue is full" + (waitedMs > 0 ? " for " + waitedMs + " ms" : ""));
+        }
+        final long currentSleepMs = Math.min(sleepMs, myQueueFullTimeoutMs - waitedMs);
+        Thread.sleep(currentSleepMs);
+        myQueueFullWaitMs += currentSleepMs;
+        sleepMs = Math.min(sleepMs * 2, 1000);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new OperationException("Got interrupted", e);
+    }
+    myLines += messages.size();
+    myBatches++;
+  }
+
+  /**
+   * @return false if the messages are not added as the queue is full
+   */
+  protected boolean addToQueue(@NotNull final List<BuildMessage1> messages) throws InterruptedException {
+    try {
+      myMessagesQueue.processMessages(myBuild, messages);
+      return true;
+    } catch (BuildAgentMessagesQueue.BuildMessagesQueueFullException e) {
+      return false;
+    }
+  }
+}
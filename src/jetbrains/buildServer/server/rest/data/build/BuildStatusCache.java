@@ -0,0 +1,159 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data.build;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import jetbrains.buildServer.server.rest.data.ServerListener;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Caches the build statuses served by the status icon and aggregated status requests, which are often embedded into external pages.
+ * The statuses are stored for a short time ("rest.buildRequest.statusCache.ttlSeconds" internal property, 0 disables the cache) and are dropped
+ * when the builds of the build types the status depends on change (see {@link ServerListener#addBuildTypeBuildsChangeListener}).
+ * The statuses not limited to known build types are dropped on any builds change.
+ * Also keeps the contents of the status icon files in memory.
+ */
+public class BuildStatusCache {
+  public static final String TTL_PROPERTY = "rest.buildRequest.statusCache.ttlSeconds";
+
+  @NotNull private final Cache<String, Entry> myStatuses = CacheBuilder.newBuilder()
+                                                                       .maximumSize(TeamCityProperties.getInteger("rest.buildRequest.statusCache.maxSize", 10000))
+                                                                       .expireAfterWrite(TeamCityProperties.getInteger(TTL_PROPERTY, 10), TimeUnit.SECONDS)
+                                                                       .build();
+  @NotNull private final ConcurrentHashMap<String, IconContent> myIcons = new ConcurrentHashMap<>();
+  //the stamps are used not to store the statuses calculated while the builds changed
+  @NotNull private final AtomicLong myAllChangesStamp = new AtomicLong();
+  @NotNull private final AtomicLong myUnknownBuildTypeChangesStamp = new AtomicLong();
+  @NotNull private final ConcurrentHashMap<String, AtomicLong> myBuildTypeChangesStamps = new ConcurrentHashMap<>();
+
+  public BuildStatusCache(@NotNull final ServerListener serverListener) {
+    serverListener.addBuildTypeBuildsChangeListener(this::buildsChanged);
+  }
+
+  /**
+   * @param key                  should include everything the status depends on, including the user on behalf of whom the status is calculated
+   * @param buildTypeIdsProvider returns internal ids of the build types the builds affecting the status belong to or null if the builds of any build type can affect the status.
+   *                             Is invoked only if the status is not cached, the ids are stored with the status.
+   * @param calculator           calculates the status if not cached. Exceptions are not cached.
+   */
+  @NotNull
+  @SuppressWarnings("unchecked")
+  public <T> T getStatus(@NotNull final String key,
+                         @NotNull final Supplier<Collection<String>> buildTypeIdsProvider,
+                         @NotNull final Supplier<T> calculator) {
+    if (TeamCityProperties.getInteger(TTL_PROPERTY, 10) <= 0) return calculator.get();
+    final Entry cached = myStatuses.getIfPresent(key);
+    if (cached != null) return (T)cached.myStatus;
+
+    final Collection<String> buildTypeIds = buildTypeIdsProvider.get();
+    final long stamp = getChangesStamp(buildTypeIds);
+    final T result = calculator.get();
+    if (stamp == getChangesStamp(buildTypeIds)) {
+      myStatuses.put(key, new Entry(result, buildTypeIds));
+    }
+    return result;
+  }
+
+  /**
+   * @return content of the icon file, loaded once per file name
+   */
+  @NotNull
+  public IconContent getIcon(@NotNull final String fileName, @NotNull final Supplier<IconContent> loader) {
+    final IconContent result = myIcons.get(fileName);
+    if (result != null) return result;
+    return myIcons.computeIfAbsent(fileName, k -> loader.get());
+  }
+
+  public void invalidate() {
+    buildsChanged(null);
+  }
+
+  /**
+   * @param buildType the build type of the changed builds, null if the builds of any build type could change
+   */
+  private void buildsChanged(@Nullable final SBuildType buildType) {
+    myAllChangesStamp.incrementAndGet();
+    if (buildType == null) {
+      myUnknownBuildTypeChangesStamp.incrementAndGet();
+      myStatuses.invalidateAll();
+      return;
+    }
+    final String buildTypeId = buildType.getInternalId();
+    myBuildTypeChangesStamps.computeIfAbsent(buildTypeId, id -> new AtomicLong()).incrementAndGet();
+    myStatuses.asMap().values().removeIf(entry -> entry.myBuildTypeIds == null || entry.myBuildTypeIds.contains(buildTypeId));
+  }
+
+  private long getChangesStamp(@Nullable final Collection<String> buildTypeIds) {
+    if (buildTypeIds == null) return myAllChangesStamp.get();
+    //the stamps only grow, so the sum changes whenever any of them changes
+    long result = myUnknownBuildTypeChangesStamp.get();
+    for (String buildTypeId : buildTypeIds) {
+      final AtomicLong buildTypeStamp = myBuildTypeChangesStamps.get(buildTypeId);
+      if (buildTypeStamp != null) result += buildTypeStamp.get();
+    }
+    return result;
+  }
+
+  private static class Entry {
+    @NotNull private final Object myStatus;
+    @Nullable private final Collection<String> myBuildTypeIds;
+
+    Entry(@NotNull final Object status, @Nullable final Collection<String> buildTypeIds) {
+      myStatus = status;
+      myBuildTypeIds = buildTypeIds;
+    }
+  }
+
+  public static class IconContent {
+    @NotNull private final byte[] myContent;
+    @NotNull private final String myETag;
+    @Nullable private final String myMediaType;
+
+    public IconContent(@NotNull final byte[] content, @NotNull final String eTag, @Nullable final String mediaType) {
+      myContent = content;
+      myETag = eTag;
+      myMediaType = mediaType;
+    }
+
+    @NotNull
+    public byte[] getContent() {
+      return myContent;
+    }
+
+    /**
+     * @return strong entity tag (with quotes) identifying the content
+     */
+    @NotNull
+    public String getETag() {
+      return myETag;
+    }
+
+    @Nullable
+    public String getMediaType() {
+      return myMediaType;
+    }
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data.build;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.ItemProcessor;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * In-memory index of finished builds by public tag, pinned state and statistic value keys. Allows to use these as prefiltering sources in
+ * BuildPromotionFinder instead of scanning the builds history.
+ * Is disabled by default ("rest.request.builds.index.enabled" internal property). When enabled, the index is populated in background by scanning the history
+ * once and is kept current from the build events; until the population is complete the index is not used.
+ * Only the statistic keys listed in "rest.request.builds.index.statisticKeys" internal property are indexed as reading the values requires loading them for every build.
+ * The builds in each of the index sets are ordered in the same way as finished builds are ordered by BuildPromotionFinder: by start date, most recent first.
+ */
+public class FinishedBuildsIndex extends BuildServerAdapter {
+  private static final Logger LOG = Logger.getInstance(FinishedBuildsIndex.class.getName());
+
+  public static final String ENABLED_PROPERTY = "rest.request.builds.index.enabled";
+  public static final String STATISTIC_KEYS_PROPERTY = "rest.request.builds.index.statisticKeys";
+
+  private static final Comparator<Entry> ENTRIES_ORDER = Comparator.comparingLong((Entry e) -> e.startTime).thenComparingLong(e -> e.buildId).reversed();
+
+  @NotNull private final BuildsManager myBuildsManager;
+  @NotNull private final SecurityContextEx mySecurityContext;
+
+  @NotNull private final ConcurrentHashMap<Long, Entry> myEntries = new ConcurrentHashMap<>(); // promotion id -> entry, only for the builds present in any of the index sets
+  @NotNull private final ConcurrentHashMap<String, EntrySet> myByTag = new ConcurrentHashMap<>();
+  @NotNull private final EntrySet myPinned = new EntrySet();
+  @NotNull private final ConcurrentHashMap<String, EntrySet> myByStatisticKey = new ConcurrentHashMap<>();
+
+  @NotNull private final AtomicBoolean myPopulationStarted = new AtomicBoolean(false);
+  @NotNull private final CountDownLatch myPopulated = new CountDownLatch(1);
+  private volatile boolean myReady = false;
+  @NotNull private volatile Set<String> myIndexedStatisticKeys = Collections.emptySet();
+
+  public FinishedBuildsIndex(@NotNull final SBuildServer server, @NotNull final BuildsManager buildsManager, @NotNull final SecurityContextEx securityContext) {
+    myBuildsManager = buildsManager;
+    mySecurityContext = securityContext;
+    server.addListener(this);
+  }
+
+  /**
+   * @return true if the index can be used for the queries. Starts the index population in background on the first call if the index is enabled.
+   */
+  public boolean isReady() {
+    if (!TeamCityProperties.getBoolean(ENABLED_PROPERTY)) return false;
+    if (myPopulationStarted.compareAndSet(false, true)) {
+      final Thread thread = new Thread(this::populate, "REST API finished builds index population");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return myReady;
+  }
+
+  /**
+   * Starts the index population if it is not yet started and waits for it to complete.
+   * @return true if the index can be used for the queries, false if the index is disabled or the population has not completed in time
+   */
+  public boolean waitUntilReady(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException {
+    if (!isReady() && TeamCityProperties.getBoolean(ENABLED_PROPERTY)) {
+      myPopulated.await(timeout, unit);
+    }
+    return myReady;
+  }
+
+  /**
+   * @return entries of the finished builds with the public tag, ordered from the most recent build
+   */
+  @NotNull
+  public EntrySet getByTag(@NotNull final String tag) {
+    return getOrEmpty(myByTag.get(tag));
+  }
+
+  @NotNull
+  public EntrySet getPinned() {
+    return myPinned;
+  }
+
+  /**
+   * @return null if the key is not indexed
+   */
+  @Nullable
+  public EntrySet getByStatisticKey(@NotNull final String key) {
+    if (!myIndexedStatisticKeys.contains(key)) return null;
+    return getOrEmpty(myByStatisticKey.get(key));
+  }
+
+  @NotNull
+  private static EntrySet getOrEmpty(@Nullable final EntrySet set) {
+    return set == null ? new EntrySet() : set;
+  }
+
+  private void populate() {
+    myIndexedStatisticKeys = getStatisticKeysToIndex();
+    final long startTime = System.currentTimeMillis();
+    final BuildQueryOptions options = new BuildQueryOptions();
+    options.setIncludePersonal(true, null);
+    options.setIncludeCanceled(true);
+    options.setMatchAllBranches(true);
+    options.setIncludeRunning(false);
+    options.setOrderByChanges(false);
+    try {
+      mySecurityContext.runAsSystem(() -> myBuildsManager.processBuilds(options, new ItemProcessor<SBuild>() {
+        @Override
+        public boolean processItem(final SBuild build) {
+          index(build); // the build's current state is used, so it is safe to re-index the builds already indexed from the events
+          return true;
+        }
+      }));
+      myReady = true;
+      LOG.info("Finished builds index is populated with " + myEntries.size() + " builds in " + (System.currentTimeMillis() - startTime) + " ms");
+    } catch (Throwable e) {
+      LOG.warnAndDebugDetails("Error populating finished builds index, the index will not be used", e);
+    } finally {
+      myPopulated.countDown();
+    }
+  }
+
+  @NotNull
+  private static Set<String> getStatisticKeysToIndex() {
+    final String keys = TeamCityProperties.getPropertyOrNull(STATISTIC_KEYS_PROPERTY);
+    if (StringUtil.isEmpty(keys)) return Collections.emptySet();
+    return Arrays.stream(keys.split(",")).map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toSet());
+  }
+
+  private void index(@NotNull final SBuild build) {
+    List<String> statisticKeys = Collections.emptyList();
+    if (!myIndexedStatisticKeys.isEmpty()) {
+      statisticKeys = new ArrayList<>();
+      for (Map.Entry<String, BigDecimal> value : build.getStatisticValues().entrySet()) {
+        if (value.getValue() != null && myIndexedStatisticKeys.contains(value.getKey())) {
+          statisticKeys.add(value.getKey());
+        }
+      }
+    }
+    final long promotionId = build.getBuildPromotion().getId();
+    final Entry entry = new Entry(promotionId, build.getBuildId(), build.getStartDate().getTime(), new ArrayList<>(build.getTags()), build.isPinned(), statisticKeys);
+    final boolean indexed = !entry.tags.isEmpty() || entry.pinned || !entry.statisticKeys.isEmpty(); //only the builds present in the index sets are stored
+    final Entry previous = indexed ? myEntries.put(promotionId, entry) : myEntries.remove(promotionId);
+    final Entry empty = new Entry(promotionId, entry.buildId, entry.startTime, Collections.emptyList(), false, Collections.emptyList());
+    // adding to the new sets first and only then removing from the sets the build is no longer in, so that the build does not disappear from the
+    // sets it stays in while being re-indexed. The entries of the same build are equal for the sets, so the sets present in both are left intact.
+    update(indexed ? entry : empty, previous == null ? empty : previous);
+  }
+
+  private void remove(final long promotionId) {
+    final Entry previous = myEntries.remove(promotionId);
+    if (previous == null) return;
+    update(new Entry(promotionId, previous.buildId, previous.startTime, Collections.emptyList(), false, Collections.emptyList()), previous);
+  }
+
+  private void update(@NotNull final Entry entry, @NotNull final Entry previous) {
+    for (String tag : entry.tags) {
+      if (!previous.tags.contains(tag)) myByTag.computeIfAbsent(tag, k -> new EntrySet()).add(entry);
+    }
+    if (entry.pinned && !previous.pinned) myPinned.add(entry);
+    for (String key : entry.statisticKeys) {
+      if (!previous.statisticKeys.contains(key)) myByStatisticKey.computeIfAbsent(key, k -> new EntrySet()).add(entry);
+    }
+
+    for (String tag : previous.tags) {
+      if (!entry.tags.contains(tag)) removeFrom(myByTag, tag, previous);
+    }
+    if (previous.pinned && !entry.pinned) myPinned.remove(previous);
+    for (String key : previous.statisticKeys) {
+      if (!entry.statisticKeys.contains(key)) removeFrom(myByStatisticKey, key, previous);
+    }
+  }
+
+  private static void removeFrom(@NotNull final ConcurrentHashMap<String, EntrySet> index, @NotNull final String key, @NotNull final Entry entry) {
+    final EntrySet set = index.get(key);
+    if (set != null) set.remove(entry);
+  }
+
+  private void reindex(@NotNull final SBuild build) {
+    if (!myPopulationStarted.get() || !build.isFinished()) return;
+    index(build);
+  }
+
+  private void reindexFinished(@NotNull final SRunningBuild build) {
+    if (!myPopulationStarted.get()) return;
+    final SBuild finishedBuild = myBuildsManager.findBuildInstanceById(build.getBuildId());
+    if (finishedBuild != null) reindex(finishedBuild);
+  }
+
+  @Override
+  public void buildFinished(@NotNull final SRunningBuild build) {
+    reindexFinished(build);
+  }
+
+  @Override
+  public void buildInterrupted(@NotNull final SRunningBuild build) {
+    reindexFinished(build);
+  }
+
+  @Override
+  public void entryCreated(@NotNull final SFinishedBuild build) {
+    //covers all the ways a build gets into the history (finished, interrupted, canceled), as the build is already finished at this point
+    reindex(build);
+  }
+
+  @Override
+  public void buildTagsChanged(@NotNull final SBuild build, @NotNull final List<String> oldTags, @NotNull final List<String> newTags) {
+    reindex(build);
+  }
+
+  @Override
+  public void buildPinned(@NotNull final SBuild build, @Nullable final User user, @Nullable final String comment) {
+    reindex(build);
+  }
+
+  @Override
+  public void buildUnpinned(@NotNull final SBuild build, @Nullable final User user, @Nullable final String comment) {
+    reindex(build);
+  }
+
+  @Override
+  public void entryDeleted(@NotNull final SFinishedBuild entry) {
+    remove(entry.getBuildPromotion().getId());
+  }
+
+  /**
+   * Set of the index entries ordered from the most recent build. Keeps the number of the entries as the size of the concurrent set is calculated by iterating it.
+   */
+  public static class EntrySet {
+    @NotNull private final NavigableSet<Entry> myEntries = new ConcurrentSkipListSet<>(ENTRIES_ORDER);
+    @NotNull private final AtomicInteger mySize = new AtomicInteger();
+
+    public int size() {
+      return mySize.get();
+    }
+
+    public boolean contains(@NotNull final Entry entry) {
+      return myEntries.contains(entry);
+    }
+
+    @NotNull
+    public Stream<Entry> stream() {
+      return myEntries.stream();
+    }
+
+    private void add(@NotNull final Entry entry) {
+      if (myEntries.add(entry)) mySize.incrementAndGet();
+    }
+
+    private void remove(@NotNull final Entry entry) {
+      if (myEntries.remove(entry)) mySize.decrementAndGet();
+    }
+  }
+
+  public static class Entry {
+    public final long promotionId;
+    private final long buildId;
+    private final long startTime;
+    @NotNull private final List<String> tags;
+    private final boolean pinned;
+    @NotNull private final List<String> statisticKeys;
+
+    Entry(final long promotionId, final long buildId, final long startTime,
+          @NotNull final List<String> tags, final boolean pinned, @NotNull final List<String> statisticKeys) {
+      this.promotionId = promotionId;
+      this.buildId = buildId;
+      this.startTime = startTime;
+      this.tags = tags;
+      this.pinned = pinned;
+      this.statisticKeys = statisticKeys;
+    }
+  }
+}
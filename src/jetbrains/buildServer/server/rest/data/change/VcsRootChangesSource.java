@@ -0,0 +1,189 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data.change;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.server.rest.data.FinderDataBinding;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.ItemProcessor;
+import jetbrains.buildServer.vcs.SVcsModification;
+import jetbrains.buildServer.vcs.VcsModificationHistory;
+import jetbrains.buildServer.vcs.VcsModificationHistoryEx;
+import jetbrains.buildServer.vcs.VcsRootInstance;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Provides the changes of a VCS root instance most recent (largest id) first, reading the history in id windows only while the items are requested.
+ * The window grows while it yields few changes of the root (the ids are shared by all the roots), so sparse histories are also read in a few queries.
+ * Optionally keeps the most recent changes of recently requested roots in memory ("rest.request.changes.vcsRootTailCache.size" internal property, 0 by default
+ * meaning no caching): the cached tail is updated with the newly detected changes on each request and is dropped after
+ * "rest.request.changes.vcsRootTailCache.ttlSeconds" so that the removed changes do not stay in it for long.
+ */
+public class VcsRootChangesSource {
+  public static final String TAIL_CACHE_SIZE_PROPERTY = "rest.request.changes.vcsRootTailCache.size";
+
+  @NotNull private final VcsModificationHistory myVcsModificationHistory;
+  @NotNull private final Cache<Long, Tail> myTails = CacheBuilder.newBuilder()
+                                                                 .maximumSize(TeamCityProperties.getInteger("rest.request.changes.vcsRootTailCache.maxRoots", 1000))
+                                                                 .expireAfterWrite(TeamCityProperties.getInteger("rest.request.changes.vcsRootTailCache.ttlSeconds", 300), TimeUnit.SECONDS)
+                                                                 .build();
+
+  public VcsRootChangesSource(@NotNull final VcsModificationHistory vcsModificationHistory) {
+    myVcsModificationHistory = vcsModificationHistory;
+  }
+
+  /**
+   * @param sinceChangeId if specified, only the changes with larger ids are returned
+   * @return changes of the root ordered by id descending. The history is read only till the processor stops processing.
+   */
+  @NotNull
+  public FinderDataBinding.ItemHolder<SVcsModification> getChanges(@NotNull final VcsRootInstance root, @Nullable final Long sinceChangeId) {
+    if (!(myVcsModificationHistory instanceof VcsModificationHistoryEx)) {
+      //no way to get the last change id
+      return FinderDataBinding.getItemHolder(sinceChangeId != null
+                                             ? myVcsModificationHistory.getModificationsInRange(root, sinceChangeId, null)
+                                             : myVcsModificationHistory.getAllModifications(root));
+    }
+    final long lowerBound = sinceChangeId == null ? 0 : sinceChangeId;
+    return processor -> {
+      final int tailSize = TeamCityProperties.getInteger(TAIL_CACHE_SIZE_PROPERTY, 0);
+      if (tailSize <= 0) {
+        new WindowsReader(root, lowerBound, null).process(processor);
+        return;
+      }
+      final Tail tail = getTail(root, tailSize);
+      for (SVcsModification modification : tail.myModifications) {
+        if (modification.getId() <= lowerBound) return;
+        if (!processor.processItem(modification)) return;
+      }
+      if (tail.myComplete || tail.myModifications.isEmpty()) return;
+      new WindowsReader(root, lowerBound, tail.myModifications.get(tail.myModifications.size() - 1).getId() - 1).process(processor);
+    };
+  }
+
+  @NotNull
+  private Tail getTail(@NotNull final VcsRootInstance root, final int tailSize) {
+    final Tail cached = myTails.getIfPresent(root.getId());
+    final Tail result;
+    if (cached == null || cached.myModifications.size() < tailSize && !cached.myComplete) {
+      final List<SVcsModification> modifications = new ArrayList<>(tailSize);
+      final WindowsReader reader = new WindowsReader(root, 0, null);
+      reader.process(item -> {
+        modifications.add(item);
+        return modifications.size() < tailSize;
+      });
+      result = new Tail(modifications, modifications.size() < tailSize);
+    } else {
+      final long lastCachedId = cached.myModifications.isEmpty() ? 0 : cached.myModifications.get(0).getId();
+      final List<SVcsModification> newModifications = getSortedInRange(root, lastCachedId, null);
+      if (newModifications.isEmpty()) return cached;
+      final List<SVcsModification> modifications = new ArrayList<>(newModifications.size() + cached.myModifications.size());
+      modifications.addAll(newModifications);
+      modifications.addAll(cached.myModifications);
+      final boolean trimmed = modifications.size() > tailSize;
+      result = new Tail(trimmed ? new ArrayList<>(modifications.subList(0, tailSize)) : modifications, cached.myComplete && !trimmed);
+    }
+    myTails.put(root.getId(), result);
+    return result;
+  }
+
+  /**
+   * @return changes of the root with ids in (fromId, toId], most recent first. toId is not limited if null.
+   */
+  @NotNull
+  private List<SVcsModification> getSortedInRange(@NotNull final VcsRootInstance root, final long fromId, @Nullable final Long toId) {
+    final List<SVcsModification> result = new ArrayList<>();
+    //not relying on the bounds inclusion and order of the returned changes
+    for (SVcsModification modification : myVcsModificationHistory.getModificationsInRange(root, fromId, toId)) {
+      final long id = modification.getId();
+      if (id > fromId && (toId == null || id <= toId)) result.add(modification);
+    }
+    result.sort((m1, m2) -> Long.compare(m2.getId(), m1.getId()));
+    return result;
+  }
+
+  private class WindowsReader {
+    @NotNull private final VcsRootInstance myRoot;
+    private final long myLowerBound;
+    @Nullable private final Long myUpperBound;
+
+    /**
+     * @param upperBound the largest id to return, null to return the most recent changes
+     */
+    WindowsReader(@NotNull final VcsRootInstance root, final long lowerBound, @Nullable final Long upperBound) {
+      myRoot = root;
+      myLowerBound = lowerBound;
+      myUpperBound = upperBound;
+    }
+
+    void process(@NotNull final ItemProcessor<SVcsModification> processor) {
+      final int chunkSize = Math.max(1, TeamCityProperties.getInteger("rest.request.changes.vcsRootHistory.chunkSize", 100));
+      long window = Math.max(1, TeamCityProperties.getInteger("rest.request.changes.vcsRootHistory.initialIdWindow", 1000));
+
+      long upper;
+      boolean unlimited; //the first window is not limited from the top in case there are changes with ids above the last known id
+      if (myUpperBound != null) {
+        upper = myUpperBound;
+        unlimited = false;
+      } else {
+        upper = getLastChangeId();
+        unlimited = true;
+      }
+      while (upper > myLowerBound) {
+        final long from = Math.max(myLowerBound, upper - window);
+        final List<SVcsModification> chunk = getSortedInRange(myRoot, from, unlimited ? null : upper);
+        for (SVcsModification modification : chunk) {
+          if (!processor.processItem(modification)) return;
+        }
+        if (chunk.size() < chunkSize / 2) {
+          window = window < Long.MAX_VALUE / 2 ? window * 2 : window;
+        } else if (chunk.size() > chunkSize * 2) {
+          window = Math.max(1, window / 2);
+        }
+        upper = from;
+        unlimited = false;
+      }
+    }
+
+    private long getLastChangeId() {
+      final long[] result = new long[]{0};
+      ((VcsModificationHistoryEx)myVcsModificationHistory).processModifications(item -> {
+        result[0] = item.getId();
+        return false;
+      });
+      return result[0];
+    }
+  }
+
+  private static class Tail {
+    @NotNull private final List<SVcsModification> myModifications;
+    private final boolean myComplete;
+
+    /**
+     * @param modifications most recent changes of the root ordered by id descending
+     * @param complete      true if the modifications are all the changes of the root
+     */
+    Tail(@NotNull final List<SVcsModification> modifications, final boolean complete) {
+      myModifications = Collections.unmodifiableList(modifications);
+      myComplete = complete;
+    }
+  }
+}
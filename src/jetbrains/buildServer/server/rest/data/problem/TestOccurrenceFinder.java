@@ -18,12 +18,14 @@ package jetbrains.buildServer.server.rest.data.problem;
 
 import com.google.common.collect.ComparisonChain;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.messages.Status;
 import jetbrains.buildServer.responsibility.TestNameResponsibilityEntry;
 import jetbrains.buildServer.server.rest.data.*;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
 import jetbrains.buildServer.server.rest.errors.NotFoundException;
+import jetbrains.buildServer.server.rest.model.PagerData;
 import jetbrains.buildServer.server.rest.model.Util;
 import jetbrains.buildServer.server.rest.model.problem.TestOccurrence;
 import jetbrains.buildServer.server.rest.request.BuildRequest;
@@ -84,6 +86,13 @@ public class TestOccurrenceFinder extends AbstractFinder<STestRun> {
     myProjectFinder = projectFinder;
     myBuildHistory = buildHistory;
     myCurrentProblemsManager = currentProblemsManager;
+    setCursorSupport(new ItemCursor<STestRun>("testOccurrences", 2) {
+      @NotNull
+      @Override
+      public long[] getKey(@NotNull final STestRun item) {
+        return new long[]{item.getBuild().getBuildId(), item.getTestRunId()};
+      }
+    });
   }
 
   @Override
@@ -182,10 +191,62 @@ public class TestOccurrenceFinder extends AbstractFinder<STestRun> {
     return null;
   }
 
+  @NotNull
+  @Override
+  public LocatorDataBinding<STestRun> getLocatorDataBinding(@NotNull final Locator locator) {
+    //the same filter is used to select the top sorted items and then by the caller, so that it is created only once
+    return new LocatorDataBinding<STestRun>() {
+      private ItemFilter<STestRun> myFilter;
+
+      @NotNull
+      @Override
+      public ItemHolder<STestRun> getPrefilteredItems() {
+        return TestOccurrenceFinder.this.getPrefilteredItems(locator, this::getFilter);
+      }
+
+      @NotNull
+      @Override
+      public ItemFilter<STestRun> getFilter() {
+        if (myFilter == null) {
+          myFilter = TestOccurrenceFinder.this.getFilter(locator);
+        }
+        return myFilter;
+      }
+    };
+  }
+
   @NotNull
   @Override
   public ItemHolder<STestRun> getPrefilteredItems(@NotNull final Locator locator) {
-    return getSortedItemHolder(getPrefilteredItemsInternal(locator), getComparator(locator));
+    //using a copy of the locator as the dimensions are still to be used for the filter by the caller
+    return getPrefilteredItems(locator, () -> getFilter(new Locator(locator)));
+  }
+
+  @NotNull
+  private ItemHolder<STestRun> getPrefilteredItems(@NotNull final Locator locator, @NotNull final Supplier<ItemFilter<STestRun>> filter) {
+    final ItemHolder<STestRun> items = getPrefilteredItemsInternal(locator);
+    final Comparator<STestRun> comparator = getComparator(locator);
+    if (comparator == null) return items;
+
+    final Integer topCount = getTopItemsCount(locator);
+    if (topCount != null) {
+      return getTopItemsHolder(items, filter.get(), comparator, topCount);
+    }
+    return getSortedItemHolder(items, comparator);
+  }
+
+  /**
+   * @return number of the first sorted items which can be included into the result or null if that cannot be determined upfront
+   */
+  @Nullable
+  private Integer getTopItemsCount(@NotNull final Locator locator) {
+    if (!TeamCityProperties.getBooleanOrTrue("rest.request.testOccurrences.topSorting.enabled")) return null;
+    //these affect the items processed after the prefiltering in the way not known here
+    if (locator.isAnyPresent(DIMENSION_LOOKUP_LIMIT, DIMENSION_AFTER, DIMENSION_ITEM, LOGIC_OP_OR, LOGIC_OP_AND, LOGIC_OP_NOT)) return null;
+    final Long count = getCountNotMarkingAsUsed(locator);
+    if (count == null) return null;
+    final long result = locator.lookupSingleDimensionValueAsLong(PagerData.START, 0L) + count;
+    return result > 0 && result <= Integer.MAX_VALUE ? (int)result : null;
   }
 
   @NotNull
@@ -197,6 +258,17 @@ public class TestOccurrenceFinder extends AbstractFinder<STestRun> {
       Boolean expandInvocations = locator.getSingleDimensionValueAsBoolean(EXPAND_INVOCATIONS);  //getting the dimension early in order not to get "dimension is unknown" for it in case of early exit
       String testDimension = locator.getSingleDimensionValue(TEST);
       if (testDimension == null) {
+        final long[] cursorKey = locator.lookupSingleDimensionValue(ORDER) == null ? lookupCursorKey(locator) : null;
+        if (cursorKey != null) {
+          //do not load tests of the builds preceding the cursor one, the test runs within the build are skipped by the generic cursor processing
+          for (int i = 0; i < builds.size(); i++) {
+            final SBuild associatedBuild = builds.get(i).getAssociatedBuild();
+            if (associatedBuild != null && associatedBuild.getBuildId() == cursorKey[0]) {
+              builds = builds.subList(i, builds.size());
+              break;
+            }
+          }
+        }
         AggregatingItemHolder<STestRun> result = new AggregatingItemHolder<>();
         for (BuildPromotion build : builds) {
           SBuild associatedBuild = build.getAssociatedBuild();
@@ -569,11 +641,13 @@ public class TestOccurrenceFinder extends AbstractFinder<STestRun> {
     int optionsMask = TeamCityProperties.getInteger("rest.request.testOccurrences.buildStatOpts.default",
                                                     BuildStatisticsOptions.FIRST_FAILED_IN_BUILD | BuildStatisticsOptions.FIXED_IN_BUILD);
     boolean loadAllTests = TeamCityProperties.getBoolean("rest.request.testOccurrences.loadAllTestsForBuild");
-    if (locator == null || loadAllTests || FilterUtil.isIncludingBooleanFilter(locator.lookupSingleDimensionValueAsBoolean(IGNORED))) { //todo: consider not loading ignored tests if only failed are requested via status:FAILURE (if that does not change the result)
+    final boolean onlyFailed = locator != null && Util.resolveNull(locator.lookupSingleDimensionValue(STATUS), TestOccurrence::getStatusFromPosted) == Status.FAILURE;
+    //ignored tests do not have failure status, so they are not loaded if only failed tests are requested
+    if (locator == null || loadAllTests || (!onlyFailed && FilterUtil.isIncludingBooleanFilter(locator.lookupSingleDimensionValueAsBoolean(IGNORED)))) {
       optionsMask |= BuildStatisticsOptions.IGNORED_TESTS;
     }
 
-    if (locator == null || loadAllTests || Util.resolveNull(locator.lookupSingleDimensionValue(STATUS), TestOccurrence::getStatusFromPosted) != Status.FAILURE) {
+    if (locator == null || loadAllTests || !onlyFailed) {
       optionsMask |= BuildStatisticsOptions.PASSED_TESTS;
     }
 
@@ -696,6 +770,45 @@ public class TestOccurrenceFinder extends AbstractFinder<STestRun> {
     }
   }
 
+  /**
+   * Retrieves only the first topCount items matching the filter in the order of the comparator without sorting all the items:
+   * keeps the best matching items in a bounded heap. The order of the items equal by the comparator is preserved.
+   */
+  @NotNull
+  private static <T> ItemHolder<T> getTopItemsHolder(@NotNull final ItemHolder<T> baseHolder,
+                                                    @NotNull final ItemFilter<T> filter,
+                                                    @NotNull final Comparator<T> comparator,
+                                                    final int topCount) {
+    return processor -> {
+      final Comparator<IndexedItem<T>> order = Comparator.<IndexedItem<T>, T>comparing(item -> item.myItem, comparator).thenComparingLong(item -> item.myIndex);
+      final PriorityQueue<IndexedItem<T>> worstFirst = new PriorityQueue<>(Math.min(topCount, 1024) + 1, order.reversed());
+      final long[] index = new long[1];
+      baseHolder.process(item -> {
+        final IndexedItem<T> indexedItem = new IndexedItem<>(item, index[0]++);
+        if (worstFirst.size() >= topCount && order.compare(indexedItem, worstFirst.peek()) >= 0) return true; //cheap check before the filter
+        if (!filter.isIncluded(item)) return true;
+        worstFirst.add(indexedItem);
+        if (worstFirst.size() > topCount) worstFirst.poll();
+        return true;
+      });
+      final List<IndexedItem<T>> result = new ArrayList<>(worstFirst);
+      result.sort(order);
+      for (IndexedItem<T> item : result) {
+        if (!processor.processItem(item.myItem)) return;
+      }
+    };
+  }
+
+  private static class IndexedItem<T> {
+    private final T myItem;
+    private final long myIndex;
+
+    IndexedItem(final T item, final long index) {
+      myItem = item;
+      myIndex = index;
+    }
+  }
+
   private static final Orders<STestRun> SUPPORTED_ORDERS = new Orders<STestRun>() //see TestOccurrence for names
      .add("name", Comparator.comparing(tr -> tr.getTest().getName().getAsString(), String.CASE_INSENSITIVE_ORDER))
      .add("duration", Comparator.comparingInt(STestRun::getDuration))
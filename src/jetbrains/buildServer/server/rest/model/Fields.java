@@ -16,10 +16,15 @@
 
 package jetbrains.buildServer.server.rest.model;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.intellij.openapi.util.text.StringUtil;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Supplier;
 import jetbrains.buildServer.server.rest.data.Locator;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
@@ -45,6 +50,13 @@ public class Fields {
 
   private static final String LOCATOR_CUSTOM_NAME = "$locator";
 
+  public static final String COMPILED_CACHE_SIZE_PROPERTY = "rest.beans.fields.compiledCache.size";
+  public static final String COMPILED_CACHE_MAX_SPEC_LENGTH_PROPERTY = "rest.beans.fields.compiledCache.maxSpecLength";
+
+  // compiled trees for the fields specifications sent in requests, shared between the requests with the same specification
+  private static final Cache<String, Node> ourCompiledSpecs =
+    CacheBuilder.newBuilder().maximumSize(TeamCityProperties.getInteger(COMPILED_CACHE_SIZE_PROPERTY, 500)).build();
+
   public static final Fields NONE = new Fields(NONE_FIELDS_PATTERN, null, null, true); // no fields at all
   public static final Fields SHORT = new Fields(DEFAULT_FIELDS_SHORT_PATTERN, null, null, true); // short (reference) form. Uses short or none form for the fields.
   public static final Fields ALL = new Fields(ALL_FIELDS_PATTERN, null, null, true); // all fields are present and are in the short form
@@ -52,16 +64,17 @@ public class Fields {
     // long form. Uses long, short or none form for the fields. Generally fields with default values are not included.
   public static final Fields ALL_NESTED = new Fields(ALL_NESTED_FIELDS_PATTERN, null, null, true); // maximum, all fields are included in the same maximum form
 
-  @NotNull private final String myFieldsSpec;
-  private Locator myFieldsSpecLocator;
-  @NotNull private final Map<String, Fields> myRestrictedFields;
+  @NotNull private final Node myNode;
 
   @Nullable
-  private Context myContext = null;
+  private final Context myContext;
 
   private Fields(@NotNull String actualFieldsSpec, @Nullable Map<String, Fields> restrictedFields, @Nullable Context context, boolean isInternal) {
-    myFieldsSpec = actualFieldsSpec;
-    myRestrictedFields = restrictedFields != null ? new HashMap<String, Fields>(restrictedFields) : Collections.emptyMap();
+    this(new Node(actualFieldsSpec, restrictedFields), context);
+  }
+
+  private Fields(@NotNull Node node, @Nullable Context context) {
+    myNode = node;
     myContext = context;
   }
 
@@ -70,7 +83,7 @@ public class Fields {
   }
 
   public Fields(@Nullable String fieldsSpec, @NotNull Fields defaultFields) {
-    this(fieldsSpec != null ? fieldsSpec : defaultFields.myFieldsSpec, null, null, true);
+    this(fieldsSpec != null ? getCompiled(fieldsSpec) : defaultFields.myNode, null);
   }
 
   private static Fields getDefaultFields() {
@@ -78,32 +91,49 @@ public class Fields {
     if (defaultFieldsProperty == null){
       return LONG;
     }else{
-      return new Fields(defaultFieldsProperty, null, null, true);
+      return new Fields(getCompiled(defaultFieldsProperty), null);
     }
   }
 
+  /**
+   * @return the node for the fields specification without restrictions. The node (and so all the nested fields computed from it) is shared
+   * between all the usages of the same specification
+   */
+  @NotNull
+  private static Node getCompiled(@NotNull final String fieldsSpec) {
+    if (fieldsSpec.length() > TeamCityProperties.getInteger(COMPILED_CACHE_MAX_SPEC_LENGTH_PROPERTY, 2000)) {
+      return new Node(fieldsSpec, null);
+    }
+    Node result = ourCompiledSpecs.getIfPresent(fieldsSpec);
+    if (result == null) {
+      result = new Node(fieldsSpec, null);
+      ourCompiledSpecs.put(fieldsSpec, result);
+    }
+    return result;
+  }
+
   public boolean isMoreThenShort() {
     return !isShort() && !isNone();
   }
 
   public boolean isShort() {
-    return DEFAULT_FIELDS_SHORT_PATTERN.equals(myFieldsSpec) || getCustomDimension(DEFAULT_FIELDS_SHORT_PATTERN_ALTERNATIVE) != null;
+    return myNode.getParsed().isShort;
   }
 
   public boolean isAll() {
-    return getCustomDimension(ALL_FIELDS_PATTERN) != null;
+    return myNode.getParsed().isAll;
   }
 
   public boolean isLong() {
-    return getCustomDimension(DEFAULT_FIELDS_LONG_PATTERN) != null;
+    return myNode.getParsed().isLong;
   }
 
   public boolean isAllNested() {
-    return getCustomDimension(ALL_NESTED_FIELDS_PATTERN) != null;
+    return myNode.getParsed().isAllNested;
   }
 
   public boolean isNone() {
-    return getCustomDimension(NONE_FIELDS_PATTERN) != null;
+    return myNode.getParsed().isNone;
   }
 
   /**
@@ -177,7 +207,7 @@ public class Fields {
     if (isNone()){
       return false;
     }
-    final Fields restrictedFields = myRestrictedFields.get(fieldName);
+    final Fields restrictedFields = myNode.restrictedFields.get(fieldName);
     if (restrictedFields != null) {
       if (!restrictedFields.isIncluded(fieldName, true, true)) {
         return false;
@@ -201,7 +231,7 @@ public class Fields {
   private static String getNestedField(@NotNull final String fieldSpec, @NotNull final String dimensionName) {
     if (fieldSpec.contains(dimensionName)) return null; //performance optimization: first check if the string appears inside
 
-    return new Fields(fieldSpec).getCustomDimension(dimensionName);
+    return getCompiled(fieldSpec).getParsed().getCustomDimension(dimensionName);
   }
 
   @NotNull
@@ -219,48 +249,54 @@ public class Fields {
    */
   @NotNull
   public Fields getNestedField(@NotNull final String nestedFieldName, @NotNull final Fields defaultForShort, @NotNull final Fields defaultForLong) {
+    final Fields result = myNode.getNested(nestedFieldName, defaultForShort, defaultForLong, this);
+    if (myContext == null || result.myNode == NONE.myNode) return result;
+    return new Fields(result.myNode, myContext);
+  }
+
+  @NotNull
+  private Fields computeNestedField(@NotNull final String nestedFieldName, @NotNull final Fields defaultForShort, @NotNull final Fields defaultForLong) {
     final Boolean included = isIncluded(nestedFieldName);
     if (included != null && !included) {
       return NONE;
     }
 
-    Fields restrictedField = myRestrictedFields.get(nestedFieldName);
+    Fields restrictedField = myNode.restrictedFields.get(nestedFieldName);
     if (restrictedField == null) {
       restrictedField = ALL_NESTED;
     }
 
-    final Map<String, Fields> newRestrictedFields = new HashMap<String, Fields>(myRestrictedFields);
+    final Map<String, Fields> newRestrictedFields = new HashMap<String, Fields>(myNode.restrictedFields);
     newRestrictedFields.put(nestedFieldName, SHORT);
 
     final String fieldSpec = getCustomDimension(nestedFieldName);
     if(fieldSpec != null){
-      return new Fields(fieldSpec, newRestrictedFields, myContext, true);
+      return new Fields(fieldSpec, newRestrictedFields, null, true);
     }
 
     if (isAllNested()) {
-      return new Fields(minPattern(restrictedField.myFieldsSpec, ALL_NESTED_FIELDS_PATTERN), newRestrictedFields, myContext, true);
+      return new Fields(minPattern(restrictedField.getFieldsSpec(), ALL_NESTED_FIELDS_PATTERN), newRestrictedFields, null, true);
     }
 
     if (isLong()) {
-      return new Fields(minPattern(restrictedField.myFieldsSpec, defaultForLong.myFieldsSpec), newRestrictedFields, myContext, true);
+      return new Fields(minPattern(restrictedField.getFieldsSpec(), defaultForLong.getFieldsSpec()), newRestrictedFields, null, true);
     }
 
     if (isAll()) {
-      return new Fields(minPattern(restrictedField.myFieldsSpec, DEFAULT_FIELDS_SHORT_PATTERN), newRestrictedFields, myContext, true);
+      return new Fields(minPattern(restrictedField.getFieldsSpec(), DEFAULT_FIELDS_SHORT_PATTERN), newRestrictedFields, null, true);
     }
 
     if (isShort()) {
       newRestrictedFields.put(nestedFieldName, NONE);
-      return new Fields(minPattern(restrictedField.myFieldsSpec, defaultForShort.myFieldsSpec), newRestrictedFields, myContext, true);
+      return new Fields(minPattern(restrictedField.getFieldsSpec(), defaultForShort.getFieldsSpec()), newRestrictedFields, null, true);
     }
 
-    return new Fields(NONE_FIELDS_PATTERN, newRestrictedFields, myContext, true);
+    return new Fields(NONE_FIELDS_PATTERN, newRestrictedFields, null, true);
   }
 
   @Nullable
   public String getCustomDimension(@NotNull final String fieldName) {
-    final Locator parsedCustomFields = getParsedCustomFields();
-    return parsedCustomFields == null ? null : parsedCustomFields.lookupSingleDimensionValue(fieldName); //should use getSingleDimensionValue here, but since locator check is not invoked so far, can improve performance a bit by using lookupSingleDimensionValue
+    return myNode.getParsed().getCustomDimension(fieldName);
   }
 
   @Nullable
@@ -301,8 +337,8 @@ public class Fields {
 
   @NotNull
   public Fields increaseRestrictedField(@NotNull final String fieldName, @NotNull Fields newRestriction) {
-    final Fields currentRestriction = myRestrictedFields.get(fieldName);
-    if (minPattern(currentRestriction.myFieldsSpec, newRestriction.myFieldsSpec).equals(currentRestriction.myFieldsSpec)) {
+    final Fields currentRestriction = myNode.restrictedFields.get(fieldName);
+    if (minPattern(currentRestriction.getFieldsSpec(), newRestriction.getFieldsSpec()).equals(currentRestriction.getFieldsSpec())) {
       return resetRestrictedField(fieldName, newRestriction);
     }
     return currentRestriction;
@@ -310,37 +346,21 @@ public class Fields {
 
   @NotNull
   public Fields resetRestrictedField(@NotNull final String fieldName, @NotNull Fields newRestriction) {
-    final Map<String, Fields> newRestrictedFields = new HashMap<String, Fields>(myRestrictedFields);
+    final Map<String, Fields> newRestrictedFields = new HashMap<String, Fields>(myNode.restrictedFields);
     newRestrictedFields.put(fieldName, newRestriction);
-    return new Fields(myFieldsSpec, newRestrictedFields, myContext, true);
+    return new Fields(getFieldsSpec(), newRestrictedFields, myContext, true);
   }
 
   @NotNull
   public Fields removeRestrictedField(@NotNull final String fieldName) {
-    final Map<String, Fields> newRestrictedFields = new HashMap<String, Fields>(myRestrictedFields);
+    final Map<String, Fields> newRestrictedFields = new HashMap<String, Fields>(myNode.restrictedFields);
     newRestrictedFields.remove(fieldName);
-    return new Fields(myFieldsSpec, newRestrictedFields, myContext, true);
-  }
-
-  @Nullable
-  private Locator getParsedCustomFields() {
-    if (myFieldsSpecLocator == null && !StringUtil.isEmpty(myFieldsSpec)) {
-      try {
-        myFieldsSpecLocator = new Locator(myFieldsSpec, true,
-                                          NONE_FIELDS_PATTERN, DEFAULT_FIELDS_SHORT_PATTERN_ALTERNATIVE, DEFAULT_FIELDS_LONG_PATTERN, ALL_FIELDS_PATTERN, ALL_NESTED_FIELDS_PATTERN,
-                                          LOCATOR_CUSTOM_NAME, OPTIONAL_FIELDS_PATTERN);
-        //should add to hidden dimension, but since the locator is not currently checked, save performance by not doing it so far
-        //myFieldsSpecLocator.addHiddenDimensions(OPTIONAL_FIELDS_PATTERN);
-      } catch (LocatorProcessException e) {
-        throw new LocatorProcessException("Error parsing fields specification: " + e.getMessage(), e);
-      }
-    }
-    return myFieldsSpecLocator;
+    return new Fields(getFieldsSpec(), newRestrictedFields, myContext, true);
   }
 
   @NotNull
   public String getFieldsSpec() {
-    return myFieldsSpec;
+    return myNode.fieldsSpec;
   }
 
   @Override
@@ -348,19 +368,134 @@ public class Fields {
     return getFieldsSpec();
   }
 
-  public void setContext(@NotNull final BuildPromotion buildPromotion) {
-    if (myContext == null) myContext = new Context();
-    myContext.buildPromotion = buildPromotion;
+  /**
+   * @return the same fields which resolve "$context.build.id" in {@link #getLocator()} to the id of the build passed
+   */
+  @NotNull
+  public Fields withContext(@NotNull final BuildPromotion buildPromotion) {
+    return new Fields(myNode, new Context(buildPromotion));
   }
 
   private static class Context {
-    @Nullable
-    private BuildPromotion buildPromotion;
+    @NotNull
+    private final BuildPromotion buildPromotion;
+
+    Context(@NotNull final BuildPromotion buildPromotion) {
+      this.buildPromotion = buildPromotion;
+    }
 
     @NotNull
     public String process(@NotNull final String locator) {
-      if (buildPromotion == null) return locator;
       return StringUtil.replace(locator, "$context.build.id", String.valueOf(buildPromotion.getId()));
     }
   }
+
+  /**
+   * Immutable compiled fields specification: the specification is parsed once and the nested fields are computed once per field name,
+   * so that serializing many items with the same Fields does not re-parse or re-create anything
+   */
+  private static final class Node {
+    @NotNull private final String fieldsSpec;
+    @NotNull private final Map<String, Fields> restrictedFields;
+    @Nullable private volatile ParsedSpec myParsed;
+    // nested fields with the most used defaults (NONE for short, SHORT for long), see getNestedField(String)
+    @NotNull private final ConcurrentMap<String, Fields> myDefaultNestedFields = new ConcurrentHashMap<>();
+    @NotNull private final ConcurrentMap<NestedKey, Fields> myNestedFields = new ConcurrentHashMap<>();
+
+    Node(@NotNull final String fieldsSpec, @Nullable final Map<String, Fields> restrictedFields) {
+      this.fieldsSpec = fieldsSpec;
+      this.restrictedFields = restrictedFields != null ? new HashMap<String, Fields>(restrictedFields) : Collections.emptyMap();
+    }
+
+    @NotNull
+    ParsedSpec getParsed() {
+      ParsedSpec result = myParsed;
+      if (result == null) {
+        result = new ParsedSpec(fieldsSpec); // can be computed concurrently, the results are equal
+        myParsed = result;
+      }
+      return result;
+    }
+
+    @NotNull
+    Fields getNested(@NotNull final String nestedFieldName, @NotNull final Fields defaultForShort, @NotNull final Fields defaultForLong, @NotNull final Fields fields) {
+      if (defaultForShort == NONE && defaultForLong == SHORT) {
+        Fields result = myDefaultNestedFields.get(nestedFieldName);
+        if (result == null) {
+          result = fields.computeNestedField(nestedFieldName, defaultForShort, defaultForLong);
+          myDefaultNestedFields.putIfAbsent(nestedFieldName, result);
+        }
+        return result;
+      }
+      final NestedKey key = new NestedKey(nestedFieldName, defaultForShort.getFieldsSpec(), defaultForLong.getFieldsSpec());
+      Fields result = myNestedFields.get(key);
+      if (result == null) {
+        result = fields.computeNestedField(nestedFieldName, defaultForShort, defaultForLong);
+        myNestedFields.putIfAbsent(key, result);
+      }
+      return result;
+    }
+  }
+
+  private static final class ParsedSpec {
+    @Nullable private final Locator myLocator;
+    private final boolean isShort;
+    private final boolean isAll;
+    private final boolean isLong;
+    private final boolean isAllNested;
+    private final boolean isNone;
+
+    ParsedSpec(@NotNull final String fieldsSpec) {
+      if (StringUtil.isEmpty(fieldsSpec)) {
+        myLocator = null;
+      } else {
+        try {
+          myLocator = new Locator(fieldsSpec, true,
+                                  NONE_FIELDS_PATTERN, DEFAULT_FIELDS_SHORT_PATTERN_ALTERNATIVE, DEFAULT_FIELDS_LONG_PATTERN, ALL_FIELDS_PATTERN, ALL_NESTED_FIELDS_PATTERN,
+                                  LOCATOR_CUSTOM_NAME, OPTIONAL_FIELDS_PATTERN);
+          //should add to hidden dimension, but since the locator is not currently checked, save performance by not doing it so far
+          //myLocator.addHiddenDimensions(OPTIONAL_FIELDS_PATTERN);
+        } catch (LocatorProcessException e) {
+          throw new LocatorProcessException("Error parsing fields specification: " + e.getMessage(), e);
+        }
+      }
+      isShort = DEFAULT_FIELDS_SHORT_PATTERN.equals(fieldsSpec) || getCustomDimension(DEFAULT_FIELDS_SHORT_PATTERN_ALTERNATIVE) != null;
+      isAll = getCustomDimension(ALL_FIELDS_PATTERN) != null;
+      isLong = getCustomDimension(DEFAULT_FIELDS_LONG_PATTERN) != null;
+      isAllNested = getCustomDimension(ALL_NESTED_FIELDS_PATTERN) != null;
+      isNone = getCustomDimension(NONE_FIELDS_PATTERN) != null;
+    }
+
+    @Nullable
+    String getCustomDimension(@NotNull final String fieldName) {
+      //the locator is never modified after creation, so it can be used concurrently for lookups
+      //should use getSingleDimensionValue here, but since locator check is not invoked so far, can improve performance a bit by using lookupSingleDimensionValue
+      return myLocator == null ? null : myLocator.lookupSingleDimensionValue(fieldName);
+    }
+  }
+
+  private static final class NestedKey {
+    @NotNull private final String myName;
+    @NotNull private final String myDefaultForShort;
+    @NotNull private final String myDefaultForLong;
+
+    NestedKey(@NotNull final String name, @NotNull final String defaultForShort, @NotNull final String defaultForLong) {
+      myName = name;
+      myDefaultForShort = defaultForShort;
+      myDefaultForLong = defaultForLong;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      final NestedKey that = (NestedKey)o;
+      return myName.equals(that.myName) && myDefaultForShort.equals(that.myDefaultForShort) && myDefaultForLong.equals(that.myDefaultForLong);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myName, myDefaultForShort, myDefaultForLong);
+    }
+  }
 }
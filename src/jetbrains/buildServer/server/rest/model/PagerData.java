@@ -114,6 +114,11 @@ public class PagerData {
       final String newLocator = Locator.setDimension(nextHref.getCurrentLocatorText(), AbstractFinder.DIMENSION_LOOKUP_LIMIT, getNextLookUpLimit(pagedResult.myLookupLimit));
       nextHref = new UriModification(nextHref.getBuilder().replaceQueryParam(locatorQueryParameterName, Util.encodeUrlParamValue(newLocator)), newLocator);
     }
+    final String nextCursor = pagedResult.getNextCursor();
+    if (nextCursor != null && !StringUtil.isEmpty(locatorQueryParameterName)) {
+      final UriModification cursorHref = getCursorBuilder(uriBuilder, nextCursor, count, locatorText, locatorQueryParameterName);
+      if (cursorHref != null) nextHref = cursorHref;
+    }
     myNextHref = nextHref == null ? null : getRelativePath(nextHref.getBuilder().build(), contextPath);
     myPrevHref = prevHref == null ? null : getRelativePath(prevHref.build(), contextPath);
   }
@@ -147,6 +152,22 @@ public class PagerData {
     return new UriModification(newBuilder.replaceQueryParam(locatorQueryParameterName, Util.encodeUrlParamValue(newLocator)), newLocator);
   }
 
+  /**
+   * @return builder for the page starting after the cursor item, null if the locator does not support that
+   */
+  @Nullable
+  private UriModification getCursorBuilder(@NotNull final UriBuilder baseUriBuilder, @NotNull final String cursor, @Nullable final Long count,
+                                           @Nullable final String locatorText, @NotNull final String locatorQueryParameterName) {
+    final Locator locator = locatorText == null ? Locator.createEmptyLocator() : new Locator(locatorText);
+    if (locator.isSingleValue()) return null;
+    locator.removeDimension(START);
+    locator.setDimension(AbstractFinder.DIMENSION_AFTER, cursor);
+    if (count != null) locator.setDimension(COUNT, String.valueOf(count));
+    final String newLocator = locator.getStringRepresentation();
+    final UriBuilder newBuilder = baseUriBuilder.clone().replaceQueryParam(START, null).replaceQueryParam(COUNT, null);
+    return new UriModification(newBuilder.replaceQueryParam(locatorQueryParameterName, Util.encodeUrlParamValue(newLocator)), newLocator);
+  }
+
   class UriModification {
     @NotNull private final UriBuilder myBuilder;
     @Nullable private final String myCurrentLocatorText;
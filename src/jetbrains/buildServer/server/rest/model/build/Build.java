@@ -1224,8 +1224,7 @@ public class Build {
   public Related getRelated() {
     return ValueWithDefault.decideDefault(myFields.isIncluded("related", false, false),
                                           () -> {
-                                            Fields nestedField = myFields.getNestedField("related", Fields.LONG, Fields.LONG);
-                                            nestedField.setContext(myBuildPromotion);
+                                            Fields nestedField = myFields.getNestedField("related", Fields.LONG, Fields.LONG).withContext(myBuildPromotion);
                                             return new Related(nestedField, myBeanContext);
                                           });
   }
@@ -1282,6 +1281,16 @@ public class Build {
     return buildFinder.getItem(getLocatorFromPosted(buildPromotionIdQueuedBuildsReplacements));
   }
 
+  /**
+   * @return build id if the posted build is referenced only by the id, so that it can be resolved in a batch with others
+   */
+  @Nullable
+  public Long getIdFromPosted(final @NotNull Map<Long, Long> buildPromotionIdQueuedBuildsReplacements) {
+    if (submittedLocator != null || submittedPromotionId != null || submittedId == null) return null;
+    if (buildPromotionIdQueuedBuildsReplacements.containsKey(submittedId)) return null;
+    return submittedId;
+  }
+
   @NotNull
   public String getLocatorFromPosted(final @NotNull Map<Long, Long> buildPromotionIdQueuedBuildsReplacements) {
     String locatorText;
@@ -19,6 +19,7 @@ package jetbrains.buildServer.server.rest.model.build;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
@@ -97,9 +98,14 @@ public class Builds implements DefaultValueAware {
       return Collections.emptyList();
     }
     final BuildPromotionFinder buildFinder = serviceLocator.getSingletonService(BuildPromotionFinder.class);
+    //resolving the builds posted by id in one batch
+    final Map<Long, BuildPromotion> buildsById = buildFinder.getBuildPromotionsByIds(
+      builds.stream().map(build -> build.getIdFromPosted(buildPromotionIdReplacements)).filter(Objects::nonNull).collect(Collectors.toList()));
     return CollectionsUtil.convertCollection(builds, new Converter<BuildPromotion, Build>() {
       @Override
       public BuildPromotion createFrom(@NotNull final Build source) {
+        final Long id = source.getIdFromPosted(buildPromotionIdReplacements);
+        if (id != null) return buildsById.get(id);
         return source.getFromPosted(buildFinder, buildPromotionIdReplacements);
       }
     });
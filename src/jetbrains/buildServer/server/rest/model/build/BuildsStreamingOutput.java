@@ -0,0 +1,194 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.model.build;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.function.Function;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import jetbrains.buildServer.server.rest.data.PagedSearchResult;
+import jetbrains.buildServer.server.rest.errors.OperationException;
+import jetbrains.buildServer.server.rest.model.Fields;
+import jetbrains.buildServer.server.rest.model.PagerData;
+import jetbrains.buildServer.server.rest.util.BeanContext;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.ItemProcessor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes builds found by the locator into JSON response one by one as they are found, without collecting all the builds and their beans in memory.
+ * The document has the same structure as for {@link Builds}, "count" and "nextHref" are written after the builds as they are known only then.
+ * Nothing is sent until the first "rest.builds.streaming.flushEveryItems" builds are written, so the errors in the beginning (e.g. locator errors) are
+ * still reported as usual error responses. If an error occurs after that, the document is left unterminated so that the partial list cannot be taken
+ * for the complete one.
+ */
+public class BuildsStreamingOutput implements StreamingOutput {
+  public static final String FLUSH_INTERVAL_PROPERTY = "rest.builds.streaming.flushEveryItems";
+
+  @Nullable private final String myLocator;
+  @NotNull private final BuildsSource mySource;
+  @NotNull private final Function<PagedSearchResult<BuildPromotion>, PagerData> myPagerDataProvider;
+  @NotNull private final ObjectMapper myJsonMapper;
+  @NotNull private final Fields myFields;
+  @NotNull private final BeanContext myBeanContext;
+
+  /**
+   * @param source usually BuildPromotionFinder.processItems
+   */
+  public BuildsStreamingOutput(@Nullable final String locator,
+                               @NotNull final BuildsSource source,
+                               @NotNull final Function<PagedSearchResult<BuildPromotion>, PagerData> pagerDataProvider,
+                               @NotNull final ObjectMapper jsonMapper,
+                               @NotNull final Fields fields,
+                               @NotNull final BeanContext beanContext) {
+    myLocator = locator;
+    mySource = source;
+    myPagerDataProvider = pagerDataProvider;
+    myJsonMapper = jsonMapper;
+    myFields = fields;
+    myBeanContext = beanContext;
+  }
+
+  @Override
+  public void write(final OutputStream output) throws IOException, WebApplicationException {
+    final DeferredOutputStream deferredOutput = new DeferredOutputStream(output);
+    final JsonDocumentWriter writer = new JsonDocumentWriter(deferredOutput, myJsonMapper);
+    final boolean includeBuilds = Boolean.TRUE.equals(myFields.isIncluded("build", false, true));
+    final Fields buildFields = myFields.getNestedField("build");
+    final int flushInterval = Math.max(1, TeamCityProperties.getInteger(FLUSH_INTERVAL_PROPERTY, 100));
+    // href does not depend on the found items
+    final String href = Boolean.TRUE.equals(myFields.isIncluded("href"))
+                        ? myBeanContext.getApiUrlBuilder().transformRelativePath(myPagerDataProvider.apply(new PagedSearchResult<>(Collections.emptyList(), null, null)).getHref())
+                        : null;
+
+    writer.start(href, includeBuilds);
+    final int[] written = {0};
+    final PagedSearchResult<BuildPromotion> result = mySource.processItems(myLocator, buildPromotion -> {
+      try {
+        if (includeBuilds) writer.writeBuild(new Build(buildPromotion, buildFields, myBeanContext));
+        if (++written[0] % flushInterval == 0) {
+          writer.flush();
+          deferredOutput.commit();
+        }
+      } catch (IOException e) {
+        throw new OperationException("Error writing builds to the response: " + e.toString(), e);
+      }
+      return true;
+    });
+
+    final PagerData pagerData = myPagerDataProvider.apply(result);
+    final String nextHref = Boolean.TRUE.equals(myFields.isIncluded("nextHref")) && pagerData.getNextHref() != null
+                            ? myBeanContext.getApiUrlBuilder().transformRelativePath(pagerData.getNextHref())
+                            : null;
+    writer.finish(Boolean.FALSE.equals(myFields.isIncluded("count", true, true)) ? null : result.myActualCount, nextHref);
+    deferredOutput.commit();
+    output.flush();
+  }
+
+  public interface BuildsSource {
+    /**
+     * @see jetbrains.buildServer.server.rest.data.FinderImpl#processItems(String, ItemProcessor)
+     */
+    @NotNull
+    PagedSearchResult<BuildPromotion> processItems(@Nullable String locator, @NotNull ItemProcessor<BuildPromotion> processor);
+  }
+
+  private static class JsonDocumentWriter {
+    @NotNull private final JsonGenerator myGenerator;
+    private boolean myBuildsArrayStarted = false;
+
+    JsonDocumentWriter(@NotNull final OutputStream output, @NotNull final ObjectMapper mapper) throws IOException {
+      myGenerator = mapper.getFactory().createGenerator(output, JsonEncoding.UTF8);
+      myGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      myGenerator.setCodec(mapper);
+    }
+
+    void start(@Nullable final String href, final boolean includeBuilds) throws IOException {
+      myGenerator.writeStartObject();
+      if (href != null) myGenerator.writeStringField("href", href);
+      if (includeBuilds) {
+        myGenerator.writeArrayFieldStart("build");
+        myBuildsArrayStarted = true;
+      }
+    }
+
+    void writeBuild(@NotNull final Build build) throws IOException {
+      myGenerator.writeObject(build);
+    }
+
+    void flush() throws IOException {
+      myGenerator.flush();
+    }
+
+    void finish(@Nullable final Integer count, @Nullable final String nextHref) throws IOException {
+      if (myBuildsArrayStarted) myGenerator.writeEndArray();
+      if (count != null) myGenerator.writeNumberField("count", count);
+      if (nextHref != null) myGenerator.writeStringField("nextHref", nextHref);
+      myGenerator.writeEndObject();
+      myGenerator.close();
+    }
+  }
+
+  /**
+   * Keeps the written data in memory until {@link #commit()} is called, then writes directly to the target stream
+   */
+  private static class DeferredOutputStream extends OutputStream {
+    @NotNull private final OutputStream myTarget;
+    @Nullable private ByteArrayOutputStream myBuffer = new ByteArrayOutputStream();
+
+    DeferredOutputStream(@NotNull final OutputStream target) {
+      myTarget = target;
+    }
+
+    void commit() throws IOException {
+      if (myBuffer == null) return;
+      myBuffer.writeTo(myTarget);
+      myBuffer = null;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      if (myBuffer != null) {
+        myBuffer.write(b);
+      } else {
+        myTarget.write(b);
+      }
+    }
+
+    @Override
+    public void write(@NotNull final byte[] b, final int off, final int len) throws IOException {
+      if (myBuffer != null) {
+        myBuffer.write(b, off, len);
+      } else {
+        myTarget.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (myBuffer == null) myTarget.flush();
+    }
+  }
+}
@@ -520,8 +520,8 @@ public class BuildType {
       public Properties get() {
         Fields nestedField = myFields.getNestedField("settings", Fields.NONE, Fields.LONG);
         Locator locator = nestedField.getLocator() == null ? null : new Locator(nestedField.getLocator());
-        EntityWithParameters entity = Properties.createEntity(BuildTypeUtil.getSettingsParameters(myBuildType, locator, null, false),
-                                                              BuildTypeUtil.getSettingsParameters(myBuildType, null, true, false));
+        EntityWithParameters entity = Properties.createEntity(BuildTypeUtil.getSettingsParameters(myBuildType, locator, null, false, myBeanContext.getServiceLocator()),
+                                                              BuildTypeUtil.getSettingsParameters(myBuildType, null, true, false, myBeanContext.getServiceLocator()));
         Properties result = new Properties(entity, null, locator, nestedField, myBeanContext);
         if (locator != null) locator.checkLocatorFullyProcessed();
         return result;
@@ -21,6 +21,7 @@ import java.lang.reflect.Field;
 import java.util.*;
 import jetbrains.buildServer.ServiceLocator;
 import jetbrains.buildServer.parameters.ParametersProvider;
+import jetbrains.buildServer.server.rest.data.BuildTypeSettingsCache;
 import jetbrains.buildServer.server.rest.data.Locator;
 import jetbrains.buildServer.server.rest.data.PermissionChecker;
 import jetbrains.buildServer.server.rest.data.parameters.EntityWithModifiableParameters;
@@ -67,17 +68,42 @@ public class BuildTypeUtil {
 
   public static HashMap<String, String> getSettingsParameters(@NotNull final BuildTypeOrTemplate buildType,
                                                               @Nullable Locator baseLocator, @Nullable Boolean own, @Nullable Boolean includeDefaultSettings) {
-    return getSettingsParameters(buildType, getSettingsLocator(baseLocator, own, includeDefaultSettings));
+    return getSettingsParameters(buildType, getSettingsLocator(baseLocator, own, includeDefaultSettings), null);
   }
 
-  @NotNull
-  private static HashMap<String, String> getSettingsParameters(@NotNull final BuildTypeOrTemplate buildType, @Nullable final Locator locator) {
-    HashMap<String, String> properties = new HashMap<String, String>();
-//    getOptionsAsMap(properties, buildType.get(), onlyOwn && buildType.get().isTemplateBased());
+  /**
+   * The same as {@link #getSettingsParameters(BuildTypeOrTemplate, Locator, Boolean, Boolean)}, but reuses the settings snapshot from {@link BuildTypeSettingsCache} when available
+   */
+  public static HashMap<String, String> getSettingsParameters(@NotNull final BuildTypeOrTemplate buildType,
+                                                              @Nullable Locator baseLocator, @Nullable Boolean own, @Nullable Boolean includeDefaultSettings,
+                                                              @NotNull final ServiceLocator serviceLocator) {
+    return getSettingsParameters(buildType, getSettingsLocator(baseLocator, own, includeDefaultSettings), serviceLocator.findSingletonService(BuildTypeSettingsCache.class));
+  }
 
+  @NotNull
+  private static HashMap<String, String> getSettingsParameters(@NotNull final BuildTypeOrTemplate buildType, @Nullable final Locator locator,
+                                                               @Nullable final BuildTypeSettingsCache settingsCache) {
     Boolean own = locator == null ? null : locator.getSingleDimensionValueAsBoolean("own");
     Boolean defaultValue = locator == null ? null : locator.getSingleDimensionValueAsBoolean("defaults");
 
+    HashMap<String, String> properties = new HashMap<String, String>();
+    if (settingsCache != null) {
+      properties.putAll(settingsCache.getSettings(buildType, own, defaultValue, () -> getOptionsParameters(buildType, own, defaultValue)));
+    } else {
+      properties.putAll(getOptionsParameters(buildType, own, defaultValue));
+    }
+    //the counter changes with each build, so it is never cached
+    if ((own == null || own) && (defaultValue == null || !defaultValue) && buildType.getBuildType() != null) {
+      properties.put(BUILD_NUMBER_COUNTER, String.valueOf(buildType.getBuildType().getBuildNumbers().getBuildCounter()));
+    }
+    return properties;
+  }
+
+  @NotNull
+  private static Map<String, String> getOptionsParameters(@NotNull final BuildTypeOrTemplate buildType, @Nullable final Boolean own, @Nullable final Boolean defaultValue) {
+    HashMap<String, String> properties = new HashMap<String, String>();
+//    getOptionsAsMap(properties, buildType.get(), onlyOwn && buildType.get().isTemplateBased());
+
     List<? extends BuildTypeTemplate> templates = null;
     try {
       //todo: rework this to use only options methods of buildType and not traversing templates
@@ -99,9 +125,6 @@ public class BuildTypeUtil {
       allOptions.removeAll(buildType.get().getOwnOptions());
       properties.putAll(getOptionsAsMap(buildType.get(), allOptions));  //todo: do not add those which are there already!!!!!!!!!!!
     }
-    if ((own == null || own) && (defaultValue == null || !defaultValue) && buildType.getBuildType() != null) {
-      properties.put(BUILD_NUMBER_COUNTER, String.valueOf(buildType.getBuildType().getBuildNumbers().getBuildCounter()));
-    }
     return properties;
   }
 
@@ -16,12 +16,14 @@
 
 package jetbrains.buildServer.server.rest.request;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.intellij.openapi.diagnostic.Logger;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import java.io.*;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import javax.servlet.ServletContext;
@@ -29,6 +31,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
 import jetbrains.buildServer.BuildProblemData;
 import jetbrains.buildServer.agent.ServerProvidedProperties;
 import jetbrains.buildServer.controllers.FileSecurityUtil;
@@ -39,11 +43,14 @@ import jetbrains.buildServer.messages.Status;
 import jetbrains.buildServer.parameters.ProcessingResult;
 import jetbrains.buildServer.parameters.ReferencesResolverUtil;
 import jetbrains.buildServer.server.rest.data.*;
+import jetbrains.buildServer.server.rest.data.build.BuildLogStreamProcessor;
+import jetbrains.buildServer.server.rest.data.build.BuildStatusCache;
 import jetbrains.buildServer.server.rest.data.build.TagFinder;
 import jetbrains.buildServer.server.rest.data.parameters.ParametersPersistableEntity;
 import jetbrains.buildServer.server.rest.data.problem.ProblemOccurrenceFinder;
 import jetbrains.buildServer.server.rest.data.problem.TestOccurrenceFinder;
 import jetbrains.buildServer.server.rest.errors.*;
+import jetbrains.buildServer.server.rest.jersey.JacksonObjectMapperResolver;
 import jetbrains.buildServer.server.rest.model.Properties;
 import jetbrains.buildServer.server.rest.model.*;
 import jetbrains.buildServer.server.rest.model.build.*;
@@ -53,7 +60,8 @@ import jetbrains.buildServer.server.rest.model.issue.IssueUsages;
 import jetbrains.buildServer.server.rest.model.problem.ProblemOccurrence;
 import jetbrains.buildServer.server.rest.model.problem.ProblemOccurrences;
 import jetbrains.buildServer.server.rest.model.problem.TestOccurrences;
-import jetbrains.buildServer.server.rest.util.AggregatedBuildArtifactsElementBuilder;
+import jetbrains.buildServer.server.rest.util.AggregatedBuildArtifactsIndex;
+import jetbrains.buildServer.server.rest.util.AggregatedBuildArtifactsIndexCache;
 import jetbrains.buildServer.server.rest.util.BeanContext;
 import jetbrains.buildServer.serverSide.TriggeredBy;
 import jetbrains.buildServer.serverSide.*;
@@ -70,7 +78,6 @@ import jetbrains.buildServer.users.User;
 import jetbrains.buildServer.users.UserModel;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
-import jetbrains.buildServer.util.TCStreamUtil;
 import jetbrains.buildServer.util.TimeService;
 import jetbrains.buildServer.util.browser.Element;
 import jetbrains.buildServer.vcs.VcsException;
@@ -192,6 +199,45 @@ public class BuildRequest {
     );
   }
 
+  /**
+   * Same as {@link #serveAllBuilds(String, String, String, boolean, boolean, boolean, List, String, String, String, Long, Integer, String, String, UriInfo, HttpServletRequest)},
+   * but in JSON the builds are written into the response as soon as they are found, so large collections do not need to be held in memory.
+   * XML is not streamed as "count" and "nextHref" attributes are known only after all the builds are found.
+   */
+  @GET
+  @Path("/stream")
+  @Produces({"application/xml", "application/json"})
+  public Response streamBuilds(@QueryParam("locator") String locator,
+                               @QueryParam("fields") String fields,
+                               @Context UriInfo uriInfo,
+                               @Context HttpServletRequest request,
+                               @Context HttpHeaders headers,
+                               @Context Providers providers) {
+    if (!MediaType.APPLICATION_JSON_TYPE.equals(getStreamingMediaType(headers.getAcceptableMediaTypes()))) {
+      final Builds builds = serveAllBuilds(null, null, null, false, false, false, Collections.emptyList(), null, null, null, null, null, locator, fields, uriInfo, request);
+      return Response.ok(builds, MediaType.APPLICATION_XML_TYPE).build();
+    }
+    final ContextResolver<ObjectMapper> resolver = providers.getContextResolver(ObjectMapper.class, MediaType.APPLICATION_JSON_TYPE);
+    final ObjectMapper jsonMapper = resolver != null ? resolver.getContext(Build.class) : new JacksonObjectMapperResolver().getContext(Build.class);
+    final BuildsStreamingOutput output =
+      new BuildsStreamingOutput(locator, myBuildPromotionFinder::processItems,
+                                pagedResult -> new PagerData(uriInfo.getRequestUriBuilder(), request.getContextPath(), pagedResult, locator, "locator"),
+                                jsonMapper, new Fields(fields), myBeanContext);
+    return Response.ok(output, MediaType.APPLICATION_JSON_TYPE).build();
+  }
+
+  /**
+   * @return JSON if it is explicitly accepted before XML, XML otherwise
+   */
+  @NotNull
+  static MediaType getStreamingMediaType(@NotNull final List<MediaType> acceptableMediaTypes) {
+    for (MediaType acceptable : acceptableMediaTypes) {
+      if (MediaType.APPLICATION_JSON_TYPE.isCompatible(acceptable) && !acceptable.isWildcardType()) return MediaType.APPLICATION_JSON_TYPE;
+      if (MediaType.APPLICATION_XML_TYPE.isCompatible(acceptable)) return MediaType.APPLICATION_XML_TYPE;
+    }
+    return MediaType.APPLICATION_XML_TYPE;
+  }
+
   /**
    * @deprecated Use DELETE request to .../app/rest/builds/multiple/{locator}
    */
@@ -1058,10 +1104,9 @@ public class BuildRequest {
   @GET
   @Path("/{buildLocator}/" + STATUS_ICON_REQUEST_NAME + "{suffix:(.*)?}")
   public Response serveBuildStatusIcon(@PathParam("buildLocator") final String buildLocator, @PathParam("suffix") final String suffix, @Context HttpServletRequest request) {
-    //todo: may also use HTTP 304 for different resources in order to make it browser-cached
     //todo: return something appropriate when in maintenance
 
-    final BuildIconStatus stateName = getStatus(buildLocator);
+    final BuildIconStatus stateName = getCachedStatus("icon", buildLocator, () -> getStatus(buildLocator));
     return processIconRequest(stateName.getIconName(), suffix, request);
   }
 
@@ -1069,13 +1114,18 @@ public class BuildRequest {
   @GET
   @Path(AGGREGATED + "/{buildLocator}/" + STATUS_ICON_REQUEST_NAME + "{suffix:(.*)?}")
   public Response serveAggregatedBuildStatusIcon(@PathParam("buildLocator") String locator, @PathParam("suffix") final String suffix, @Context HttpServletRequest request) {
-    final BuildIconStatus stateName = getAggregatedStatus(locator);
+    final BuildIconStatus stateName = getCachedStatus("aggregatedIcon", locator, () -> getAggregatedStatus(locator));
     return processIconRequest(stateName.getIconName(), suffix, request);
   }
 
   @GET
   @Path(AGGREGATED + "/{buildLocator}/" + "status")
   public String serveAggregatedBuildStatus(@PathParam("buildLocator") String locator) {
+    return getCachedStatus("aggregatedStatus", locator, () -> getAggregatedBuildStatusText(locator));
+  }
+
+  @NotNull
+  private String getAggregatedBuildStatusText(@Nullable final String locator) {
     final PagedSearchResult<BuildPromotion> builds = myBuildPromotionFinder.getItems(locator);
     Status resultingStatus = Status.UNKNOWN;
     for (BuildPromotion buildPromotion : builds.myEntries) {
@@ -1096,11 +1146,14 @@ public class BuildRequest {
     }
     final PagedSearchResult<BuildPromotion> builds = myBuildPromotionFinder.getItems(locator);
     final String urlPrefix = Util.concatenatePath(myBeanContext.getApiUrlBuilder().transformRelativePath(API_BUILDS_URL), AGGREGATED, locator, ARTIFACTS); //consider URL-escaping locator here
+    final User user = myBeanContext.getSingletonService(SecurityContext.class).getAuthorityHolder().getAssociatedUser();
+    final AggregatedBuildArtifactsIndex artifactsIndex = myBeanContext.getSingletonService(AggregatedBuildArtifactsIndexCache.class)
+                                                                      .getIndex(builds.myEntries, user == null ? null : user.getId(), myBeanContext.getServiceLocator());
     return new FilesSubResource(new FilesSubResource.Provider() {
       @Override
       @NotNull
       public Element getElement(@NotNull final String path) {
-        return AggregatedBuildArtifactsElementBuilder.getBuildAggregatedArtifactElement(path, builds.myEntries, myBeanContext.getServiceLocator());
+        return artifactsIndex.getElement(path);
       }
 
       @NotNull
@@ -1161,54 +1214,41 @@ public class BuildRequest {
   /**
    * Experimental support for streaming messages to a running build.
    * Use with caution: this API is not yet stable and is subject to change.
-   *   this is an experiment to try to support for reading streamed input
-   *   Can be used with a command like:
-   *   curl -H "Transfer-Encoding: chunked" -H "Content-Type: text/plain" -X POST -T -  .../app/rest/runningBuilds/XXX/log/stream
+   * Each line of the request body is added as a separate message, the lines are sent to the build in batches. Can be used with a command like:
+   *   curl -H "Transfer-Encoding: chunked" -H "Content-Type: text/plain" -X POST -T -  .../app/rest/builds/XXX/log/stream
+   * The request body is read in the request thread (there is no async request processing in the used JAX-RS version).
+   * @return statistics on the processed lines
    */
-  /*
   @POST
   @Path("/{buildLocator}/log/stream")
   @Consumes({MediaType.TEXT_PLAIN})
+  @Produces({MediaType.TEXT_PLAIN})
   @ApiOperation(hidden = true, value = "Experimental ability to stream build log as request body")
-  public void addLogMessage(@PathParam("buildLocator") String buildLocator, InputStream requestBody) {
-    //ideally, this should be async not to waste the thread on input waiting
+  public String addLogMessages(@PathParam("buildLocator") String buildLocator, InputStream requestBody) {
     BuildPromotion buildPromotion = myBuildPromotionFinder.getBuildPromotion(null, buildLocator);
     checkBuildOperationPermission(buildPromotion);
-    // check for running?
     SBuild build = buildPromotion.getAssociatedBuild();
     if (build == null) {
       throw new NotFoundException("Build with id " + buildPromotion.getId() + " is not in the runing or finished state");
     }
-
-    try {
-      BufferedReader reader = new BufferedReader(new InputStreamReader(requestBody));
-      String line = reader.readLine();
-      while (line != null) {
-        logMessage(build, line);
-        line = reader.readLine();
-      }
-    } catch (IOException e) {
-      //todo: log
-      throw new OperationException("Error reading request body: " + e.toString(), e);
-    }
+    return BuildLogStreamProcessor.forStream(myBeanContext.getSingletonService(BuildAgentMessagesQueue.class), getRunningBuild(build)).process(requestBody);
   }
-  */
 
   //todo: ideally, should put all the data from the same client into the same flow in the build
   //can also try to put it into a dedicated block...
   private void logMessage(@NotNull final SBuild build, final String lines) {
 //    build.getBuildLog().message(lines, Status.NORMAL, MessageAttrs.attrs());
+    //a single message does not wait for the full queue not to hold the request thread
+    BuildLogStreamProcessor.forMessage(myBeanContext.getSingletonService(BuildAgentMessagesQueue.class), getRunningBuild(build))
+                           .send(Collections.singletonList(DefaultMessagesInfo.createTextMessage(lines)));
+  }
+
+  @NotNull
+  private static RunningBuildEx getRunningBuild(@NotNull final SBuild build) {
     if (build.isFinished() || !(build instanceof RunningBuildEx)) {
       throw new NotFoundException("Build with id " + build.getBuildId() + " is already finished");
     }
-    RunningBuildEx runningBuild = (RunningBuildEx)build;
-    try {
-      myBeanContext.getSingletonService(BuildAgentMessagesQueue.class).processMessages(runningBuild, Collections.singletonList(DefaultMessagesInfo.createTextMessage(lines)));
-    } catch (InterruptedException e) {
-      throw new OperationException("Got interrupted", e); //todo
-    } catch (BuildAgentMessagesQueue.BuildMessagesQueueFullException e) {
-      throw new OperationException("Failed to add messages as the queue is full", e); //todo
-    }
+    return (RunningBuildEx)build;
   }
 
   /**
@@ -1300,6 +1340,35 @@ public class BuildRequest {
     return resultState;
   }
 
+  /**
+   * Uses {@link BuildStatusCache} if available. The cached status is specific to the current user as it depends on the user's permissions.
+   * The requests without a user (e.g. unauthenticated status icons requests) share the "guest" scope.
+   */
+  @NotNull
+  private <T> T getCachedStatus(@NotNull final String kind, @Nullable final String locator, @NotNull final Supplier<T> calculator) {
+    final BuildStatusCache cache = myBeanContext.getServiceLocator().findSingletonService(BuildStatusCache.class);
+    if (cache == null) return calculator.get();
+    final User user = myBeanContext.getSingletonService(SecurityContext.class).getAuthorityHolder().getAssociatedUser();
+    final String scope = user == null ? "guest" : "user:" + user.getId();
+    return cache.getStatus(kind + "|" + scope + "|" + locator, () -> getStatusBuildTypeIds(locator), calculator);
+  }
+
+  /**
+   * @return internal ids of the build types specified in the builds locator, null if the builds of any build type can be found by the locator
+   */
+  @Nullable
+  private Set<String> getStatusBuildTypeIds(@Nullable final String locator) {
+    if (locator == null) return null;
+    try {
+      final String buildTypeLocator = new Locator(locator).getSingleDimensionValue(BuildPromotionFinder.BUILD_TYPE);
+      if (buildTypeLocator == null) return null;
+      return myBuildTypeFinder.getBuildTypes(null, buildTypeLocator).stream().map(SBuildType::getInternalId).collect(Collectors.toSet());
+    } catch (RuntimeException e) {
+      //the error is reported by the status calculation, if at all
+      return null;
+    }
+  }
+
   @NotNull
   private BuildIconStatus getStatus(@Nullable final String buildLocator) {
     return BuildIconStatus.create(myBeanContext, new BuildIconStatus.Value<BuildPromotion>() {
@@ -1331,26 +1400,19 @@ public class BuildRequest {
       //todo: list extensions in file under IMG_STATUS_WIDGET_ROOT_DIRECTORY, see also above
     }
 
-    final File resultIconFile = new File(resultIconFileName);
-    final StreamingOutput streamingOutput = new StreamingOutput() {
-      public void write(final OutputStream output) throws WebApplicationException {
-        InputStream inputStream = null;
-        try {
-          inputStream = new BufferedInputStream(new FileInputStream(resultIconFile));
-          TCStreamUtil.writeBinary(inputStream, output);
-        } catch (IOException e) {
-          //todo add better processing
-          throw new OperationException("Error while retrieving file '" + resultIconFile.getName() + "': " + e.getMessage(), e);
-        } finally {
-          FileUtil.close(inputStream);
-        }
-      }
-    };
+    final BuildStatusCache cache = myBeanContext.getServiceLocator().findSingletonService(BuildStatusCache.class);
+    final BuildStatusCache.IconContent icon = cache != null ? cache.getIcon(resultIconFileName, () -> loadIcon(resultIconFileName, request))
+                                                            : loadIcon(resultIconFileName, request);
 
-    final String mediaType = WebUtil.getMimeType(request, resultIconFileName);
-    final Response.ResponseBuilder response = Response.ok(streamingOutput, mediaType).header("Cache-Control", "no-cache, private");
+    final Response.ResponseBuilder response;
+    if (isETagMatched(request.getHeader("If-None-Match"), icon.getETag())) {
+      response = Response.notModified();
+    } else {
+      response = Response.ok(icon.getContent(), icon.getMediaType());
+    }
+    response.header("Cache-Control", "no-cache, private");
     //see also setting no caching headers in jetbrains.buildServer.server.rest.request.FilesSubResource.getContentByStream()
-    response.header("ETag", "W/\"" + EncryptUtil.md5(String.valueOf(stateName)) + "\"");  //mark ETag as "weak"
+    response.header("ETag", icon.getETag());
     // see jetbrains.buildServer.web.util.WebUtil.addCacheHeadersForIE and http://youtrack.jetbrains.com/issue/TW-9821 for details)
     if (WebUtil.isIE10OrLower(request)) {
       response.header("Cache-Control", "private,must-revalidate");
@@ -1359,6 +1421,30 @@ public class BuildRequest {
     return response.build();
   }
 
+  @NotNull
+  private static BuildStatusCache.IconContent loadIcon(@NotNull final String iconFileName, @NotNull final HttpServletRequest request) {
+    final File iconFile = new File(iconFileName);
+    final byte[] content;
+    try {
+      content = java.nio.file.Files.readAllBytes(iconFile.toPath());
+    } catch (IOException e) {
+      throw new OperationException("Error while retrieving file '" + iconFile.getName() + "': " + e.getMessage(), e);
+    }
+    //the same status icon file always has the same content, so the entity tag is a strong one
+    final String eTag = "\"" + EncryptUtil.md5(iconFileName + "_" + content.length + "_" + iconFile.lastModified()) + "\"";
+    return new BuildStatusCache.IconContent(content, eTag, WebUtil.getMimeType(request, iconFileName));
+  }
+
+  static boolean isETagMatched(@Nullable final String ifNoneMatchHeader, @NotNull final String eTag) {
+    if (StringUtil.isEmpty(ifNoneMatchHeader)) return false;
+    for (String tag : ifNoneMatchHeader.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) tag = tag.substring("W/".length()); //weak comparison as per RFC 7232
+      if ("*".equals(tag) || eTag.equals(tag)) return true;
+    }
+    return false;
+  }
+
   enum BuildIconStatus {
     NOT_FOUND("not_found"),
     INTERNAL_ERROR("internal_error"),
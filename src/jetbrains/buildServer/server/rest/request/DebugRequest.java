@@ -16,6 +16,8 @@
 
 package jetbrains.buildServer.server.rest.request;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Charsets;
 import com.google.common.hash.Hashing;
 import io.swagger.annotations.Api;
@@ -823,6 +825,90 @@ public class DebugRequest {
     return new Builds(itemsRetriever, new Fields(fields), myBeanContext);
   }
 
+  @GET
+  @Path("/caches/locators/stats")
+  @Produces({"application/xml", "application/json"})
+  public Properties getCachedLocatorsStats(@QueryParam("fields") final String fields) {
+    myPermissionChecker.checkGlobalPermission(Permission.MANAGE_SERVER_INSTALLATION);
+    return new Properties(Properties.createEntity(ParsedLocatorCache.getInstance().getStats(), null), false, null, null, new Fields(fields), myBeanContext);
+  }
+
+  @DELETE
+  @Path("/caches/locators")
+  public void resetCachedLocators() {
+    myPermissionChecker.checkGlobalPermission(Permission.MANAGE_SERVER_INSTALLATION);
+    ParsedLocatorCache.getInstance().invalidateAll();
+  }
+
+  @GET
+  @Path("/caches/finderResults/{finderName}/stats")
+  @Produces({"application/xml", "application/json"})
+  public Properties getFinderResultsCacheStats(@PathParam("finderName") final String finderName, @QueryParam("fields") final String fields) {
+    myPermissionChecker.checkGlobalPermission(Permission.MANAGE_SERVER_INSTALLATION);
+    return new Properties(Properties.createEntity(getFinderResultCache(finderName).getStats(), null), false, null, null, new Fields(fields), myBeanContext);
+  }
+
+  @DELETE
+  @Path("/caches/finderResults/{finderName}")
+  public void resetFinderResultsCache(@PathParam("finderName") final String finderName) {
+    myPermissionChecker.checkGlobalPermission(Permission.MANAGE_SERVER_INSTALLATION);
+    getFinderResultCache(finderName).invalidateAll();
+  }
+
+  @NotNull
+  private FinderResultCache<?> getFinderResultCache(@NotNull final String finderName) {
+    //the caches are owned by the finders, only BuildPromotionFinder supports the result cache so far
+    final Map<String, FinderResultCache<?>> caches = new TreeMap<>();
+    final BuildPromotionFinder buildPromotionFinder = myServiceLocator.getSingletonService(BuildPromotionFinder.class);
+    if (buildPromotionFinder.getResultCache() != null) {
+      caches.put(buildPromotionFinder.getName(), buildPromotionFinder.getResultCache());
+    }
+    final FinderResultCache<?> result = caches.get(finderName);
+    if (result == null) {
+      throw new NotFoundException("No result cache found for finder '" + finderName + "'. Available: " + StringUtil.join(caches.keySet(), ", "));
+    }
+    return result;
+  }
+
+  /**
+   * Lists profiles of the current user's requests with "$profile:true" locator option, the most recent first
+   */
+  @GET
+  @Path("/finderProfiles")
+  @Produces({"application/json"})
+  public String getFinderProfiles() {
+    final List<Map<String, Object>> result = FinderProfile.getProfiles(getCurrentUserId()).stream().map(FinderProfile::toMap).collect(Collectors.toList());
+    return toJson(result);
+  }
+
+  @GET
+  @Path("/finderProfiles/{id}")
+  @Produces({"application/json"})
+  public String getFinderProfile(@PathParam("id") final String id) {
+    final FinderProfile profile = FinderProfile.getProfile(id, getCurrentUserId());
+    if (profile == null) {
+      throw new NotFoundException("No finder profile with id '" + id + "' is found for the current user");
+    }
+    return toJson(profile.toMap());
+  }
+
+  private long getCurrentUserId() {
+    final User user = myPermissionChecker.getCurrent().getAssociatedUser();
+    if (user == null) {
+      throw new BadRequestException("Finder profiles are available only for requests made by a user");
+    }
+    return user.getId();
+  }
+
+  @NotNull
+  private static String toJson(@NotNull final Object value) {
+    try {
+      return new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(value);
+    } catch (JsonProcessingException e) {
+      throw new OperationException("Error serializing finder profile: " + e.toString(), e);
+    }
+  }
+
   /**
    * experimental use only.
    */
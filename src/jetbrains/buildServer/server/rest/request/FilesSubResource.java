@@ -19,21 +19,33 @@ package jetbrains.buildServer.server.rest.request;
 import com.google.common.base.Stopwatch;
 import com.intellij.openapi.diagnostic.Logger;
 import io.swagger.annotations.Api;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
 import jetbrains.buildServer.controllers.HttpDownloadProcessor;
+import jetbrains.buildServer.server.rest.data.ArchiveCompressionExecutor;
 import jetbrains.buildServer.server.rest.data.ArchiveElement;
 import jetbrains.buildServer.server.rest.data.BuildArtifactsFinder;
 import jetbrains.buildServer.server.rest.data.Locator;
+import jetbrains.buildServer.server.rest.data.SpooledArchivesCache;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
 import jetbrains.buildServer.server.rest.errors.NotFoundException;
 import jetbrains.buildServer.server.rest.errors.OperationException;
@@ -46,6 +58,7 @@ import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.crypt.EncryptUtil;
 import jetbrains.buildServer.util.*;
 import jetbrains.buildServer.util.browser.Element;
+import jetbrains.buildServer.util.browser.FileSystemBrowser;
 import jetbrains.buildServer.web.artifacts.browser.ArtifactElement;
 import jetbrains.buildServer.web.artifacts.browser.ArtifactTreeElement;
 import jetbrains.buildServer.web.util.HttpByteRange;
@@ -314,6 +327,7 @@ public class FilesSubResource {
                             @QueryParam("basePath") final String basePath,
                             @QueryParam("locator") final String locator,
                             @QueryParam("name") final String name,
+                            @QueryParam("compression") final String compression,
 //                            @QueryParam("ignoreErrors") final String ignoreErrors, //todo: implement
                             @Context HttpServletRequest request) {
     final String processedPath = myProvider.preprocess(StringUtil.removeLeadingSlash(path));
@@ -330,27 +344,74 @@ public class FilesSubResource {
     final List<ArtifactTreeElement> elements = BuildArtifactsFinder.getItems(myProvider.getElement(processedPath), actualBasePath, actualLocator, urlBuilder,
                                                                              myBeanContext.getServiceLocator());
 
-    final ArchiveElement archiveElement = new ArchiveElement(elements, finalName);
-    final Response.ResponseBuilder builder = getContentByStream(archiveElement, request, new StreamingOutputProvider() {
-      public boolean isRangeSupported() {
-        return false;
-      }
-
-      public StreamingOutput getStreamingOutput(@Nullable final Long startOffset, @Nullable final Long length) {
-        return archiveElement.getStreamingOutput(startOffset, length, () -> "request " + WebUtil.getRequestDump(request));
-      }
-    });
+    final ArchiveCompressionExecutor compressionExecutor = myBeanContext.getServiceLocator().findSingletonService(ArchiveCompressionExecutor.class);
+    final ArchiveElement archiveElement = new ArchiveElement(elements, finalName, getSetting(ArchiveElement.COMPRESSION_PROPERTY, ArchiveElement.COMPRESSION_DEFAULT,
+                                                                                              "compression", compression, true, ArchiveElement.COMPRESSION_VALUES),
+                                                             compressionExecutor == null ? null : compressionExecutor.getExecutor());
     for (ArtifactTreeElement element : elements) {
       if (!myProvider.fileContentServed(Util.concatenatePath(actualBasePath, element.getFullName()), request)) break;
     }
+    return getArchiveContent(archiveElement, request, TeamCityProperties.getBooleanOrTrue("rest.files.archive.ranges.enabled"),
+                             myBeanContext.getServiceLocator().findSingletonService(SpooledArchivesCache.class));
+  }
 
-    // see jetbrains.buildServer.web.util.WebUtil.addCacheHeadersForIE and http://youtrack.jetbrains.com/issue/TW-9821 for details)
-    if (WebUtil.isIE10OrLower(request)) {
-      builder.header("Cache-Control", "private,must-revalidate");
-      builder.header("Pragma", "private");
-    } //setCacheControl(request, response); //should we allow to cache this?
+  /**
+   * Ranged requests are served from the archive generated once into a temporary file. The file is kept in the spooled archives cache (if passed) to be reused
+   * by the next ranged requests of the same archive, otherwise it is deleted after the response is written.
+   * Without ranges the archive is streamed while it is generated and its length is not sent.
+   */
+  @NotNull
+  static Response getArchiveContent(@NotNull final ArchiveElement archiveElement,
+                                    @NotNull final HttpServletRequest request,
+                                    final boolean rangeSupported,
+                                    @Nullable final SpooledArchivesCache spooledArchivesCache) {
+    final Supplier<String> detailsForLog = () -> "request " + WebUtil.getRequestDump(request);
+    final boolean ranged = rangeSupported && !StringUtil.isEmpty(request.getHeader(HttpHeaders.RANGE));
+    if (ranged) {
+      try {
+        archiveElement.spool(detailsForLog, spooledArchivesCache); //the size is necessary to process the ranges
+      } catch (IOException e) {
+        throw new OperationException("Error while generating archive '" + archiveElement.getName() + "': " + e.toString(), e);
+      }
+    }
+    final Response response;
+    try {
+      final Response.ResponseBuilder builder = getContentByStream(archiveElement, request, new StreamingOutputProvider() {
+        public boolean isRangeSupported() {
+          return rangeSupported;
+        }
+
+        public StreamingOutput getStreamingOutput(@Nullable final Long startOffset, @Nullable final Long length) {
+          return archiveElement.getStreamingOutput(startOffset, length, detailsForLog);
+        }
+      });
+
+      // see jetbrains.buildServer.web.util.WebUtil.addCacheHeadersForIE and http://youtrack.jetbrains.com/issue/TW-9821 for details)
+      if (WebUtil.isIE10OrLower(request)) {
+        builder.header("Cache-Control", "private,must-revalidate");
+        builder.header("Pragma", "private");
+      } //setCacheControl(request, response); //should we allow to cache this?
+      response = builder.build();
+    } catch (RuntimeException e) {
+      archiveElement.dispose();
+      throw e;
+    }
 
-    return builder.build();
+    if (!ranged) return response;
+    if (!(response.getEntity() instanceof StreamingOutput)) {
+      archiveElement.dispose();
+      return response;
+    }
+    final StreamingOutput output = (StreamingOutput)response.getEntity();
+    return Response.fromResponse(response).entity(new StreamingOutput() {
+      public void write(final OutputStream out) throws IOException, WebApplicationException {
+        try {
+          output.write(out);
+        } finally {
+          archiveElement.dispose();
+        }
+      }
+    }).build();
   }
 
   public static FileApiUrlBuilder fileApiUrlBuilder(@Nullable final String locator, @NotNull final String urlPathPrefix) {
@@ -415,6 +476,7 @@ public class FilesSubResource {
     }
 
     Response.ResponseBuilder builder;
+    String multipartBoundary = null;
     if (StringUtil.isEmpty(rangeHeader)) {
       builder = Response.ok().entity(streamingOutputProvider.getStreamingOutput(null, null));
       if (fullFileSize != null) {
@@ -426,9 +488,20 @@ public class FilesSubResource {
       }
       try {
         HttpByteRange range = new HttpByteRange(rangeHeader, fullFileSize);
-        //todo: support requests with "Range: bytes=XX-" header and unknown content-length via multipart/byteranges Content-Type including Content-Range fields for each part
+        //todo: support requests with "Range: bytes=XX-" header and unknown content-length
         if (range.getRangesCount() > 1) {
-          builder = Response.status(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE).entity("Multiple Range header ranges are not (yet) supported");
+          final int maxRanges = TeamCityProperties.getInteger("rest.files.content.maxRanges", 100);
+          if (fullFileSize == null) {
+            builder = Response.status(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE).entity("Multiple Range header ranges are not supported for the content of unknown size");
+          } else if (range.getRangesCount() > maxRanges) {
+            builder = Response.status(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE).entity("Too many Range header ranges: " + range.getRangesCount() + ", at most " + maxRanges + " are supported");
+            builder.header("Content-Range", HttpByteRange.getContentRangeHeaderValueFor416Response(fullFileSize));
+          } else {
+            multipartBoundary = UUID.randomUUID().toString().replace("-", "");
+            final MultipartByteRangesOutput multipartOutput = new MultipartByteRangesOutput(range, multipartBoundary, getMimeType(element, request), streamingOutputProvider);
+            builder = Response.status(HttpServletResponse.SC_PARTIAL_CONTENT).entity(multipartOutput);
+            builder.header(HttpHeaders.CONTENT_LENGTH, multipartOutput.getContentLength());
+          }
         } else {
           final HttpByteRange.SimpleRange firstRange = range.getSimpleRangesIterator().next();
 
@@ -450,10 +523,10 @@ public class FilesSubResource {
 
     builder.header("Accept-Ranges", HttpByteRange.RANGE_UNIT_BYTES);
 
-    if (TeamCityProperties.getBooleanOrTrue("rest.build.artifacts.setMimeType")) {
-      builder = builder.type(WebUtil.getMimeType(request, element.getName()));
+    if (multipartBoundary != null) {
+      builder = builder.type("multipart/byteranges; boundary=" + multipartBoundary);
     } else {
-      builder = builder.type(MediaType.APPLICATION_OCTET_STREAM_TYPE);
+      builder = builder.type(getMimeType(element, request));
     }
     if (TeamCityProperties.getBooleanOrTrue("rest.build.artifacts.forceContentDisposition.Attachment")) {
       // make sure the file is not displayed in the browser (TW-27206)
@@ -469,6 +542,8 @@ public class FilesSubResource {
       }
       final long size = element.getSize();
       builder.header("ETag", "W/\"" + EncryptUtil.md5((size >= 0 ? String.valueOf(size) : "") + (lastModified != null ? lastModified : "")) + "\""); //mark ETag as "weak"
+    } else if (element instanceof ArchiveElement) {
+      builder.header("ETag", "W/\"" + ((ArchiveElement)element).getLayoutKey() + "\""); //mark ETag as "weak"
     } else {
       final long size = element.getSize();
       if (size >= 0) {
@@ -479,17 +554,30 @@ public class FilesSubResource {
     return builder;
   }
 
+  @NotNull
+  private static String getMimeType(@NotNull final Element element, @NotNull final HttpServletRequest request) {
+    if (TeamCityProperties.getBooleanOrTrue("rest.build.artifacts.setMimeType")) {
+      return WebUtil.getMimeType(request, element.getName());
+    }
+    return MediaType.APPLICATION_OCTET_STREAM;
+  }
+
   private static StreamingOutput getStreamingOutput(@NotNull final Element element, @Nullable final Long startOffset, @Nullable final Long length) {
     return new StreamingOutput() {
       public void write(final OutputStream output) throws WebApplicationException {
         InputStream inputStream = null;
         Stopwatch action = new Stopwatch().start();
         try {
-          inputStream = element.getInputStream();
-          if (startOffset != null || length != null) {
+          final File file = getLocalFile(element);
+          if (file != null) {
+            final long start = startOffset != null ? startOffset : 0;
+            writeFromFile(element, file, start, length != null ? length : file.length() - start, output);
+          } else if (startOffset != null || length != null) {
+            inputStream = element.getInputStream();
             TCStreamUtil.skip(inputStream, startOffset != null ? startOffset : 0);
             TCStreamUtil.writeBinary(inputStream, length != null ? length : element.getSize(), output);
           } else {
+            inputStream = element.getInputStream();
             TCStreamUtil.writeBinary(inputStream, output);
           }
         } catch (IOException e) {
@@ -506,6 +594,110 @@ public class FilesSubResource {
     };
   }
 
+  /**
+   * @return the file in the local file system if the element content can be read directly from it
+   */
+  @Nullable
+  private static File getLocalFile(@NotNull final Element element) {
+    if (!TeamCityProperties.getBooleanOrTrue("rest.files.content.transferFromFile")) return null;
+    File file = null;
+    if (element instanceof BuildArtifactsFinder.ArtifactTreeElementWrapper) {
+      file = ((BuildArtifactsFinder.ArtifactTreeElementWrapper)element).getFile();
+    } else if (element instanceof FileSystemBrowser.FileElement) {
+      file = ((FileSystemBrowser.FileElement)element).getFile();
+    }
+    if (file == null || !file.isFile() || file.length() != element.getSize()) return null; //the file can be modified in the meantime, use the element's stream then
+    return file;
+  }
+
+  /**
+   * Writes the element content part from the file, seeking directly to the range start instead of reading and skipping all the preceding bytes.
+   * If the file gets shorter than expected (e.g. it is being rewritten), the rest of the part is read from the element's stream.
+   */
+  static void writeFromFile(@NotNull final Element element,
+                            @NotNull final File file,
+                            final long startOffset,
+                            final long length,
+                            @NotNull final OutputStream output) throws IOException {
+    final long written = transferFromFile(file, startOffset, length, output);
+    if (written >= length) return;
+    LOG.debug("File '" + file.getAbsolutePath() + "' changed while being transferred, reading the rest of the content of '" + element.getFullName() +
+              "' from position " + (startOffset + written) + " using the element stream");
+    try (InputStream inputStream = element.getInputStream()) {
+      TCStreamUtil.skip(inputStream, startOffset + written);
+      TCStreamUtil.writeBinary(inputStream, length - written, output);
+    }
+  }
+
+  /**
+   * Writes the file part using FileChannel which positions at the range start without reading the preceding data and lets the JDK use the most efficient
+   * available way of the transfer
+   * @return the number of bytes written, less than the length if the file ends earlier
+   */
+  private static long transferFromFile(@NotNull final File file, final long startOffset, final long length, @NotNull final OutputStream output) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final WritableByteChannel target = Channels.newChannel(output); //not closing as that would close the output
+      long position = startOffset;
+      long remaining = length;
+      while (remaining > 0) {
+        final long transferred = channel.transferTo(position, remaining, target);
+        if (transferred <= 0) break;
+        position += transferred;
+        remaining -= transferred;
+      }
+      return length - remaining;
+    }
+  }
+
+  /**
+   * Writes "multipart/byteranges" response body (RFC 7233) for a request with several ranges
+   */
+  private static class MultipartByteRangesOutput implements StreamingOutput {
+    private static final String CRLF = "\r\n";
+
+    @NotNull private final List<HttpByteRange.SimpleRange> myRanges = new ArrayList<>();
+    @NotNull private final List<byte[]> myPartHeaders = new ArrayList<>();
+    @NotNull private final byte[] myClosingDelimiter;
+    @NotNull private final StreamingOutputProvider myStreamingOutputProvider;
+
+    MultipartByteRangesOutput(@NotNull final HttpByteRange range,
+                              @NotNull final String boundary,
+                              @NotNull final String partContentType,
+                              @NotNull final StreamingOutputProvider streamingOutputProvider) {
+      myStreamingOutputProvider = streamingOutputProvider;
+      final Iterator<HttpByteRange.SimpleRange> iterator = range.getSimpleRangesIterator();
+      boolean first = true;
+      while (iterator.hasNext()) {
+        final HttpByteRange.SimpleRange simpleRange = iterator.next();
+        myRanges.add(simpleRange);
+        final String partHeader = (first ? "" : CRLF) + "--" + boundary + CRLF +
+                                  "Content-Type: " + partContentType + CRLF +
+                                  "Content-Range: " + range.getContentRangeHeaderValue(simpleRange) + CRLF +
+                                  CRLF;
+        myPartHeaders.add(partHeader.getBytes(StandardCharsets.US_ASCII));
+        first = false;
+      }
+      myClosingDelimiter = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    long getContentLength() {
+      long result = myClosingDelimiter.length;
+      for (int i = 0; i < myRanges.size(); i++) {
+        result += myPartHeaders.get(i).length + myRanges.get(i).getLength();
+      }
+      return result;
+    }
+
+    public void write(final OutputStream output) throws IOException, WebApplicationException {
+      for (int i = 0; i < myRanges.size(); i++) {
+        final HttpByteRange.SimpleRange simpleRange = myRanges.get(i);
+        output.write(myPartHeaders.get(i));
+        myStreamingOutputProvider.getStreamingOutput(simpleRange.getBeginIndex(), simpleRange.getLength()).write(output);
+      }
+      output.write(myClosingDelimiter);
+    }
+  }
+
   public interface StreamingOutputProvider {
     boolean isRangeSupported();
 
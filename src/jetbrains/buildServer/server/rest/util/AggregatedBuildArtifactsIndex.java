@@ -0,0 +1,163 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.util;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import jetbrains.buildServer.ArtifactsConstants;
+import jetbrains.buildServer.ServiceLocator;
+import jetbrains.buildServer.server.rest.data.BuildArtifactsFinder;
+import jetbrains.buildServer.server.rest.errors.AuthorizationFailedException;
+import jetbrains.buildServer.server.rest.errors.NotFoundException;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.artifacts.BuildArtifact;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.browser.Element;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Index of the artifacts of several builds merged into a single path tree: each node holds the artifact elements of the builds found under the path.
+ * The tree is filled while the paths are requested: a path is resolved in each of the builds only once and the children of an already resolved
+ * directory are resolved by listing the directory in each of the builds having it, so that the consequent requests for the same path or
+ * for the paths under the directory (e.g. children, metadata and content of the aggregated artifacts) do not look the path up in every build.
+ * The index is not updated when the artifacts change, so it is only reused for a short time, see {@link AggregatedBuildArtifactsIndexCache}.
+ */
+public class AggregatedBuildArtifactsIndex {
+  private static final Logger LOG = Logger.getInstance(AggregatedBuildArtifactsIndex.class.getName());
+
+  @NotNull private final List<BuildPromotion> myBuilds;
+  @NotNull private final ServiceLocator myServiceLocator;
+  @NotNull private final Node myRoot = new Node();
+
+  public AggregatedBuildArtifactsIndex(@NotNull final List<BuildPromotion> builds, @NotNull final ServiceLocator serviceLocator) {
+    myBuilds = builds;
+    myServiceLocator = serviceLocator;
+  }
+
+  /**
+   * The same as {@link AggregatedBuildArtifactsElementBuilder#getBuildAggregatedArtifactElement(String, List, ServiceLocator)}, but uses the index.
+   * All the directories on the path are resolved and indexed on the way so that the later requests for the paths under them reuse the listing.
+   */
+  @NotNull
+  public synchronized Element getElement(@NotNull final String path) {
+    final List<String> names = getPathNames(path);
+    if (myRoot.myElements == null) {
+      myRoot.myElements = resolve("");
+    }
+    Node node = myRoot;
+    boolean indexable = true;
+    final StringBuilder prefix = new StringBuilder();
+    for (String name : names) {
+      final Node parent = node;
+      if (prefix.length() > 0) prefix.append('/');
+      prefix.append(name);
+      indexable = indexable && isIndexable(name);
+      node = parent.myChildren.computeIfAbsent(name, k -> new Node());
+      if (!indexable || node.myElements != null) continue;
+      indexChildren(parent);
+      if (node.myElements == null) {
+        //not listed in any of the builds: hidden or absent, resolve by path
+        node.myElements = resolve(prefix.toString());
+      }
+    }
+    if (node.myElements == null) {
+      //the path goes into an archive or contains a pattern: only the path itself is resolved
+      node.myElements = resolve(path);
+    }
+    final AggregatedBuildArtifactsElementBuilder result = new AggregatedBuildArtifactsElementBuilder();
+    for (Element element : node.myElements) {
+      result.add(element);
+    }
+    return result.get();
+  }
+
+  /**
+   * Resolves the path in each of the builds
+   */
+  @NotNull
+  private List<Element> resolve(@NotNull final String path) {
+    final List<Element> result = new ArrayList<>();
+    for (BuildPromotion buildPromotion : myBuilds) {
+      try {
+        result.add(resolveInBuild(buildPromotion, path));
+      } catch (NotFoundException e) {
+        LOG.debug("Ignoring not found error in artifacts aggregation request: " + e.toString());
+      } catch (AuthorizationFailedException e) {
+        LOG.debug("Ignoring authentication error in artifacts aggregation request: " + e.toString());
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  protected Element resolveInBuild(@NotNull final BuildPromotion buildPromotion, @NotNull final String path) {
+    return BuildArtifactsFinder.getArtifactElement(buildPromotion, path, myServiceLocator);
+  }
+
+  /**
+   * Fills the child nodes of the directory node with the children listed in each of the builds.
+   * Only done for the regular directories: archives and hidden artifacts (which have additional permission checks) are always resolved by path.
+   */
+  private void indexChildren(@NotNull final Node node) {
+    if (node.myChildrenIndexed || node.myElements == null) return;
+    node.myChildrenIndexed = true; //not retried even if the node cannot be indexed
+    final Map<String, List<Element>> children = new LinkedHashMap<>();
+    for (Element element : node.myElements) {
+      if (!(element instanceof BuildArtifactsFinder.BuildHoldingElement)) return;
+      final BuildArtifact artifact = ((BuildArtifactsFinder.BuildHoldingElement)element).getBuildArtifact();
+      if (!artifact.isDirectory() || artifact.isArchive() || isHidden(artifact.getRelativePath())) return;
+      for (BuildArtifact child : artifact.getChildren()) {
+        if (isHidden(child.getRelativePath())) continue; //left to be resolved by path
+        children.computeIfAbsent(child.getName(), k -> new ArrayList<>())
+                .add(new BuildArtifactsFinder.BuildHoldingElement(child, ((BuildArtifactsFinder.BuildHoldingElement)element).getBuildPromotion()));
+      }
+    }
+    for (Map.Entry<String, List<Element>> entry : children.entrySet()) {
+      final Node child = node.myChildren.computeIfAbsent(entry.getKey(), k -> new Node());
+      if (child.myElements == null) child.myElements = entry.getValue();
+    }
+  }
+
+  private static boolean isHidden(@NotNull final String relativePath) {
+    return relativePath.equals(ArtifactsConstants.TEAMCITY_ARTIFACTS_DIR) || relativePath.startsWith(ArtifactsConstants.TEAMCITY_ARTIFACTS_DIR + "/");
+  }
+
+  /**
+   * @return false for the names which can denote something other than a plain child artifact: archive content, patterns
+   */
+  private static boolean isIndexable(@NotNull final String name) {
+    return !name.isEmpty() && !name.equals(".") && !name.equals("..") && name.indexOf('!') < 0 && name.indexOf('*') < 0 && name.indexOf('?') < 0;
+  }
+
+  @NotNull
+  private static List<String> getPathNames(@NotNull final String path) {
+    String trimmed = StringUtil.removeLeadingSlash(path);
+    while (trimmed.endsWith("/")) trimmed = trimmed.substring(0, trimmed.length() - 1);
+    if (trimmed.isEmpty()) return Collections.emptyList();
+    return Arrays.asList(trimmed.split("/", -1));
+  }
+
+  private static class Node {
+    @NotNull private final Map<String, Node> myChildren = new HashMap<>();
+    /**
+     * Elements found under the node path in the builds, null if not yet resolved
+     */
+    @Nullable private List<Element> myElements;
+    private boolean myChildrenIndexed = false;
+  }
+}
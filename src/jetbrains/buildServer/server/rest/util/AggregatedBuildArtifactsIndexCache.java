@@ -0,0 +1,63 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import jetbrains.buildServer.ServiceLocator;
+import jetbrains.buildServer.server.rest.errors.OperationException;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps {@link AggregatedBuildArtifactsIndex} between the requests for the artifacts of the same builds (e.g. browsing the aggregated artifacts tree
+ * issues a request per directory). The index is keyed by the builds and the user as the artifacts available depend on the user permissions;
+ * the index is not cached for the requests without an associated user.
+ * The index is not updated on the artifacts changes and so is kept for "rest.request.aggregatedArtifacts.indexCache.ttlSeconds" internal property (30 by default),
+ * "rest.request.aggregatedArtifacts.indexCache.maxSize" internal property limits the number of the indices, 0 disables the cache.
+ */
+public class AggregatedBuildArtifactsIndexCache {
+  public static final String MAX_SIZE_PROPERTY = "rest.request.aggregatedArtifacts.indexCache.maxSize";
+
+  @NotNull private final Cache<String, AggregatedBuildArtifactsIndex> myIndices =
+    CacheBuilder.newBuilder()
+                .maximumSize(Math.max(0, TeamCityProperties.getInteger(MAX_SIZE_PROPERTY, 100)))
+                .expireAfterWrite(TeamCityProperties.getInteger("rest.request.aggregatedArtifacts.indexCache.ttlSeconds", 30), TimeUnit.SECONDS)
+                .build();
+
+  /**
+   * @param userId id of the user the artifacts are requested by, null if there is no associated user
+   */
+  @NotNull
+  public AggregatedBuildArtifactsIndex getIndex(@NotNull final List<BuildPromotion> builds, @Nullable final Long userId, @NotNull final ServiceLocator serviceLocator) {
+    if (userId == null || TeamCityProperties.getInteger(MAX_SIZE_PROPERTY, 100) <= 0) {
+      return new AggregatedBuildArtifactsIndex(builds, serviceLocator);
+    }
+    final String key = userId + "|" + builds.stream().map(BuildPromotion::getId).sorted().map(String::valueOf).collect(Collectors.joining(","));
+    try {
+      return myIndices.get(key, () -> new AggregatedBuildArtifactsIndex(builds, serviceLocator));
+    } catch (ExecutionException e) {
+      throw new OperationException("Error creating aggregated artifacts index: " + e.toString(), e);
+    }
+  }
+}
@@ -244,6 +244,54 @@ public class AgentFinderTest extends BaseFinderTest<SBuildAgent> {
     checkAgents("compatible:(buildType:(id:" + bt30.getExternalId() + ")),incompatible:(buildType:(id:" + bt10.getExternalId() + "))", myAgent1);
   }
 
+  @Test
+  public void testCompatibilityMatrix() throws Exception {
+    ProjectEx project10 = createProject("project10", "project 10");
+    BuildTypeEx bt10 = project10.createBuildType("bt10", "bt 10");
+    bt10.addRequirement(myFixture.findSingletonService(RequirementFactory.class).createRequirement("a", null, RequirementType.EXISTS));
+    BuildTypeEx bt20 = project10.createBuildType("bt20", "bt 20");
+
+    MockBuildAgent agent10 = myFixture.createEnabledAgent("agent10", "Ant");
+    agent10.addConfigParameter("a", "b");
+    agent10.pushAgentTypeData();
+
+    AgentCompatibilityMatrix matrix = new AgentCompatibilityMatrix(myFixture.getSingletonService(SBuildServer.class));
+    for (SBuildAgent agent : new SBuildAgent[]{myAgent1, agent10}) {
+      for (SBuildType buildType : new SBuildType[]{bt10, bt20}) {
+        assertEquals(AgentFinder.canActuallyRun(agent, buildType), matrix.isCompatible(agent, buildType));
+        assertEquals(AgentFinder.canActuallyRun(agent, buildType), matrix.isCompatible(agent, buildType)); //remembered value
+      }
+    }
+    assertTrue(matrix.isCompatible(agent10, bt10));
+    assertFalse(matrix.isCompatible(myAgent1, bt10));
+
+    myAgent1.addConfigParameter("a", "c");
+    myAgent1.pushAgentTypeData();
+    matrix.agentDescriptionUpdated(myAgent1);
+    assertTrue(matrix.isCompatible(myAgent1, bt10));
+
+    bt20.addRequirement(myFixture.findSingletonService(RequirementFactory.class).createRequirement("x", null, RequirementType.EXISTS));
+    matrix.buildTypePersisted(bt20);
+    assertFalse(matrix.isCompatible(agent10, bt20));
+    assertEquals(2, matrix.getColumnsCount());
+
+    //the column of the removed agent is reused without the remembered values
+    assertTrue(matrix.isCompatible(agent10, bt10));
+    matrix.agentRemoved(agent10);
+    MockBuildAgent agent20 = myFixture.createEnabledAgent("agent20", "Ant");
+    assertFalse(matrix.isCompatible(agent20, bt10));
+    assertEquals(2, matrix.getColumnsCount());
+    MockBuildAgent agent30 = myFixture.createEnabledAgent("agent30", "Ant");
+    agent30.addConfigParameter("a", "b");
+    agent30.pushAgentTypeData();
+    assertTrue(matrix.isCompatible(agent30, bt10));
+    assertEquals(3, matrix.getColumnsCount());
+    assertFalse(matrix.isCompatible(agent20, bt10));
+
+    setInternalProperty(AgentCompatibilityMatrix.ENABLED_PROPERTY, "false");
+    assertFalse(matrix.isCompatible(myAgent1, bt20));
+  }
+
   @Test
   public void testLocatorCompatibleForBuildWithoutPrefilter() throws Exception {
     setInternalProperty("rest.request.agents.compatibilityPrefilter", "false"); //non-default, pre-2017.1.2 value
@@ -111,6 +111,8 @@ public abstract class BaseFinderTest<T> extends BaseServerTestCase{
     myPermissionChecker = new PermissionChecker(myServer.getSecurityContext(), myProjectManager);
     myFixture.addService(myPermissionChecker);
 
+    myFixture.addService(new ParallelFilteringExecutor(myServer));
+
     myTimeCondition = new TimeCondition(myFixture);
     myFixture.addService(myTimeCondition);
 
@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -32,8 +34,12 @@ import java.util.stream.Stream;
 import jetbrains.BuildServerCreator;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.server.rest.data.build.BuildArtifactsListingCache;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
+import jetbrains.buildServer.server.rest.util.AggregatedBuildArtifactsIndex;
+import jetbrains.buildServer.server.rest.util.AggregatedBuildArtifactsIndexCache;
 import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.SFinishedBuild;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.serverSide.db.TestDB;
@@ -172,6 +178,47 @@ public class BuildArtifactsFinderTest extends BaseTestCase {
     assertContainsByFullName(artifacts, "archive_nested.zip");
   }
 
+  @Test
+  public void testAggregatedArtifactsIndex() throws Exception {
+    final List<String> resolved = new ArrayList<>();
+    final AggregatedBuildArtifactsIndex index = new AggregatedBuildArtifactsIndex(Collections.singletonList(myBuildWithArtifacts.getBuildPromotion()), myFixture) {
+      @NotNull
+      @Override
+      protected Element resolveInBuild(@NotNull final BuildPromotion buildPromotion, @NotNull final String path) {
+        resolved.add(path);
+        return super.resolveInBuild(buildPromotion, path);
+      }
+    };
+
+    assertEquals("file.txt", index.getElement("dir1/file.txt").getName());
+    assertEquals(Collections.singletonList(""), resolved); //intermediate directories are listed, not resolved
+
+    assertEquals("file.txt", index.getElement("dir1/file.txt").getName());
+    assertEquals("dir1", index.getElement("dir1").getName());
+    assertEquals("file.txt", index.getElement("file.txt").getName());
+    assertEquals(Collections.singletonList(""), resolved);
+
+    index.getElement(".teamcity/logs");
+    assertEquals(Arrays.asList("", ".teamcity", ".teamcity/logs"), resolved); //hidden artifacts are resolved by path
+    index.getElement(".teamcity/logs");
+    assertEquals(Arrays.asList("", ".teamcity", ".teamcity/logs"), resolved);
+
+    index.getElement("archive.zip!/file4.txt");
+    index.getElement("archive.zip!/file4.txt");
+    assertEquals(Arrays.asList("", ".teamcity", ".teamcity/logs", "archive.zip!/file4.txt"), resolved);
+  }
+
+  @Test
+  public void testAggregatedArtifactsIndexCache() throws Exception {
+    final AggregatedBuildArtifactsIndexCache cache = new AggregatedBuildArtifactsIndexCache();
+    final List<BuildPromotion> builds = Collections.singletonList(myBuildWithArtifacts.getBuildPromotion());
+
+    final AggregatedBuildArtifactsIndex index = cache.getIndex(builds, 1L, myFixture);
+    assertSame(index, cache.getIndex(builds, 1L, myFixture));
+    assertNotSame(index, cache.getIndex(builds, 2L, myFixture));
+    assertNotSame(cache.getIndex(builds, null, myFixture), cache.getIndex(builds, null, myFixture));
+  }
+
   @Test
   public void testLocatorHidden() throws Exception {
     List<ArtifactTreeElement> artifacts;
@@ -686,6 +733,31 @@ public class BuildArtifactsFinderTest extends BaseTestCase {
     assertExceptionThrown(() -> getArtifacts(dir.getName(), "size:aa"), BadRequestException.class);
   }
 
+  @Test
+  public void testListingCache() throws Exception {
+    File dir = new File(myBuildWithArtifacts.getArtifactsDirectory(), "listingCacheTest");
+    dir.mkdir();
+    createFileOfSize(dir, "file1", 10);
+
+    final BuildArtifactsListingCache cache = new BuildArtifactsListingCache(myFixture.getSingletonService(SBuildServer.class));
+    final Element element = BuildArtifactsFinder.getArtifactElement(myBuildWithArtifacts.getBuildPromotion(), dir.getName(), myFixture);
+    final TimeCondition timeCondition = myFixture.getSingletonService(TimeCondition.class);
+    checkOrderedCollection(getNames(new BuildArtifactsFinder(element, timeCondition, cache).getItems("recursive:true").myEntries), "listingCacheTest/file1");
+
+    createFileOfSize(dir, "file2", 2000);
+    //finished build listing is cached
+    checkOrderedCollection(getNames(new BuildArtifactsFinder(element, timeCondition, cache).getItems("recursive:true").myEntries), "listingCacheTest/file1");
+    //filtering is applied to the cached listing
+    checkOrderedCollection(getNames(new BuildArtifactsFinder(element, timeCondition, cache).getItems("recursive:true,size:1").myEntries));
+    //different listing parameters are cached separately
+    checkOrderedCollection(getNames(new BuildArtifactsFinder(element, timeCondition, cache).getItems("recursive:true,pattern:file*").myEntries),
+                           "listingCacheTest/file1", "listingCacheTest/file2");
+
+    setInternalProperty(BuildArtifactsListingCache.MAX_ELEMENTS_PROPERTY, "0");
+    checkOrderedCollection(getNames(new BuildArtifactsFinder(element, timeCondition, cache).getItems("recursive:true").myEntries),
+                           "listingCacheTest/file1", "listingCacheTest/file2");
+  }
+
   @Test
   public void testOrderSameLevel() throws Exception {
     final SRunningBuild runningBuild = myFixture.startBuild();
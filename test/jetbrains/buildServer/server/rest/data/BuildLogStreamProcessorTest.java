@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.messages.DefaultMessagesInfo;
+import jetbrains.buildServer.server.rest.data.build.BuildLogStreamProcessor;
+import jetbrains.buildServer.server.rest.errors.OperationException;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.RunningBuildEx;
+import jetbrains.buildServer.serverSide.impl.BuildAgentMessagesQueue;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class BuildLogStreamProcessorTest extends BaseFinderTest<BuildPromotion> {
+  private RunningBuildEx myBuild;
+  private List<String> mySent;
+  private AtomicInteger myQueueFullTimes;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myBuild = startBuild(registerBuildType("buildConf1", "project"));
+    mySent = Collections.synchronizedList(new ArrayList<>());
+    myQueueFullTimes = new AtomicInteger();
+  }
+
+  @Test
+  public void testMessagesOrder() {
+    setInternalProperty("rest.buildRequest.log.batchSize", "2");
+    final String result = createProcessor(10000).process(new ByteArrayInputStream("line1\nline2\nline3\nline4\nline5\n".getBytes(StandardCharsets.UTF_8)));
+
+    assertEquals(Arrays.asList("line1", "line2", "line3", "line4", "line5"), mySent);
+    assertContains(result, "Processed 5 lines in ");
+  }
+
+  @Test
+  public void testQueueFullWait() {
+    myQueueFullTimes.set(2);
+    final BuildLogStreamProcessor processor = createProcessor(10000);
+    processor.send(Arrays.asList(message("line1"), message("line2")));
+    processor.send(Collections.singletonList(message("line3")));
+
+    assertEquals(Arrays.asList("line1", "line2", "line3"), mySent);
+    assertEquals(0, myQueueFullTimes.get());
+  }
+
+  @Test
+  public void testQueueFullTimeout() {
+    myQueueFullTimes.set(Integer.MAX_VALUE);
+    final long startTime = System.currentTimeMillis();
+    checkException(OperationException.class, () -> createProcessor(100).send(Collections.singletonList(message("line1"))), null);
+    final long time = System.currentTimeMillis() - startTime;
+    assertTrue("Waited for " + time + " ms", time >= 100 && time < 5000);
+    assertTrue(mySent.isEmpty());
+  }
+
+  @Test
+  public void testQueueFullFailFast() {
+    myQueueFullTimes.set(1);
+    final long startTime = System.currentTimeMillis();
+    checkException(OperationException.class, () -> createProcessor(0).send(Collections.singletonList(message("line1"))), null);
+    assertTrue(System.currentTimeMillis() - startTime < 1000);
+    assertTrue(mySent.isEmpty());
+    assertEquals("The queue is tried only once", 0, myQueueFullTimes.get());
+  }
+
+  @NotNull
+  private BuildLogStreamProcessor createProcessor(final long queueFullTimeoutMs) {
+    return new BuildLogStreamProcessor(myFixture.getSingletonService(BuildAgentMessagesQueue.class), myBuild, queueFullTimeoutMs) {
+      @Override
+      protected boolean addToQueue(@NotNull final List<BuildMessage1> messages) {
+        if (myQueueFullTimes.getAndUpdate(times -> times > 0 ? times - 1 : 0) > 0) return false;
+        for (BuildMessage1 message : messages) {
+          mySent.add(String.valueOf(message.getValue()));
+        }
+        return true;
+      }
+    };
+  }
+
+  @NotNull
+  private static BuildMessage1 message(@NotNull final String text) {
+    return DefaultMessagesInfo.createTextMessage(text);
+  }
+}
@@ -23,17 +23,22 @@ import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import jetbrains.buildServer.BuildProblemData;
 import jetbrains.buildServer.MockTimeService;
 import jetbrains.buildServer.buildTriggers.vcs.BuildBuilder;
 import jetbrains.buildServer.log.Loggable;
+import jetbrains.buildServer.server.rest.data.build.FinishedBuildsIndex;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
 import jetbrains.buildServer.server.rest.errors.LocatorProcessException;
 import jetbrains.buildServer.server.rest.errors.NotFoundException;
 import jetbrains.buildServer.server.rest.model.Util;
 import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.auth.RoleScope;
 import jetbrains.buildServer.serverSide.dependency.Dependency;
 import jetbrains.buildServer.serverSide.dependency.DependencyFactory;
 import jetbrains.buildServer.serverSide.dependency.DependencyOptions;
@@ -115,6 +120,56 @@ public class BuildPromotionFinderTest extends BaseFinderTest<BuildPromotion> {
     checkBuilds("state:(queued:true,running:true,finished:false)", queuedBuild.getBuildPromotion(), runningBuild.getBuildPromotion());
   }
 
+  @Test
+  public void testCursorPaging() throws Exception {
+    final BuildTypeImpl buildConf = registerBuildType("buildConf1", "project");
+    final SFinishedBuild build1 = build().in(buildConf).finish();
+    final SFinishedBuild build2 = build().in(buildConf).failed().finish();
+    final SFinishedBuild build3 = build().in(buildConf).finish();
+    final RunningBuildEx runningBuild = build().in(buildConf).run();
+    final SQueuedBuild queuedBuild = build().in(buildConf).addToQueue();
+
+    final List<BuildPromotion> allBuilds = Arrays.asList(queuedBuild.getBuildPromotion(), runningBuild.getBuildPromotion(),
+                                                         build3.getBuildPromotion(), build2.getBuildPromotion(), build1.getBuildPromotion());
+    final List<BuildPromotion> result = new ArrayList<>();
+    String locator = "state:any,count:2";
+    while (locator != null) {
+      final PagedSearchResult<BuildPromotion> page = myBuildPromotionFinder.getItems(locator);
+      result.addAll(page.myEntries);
+      locator = page.getNextCursor() == null ? null : "state:any,count:2,after:" + page.getNextCursor();
+    }
+    assertEquals(allBuilds, result);
+
+    final PagedSearchResult<BuildPromotion> page = myBuildPromotionFinder.getItems("state:finished,count:1");
+    assertEquals(Collections.singletonList(build3.getBuildPromotion()), page.myEntries);
+    checkBuilds("state:finished,status:SUCCESS,after:" + page.getNextCursor(), build1.getBuildPromotion());
+    checkBuilds("state:finished,status:FAILURE,after:" + page.getNextCursor(), build2.getBuildPromotion());
+
+    checkExceptionOnBuildsSearch(BadRequestException.class, "after:abc");
+  }
+
+  @Test
+  public void testCursorPagingWhenCursorBuildStarts() throws Exception {
+    final BuildTypeImpl buildConf1 = registerBuildType("buildConf1", "project");
+    final BuildTypeImpl buildConf2 = registerBuildType("buildConf2", "project");
+    final BuildTypeImpl buildConf3 = registerBuildType("buildConf3", "project");
+    final SFinishedBuild build1 = build().in(buildConf1).finish();
+    final SQueuedBuild queued1 = build().in(buildConf1).addToQueue();
+    final SQueuedBuild queued2 = build().in(buildConf2).addToQueue();
+    final SQueuedBuild queued3 = build().in(buildConf3).addToQueue();
+
+    final PagedSearchResult<BuildPromotion> page = myBuildPromotionFinder.getItems("state:any,count:1");
+    assertEquals(Collections.singletonList(queued1.getBuildPromotion()), page.myEntries);
+
+    //the cursor build leaves the queue between the pages
+    myServer.flushQueue();
+    final RunningBuildEx running1 = myFixture.waitForQueuedBuildToStart(queued1.getBuildPromotion());
+    assertEquals(queued1.getBuildPromotion().getId(), running1.getBuildPromotion().getId());
+
+    checkBuilds("state:any,after:" + page.getNextCursor(), queued2.getBuildPromotion(), queued3.getBuildPromotion(), build1.getBuildPromotion());
+    checkBuilds("state:any,item:(state:any),after:" + page.getNextCursor(), queued2.getBuildPromotion(), queued3.getBuildPromotion(), build1.getBuildPromotion());
+  }
+
   @Test
   public void testSnapshotDependencies() throws Exception {
     final BuildTypeImpl buildConf0 = registerBuildType("buildConf0", "project");
@@ -971,6 +1026,210 @@ public class BuildPromotionFinderTest extends BaseFinderTest<BuildPromotion> {
     checkNoBuildFound("property:(name:a)");
   }
 
+  @Test
+  public void testParallelFiltering() {
+    final BuildTypeImpl buildConf1 = registerBuildType("buildConf1", "project");
+    final BuildTypeImpl buildConf2 = registerBuildType("buildConf2", "project");
+
+    final List<BuildPromotion> withParameter = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      if (i % 3 == 0) {
+        withParameter.add(0, build().in(buildConf1).parameter("a", "b").finish().getBuildPromotion());
+      } else {
+        build().in(i % 2 == 0 ? buildConf1 : buildConf2).finish();
+      }
+    }
+    final BuildPromotion running = build().in(buildConf1).parameter("a", "b").run().getBuildPromotion();
+
+    setInternalProperty("rest.finder.parallelFiltering.chunkSize", "7");
+    setInternalProperty("rest.finder.parallelFiltering.minSliceSize", "1");
+
+    checkBuilds("property:(name:a),$parallel:true", withParameter.toArray(new BuildPromotion[0]));
+    checkBuilds("property:(name:a),state:any,$parallel:true,count:3", running, withParameter.get(0), withParameter.get(1));
+    checkBuilds("property:(name:a),$parallel:true,start:2,count:2", withParameter.get(2), withParameter.get(3));
+    checkBuilds("property:(name:a),$parallel:true,lookupLimit:20", 20, withParameter.subList(0, 7).toArray(new BuildPromotion[0]));
+    checkBuilds("property:(name:a),buildType:(id:" + buildConf2.getExternalId() + "),$parallel:true");
+
+    setInternalProperty(FinderImpl.PARALLEL_FILTERING_DEFAULT_PROPERTY, "true");
+    checkBuilds("property:(name:a),lookupLimit:20", 20, withParameter.subList(0, 7).toArray(new BuildPromotion[0]));
+    checkBuilds("property:(name:a),lookupLimit:20,$parallel:false", 20, withParameter.subList(0, 7).toArray(new BuildPromotion[0]));
+
+    //after the server shutdown the items are filtered sequentially
+    final ParallelFilteringExecutor executor = myFixture.getSingletonService(ParallelFilteringExecutor.class);
+    final ForkJoinPool pool = executor.getPool();
+    assertNotNull(pool);
+    executor.serverShutdown();
+    assertTrue(pool.isShutdown());
+    assertNull(executor.getPool());
+    checkBuilds("property:(name:a),lookupLimit:20,$parallel:true", 20, withParameter.subList(0, 7).toArray(new BuildPromotion[0]));
+  }
+
+  @Test
+  public void testParallelFilteringChunks() {
+    setInternalProperty("rest.finder.parallelFiltering.chunkSize", "7");
+    final AtomicInteger checked = new AtomicInteger();
+    final ItemFilter<Integer> filter = new ItemFilter<Integer>() {
+      @Override
+      public boolean shouldStop(@NotNull final Integer item) {
+        return false;
+      }
+
+      @Override
+      public boolean isIncluded(@NotNull final Integer item) {
+        checked.incrementAndGet();
+        return item % 2 == 0;
+      }
+    };
+
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      //only the items necessary for the page are checked by the filter
+      FilterItemProcessor<Integer> processor = new FilterItemProcessor<>(new PagingItemFilter<>(filter, null, 1, null));
+      ParallelFilterItemProcessor<Integer> parallelProcessor = new ParallelFilterItemProcessor<>(processor, task -> task, pool);
+      int i = 0;
+      while (parallelProcessor.processItem(i++)) {
+      }
+      parallelProcessor.finish();
+      assertEquals(Collections.singletonList(0), processor.getResult());
+      assertEquals(1, checked.get());
+
+      //the chunks grow while the page is not filled: 3, 6, 7
+      checked.set(0);
+      processor = new FilterItemProcessor<>(new PagingItemFilter<>(filter, 1L, 2, null));
+      parallelProcessor = new ParallelFilterItemProcessor<>(processor, task -> task, pool);
+      i = 1;
+      while (parallelProcessor.processItem(i)) {
+        i += i < 10 ? 2 : 1; //odd items are not included
+      }
+      parallelProcessor.finish();
+      assertEquals(Arrays.asList(14, 16), processor.getResult());
+      assertEquals(16, checked.get());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testResultCache() throws Throwable {
+    final BuildTypeImpl buildConf = registerBuildType("buildConf1", "project");
+    final BuildTypeImpl buildConf2 = registerBuildType("buildConf2", "project");
+    final BuildPromotion build10 = build().in(buildConf).finish().getBuildPromotion();
+    final SUser user = createUser("user1");
+    user.addRole(RoleScope.globalScope(), getProjectViewerRole());
+
+    setInternalProperty(FinderResultCache.PROPERTY_PREFIX + "enabled", "true");
+    final FinderResultCache<BuildPromotion> cache = myBuildPromotionFinder.createResultCache(new ServerListener(myServer));
+    myBuildPromotionFinder.setResultCache(cache);
+    assertSame(cache, myBuildPromotionFinder.getResultCache());
+
+    myFixture.getSecurityContext().runAs(user, () -> {
+      assertEquals(Collections.singletonList(build10), myBuildPromotionFinder.getItems("buildType:(id:" + buildConf.getExternalId() + "),count:5").myEntries);
+      assertEquals(Collections.singletonList(build10), myBuildPromotionFinder.getItems("count:5,buildType:(id:" + buildConf.getExternalId() + ")").myEntries);
+      assertEquals("1", cache.getStats().get("hitCount"));
+
+      final BuildPromotion build20 = build().in(buildConf).finish().getBuildPromotion();
+      assertEquals(Arrays.asList(build20, build10), myBuildPromotionFinder.getItems("buildType:(id:" + buildConf.getExternalId() + "),count:5").myEntries);
+      assertEquals("1", cache.getStats().get("hitCount"));
+      assertEquals(Arrays.asList(build20, build10), myBuildPromotionFinder.getItems("count:5").myEntries);
+
+      //the builds of another build type drop only the results not limited to the build type
+      final BuildPromotion build30 = build().in(buildConf2).finish().getBuildPromotion();
+      assertEquals(Arrays.asList(build20, build10), myBuildPromotionFinder.getItems("buildType:(id:" + buildConf.getExternalId() + "),count:5").myEntries);
+      assertEquals("2", cache.getStats().get("hitCount"));
+      assertEquals(Arrays.asList(build30, build20, build10), myBuildPromotionFinder.getItems("count:5").myEntries);
+      assertEquals("2", cache.getStats().get("hitCount"));
+    });
+
+    //not cached without user
+    myBuildPromotionFinder.getItems("buildType:(id:" + buildConf.getExternalId() + "),count:5");
+    myBuildPromotionFinder.getItems("buildType:(id:" + buildConf.getExternalId() + "),count:5");
+    assertEquals("2", cache.getStats().get("hitCount"));
+  }
+
+  @Test
+  public void testFinishedBuildsIndex() throws Exception {
+    final BuildTypeImpl buildConf = registerBuildType("buildConf1", "project");
+    final SFinishedBuild build10 = build().in(buildConf).tag("a").finish();
+    final SFinishedBuild build20 = build().in(buildConf).tag("b").finish();
+    final SFinishedBuild build30 = build().in(buildConf).tag("a").finish();
+    build30.setPinned(true, null, null);
+    final BuildPromotion queuedBuild = build().in(buildConf).tag("a").addToQueue().getBuildPromotion();
+
+    setInternalProperty(FinishedBuildsIndex.ENABLED_PROPERTY, "true");
+    final FinishedBuildsIndex index = new FinishedBuildsIndex(myServer, myServer, myFixture.getSecurityContext());
+    myFixture.addService(index);
+    assertTrue("The index is not populated in time", index.waitUntilReady(10, TimeUnit.SECONDS));
+    assertEquals(2, index.getByTag("a").size());
+    assertEquals(1, index.getPinned().size());
+
+    checkBuilds("tag:a", build30.getBuildPromotion(), build10.getBuildPromotion());
+    checkBuilds("tag:a,state:any", queuedBuild, build30.getBuildPromotion(), build10.getBuildPromotion());
+    checkBuilds("tag:a,pinned:true", build30.getBuildPromotion());
+    checkBuilds("tag:a,pinned:false", build10.getBuildPromotion());
+    checkBuilds("tag:c");
+
+    //updated from events
+    build20.setTags(Arrays.asList("a"));
+    build30.setPinned(false, null, null);
+    checkBuilds("tag:a", build30.getBuildPromotion(), build20.getBuildPromotion(), build10.getBuildPromotion());
+    checkBuilds("pinned:true");
+    assertEquals(3, index.getByTag("a").size());
+    assertEquals(0, index.getByTag("b").size());
+    assertEquals(0, index.getPinned().size());
+    final SFinishedBuild build40 = build().in(buildConf).tag("a").finish();
+    checkBuilds("tag:a", build40.getBuildPromotion(), build30.getBuildPromotion(), build20.getBuildPromotion(), build10.getBuildPromotion());
+    //the processing stops once the page is filled: the item after the page is the last one processed
+    final PagedSearchResult<BuildPromotion> page = myBuildPromotionFinder.getItems("tag:a,count:1");
+    assertEquals(Collections.singletonList(build40.getBuildPromotion()), page.myEntries);
+    assertEquals(Long.valueOf(2), page.myActuallyProcessedCount);
+
+    //re-indexing keeps the build in the sets it stays in
+    build20.setTags(Arrays.asList("a", "b"));
+    assertEquals(4, index.getByTag("a").size());
+    assertEquals(1, index.getByTag("b").size());
+
+    //the build tagged while running and then interrupted
+    final RunningBuildEx running60 = build().in(buildConf).run();
+    running60.setTags(Arrays.asList("a"));
+    running60.stop(getOrCreateUser("user1"), "cancel comment");
+    final SBuild build60 = finishBuild(running60, false);
+    assertEquals(5, index.getByTag("a").size());
+    checkBuilds("tag:a,canceled:true", build60.getBuildPromotion());
+
+    //the build type history is used when the index set is larger than allowed
+    final BuildTypeImpl buildConf2 = registerBuildType("buildConf2", "project");
+    final SFinishedBuild build50 = build().in(buildConf2).tag("a").finish();
+    setInternalProperty("rest.request.builds.index.maxSizeWithOtherPrefilter", "1");
+    checkBuilds("buildType:(id:" + buildConf2.getExternalId() + "),tag:a", build50.getBuildPromotion());
+    checkBuilds("buildType:(id:" + buildConf.getExternalId() + "),tag:a",
+                build40.getBuildPromotion(), build30.getBuildPromotion(), build20.getBuildPromotion(), build10.getBuildPromotion());
+  }
+
+  @Test
+  public void testProfile() {
+    final BuildTypeImpl buildConf = registerBuildType("buildConf1", "project");
+    final BuildPromotion build10 = build().in(buildConf).finish().getBuildPromotion();
+    build().in(buildConf).failed().finish();
+
+    final long userId = 1000;
+    new RestContext(name -> null, userId).run(() -> {
+      assertEquals(Collections.singletonList(build10),
+                   myBuildPromotionFinder.getItems("buildType:(id:" + buildConf.getExternalId() + "),status:SUCCESS,$profile:true").myEntries);
+      myBuildPromotionFinder.getItems("buildType:(id:" + buildConf.getExternalId() + ")"); //not profiled
+      return null;
+    });
+
+    final List<FinderProfile> profiles = FinderProfile.getProfiles(userId);
+    assertEquals(1, profiles.size());
+    @SuppressWarnings("unchecked") final Map<String, Object> invocation = (Map<String, Object>)profiles.get(0).toMap().get("invocation");
+    assertEquals(myBuildPromotionFinder.getName(), invocation.get("finder"));
+    assertEquals(1L, invocation.get("itemsMatched"));
+    assertNotNull(invocation.get("itemsProcessed"));
+    assertNotNull(invocation.get("prefilterDimensions"));
+    assertNotNull(invocation.get("nested")); //build type is found by the nested finder
+    assertNull(FinderProfile.getProfile(profiles.get(0).getId(), userId + 1));
+  }
+
   @Test
   public void testSinceWithQueuedBuilds() {
     final BuildTypeImpl buildConf = registerBuildType("buildConf1", "project");
@@ -1776,6 +2035,17 @@ public class BuildPromotionFinderTest extends BaseFinderTest<BuildPromotion> {
     check("number:10,buildType:(id:" + buildConf.getExternalId()+ "),agentName:"+ agent.getName(), build5);
     check("number:10,buildType:(id:" + buildConf.getExternalId()+ "),agentTypeId:"+ agent.getAgentTypeId(), build5);
 
+    final String twoAgents = "agent:(item:(id:" + agent.getId() + "),item:(id:" + agent2.getId() + "))";
+    check(twoAgents + ",state:finished,defaultFilter:false", build9, build7, build5, build4, build3, build2);
+    setInternalProperty("rest.request.builds.agentsHistory.initialChunkSize", "1"); //histories are read in several chunks
+    check(twoAgents + ",state:finished,defaultFilter:false", build9, build7, build5, build4, build3, build2);
+    check(twoAgents + ",state:finished,defaultFilter:false,count:2", build9, build7);
+    setInternalProperty("rest.request.builds.agentsHistory.maxChunkSize", "2"); //the second chunk reads the rest of the histories
+    check(twoAgents + ",state:finished,defaultFilter:false", build9, build7, build5, build4, build3, build2);
+    check(twoAgents + ",state:finished,defaultFilter:false,count:3", build9, build7, build5);
+    setInternalProperty("rest.request.builds.agentsHistory.maxChunkSize", "1"); //the whole histories are read in a single pass
+    check(twoAgents + ",state:finished,defaultFilter:false", build9, build7, build5, build4, build3, build2);
+
 
     unregisterAgent(agent.getId());
 
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.server.rest.data;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.server.rest.data.build.BuildStatusCache;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.impl.BuildTypeImpl;
+import org.testng.annotations.Test;
+
+public class BuildStatusCacheTest extends BaseFinderTest<BuildPromotion> {
+
+  @Test
+  public void testInvalidationByBuildType() {
+    final BuildTypeImpl buildConf1 = registerBuildType("buildConf1", "project");
+    final BuildTypeImpl buildConf2 = registerBuildType("buildConf2", "project");
+    final BuildStatusCache cache = new BuildStatusCache(new ServerListener(myServer));
+    final AtomicInteger calculations = new AtomicInteger();
+
+    assertEquals("status1", cache.getStatus("key1", () -> Collections.singleton(buildConf1.getInternalId()), () -> calculate(calculations, "status1")));
+    assertEquals("status2", cache.getStatus("key2", () -> Collections.singleton(buildConf2.getInternalId()), () -> calculate(calculations, "status2")));
+    assertEquals("status3", cache.getStatus("key3", () -> null, () -> calculate(calculations, "status3")));
+    assertEquals(3, calculations.get());
+
+    assertEquals("status1", cache.getStatus("key1", () -> Collections.singleton(buildConf1.getInternalId()), () -> calculate(calculations, "changed")));
+    assertEquals("status2", cache.getStatus("key2", () -> Collections.singleton(buildConf2.getInternalId()), () -> calculate(calculations, "changed")));
+    assertEquals("status3", cache.getStatus("key3", () -> null, () -> calculate(calculations, "changed")));
+    assertEquals(3, calculations.get());
+
+    build().in(buildConf1).finish();
+
+    assertEquals("changed1", cache.getStatus("key1", () -> Collections.singleton(buildConf1.getInternalId()), () -> calculate(calculations, "changed1")));
+    assertEquals("status2", cache.getStatus("key2", () -> Collections.singleton(buildConf2.getInternalId()), () -> calculate(calculations, "changed2")));
+    assertEquals("changed3", cache.getStatus("key3", () -> null, () -> calculate(calculations, "changed3")));
+    assertEquals(5, calculations.get());
+  }
+
+  @Test
+  public void testChangeWhileCalculating() {
+    final BuildTypeImpl buildConf1 = registerBuildType("buildConf1", "project");
+    final BuildTypeImpl buildConf2 = registerBuildType("buildConf2", "project");
+    final BuildStatusCache cache = new BuildStatusCache(new ServerListener(myServer));
+    final AtomicInteger calculations = new AtomicInteger();
+
+    //the status calculated while the builds changed is not stored
+    assertEquals("status1", cache.getStatus("key1", () -> Collections.singleton(buildConf1.getInternalId()), () -> {
+      build().in(buildConf1).finish();
+      return calculate(calculations, "status1");
+    }));
+    assertEquals("changed1", cache.getStatus("key1", () -> Collections.singleton(buildConf1.getInternalId()), () -> calculate(calculations, "changed1")));
+
+    //the change of the builds of another build type does not matter
+    assertEquals("status2", cache.getStatus("key2", () -> Collections.singleton(buildConf2.getInternalId()), () -> {
+      build().in(buildConf1).finish();
+      return calculate(calculations, "status2");
+    }));
+    assertEquals("status2", cache.getStatus("key2", () -> Collections.singleton(buildConf2.getInternalId()), () -> calculate(calculations, "changed2")));
+    assertEquals(3, calculations.get());
+  }
+
+  @Test
+  public void testBuildTypeIdsResolvedOnMiss() {
+    final BuildTypeImpl buildConf1 = registerBuildType("buildConf1", "project");
+    final BuildStatusCache cache = new BuildStatusCache(new ServerListener(myServer));
+    final AtomicInteger calculations = new AtomicInteger();
+    final AtomicInteger resolutions = new AtomicInteger();
+
+    assertEquals("status1", cache.getStatus("key1", () -> {
+      resolutions.incrementAndGet();
+      return Collections.singleton(buildConf1.getInternalId());
+    }, () -> calculate(calculations, "status1")));
+    assertEquals("status1", cache.getStatus("key1", () -> {
+      resolutions.incrementAndGet();
+      return Collections.singleton(buildConf1.getInternalId());
+    }, () -> calculate(calculations, "changed")));
+    assertEquals(1, resolutions.get());
+    assertEquals(1, calculations.get());
+
+    //the ids stored with the status are used for the invalidation
+    build().in(buildConf1).finish();
+    assertEquals("changed1", cache.getStatus("key1", () -> null, () -> calculate(calculations, "changed1")));
+  }
+
+  @Test
+  public void testDisabled() {
+    setInternalProperty(BuildStatusCache.TTL_PROPERTY, "0");
+    final BuildStatusCache cache = new BuildStatusCache(new ServerListener(myServer));
+    final AtomicInteger calculations = new AtomicInteger();
+    assertEquals("status1", cache.getStatus("key1", () -> null, () -> calculate(calculations, "status1")));
+    assertEquals("status2", cache.getStatus("key1", () -> null, () -> calculate(calculations, "status2")));
+    assertEquals(2, calculations.get());
+  }
+
+  private static String calculate(final AtomicInteger calculations, final String status) {
+    calculations.incrementAndGet();
+    return status;
+  }
+}
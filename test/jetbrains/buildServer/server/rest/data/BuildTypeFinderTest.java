@@ -18,6 +18,8 @@ package jetbrains.buildServer.server.rest.data;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
+import java.util.function.Supplier;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
 import jetbrains.buildServer.server.rest.errors.LocatorProcessException;
 import jetbrains.buildServer.server.rest.util.BuildTypeOrTemplate;
@@ -256,6 +258,27 @@ public class BuildTypeFinderTest extends BaseFinderTest<BuildTypeOrTemplate> {
     check("artifactDependency:(from:(id:" + buildConf31.getId() + "),to:(id:" + buildConf32.getId() + "))");
   }
 
+  @Test
+  public void testSnapshotAndArtifactDependencies() throws Exception {
+    final BuildTypeOrTemplate buildConf1 = new BuildTypeOrTemplate(registerBuildType("buildConf1", "project"));
+    final BuildTypeOrTemplate buildConf2 = new BuildTypeOrTemplate(registerBuildType("buildConf2", "project"));
+    final BuildTypeOrTemplate buildConf3 = new BuildTypeOrTemplate(registerBuildType("buildConf3", "project"));
+    final BuildTypeOrTemplate buildConf4 = new BuildTypeOrTemplate(registerBuildType("buildConf4", "project"));
+
+    addDependency(buildConf4.get(), buildConf3.getBuildType());
+    addDependency(buildConf3.get(), buildConf2.getBuildType());
+    addDependency(buildConf2.get(), buildConf1.getBuildType());
+    addArtifactDependency(buildConf4.getBuildType(), buildConf1.getBuildType());
+    addArtifactDependency(buildConf4.getBuildType(), buildConf3.getBuildType());
+
+    //the build types found by both the dimensions are returned in the order of the snapshot dependencies
+    check("snapshotDependency:(to:(id:" + buildConf4.getId() + ")),artifactDependency:(to:(id:" + buildConf4.getId() + "))", buildConf3, buildConf1);
+    check("artifactDependency:(to:(id:" + buildConf4.getId() + ")),snapshotDependency:(to:(id:" + buildConf4.getId() + "))", buildConf3, buildConf1);
+    check("snapshotDependency:(to:(id:" + buildConf3.getId() + ")),artifactDependency:(to:(id:" + buildConf4.getId() + "))", buildConf1);
+    check("snapshotDependency:(to:(id:" + buildConf1.getId() + ")),artifactDependency:(to:(id:" + buildConf4.getId() + "))");
+    check("snapshotDependency:(to:(id:" + buildConf4.getId() + ")),artifactDependency:(to:(id:" + buildConf4.getId() + ")),name:" + buildConf1.getName(), buildConf1);
+  }
+
   @Test
   public void testProject() throws Exception {
     myBuildType.remove();
@@ -669,6 +692,50 @@ public class BuildTypeFinderTest extends BaseFinderTest<BuildTypeOrTemplate> {
     checkExceptionOnItemsSearch(BadRequestException.class, "filterByBuilds:(match:(status:SUCCESS))");
     checkExceptionOnItemsSearch(LocatorProcessException.class, "filterByBuilds:($help)");
     checkExceptionOnItemsSearch(BadRequestException.class, "filterByBuilds:(a:b)");
+
+    setInternalProperty("rest.request.buildTypes.filterByBuilds.batchThreshold", "0"); //all build types are checked by a single builds search
+    checkBuildTypes("filterByBuilds:(search:(status:FAILURE))", buildConf10, buildConf20);
+    checkBuildTypes("filterByBuilds:(search:(state:running))", buildConf20);
+    checkBuildTypes("filterByBuilds:(search:(count:1))", buildConf10, buildConf20, buildConf30);
+    checkBuildTypes("filterByBuilds:(search:(id:" + build50.getBuildId() + "))", buildConf20);
+    checkBuildTypes("filterByBuilds:(search:(count:1),match:(status:FAILURE))", buildConf10);
+
+    setInternalProperty("rest.request.buildTypes.filterByBuilds.batchLookupLimit", "1"); //not all the builds are scanned, the rest of build types are checked one by one
+    checkBuildTypes("filterByBuilds:(search:(status:FAILURE))", buildConf10, buildConf20);
+  }
+
+  @Test
+  public void testSettingsCache() throws Exception {
+    final BuildTypeSettingsCache cache = new BuildTypeSettingsCache(myFixture.getSingletonService(SBuildServer.class));
+    final BuildTypeOrTemplate buildType = new BuildTypeOrTemplate(myBuildType);
+    final int[] calculated = {0};
+    final Supplier<Map<String, String>> calculator = () -> Collections.singletonMap("a", String.valueOf(++calculated[0]));
+
+    assertEquals("1", cache.getSettings(buildType, true, false, calculator).get("a"));
+    assertEquals("1", cache.getSettings(buildType, true, false, calculator).get("a"));
+    assertEquals("2", cache.getSettings(buildType, null, null, calculator).get("a")); //another settings snapshot
+
+    cache.buildTypePersisted(myBuildType);
+    assertEquals("3", cache.getSettings(buildType, true, false, calculator).get("a"));
+
+    assertEquals("4", cache.getParameters(buildType, false, calculator).get("a"));
+    cache.projectPersisted(myBuildType.getProjectId());
+    assertEquals("5", cache.getParameters(buildType, false, calculator).get("a"));
+    assertEquals("5", cache.getParameters(buildType, false, calculator).get("a"));
+    assertEquals("6", cache.getSettings(buildType, true, false, calculator).get("a"));
+
+    //the snapshot calculated while the build type is persisted is not stored
+    final Supplier<Map<String, String>> persistingCalculator = () -> {
+      cache.buildTypePersisted(myBuildType);
+      return calculator.get();
+    };
+    assertEquals("7", cache.getParameters(buildType, true, persistingCalculator).get("a"));
+    assertEquals("8", cache.getParameters(buildType, true, calculator).get("a"));
+    assertEquals("8", cache.getParameters(buildType, true, calculator).get("a"));
+
+    setInternalProperty(BuildTypeSettingsCache.MAX_SIZE_PROPERTY, "0");
+    assertEquals("9", cache.getSettings(buildType, true, false, calculator).get("a"));
+    assertEquals("10", cache.getSettings(buildType, true, false, calculator).get("a"));
   }
 
   @Test
@@ -17,6 +17,7 @@
 package jetbrains.buildServer.server.rest.data;
 
 import java.util.Date;
+import jetbrains.buildServer.server.rest.data.change.VcsRootChangesSource;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
 import jetbrains.buildServer.server.rest.model.Fields;
 import jetbrains.buildServer.server.rest.model.change.Change;
@@ -490,6 +491,49 @@ public class ChangeFinderTest extends BaseFinderTest<SVcsModification> {
     checkCounts("version:50", 1, 6);
   }
 
+  @Test
+  public void testVcsRootInstanceChanges() {
+    final BuildTypeImpl buildConf = registerBuildType("buildConf1", "project");
+
+    MockVcsSupport vcs = new MockVcsSupport("vcs");
+    myFixture.getVcsManager().registerVcsSupport(vcs);
+    SVcsRootEx parentRoot1 = myFixture.addVcsRoot(vcs.getName(), "", buildConf);
+    SVcsRootEx parentRoot2 = myFixture.addVcsRoot(vcs.getName(), "", buildConf);
+    VcsRootInstance root1 = buildConf.getVcsRootInstanceForParent(parentRoot1);
+    VcsRootInstance root2 = buildConf.getVcsRootInstanceForParent(parentRoot2);
+    assert root1 != null;
+    assert root2 != null;
+
+    SVcsModification m10 = myFixture.addModification(modification().in(root1).version("10"));
+    SVcsModification m20 = myFixture.addModification(modification().in(root2).version("20"));
+    SVcsModification m30 = myFixture.addModification(modification().in(root1).version("30"));
+    SVcsModification m40 = myFixture.addModification(modification().in(root1).version("40"));
+    SVcsModification m50 = myFixture.addModification(modification().in(root2).version("50"));
+    SVcsModification m60 = myFixture.addModification(modification().in(root1).version("60"));
+
+    final String root1Locator = "vcsRootInstance:(id:" + root1.getId() + ")";
+    final String root2Locator = "vcsRootInstance:(id:" + root2.getId() + ")";
+
+    setInternalProperty("rest.request.changes.vcsRootHistory.initialIdWindow", "1");
+    check(root1Locator, m60, m40, m30, m10);
+    check(root2Locator, m50, m20);
+    check(root1Locator + ",sinceChange:(id:" + m30.getId() + ")", m60, m40);
+    checkCounts(root1Locator + ",count:2", 2, 3);
+
+    setInternalProperty(VcsRootChangesSource.TAIL_CACHE_SIZE_PROPERTY, "2");
+    check(root1Locator, m60, m40, m30, m10);
+    check(root1Locator + ",sinceChange:(id:" + m30.getId() + ")", m60, m40);
+
+    SVcsModification m70 = myFixture.addModification(modification().in(root1).version("70"));
+    check(root1Locator, m70, m60, m40, m30, m10);
+    check(root2Locator, m50, m20);
+
+    setInternalProperty(VcsRootChangesSource.TAIL_CACHE_SIZE_PROPERTY, "10");
+    check(root1Locator, m70, m60, m40, m30, m10);
+    SVcsModification m80 = myFixture.addModification(modification().in(root1).version("80"));
+    check(root1Locator, m80, m70, m60, m40, m30, m10);
+  }
+
   @Test
   public void testVersionedSettings() {
     ProjectEx project = getRootProject().createProject("project", "project");
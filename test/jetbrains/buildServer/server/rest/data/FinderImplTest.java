@@ -18,6 +18,7 @@ package jetbrains.buildServer.server.rest.data;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -50,6 +51,41 @@ public class FinderImplTest extends BaseFinderTest<String> {
     check("prefixed:(or:(firstChar:a,firstChar:b),count:4),count:10", "_a1", "_a2", "_a3", "_b1");
   }
 
+  @Test
+  public void testFilterConditionsReordering() {
+    final AtomicInteger guardChecks = new AtomicInteger();
+    final AtomicInteger expensiveChecks = new AtomicInteger();
+    final AtomicInteger cheapChecks = new AtomicInteger();
+    final MultiCheckerFilter<Integer> filter = new MultiCheckerFilter<Integer>()
+      .addGuard("guard", item -> {
+        guardChecks.incrementAndGet();
+        return item % 2 == 0;
+      })
+      .add("expensive", MultiCheckerFilter.COST_EXPENSIVE, item -> {
+        expensiveChecks.incrementAndGet();
+        final long start = System.nanoTime();
+        while (System.nanoTime() - start < 20 * 1000) ; // ensure the observed time corresponds to the hint
+        return item % 3 != 0;
+      })
+      .add("cheap", MultiCheckerFilter.COST_CHEAP, item -> {
+        cheapChecks.incrementAndGet();
+        return item % 10 == 0;
+      })
+      .reorderable();
+
+    int included = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (filter.isIncluded(i)) {
+        assertTrue(i % 10 == 0 && i % 3 != 0);
+        included++;
+      }
+    }
+    assertEquals(666, included);
+    assertEquals(10000, guardChecks.get());
+    assertEquals(5000, cheapChecks.get());
+    assertEquals(1000, expensiveChecks.get()); // only the items accepted by the guard and the cheap condition
+  }
+
   private static class TestItemFinder extends AbstractFinder<String> {
     private final List<String> testItems;
     private final Long myDefaultCount;
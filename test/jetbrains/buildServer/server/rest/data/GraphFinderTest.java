@@ -0,0 +1,211 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.server.rest.data;
+
+import java.util.*;
+import java.util.function.ToLongFunction;
+import jetbrains.buildServer.TestInternalProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.junit.Assert.*;
+
+public class GraphFinderTest {
+  //1 -> 2, 3; 2 -> 4; 3 -> 4, 5; 4 -> 6
+  private static final Map<Integer, List<Integer>> CHILDREN = new HashMap<>();
+
+  static {
+    TestInternalProperties.init();
+    CHILDREN.put(1, Arrays.asList(2, 3));
+    CHILDREN.put(2, Collections.singletonList(4));
+    CHILDREN.put(3, Arrays.asList(4, 5));
+    CHILDREN.put(4, Collections.singletonList(6));
+  }
+
+  @DataProvider(name = "idFunction")
+  public static Object[][] idFunction() {
+    return new Object[][]{{true}, {false}};
+  }
+
+  @Test(dataProvider = "idFunction")
+  public void testTraversal(final boolean useIds) {
+    final TestTraverser traverser = new TestTraverser(useIds);
+    final GraphFinder<Integer> finder = new GraphFinder<>(new TestFinder(), traverser);
+
+    assertEquals(Arrays.asList(2, 3, 4, 5, 6), getItems(finder, "to:1", -1));
+    assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), getItems(finder, "to:1,includeInitial:true", -1));
+    assertEquals(Arrays.asList(2, 3), getItems(finder, "to:1,recursive:false", -1));
+    assertEquals(Arrays.asList(4, 2, 3, 1), getItems(finder, "from:6", -1));
+    assertEquals(Arrays.asList(2, 3, 4, 6), getItems(finder, "to:1,stop:3", -1));
+    assertEquals(Collections.emptyList(), getItems(finder, "to:6", -1));
+  }
+
+  @Test(dataProvider = "idFunction")
+  public void testLazyTraversal(final boolean useIds) {
+    final TestTraverser traverser = new TestTraverser(useIds);
+    final GraphFinder<Integer> finder = new GraphFinder<>(new TestFinder(), traverser);
+
+    assertEquals(Arrays.asList(2, 3), getItems(finder, "to:1", 2));
+    assertEquals("Only the initial item is expanded", Collections.singletonList(1), traverser.myExpanded);
+
+    traverser.myExpanded.clear();
+    assertEquals(Arrays.asList(2, 3, 4), getItems(finder, "to:1", 3));
+    assertEquals(Arrays.asList(1, 2), traverser.myExpanded);
+
+    traverser.myExpanded.clear();
+    assertEquals(Arrays.asList(2, 3, 4, 5, 6), getItems(finder, "to:1", -1));
+    assertEquals("Each item is expanded once", Arrays.asList(1, 2, 3, 4, 5, 6), traverser.myExpanded);
+  }
+
+  @Test(dataProvider = "idFunction")
+  public void testLookupLimit(final boolean useIds) {
+    final TestTraverser traverser = new TestTraverser(useIds);
+    final GraphFinder<Integer> finder = new GraphFinder<>(new TestFinder(), traverser);
+
+    assertEquals(Arrays.asList(2, 3, 4), getItems(finder, "to:1,lookupLimit:3", -1));
+    assertEquals(Arrays.asList(1, 2), traverser.myExpanded);
+    assertEquals(Collections.singletonList(2), getItems(finder, "to:1,lookupLimit:1", -1));
+    assertEquals("The initial items are not limited", Arrays.asList(1, 2, 3), getItems(finder, "to:1,includeInitial:true,lookupLimit:2", -1));
+    assertEquals(Arrays.asList(2, 3, 4, 5, 6), getItems(finder, "to:1,lookupLimit:5", -1));
+
+    finder.setDefaultLookupLimit(2L);
+    assertEquals(Arrays.asList(2, 3), getItems(finder, "to:1", -1));
+    assertEquals(Arrays.asList(2, 3, 4), getItems(finder, "to:1,lookupLimit:3", -1));
+  }
+
+  @Test(dataProvider = "idFunction")
+  public void testIntersection(final boolean useIds) {
+    final GraphFinder<Integer> finder = new GraphFinder<>(new TestFinder(), new TestTraverser(useIds));
+
+    assertEquals("The items are in the order of 'to' traversal", Arrays.asList(2, 3, 4), getItems(finder, "to:1,from:6", -1));
+    assertEquals(Arrays.asList(2, 3, 4), getItems(finder, "to:1,from:6,stop:3", -1));
+    assertEquals(Collections.singletonList(2), getItems(finder, "to:1,from:6", 1));
+    assertEquals("Only 'from' items when there are no 'to' items", Arrays.asList(4, 2, 3, 1), getItems(finder, "to:6,from:6", -1));
+    assertEquals(Collections.emptyList(), getItems(finder, "to:3,from:2", -1));
+  }
+
+  @Test
+  public void testLongHashSet() {
+    final GraphFinder.LongHashSet set = new GraphFinder.LongHashSet();
+    assertFalse(set.contains(0));
+    assertFalse(set.contains(1));
+
+    assertTrue(set.add(0));
+    assertFalse(set.add(0));
+    assertTrue(set.contains(0));
+
+    assertTrue(set.add(-1));
+    assertTrue(set.add(Long.MIN_VALUE));
+    assertTrue(set.add(Long.MAX_VALUE));
+    assertFalse(set.add(Long.MAX_VALUE));
+    assertTrue(set.contains(-1));
+    assertTrue(set.contains(Long.MIN_VALUE));
+    assertTrue(set.contains(Long.MAX_VALUE));
+    assertFalse(set.contains(1));
+
+    //colliding and growing: the keys differing in the high bits only
+    final Set<Long> expected = new HashSet<>(Arrays.asList(0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE));
+    for (long i = 1; i <= 5000; i++) {
+      final long key = i << 32;
+      assertTrue(set.add(key));
+      assertTrue(set.add(i * 7));
+      expected.add(key);
+      expected.add(i * 7);
+    }
+    for (long i = -100; i <= 40000; i++) {
+      assertEquals(String.valueOf(i), expected.contains(i), set.contains(i));
+    }
+    for (Long key : expected) {
+      assertTrue(String.valueOf(key), set.contains(key));
+      assertFalse(String.valueOf(key), set.add(key));
+    }
+  }
+
+  @NotNull
+  private static List<Integer> getItems(@NotNull final GraphFinder<Integer> finder, @NotNull final String locator, final int maxCount) {
+    final List<Integer> result = new ArrayList<>();
+    finder.getPrefilteredItems(new Locator(locator)).process(item -> {
+      result.add(item);
+      return maxCount < 0 || result.size() < maxCount;
+    });
+    return result;
+  }
+
+  private static class TestTraverser implements GraphFinder.Traverser<Integer> {
+    private final boolean myUseIds;
+    private final List<Integer> myExpanded = new ArrayList<>();
+
+    TestTraverser(final boolean useIds) {
+      myUseIds = useIds;
+    }
+
+    @NotNull
+    @Override
+    public GraphFinder.LinkRetriever<Integer> getChildren() {
+      return item -> {
+        myExpanded.add(item);
+        return CHILDREN.getOrDefault(item, Collections.emptyList());
+      };
+    }
+
+    @NotNull
+    @Override
+    public GraphFinder.LinkRetriever<Integer> getParents() {
+      return item -> {
+        final List<Integer> result = new ArrayList<>();
+        for (Map.Entry<Integer, List<Integer>> entry : CHILDREN.entrySet()) {
+          if (entry.getValue().contains(item)) result.add(entry.getKey());
+        }
+        Collections.sort(result);
+        return result;
+      };
+    }
+
+    @Nullable
+    @Override
+    public ToLongFunction<Integer> getIdFunction() {
+      return myUseIds ? Integer::longValue : null;
+    }
+  }
+
+  private static class TestFinder implements Finder<Integer> {
+    @NotNull
+    @Override
+    public String getCanonicalLocator(@NotNull final Integer item) {
+      return String.valueOf(item);
+    }
+
+    @NotNull
+    @Override
+    public Integer getItem(@Nullable final String locatorText) {
+      return Integer.valueOf(String.valueOf(locatorText));
+    }
+
+    @NotNull
+    @Override
+    public PagedSearchResult<Integer> getItems(@Nullable final String locatorText) {
+      return new PagedSearchResult<>(Collections.singletonList(getItem(locatorText)), null, null);
+    }
+
+    @NotNull
+    @Override
+    public ItemFilter<Integer> getFilter(@NotNull final String locatorText) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
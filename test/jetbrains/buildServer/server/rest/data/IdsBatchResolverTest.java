@@ -0,0 +1,183 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.server.rest.errors.NotFoundException;
+import jetbrains.buildServer.server.rest.model.build.Build;
+import jetbrains.buildServer.server.rest.model.build.Builds;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.impl.BuildTypeImpl;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+public class IdsBatchResolverTest extends BaseFinderTest<BuildPromotion> {
+
+  @Test
+  public void testChunks() {
+    setInternalProperty("rest.request.batchResolve.chunkSize", "2");
+    final List<List<Long>> loaded = new ArrayList<>();
+    final IdsBatchResolver<String> resolver = getResolver(loaded);
+
+    final Map<Long, String> result = resolver.resolve(Arrays.asList(5L, 3L, 1L, 3L, 4L));
+    assertEquals(4, result.size());
+    assertEquals("item3", result.get(3L));
+    assertNull("Odd ids are not found", result.get(5L));
+    assertEquals(Arrays.asList(Arrays.asList(1L, 3L), Arrays.asList(4L, 5L)), loaded);
+
+    //resolved and not found ids are remembered
+    assertEquals(Arrays.asList("item4", "item3", "item1", "item2"), resolver.getAll(Arrays.asList(4L, 5L, 3L, 1L, 2L)));
+    assertEquals("item2", resolver.get(2L));
+    assertNull(resolver.get(5L));
+    assertEquals(Arrays.asList(Arrays.asList(1L, 3L), Arrays.asList(4L, 5L), Collections.singletonList(2L)), loaded);
+  }
+
+  @Test
+  public void testLazyResolving() {
+    setInternalProperty("rest.request.batchResolve.chunkSize", "3");
+    final List<List<Long>> loaded = new ArrayList<>();
+    final AtomicInteger readIds = new AtomicInteger();
+    final Iterator<Long> ids = Arrays.asList(10L, 2L, 8L, 4L, 6L, 12L, 14L).iterator();
+    final Iterator<String> result = getResolver(loaded).resolveLazily(new Iterator<Long>() {
+      @Override
+      public boolean hasNext() {
+        return ids.hasNext();
+      }
+
+      @Override
+      public Long next() {
+        readIds.incrementAndGet();
+        return ids.next();
+      }
+    });
+
+    assertEquals("item10", result.next());
+    assertEquals("Only the first chunk should be read", 3, readIds.get());
+    assertEquals(Collections.singletonList(Arrays.asList(2L, 8L, 10L)), loaded);
+    assertEquals("item2", result.next());
+    assertEquals("item8", result.next());
+    assertEquals("item4", result.next());
+    assertEquals(6, readIds.get());
+    assertEquals(Arrays.asList(Arrays.asList(2L, 8L, 10L), Arrays.asList(4L, 6L, 12L)), loaded);
+  }
+
+  @Test
+  public void testBuildPromotionsByIds() {
+    final BuildTypeImpl buildConf = registerBuildType("buildConf1", "project");
+    final SFinishedBuild build1 = build().in(buildConf).finish();
+    final SFinishedBuild build2 = build().in(buildConf).failed().finish();
+    final SRunningBuild build3 = build().in(buildConf).run();
+    final SQueuedBuild build4 = build().in(buildConf).addToQueue();
+
+    final Map<String, AtomicInteger> calls = new HashMap<>();
+    final BuildPromotionFinder finder = getFinder(calls);
+    final List<Long> ids = Arrays.asList(build3.getBuildId(), build1.getBuildId(), build4.getBuildPromotion().getId(), build2.getBuildId(), build1.getBuildId());
+
+    final Map<Long, BuildPromotion> result = finder.getBuildPromotionsByIds(ids);
+    assertEquals(4, result.size());
+    for (Long id : ids) {
+      assertEquals(BuildPromotionFinder.getBuildPromotionById(id, myFixture.getBuildPromotionManager(), myServer), result.get(id));
+    }
+    assertEquals(build4.getBuildPromotion(), result.get(build4.getBuildPromotion().getId()));
+    assertEquals("All the ids should be resolved in one batch", 1, getCalls(calls, "findBuildInstances"));
+
+    calls.clear();
+    setInternalProperty("rest.request.batchResolve.chunkSize", "2");
+    getFinder(calls).getBuildPromotionsByIds(ids);
+    assertEquals(2, getCalls(calls, "findBuildInstances"));
+  }
+
+  @Test
+  public void testBuildPromotionsByIdsNotFound() {
+    final BuildTypeImpl buildConf = registerBuildType("buildConf1", "project");
+    final SFinishedBuild build1 = build().in(buildConf).finish();
+    final long missingId = build1.getBuildId() + 1000;
+
+    final String expected = checkException(NotFoundException.class,
+                                           () -> BuildPromotionFinder.getBuildPromotionById(missingId, myFixture.getBuildPromotionManager(), myServer), null).getMessage();
+    final Build postedBuild = new Build();
+    postedBuild.setId(missingId);
+    assertEquals(expected, checkException(NotFoundException.class, () -> postedBuild.getFromPosted(myBuildPromotionFinder, Collections.emptyMap()), null).getMessage());
+    assertEquals(expected, checkException(NotFoundException.class,
+                                          () -> myBuildPromotionFinder.getBuildPromotionsByIds(Arrays.asList(build1.getBuildId(), missingId)), null).getMessage());
+  }
+
+  @Test
+  public void testPostedBuilds() {
+    final BuildTypeImpl buildConf = registerBuildType("buildConf1", "project");
+    final SFinishedBuild build1 = build().in(buildConf).finish();
+    final SFinishedBuild build2 = build().in(buildConf).finish();
+    final SQueuedBuild build3 = build().in(buildConf).addToQueue();
+
+    final Builds builds = new Builds();
+    builds.builds = Arrays.asList(getPostedBuild(build2.getBuildId(), null), getPostedBuild(null, "id:" + build1.getBuildId()),
+                                  getPostedBuild(build3.getBuildPromotion().getId(), null), getPostedBuild(build1.getBuildId(), null));
+    assertEquals(Arrays.asList(build2.getBuildPromotion(), build1.getBuildPromotion(), build3.getBuildPromotion(), build1.getBuildPromotion()),
+                 builds.getFromPosted(myFixture, Collections.emptyMap()));
+
+    final long missingId = build2.getBuildId() + 1000;
+    final Build missing = getPostedBuild(missingId, null);
+    final String expected = checkException(NotFoundException.class, () -> missing.getFromPosted(myBuildPromotionFinder, Collections.emptyMap()), null).getMessage();
+    builds.builds = Arrays.asList(getPostedBuild(build1.getBuildId(), null), missing);
+    assertEquals(expected, checkException(NotFoundException.class, () -> builds.getFromPosted(myFixture, Collections.emptyMap()), null).getMessage());
+  }
+
+  @NotNull
+  private static IdsBatchResolver<String> getResolver(@NotNull final List<List<Long>> loaded) {
+    return new IdsBatchResolver<>(ids -> {
+      loaded.add(new ArrayList<>(ids));
+      final Map<Long, String> result = new HashMap<>();
+      for (Long id : ids) {
+        if (id % 2 == 0 || id < 5) result.put(id, "item" + id);
+      }
+      return result;
+    });
+  }
+
+  @NotNull
+  private static Build getPostedBuild(final Long id, final String locator) {
+    final Build result = new Build();
+    result.setId(id);
+    result.setLocator(locator);
+    return result;
+  }
+
+  /**
+   * @return finder which counts the calls to BuildsManager methods
+   */
+  @NotNull
+  private BuildPromotionFinder getFinder(@NotNull final Map<String, AtomicInteger> calls) {
+    final BuildsManager buildsManager = (BuildsManager)Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{BuildsManager.class}, (proxy, method, args) -> {
+      calls.computeIfAbsent(method.getName(), name -> new AtomicInteger()).incrementAndGet();
+      try {
+        return method.invoke(myServer, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    });
+    return new BuildPromotionFinder(myFixture.getBuildPromotionManager(), myFixture.getBuildQueue(), buildsManager, myVcsRootFinder, myProjectFinder,
+                                    myBuildTypeFinder, myUserFinder, myAgentFinder, myBranchFinder, myTimeCondition, myPermissionChecker, null, myFixture);
+  }
+
+  private static int getCalls(@NotNull final Map<String, AtomicInteger> calls, @NotNull final String method) {
+    final AtomicInteger result = calls.get(method);
+    return result == null ? 0 : result.get();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.testng.annotations.Test;
+
+import static org.junit.Assert.*;
+
+public class ItemsSetTest {
+
+  @Test
+  public void testKeys() {
+    final ItemsSet<String> set = new ItemsSet<>(Arrays.asList("b1", "a1", "b2", "c1"), item -> item.substring(0, 1));
+    assertEquals(3, set.size());
+    assertEquals(Arrays.asList("b1", "a1", "c1"), set.getItems());
+    assertTrue(set.contains("b3"));
+    assertTrue(set.isIncluded("a2"));
+    assertFalse(set.contains("d1"));
+    assertEquals(Arrays.asList("c5", "a3", "b4"), set.filter(Arrays.asList("d1", "c5", "a3", "e2", "b4")));
+  }
+
+  @Test
+  public void testIds() {
+    final ItemsSet<Long> set = ItemsSet.byId(Arrays.asList(5L, 0L, 7L, 5L, -3L), Long::longValue);
+    assertEquals(4, set.size());
+    assertEquals(Arrays.asList(5L, 0L, 7L, -3L), set.getItems());
+    assertTrue(set.contains(0L));
+    assertTrue(set.contains(-3L));
+    assertFalse(set.contains(6L));
+    assertEquals(Arrays.asList(7L, 0L), set.filter(Arrays.asList(1L, 7L, 2L, 0L)));
+
+    final ItemsSet<Long> empty = ItemsSet.byId(Collections.emptyList(), Long::longValue);
+    assertEquals(0, empty.size());
+    assertFalse(empty.contains(0L));
+    assertTrue(empty.filter(Arrays.asList(0L, 1L)).isEmpty());
+  }
+
+  @Test
+  public void testManyIds() {
+    final List<Long> ids = new ArrayList<>();
+    for (long i = 0; i < 10000; i++) {
+      ids.add(i * 31);
+    }
+    final ItemsSet<Long> set = ItemsSet.byId(ids, Long::longValue);
+    assertEquals(ids.size(), set.size());
+    assertEquals(ids, set.getItems());
+    for (long i = 0; i < 10000 * 31; i++) {
+      assertEquals(String.valueOf(i), i % 31 == 0, set.contains(i));
+    }
+  }
+}
@@ -640,6 +640,41 @@ public class LocatorTest {
     assertEquals("a:($base64:" + base64("x)y(z") + ")", Locator.getStringLocator("a", "x)y(z"));
   }
 
+  @Test
+  public void testParsedLocatorCache() {
+    final ParsedLocatorCache cache = new ParsedLocatorCache(10);
+    final String[] supportedDimensions = {"a", "b"};
+
+    Locator first = cache.createLocator("a:x,b:(y,z),a:$any", supportedDimensions);
+    assertEquals(Arrays.asList("x", "$any"), first.getDimensionValue("a"));
+    first.setDimension("b", "changed");
+    assertEquals(Collections.singleton("a"), first.getUsedDimensions());
+
+    Locator second = cache.createLocator("a:x,b:(y,z),a:$any", supportedDimensions);
+    assertEquals(0, second.getUsedDimensions().size());
+    assertEquals("y,z", second.getSingleDimensionValue("b"));
+    assertEquals("a:x,b:(y,z),a:$any", second.getStringRepresentation());
+    assertEquals(Collections.singleton("a"), second.getUnusedDimensions());
+    assertEquals("1", cache.getStats().get("hitCount"));
+    assertEquals("1", cache.getStats().get("missCount"));
+
+    Locator single = cache.createLocator("(a:b)", supportedDimensions);
+    assertEquals(true, single.isSingleValue());
+    assertEquals("a:b", single.getSingleValue());
+
+    //supported dimensions are a part of the key
+    cache.createLocator("a:x,b:(y,z),a:$any", new String[]{"a", "b", "c"});
+    assertEquals("3", cache.getStats().get("missCount"));
+
+    try {
+      cache.createLocator("a:(x", supportedDimensions);
+      fail();
+    } catch (LocatorProcessException e) {
+      //expected
+    }
+    assertEquals("3", cache.getStats().get("size"));
+  }
+
   String base64(String text) {
     return new String(Base64.getEncoder().encode(text.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
   }
@@ -122,6 +122,8 @@ public class ParameterConditionTest extends BaseServerTestCase { //need to exten
 
     matchesTrue("name:xxx,value:a.c,matchType:matches", "xxx", "abc", "yyy", "ccc");
     matchesFalse("name:xxx,value:a.c,matchType:matches", "xxx", "abb", "yyy", "ccc");
+    matchesTrue("name:xxx,value:a.c,matchType:does-not-match", "xxx", "abb", "yyy", "abc");
+    matchesFalse("name:xxx,value:a.c,matchType:does-not-match", "xxx", "abc", "yyy", "abb");
 
     matchesTrue("name:xxx,matchType:exists", "xxx", "abc", "yyy", "ccc");
     matchesTrue("name:xxx,value:mmm,matchType:exists", "xxx", "abc", "yyy", "ccc");
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import org.testng.annotations.Test;
+
+public class SpooledArchivesCacheTest extends BaseFinderTest<BuildPromotion> {
+
+  @Test
+  public void testSpooledArchivesCache() throws Exception {
+    final SpooledArchivesCache cache = new SpooledArchivesCache(myServer);
+    final AtomicInteger generations = new AtomicInteger();
+    final SpooledArchivesCache.ArchiveWriter writer = file -> {
+      generations.incrementAndGet();
+      Files.write(file.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+    };
+
+    final SpooledArchivesCache.SpooledArchive archive1 = cache.acquire("key1", writer);
+    final SpooledArchivesCache.SpooledArchive archive2 = cache.acquire("key1", writer);
+    assertEquals(1, generations.get());
+    assertEquals(archive1.getFile(), archive2.getFile());
+    final File file = archive1.getFile();
+    archive1.release();
+    archive2.release();
+    assertTrue("The archive is kept for the next requests", file.isFile());
+    final SpooledArchivesCache.SpooledArchive archive3 = cache.acquire("key1", writer);
+    assertEquals(file, archive3.getFile());
+    assertEquals(1, generations.get());
+
+    //the archive in use is not deleted
+    setInternalProperty(SpooledArchivesCache.MAX_SIZE_PROPERTY, "0");
+    cache.cleanup();
+    assertTrue(file.isFile());
+
+    final SpooledArchivesCache.SpooledArchive other = cache.acquire("key2", writer);
+    final File otherFile = other.getFile();
+    other.release();
+    assertFalse("The total size is exceeded", otherFile.exists());
+    assertEquals(1, cache.getArchivesCount());
+
+    //failed generation is not remembered
+    try {
+      cache.acquire("key3", f -> {
+        throw new IOException("test");
+      });
+      fail("IOException expected");
+    } catch (IOException e) {
+      //expected
+    }
+    assertEquals(1, cache.getArchivesCount());
+
+    //the reuse is disabled
+    setInternalProperty(SpooledArchivesCache.MAX_SIZE_PROPERTY, "10240");
+    setInternalProperty(SpooledArchivesCache.TTL_PROPERTY, "0");
+    final SpooledArchivesCache.SpooledArchive notCached = cache.acquire("key4", writer);
+    final File notCachedFile = notCached.getFile();
+    notCached.release();
+    assertFalse(notCachedFile.exists());
+
+    cache.serverShutdown();
+    assertTrue("The archive in use is deleted once released", file.isFile());
+    archive3.release();
+    assertFalse(file.exists());
+  }
+}
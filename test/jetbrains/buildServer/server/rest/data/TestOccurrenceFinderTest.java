@@ -22,17 +22,20 @@ import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import jetbrains.buildServer.buildTriggers.vcs.BuildBuilder;
 import jetbrains.buildServer.messages.Status;
 import jetbrains.buildServer.messages.TestMetadata;
 import jetbrains.buildServer.responsibility.ResponsibilityEntry;
 import jetbrains.buildServer.responsibility.TestNameResponsibilityFacade;
 import jetbrains.buildServer.responsibility.impl.TestNameResponsibilityEntryImpl;
+import jetbrains.buildServer.server.rest.data.problem.TestOccurrenceFinder;
 import jetbrains.buildServer.server.rest.errors.BadRequestException;
 import jetbrains.buildServer.server.rest.errors.LocatorProcessException;
 import jetbrains.buildServer.server.rest.model.Fields;
 import jetbrains.buildServer.server.rest.model.problem.TestOccurrence;
 import jetbrains.buildServer.server.rest.model.problem.TypedValue;
+import jetbrains.buildServer.serverSide.CurrentProblemsManager;
 import jetbrains.buildServer.serverSide.RunningBuildEx;
 import jetbrains.buildServer.serverSide.SFinishedBuild;
 import jetbrains.buildServer.serverSide.STestRun;
@@ -97,6 +100,48 @@ public class TestOccurrenceFinderTest extends BaseFinderTest<STestRun> {
     check("build:(id:" + build10.getBuildId() + "),test:(name:bbb)", TEST_MATCHER, t("bbb", Status.NORMAL, 2));
     check("build:(id:" + build10.getBuildId() + "),test:(currentlyFailing:true)", TEST_MATCHER, t("aaa", Status.FAILURE, 1), t("ccc", Status.FAILURE, 3));
   }
+
+  @Test
+  public void testOrderedWithCount() throws Exception {
+    final BuildTypeImpl buildType = registerBuildType("buildConf1", "project");
+    final SFinishedBuild build10 = build().in(buildType)
+                                          .withTest("aaa", false)
+                                          .withTest("bbb", true)
+                                          .withTest("ccc", false)
+                                          .withTest("ddd", true)
+                                          .withTest("eee", false)
+                                          .finish();
+
+    final String buildDimension = "build:(id:" + build10.getBuildId() + ")";
+    check(buildDimension + ",orderBy:(name:desc)", TEST_MATCHER,
+          t("eee", Status.FAILURE, 5), t("ddd", Status.NORMAL, 4), t("ccc", Status.FAILURE, 3), t("bbb", Status.NORMAL, 2), t("aaa", Status.FAILURE, 1));
+    check(buildDimension + ",orderBy:(name:desc),count:2", TEST_MATCHER, t("eee", Status.FAILURE, 5), t("ddd", Status.NORMAL, 4));
+    check(buildDimension + ",orderBy:(name:desc),start:1,count:2", TEST_MATCHER, t("ddd", Status.NORMAL, 4), t("ccc", Status.FAILURE, 3));
+    check(buildDimension + ",orderBy:(name:desc),status:FAILURE,count:2", TEST_MATCHER, t("eee", Status.FAILURE, 5), t("ccc", Status.FAILURE, 3));
+    check(buildDimension + ",orderBy:(status:desc),count:2", TEST_MATCHER, t("aaa", Status.FAILURE, 1), t("ccc", Status.FAILURE, 3)); //the order of equal items is preserved
+  }
+
+  @Test
+  public void testOrderedWithCountFilterCreatedOnce() throws Exception {
+    final BuildTypeImpl buildType = registerBuildType("buildConf1", "project");
+    final SFinishedBuild build10 = build().in(buildType).withTest("aaa", false).withTest("bbb", true).withTest("ccc", false).finish();
+
+    final AtomicInteger filtersCreated = new AtomicInteger();
+    final TestOccurrenceFinder finder = new TestOccurrenceFinder(myTestFinder, myBuildFinder, myBuildTypeFinder, myProjectFinder, myServer.getHistory(),
+                                                                 myServer.getSingletonService(CurrentProblemsManager.class)) {
+      @NotNull
+      @Override
+      public ItemFilter<STestRun> getFilter(@NotNull final Locator locator) {
+        filtersCreated.incrementAndGet();
+        return super.getFilter(locator);
+      }
+    };
+
+    final List<STestRun> result = finder.getItems("build:(id:" + build10.getBuildId() + "),orderBy:(name:desc),status:FAILURE,count:1").myEntries;
+    assertEquals(1, result.size());
+    assertEquals("ccc", result.get(0).getTest().getName().getAsString());
+    assertEquals(1, filtersCreated.get());
+  }
   
   @Test
   public void testByTestName() throws Exception {
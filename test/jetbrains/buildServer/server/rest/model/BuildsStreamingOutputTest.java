@@ -0,0 +1,142 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.server.rest.model;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import javax.ws.rs.core.UriBuilder;
+import jetbrains.buildServer.server.rest.data.BaseFinderTest;
+import jetbrains.buildServer.server.rest.errors.OperationException;
+import jetbrains.buildServer.server.rest.jersey.JacksonObjectMapperResolver;
+import jetbrains.buildServer.server.rest.model.build.Build;
+import jetbrains.buildServer.server.rest.model.build.BuildsStreamingOutput;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.serverSide.impl.BuildTypeImpl;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class BuildsStreamingOutputTest extends BaseFinderTest<BuildPromotion> {
+  private ObjectMapper myMapper;
+  private BuildTypeImpl myBuildConf;
+  private SFinishedBuild myBuild1;
+  private SFinishedBuild myBuild2;
+  private SFinishedBuild myBuild3;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myMapper = new JacksonObjectMapperResolver().getContext(Build.class);
+    myBuildConf = registerBuildType("buildConf1", "project");
+    myBuild1 = build().in(myBuildConf).finish();
+    myBuild2 = build().in(myBuildConf).finish();
+    myBuild3 = build().in(myBuildConf).finish();
+  }
+
+  @Test
+  public void testJson() throws Exception {
+    final String locator = "buildType:(id:" + myBuildConf.getExternalId() + ")";
+    final JsonNode all = myMapper.readTree(write(locator, "count,nextHref,build(id)", myBuildPromotionFinder::processItems).toByteArray());
+    assertEquals(3, all.get("count").asInt());
+    assertEquals(3, all.get("build").size());
+    assertEquals(myBuild3.getBuildId(), all.get("build").get(0).get("id").asLong());
+    assertEquals(myBuild2.getBuildId(), all.get("build").get(1).get("id").asLong());
+    assertEquals(myBuild1.getBuildId(), all.get("build").get(2).get("id").asLong());
+    assertNull(all.get("nextHref"));
+
+    final JsonNode page = myMapper.readTree(write(locator + ",count:2", "count,nextHref,build(id)", myBuildPromotionFinder::processItems).toByteArray());
+    assertEquals(2, page.get("count").asInt());
+    assertEquals(2, page.get("build").size());
+    assertEquals(myBuild3.getBuildId(), page.get("build").get(0).get("id").asLong());
+    assertNotNull("count and nextHref are written after the builds", page.get("nextHref"));
+
+    final JsonNode countOnly = myMapper.readTree(write(locator, "count", myBuildPromotionFinder::processItems).toByteArray());
+    assertEquals(3, countOnly.get("count").asInt());
+    assertNull(countOnly.get("build"));
+
+    setInternalProperty(BuildsStreamingOutput.FLUSH_INTERVAL_PROPERTY, "1");
+    assertEquals(all, myMapper.readTree(write(locator, "count,nextHref,build(id)", myBuildPromotionFinder::processItems).toByteArray()));
+  }
+
+  @Test
+  public void testErrorBeforeFirstFlush() throws Exception {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try {
+      getOutput("count,build(id)", failingSource(2)).write(output);
+      fail("Exception expected");
+    } catch (OperationException e) {
+      //expected
+    }
+    assertEquals("Nothing is sent so that the error is reported as an error response", 0, output.size());
+  }
+
+  @Test
+  public void testErrorAfterFlush() throws Exception {
+    setInternalProperty(BuildsStreamingOutput.FLUSH_INTERVAL_PROPERTY, "1");
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try {
+      getOutput("count,build(id)", failingSource(2)).write(output);
+      fail("Exception expected");
+    } catch (OperationException e) {
+      //expected
+    }
+    final String content = new String(output.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(content, content.contains(String.valueOf(myBuild3.getBuildId())));
+    try {
+      myMapper.readTree(output.toByteArray());
+      fail("The document should be left unterminated: " + content);
+    } catch (IOException e) {
+      //expected
+    }
+  }
+
+  @NotNull
+  private BuildsStreamingOutput.BuildsSource failingSource(final int buildsBeforeError) {
+    return (locator, processor) -> {
+      final BuildPromotion[] builds = {myBuild3.getBuildPromotion(), myBuild2.getBuildPromotion(), myBuild1.getBuildPromotion()};
+      for (int i = 0; i < buildsBeforeError; i++) {
+        processor.processItem(builds[i]);
+      }
+      throw new OperationException("Error while searching builds");
+    };
+  }
+
+  @NotNull
+  private ByteArrayOutputStream write(@Nullable final String locator, @NotNull final String fields, @NotNull final BuildsStreamingOutput.BuildsSource source) throws IOException {
+    final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    getOutput(locator, fields, source).write(result);
+    return result;
+  }
+
+  @NotNull
+  private BuildsStreamingOutput getOutput(@NotNull final String fields, @NotNull final BuildsStreamingOutput.BuildsSource source) {
+    return getOutput(null, fields, source);
+  }
+
+  @NotNull
+  private BuildsStreamingOutput getOutput(@Nullable final String locator, @NotNull final String fields, @NotNull final BuildsStreamingOutput.BuildsSource source) {
+    return new BuildsStreamingOutput(locator, source,
+                                     pagedResult -> new PagerData(UriBuilder.fromUri(URI.create("http://localhost/app/rest/builds/stream")), "", pagedResult, locator, "locator"),
+                                     myMapper, new Fields(fields), getBeanContext(myFixture));
+  }
+}
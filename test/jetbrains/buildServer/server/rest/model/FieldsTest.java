@@ -0,0 +1,62 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.model;
+
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import org.testng.annotations.Test;
+
+public class FieldsTest extends BaseServerTestCase {
+
+  @Test
+  public void testNestedFields() {
+    final Fields fields = new Fields("id,buildType(id,name),agent(name)");
+    assertTrue(fields.isIncluded("id"));
+    assertFalse(fields.isIncluded("number", true, true));
+
+    final Fields buildTypeFields = fields.getNestedField("buildType");
+    assertEquals("id,name", buildTypeFields.getFieldsSpec());
+    assertTrue(buildTypeFields.isIncluded("name"));
+    assertFalse(buildTypeFields.isIncluded("projectId", true, true));
+
+    assertEquals(Fields.NONE, fields.getNestedField("changes"));
+    assertTrue(fields.getNestedField("agent").isIncluded("name"));
+
+    assertTrue(new Fields("$long").getNestedField("buildType").isShort());
+    assertTrue(new Fields("").getNestedField("buildType").isNone());
+  }
+
+  @Test
+  public void testNestedFieldsAreShared() {
+    final Fields fields = new Fields("id,buildType(id,name)");
+    assertSame(fields.getNestedField("buildType"), fields.getNestedField("buildType"));
+    assertSame(fields.getNestedField("buildType"), new Fields("id,buildType(id,name)").getNestedField("buildType"));
+    assertSame(fields.getNestedField("buildType", Fields.LONG, Fields.LONG), fields.getNestedField("buildType", Fields.LONG, Fields.LONG));
+
+    assertSame(Fields.LONG.getNestedField("buildType").getNestedField("project"), Fields.LONG.getNestedField("buildType").getNestedField("project"));
+  }
+
+  @Test
+  public void testContext() {
+    final Fields fields = new Fields("related($locator(build:$context.build.id))");
+    final SFinishedBuild build = build().in(myBuildType).finish();
+    final Fields fieldsWithContext = fields.withContext(build.getBuildPromotion());
+    assertEquals("build:" + build.getBuildPromotion().getId(), fieldsWithContext.getNestedField("related").getLocator());
+    assertEquals("build:$context.build.id", fields.getNestedField("related").getLocator()); //shared nested fields are not affected
+
+  }
+}
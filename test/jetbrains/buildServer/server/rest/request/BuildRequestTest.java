@@ -0,0 +1,52 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.server.rest.request;
+
+import java.util.Arrays;
+import java.util.Collections;
+import javax.ws.rs.core.MediaType;
+import org.testng.annotations.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BuildRequestTest {
+
+  @Test
+  public void testETagMatching() {
+    final String eTag = "\"abc\"";
+    assertFalse(BuildRequest.isETagMatched(null, eTag));
+    assertFalse(BuildRequest.isETagMatched("", eTag));
+    assertTrue(BuildRequest.isETagMatched("\"abc\"", eTag));
+    assertTrue(BuildRequest.isETagMatched("W/\"abc\"", eTag));
+    assertTrue(BuildRequest.isETagMatched("\"xyz\", \"abc\"", eTag));
+    assertTrue(BuildRequest.isETagMatched("*", eTag));
+    assertFalse(BuildRequest.isETagMatched("\"xyz\"", eTag));
+    assertFalse(BuildRequest.isETagMatched("abc", eTag));
+    assertFalse(BuildRequest.isETagMatched("\"ab\", W/\"abcd\"", eTag));
+  }
+
+  @Test
+  public void testStreamingMediaType() {
+    //only JSON is streamed, XML is served as a usual builds collection
+    assertEquals(MediaType.APPLICATION_JSON_TYPE, BuildRequest.getStreamingMediaType(Collections.singletonList(MediaType.APPLICATION_JSON_TYPE)));
+    assertEquals(MediaType.APPLICATION_JSON_TYPE, BuildRequest.getStreamingMediaType(Arrays.asList(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_XML_TYPE)));
+    assertEquals(MediaType.APPLICATION_XML_TYPE, BuildRequest.getStreamingMediaType(Arrays.asList(MediaType.APPLICATION_XML_TYPE, MediaType.APPLICATION_JSON_TYPE)));
+    assertEquals(MediaType.APPLICATION_XML_TYPE, BuildRequest.getStreamingMediaType(Collections.singletonList(MediaType.WILDCARD_TYPE)));
+    assertEquals(MediaType.APPLICATION_XML_TYPE, BuildRequest.getStreamingMediaType(Collections.emptyList()));
+  }
+}
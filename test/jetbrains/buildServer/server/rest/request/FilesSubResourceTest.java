@@ -0,0 +1,284 @@
+/*
+ * Copyright 2000-2018 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.server.rest.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import jetbrains.buildServer.controllers.fakes.FakeHttpServletRequest;
+import jetbrains.buildServer.server.rest.data.ArchiveCompressionExecutor;
+import jetbrains.buildServer.server.rest.data.ArchiveElement;
+import jetbrains.buildServer.server.rest.data.BaseFinderTest;
+import jetbrains.buildServer.server.rest.data.BuildArtifactsFinder;
+import jetbrains.buildServer.server.rest.data.SpooledArchivesCache;
+import jetbrains.buildServer.server.rest.errors.BadRequestException;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.web.artifacts.browser.ArtifactTreeElement;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.http.HttpHeaders;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FilesSubResourceTest extends BaseFinderTest<BuildPromotion> {
+  private SFinishedBuild myBuild;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myBuild = build().in(registerBuildType("buildConf1", "project")).finish();
+    final File artifactsDir = myBuild.getArtifactsDirectory();
+    new File(artifactsDir, "dir1").mkdirs();
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      text.append("line ").append(i).append('\n');
+    }
+    Files.write(new File(artifactsDir, "file.txt").toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+    Files.write(new File(artifactsDir, "dir1/file2.txt").toPath(), "content2".getBytes(StandardCharsets.UTF_8));
+    Files.write(new File(artifactsDir, "dir1/packed.zip").toPath(), text.reverse().toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testArchiveWithoutRange() throws Exception {
+    final ArchiveElement archive = getArchive(ArchiveElement.COMPRESSION_DEFAULT);
+    final Response response = FilesSubResource.getArchiveContent(archive, getRequest(null), true, null);
+
+    assertEquals(200, response.getStatus());
+    assertNull("The length is not known while the archive is streamed", response.getMetadata().getFirst(HttpHeaders.CONTENT_LENGTH));
+    final byte[] content = getContent(response);
+    assertTrue(content.length > 0);
+    assertEquals('P', content[0]);
+    assertEquals('K', content[1]);
+    assertEquals(-1, archive.getSize());
+
+    assertTrue("The archive should be deterministic", Arrays.equals(content, getContent(FilesSubResource.getArchiveContent(getArchive(ArchiveElement.COMPRESSION_DEFAULT), getRequest(null), true, null))));
+  }
+
+  @Test
+  public void testArchiveRange() throws Exception {
+    for (String compression : ArchiveElement.COMPRESSION_VALUES) {
+      final byte[] full = getContent(FilesSubResource.getArchiveContent(getArchive(compression), getRequest(null), true, null));
+
+      final ArchiveElement archive = getArchive(compression);
+      final Response response = FilesSubResource.getArchiveContent(archive, getRequest("bytes=10-109"), true, null);
+      assertEquals(206, response.getStatus());
+      assertEquals("100", String.valueOf(response.getMetadata().getFirst(HttpHeaders.CONTENT_LENGTH)));
+      assertEquals("bytes 10-109/" + full.length, String.valueOf(response.getMetadata().getFirst("Content-Range")));
+      assertEquals(full.length, archive.getSize());
+
+      final byte[] range = getContent(response);
+      assertTrue(compression, Arrays.equals(Arrays.copyOfRange(full, 10, 110), range));
+      assertEquals("The spooled archive is deleted after the response is written", -1, archive.getSize());
+
+      final byte[] tail = getContent(FilesSubResource.getArchiveContent(getArchive(compression), getRequest("bytes=" + (full.length - 5) + "-"), true, null));
+      assertTrue(compression, Arrays.equals(Arrays.copyOfRange(full, full.length - 5, full.length), tail));
+    }
+  }
+
+  @Test
+  public void testArchiveMultipleRanges() throws Exception {
+    final byte[] full = getContent(FilesSubResource.getArchiveContent(getArchive(ArchiveElement.COMPRESSION_AUTO), getRequest(null), true, null));
+
+    final ArchiveElement archive = getArchive(ArchiveElement.COMPRESSION_AUTO);
+    final Response response = FilesSubResource.getArchiveContent(archive, getRequest("bytes=0-9,20-29"), true, null);
+    assertEquals(206, response.getStatus());
+    final String content = new String(getContent(response), StandardCharsets.ISO_8859_1);
+    assertEquals(String.valueOf(content.length()), String.valueOf(response.getMetadata().getFirst(HttpHeaders.CONTENT_LENGTH)));
+    assertContains(content, "Content-Range: bytes 0-9/" + full.length);
+    assertContains(content, "Content-Range: bytes 20-29/" + full.length);
+    assertContains(content, new String(Arrays.copyOfRange(full, 0, 10), StandardCharsets.ISO_8859_1));
+    assertContains(content, new String(Arrays.copyOfRange(full, 20, 30), StandardCharsets.ISO_8859_1));
+    assertEquals(-1, archive.getSize());
+  }
+
+  @Test
+  public void testArchiveRangesDisabled() throws Exception {
+    final ArchiveElement archive = getArchive(ArchiveElement.COMPRESSION_DEFAULT);
+    checkException(BadRequestException.class, () -> FilesSubResource.getArchiveContent(archive, getRequest("bytes=0-9"), false, null), null);
+    assertEquals(-1, archive.getSize());
+  }
+
+  @Test
+  public void testSpooledArchivesReused() throws Exception {
+    final SpooledArchivesCache cache = new SpooledArchivesCache(myServer);
+    final byte[] full = getContent(FilesSubResource.getArchiveContent(getArchive(ArchiveElement.COMPRESSION_DEFAULT), getRequest(null), true, cache));
+    assertEquals("Not ranged requests are streamed", 0, cache.getArchivesCount());
+
+    final byte[] range1 = getContent(FilesSubResource.getArchiveContent(getArchive(ArchiveElement.COMPRESSION_DEFAULT), getRequest("bytes=0-99"), true, cache));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(full, 0, 100), range1));
+    assertEquals(1, cache.getArchivesCount());
+    final byte[] range2 = getContent(FilesSubResource.getArchiveContent(getArchive(ArchiveElement.COMPRESSION_DEFAULT), getRequest("bytes=100-"), true, cache));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(full, 100, full.length), range2));
+    assertEquals(1, cache.getArchivesCount());
+
+    getContent(FilesSubResource.getArchiveContent(getArchive(ArchiveElement.COMPRESSION_STORE), getRequest("bytes=0-99"), true, cache));
+    assertEquals("Other layout", 2, cache.getArchivesCount());
+
+    cache.serverShutdown();
+    assertEquals(0, cache.getArchivesCount());
+  }
+
+  @Test
+  public void testCompressionExecutor() throws Exception {
+    final ArchiveCompressionExecutor compressionExecutor = new ArchiveCompressionExecutor(myServer);
+    assertNull(compressionExecutor.getExecutor());
+
+    setInternalProperty("rest.files.archive.parallelThreads", "2");
+    final ExecutorService executor = compressionExecutor.getExecutor();
+    assertNotNull(executor);
+    final ArchiveElement archive = new ArchiveElement(getArtifacts(), "archive.zip", ArchiveElement.COMPRESSION_DEFAULT, executor);
+    final byte[] full = getContent(FilesSubResource.getArchiveContent(archive, getRequest(null), true, null));
+    final byte[] range = getContent(FilesSubResource.getArchiveContent(new ArchiveElement(getArtifacts(), "archive.zip", ArchiveElement.COMPRESSION_DEFAULT, executor),
+                                                                       getRequest("bytes=0-99"), true, null));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(full, 0, 100), range));
+
+    compressionExecutor.serverShutdown();
+    assertTrue(executor.isShutdown());
+    assertNull(compressionExecutor.getExecutor());
+  }
+
+  @Test
+  public void testFileRange() throws Exception {
+    final ArtifactTreeElement element = getArtifact("file.txt");
+    final byte[] full = Files.readAllBytes(new File(myBuild.getArtifactsDirectory(), "file.txt").toPath());
+
+    final Response response = FilesSubResource.getContent(element, getRequest("bytes=100-199")).build();
+    assertEquals(206, response.getStatus());
+    assertEquals("100", String.valueOf(response.getMetadata().getFirst(HttpHeaders.CONTENT_LENGTH)));
+    assertEquals("bytes 100-199/" + full.length, String.valueOf(response.getMetadata().getFirst("Content-Range")));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(full, 100, 200), getContent(response)));
+
+    final byte[] tail = getContent(FilesSubResource.getContent(element, getRequest("bytes=-10")).build());
+    assertTrue(Arrays.equals(Arrays.copyOfRange(full, full.length - 10, full.length), tail));
+  }
+
+  @Test
+  public void testFileMultipleRanges() throws Exception {
+    checkFileMultipleRanges();
+  }
+
+  @Test
+  public void testFileMultipleRangesWithoutFileTransfer() throws Exception {
+    setInternalProperty("rest.files.content.transferFromFile", "false");
+    checkFileMultipleRanges();
+  }
+
+  private void checkFileMultipleRanges() throws IOException {
+    final ArtifactTreeElement element = getArtifact("file.txt");
+    final byte[] full = Files.readAllBytes(new File(myBuild.getArtifactsDirectory(), "file.txt").toPath());
+
+    final Response response = FilesSubResource.getContent(element, getRequest("bytes=0-9,100-119,-5")).build();
+    assertEquals(206, response.getStatus());
+    final MediaType contentType = MediaType.valueOf(String.valueOf(response.getMetadata().getFirst(HttpHeaders.CONTENT_TYPE)));
+    assertEquals("multipart", contentType.getType());
+    assertEquals("byteranges", contentType.getSubtype());
+    final String boundary = contentType.getParameters().get("boundary");
+    assertNotNull(boundary);
+
+    final String content = new String(getContent(response), StandardCharsets.ISO_8859_1);
+    assertEquals(String.valueOf(content.length()), String.valueOf(response.getMetadata().getFirst(HttpHeaders.CONTENT_LENGTH)));
+
+    final String partContentType = content.substring(0, content.indexOf("\r\n", ("--" + boundary + "\r\n").length()) + 2);
+    assertTrue(partContentType, partContentType.startsWith("--" + boundary + "\r\nContent-Type: "));
+    final String partTypeHeader = partContentType.substring(("--" + boundary + "\r\n").length());
+    final String expected = "--" + boundary + "\r\n" + partTypeHeader +
+                            "Content-Range: bytes 0-9/" + full.length + "\r\n\r\n" + getText(full, 0, 10) + "\r\n" +
+                            "--" + boundary + "\r\n" + partTypeHeader +
+                            "Content-Range: bytes 100-119/" + full.length + "\r\n\r\n" + getText(full, 100, 120) + "\r\n" +
+                            "--" + boundary + "\r\n" + partTypeHeader +
+                            "Content-Range: bytes " + (full.length - 5) + "-" + (full.length - 1) + "/" + full.length + "\r\n\r\n" + getText(full, full.length - 5, full.length) +
+                            "\r\n--" + boundary + "--\r\n";
+    assertEquals(expected, content);
+  }
+
+  @Test
+  public void testFileTooManyRanges() throws Exception {
+    setInternalProperty("rest.files.content.maxRanges", "2");
+    final Response response = FilesSubResource.getContent(getArtifact("file.txt"), getRequest("bytes=0-9,20-29,40-49")).build();
+    assertEquals(416, response.getStatus());
+  }
+
+  @Test
+  public void testFileChangedDuringTransfer() throws Exception {
+    final ArtifactTreeElement element = getArtifact("file.txt");
+    final byte[] full = Files.readAllBytes(new File(myBuild.getArtifactsDirectory(), "file.txt").toPath());
+
+    //the file becomes shorter than expected: the rest of the content is read from the element stream
+    final File shortFile = new File(myTempFiles.createTempDir(), "file.txt");
+    Files.write(shortFile.toPath(), Arrays.copyOfRange(full, 0, 150));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    FilesSubResource.writeFromFile(element, shortFile, 100, 200, output);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(full, 100, 300), output.toByteArray()));
+
+    //nothing can be transferred from the file
+    output = new ByteArrayOutputStream();
+    FilesSubResource.writeFromFile(element, shortFile, 1000, 20, output);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(full, 1000, 1020), output.toByteArray()));
+
+    output = new ByteArrayOutputStream();
+    FilesSubResource.writeFromFile(element, new File(myBuild.getArtifactsDirectory(), "file.txt"), 100, 200, output);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(full, 100, 300), output.toByteArray()));
+  }
+
+  @NotNull
+  private static String getText(@NotNull final byte[] content, final int from, final int to) {
+    return new String(Arrays.copyOfRange(content, from, to), StandardCharsets.ISO_8859_1);
+  }
+
+  @NotNull
+  private ArtifactTreeElement getArtifact(@NotNull final String name) {
+    for (ArtifactTreeElement element : getArtifacts()) {
+      if (name.equals(element.getFullName())) return element;
+    }
+    throw new IllegalArgumentException("No artifact " + name);
+  }
+
+  @NotNull
+  private ArchiveElement getArchive(@NotNull final String compression) {
+    return new ArchiveElement(getArtifacts(), "archive.zip", compression, null);
+  }
+
+  @NotNull
+  private List<ArtifactTreeElement> getArtifacts() {
+    return BuildArtifactsFinder.getItems(BuildArtifactsFinder.getArtifactElement(myBuild.getBuildPromotion(), "", myFixture), null, "recursive:true,archives:false",
+                                         null, myFixture);
+  }
+
+  @NotNull
+  static FakeHttpServletRequest getRequest(@Nullable final String range) {
+    final FakeHttpServletRequest request = new FakeHttpServletRequest();
+    if (range != null) request.addHeader(HttpHeaders.RANGE, range);
+    return request;
+  }
+
+  @NotNull
+  static byte[] getContent(@NotNull final Response response) throws IOException {
+    final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    ((StreamingOutput)response.getEntity()).write(result);
+    return result.toByteArray();
+  }
+}